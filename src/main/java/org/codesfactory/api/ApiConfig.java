@@ -0,0 +1,140 @@
+package org.codesfactory.api;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Connection settings for the MozartAPI server.
+ *
+ * Each value is read from a system property (e.g. {@code -Dcompass.api.baseUrl=...}), then from the
+ * matching environment variable (e.g. {@code COMPASS_API_BASE_URL}), and falls back to the default.
+ *
+ * The base URL may list several servers separated by commas
+ * (e.g. {@code -Dcompass.api.baseUrl=http://localhost:8000,http://localhost:8001}); requests are then
+ * spread over them by an {@link EndpointPool}.
+ */
+public final class ApiConfig {
+
+    public static final String DEFAULT_BASE_URL = "https://c7be-133-43-172-128.ngrok-free.app";
+
+    private final List<String> baseUrls;
+    private final Duration connectTimeout;
+    private final Duration modelInfoTimeout;
+    private final Duration generateTimeout;
+    private final boolean virtualThreads;
+    private final Duration keepAlive;
+    private final boolean hedging;
+    private final Duration healthCheckInterval;
+
+    public ApiConfig(String baseUrl, Duration connectTimeout, Duration modelInfoTimeout, Duration generateTimeout,
+                     boolean virtualThreads, Duration keepAlive) {
+        this(baseUrl, connectTimeout, modelInfoTimeout, generateTimeout, virtualThreads, keepAlive, false, Duration.ofSeconds(30));
+    }
+
+    /**
+     * @param baseUrl one server URL, or several separated by commas
+     * @param hedging whether a slow {@code /generate} is also sent to a second server (see {@link EndpointPool})
+     * @param healthCheckInterval how often every server's {@code /model_info} is polled when there are several
+     */
+    public ApiConfig(String baseUrl, Duration connectTimeout, Duration modelInfoTimeout, Duration generateTimeout,
+                     boolean virtualThreads, Duration keepAlive, boolean hedging, Duration healthCheckInterval) {
+        List<String> urls = new ArrayList<>();
+        for (String url : baseUrl.split(",")) {
+            url = url.trim();
+            if (!url.isEmpty()) {
+                urls.add(url.endsWith("/") ? url.substring(0, url.length() - 1) : url);
+            }
+        }
+        if (urls.isEmpty()) {
+            throw new IllegalArgumentException("No API base URL given");
+        }
+        this.baseUrls = Collections.unmodifiableList(urls);
+        this.connectTimeout = connectTimeout;
+        this.modelInfoTimeout = modelInfoTimeout;
+        this.generateTimeout = generateTimeout;
+        this.virtualThreads = virtualThreads;
+        this.keepAlive = keepAlive;
+        this.hedging = hedging;
+        this.healthCheckInterval = healthCheckInterval;
+    }
+
+    /** Loads the configuration from system properties and environment variables. */
+    public static ApiConfig load() {
+        return new ApiConfig(
+                setting("compass.api.baseUrl", "COMPASS_API_BASE_URL", DEFAULT_BASE_URL),
+                Duration.ofSeconds(Long.parseLong(setting("compass.api.connectTimeoutSec", "COMPASS_API_CONNECT_TIMEOUT_SEC", "30"))),
+                Duration.ofSeconds(Long.parseLong(setting("compass.api.modelInfoTimeoutSec", "COMPASS_API_MODEL_INFO_TIMEOUT_SEC", "10"))),
+                Duration.ofSeconds(Long.parseLong(setting("compass.api.generateTimeoutSec", "COMPASS_API_GENERATE_TIMEOUT_SEC", "60"))),
+                Boolean.parseBoolean(setting("compass.api.virtualThreads", "COMPASS_API_VIRTUAL_THREADS", "true")),
+                Duration.ofSeconds(Long.parseLong(setting("compass.api.keepAliveSec", "COMPASS_API_KEEP_ALIVE_SEC", "300"))),
+                Boolean.parseBoolean(setting("compass.api.hedge", "COMPASS_API_HEDGE", "false")),
+                Duration.ofSeconds(Long.parseLong(setting("compass.api.healthCheckSec", "COMPASS_API_HEALTH_CHECK_SEC", "30"))));
+    }
+
+    private static String setting(String property, String env, String defaultValue) {
+        String value = System.getProperty(property);
+        if (value == null || value.isBlank()) {
+            value = System.getenv(env);
+        }
+        return value == null || value.isBlank() ? defaultValue : value.trim();
+    }
+
+    /** Returns a copy of this configuration pointing at another server (or comma-separated servers). */
+    public ApiConfig withBaseUrl(String baseUrl) {
+        return new ApiConfig(baseUrl, connectTimeout, modelInfoTimeout, generateTimeout, virtualThreads, keepAlive,
+                hedging, healthCheckInterval);
+    }
+
+    /** The first configured server. */
+    public String getBaseUrl() {
+        return baseUrls.get(0);
+    }
+
+    /** Every configured server, in the order given. */
+    public List<String> getBaseUrls() {
+        return baseUrls;
+    }
+
+    public Duration getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /** Request timeout for {@code /model_info}. */
+    public Duration getModelInfoTimeout() {
+        return modelInfoTimeout;
+    }
+
+    /** Request timeout for {@code /generate} (time until the response headers arrive). */
+    public Duration getGenerateTimeout() {
+        return generateTimeout;
+    }
+
+    /** Whether the shared HTTP client runs its tasks on virtual threads (otherwise a cached daemon pool). */
+    public boolean useVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /** How long idle connections are kept open for reuse. */
+    public Duration getKeepAlive() {
+        return keepAlive;
+    }
+
+    /** Whether a {@code /generate} that is slower than usual is also sent to a second server. */
+    public boolean isHedging() {
+        return hedging;
+    }
+
+    /** How often the servers' health is checked when several are configured. */
+    public Duration getHealthCheckInterval() {
+        return healthCheckInterval;
+    }
+
+    @Override
+    public String toString() {
+        return "ApiConfig{baseUrls=" + baseUrls + ", connectTimeout=" + connectTimeout + ", modelInfoTimeout=" + modelInfoTimeout
+                + ", generateTimeout=" + generateTimeout + ", virtualThreads=" + virtualThreads + ", keepAlive=" + keepAlive
+                + ", hedging=" + hedging + ", healthCheckInterval=" + healthCheckInterval + '}';
+    }
+}
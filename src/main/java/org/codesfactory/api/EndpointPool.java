@@ -0,0 +1,422 @@
+package org.codesfactory.api;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * The MozartAPI servers of an {@link ApiConfig} and the routing between them.
+ *
+ * Each request goes to the healthy server with the lowest expected wait, estimated as its recent
+ * {@code /generate} latency (an exponential moving average) times one plus its in-flight requests.
+ * A server that answers 503 (e.g. "initialization not complete") or cannot be reached is marked down and
+ * the request fails over to the next server; down servers come back once their {@code /model_info}
+ * answers 200 again. With several servers, {@code /model_info} is polled every
+ * {@link ApiConfig#getHealthCheckInterval()}.
+ *
+ * If {@linkplain ApiConfig#isHedging() hedging} is on, a request that has not been answered after the
+ * pool's recent p95 latency is also sent to a second server; the first response wins and the other
+ * exchange is aborted.
+ *
+ * With a single server the pool just sends to it, so the behavior is the same as a plain client.
+ */
+public final class EndpointPool {
+
+    /** Number of recent {@code /generate} latencies kept for the p95 hedge delay. */
+    static final int LATENCY_SAMPLES = 64;
+    /** Hedging starts only once this many latencies are known. */
+    static final int MIN_HEDGE_SAMPLES = 10;
+    private static final double LATENCY_EWMA_WEIGHT = 0.3;
+
+    private static final Map<List<String>, EndpointPool> POOLS = new ConcurrentHashMap<>();
+    private static volatile ScheduledExecutorService healthCheckExecutor;
+
+    /** One server of the pool. */
+    public static final class Endpoint {
+        private final String baseUrl;
+        private final HttpClient client;
+        private volatile boolean healthy = true;
+        private int inFlight = 0; // guarded by the pool
+        private double latencyMillis = -1; // guarded by the pool; -1 until the first response
+
+        private Endpoint(ApiConfig config) {
+            this.baseUrl = config.getBaseUrl();
+            this.client = HttpClients.forConfig(config);
+        }
+
+        public String getBaseUrl() {
+            return baseUrl;
+        }
+
+        public boolean isHealthy() {
+            return healthy;
+        }
+
+        @Override
+        public String toString() {
+            return baseUrl;
+        }
+    }
+
+    private final ApiConfig config;
+    private final List<Endpoint> endpoints = new ArrayList<>();
+    private final long[] latencies = new long[LATENCY_SAMPLES]; // ring of recent /generate latencies (ms)
+    private int latencyCount = 0;
+    private int latencyNext = 0;
+
+    public EndpointPool(ApiConfig config) {
+        this.config = config;
+        for (String url : config.getBaseUrls()) {
+            endpoints.add(new Endpoint(config.withBaseUrl(url)));
+        }
+        if (endpoints.size() > 1) {
+            System.out.println("EndpointPool: " + endpoints.size() + " servers " + config.getBaseUrls()
+                    + (config.isHedging() ? " (hedging on)" : ""));
+            long interval = Math.max(1, config.getHealthCheckInterval().toMillis());
+            healthCheckExecutor().scheduleWithFixedDelay(this::checkHealth, 0, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** The pool shared by every client with the same servers. */
+    public static EndpointPool forConfig(ApiConfig config) {
+        return POOLS.computeIfAbsent(config.getBaseUrls(), urls -> new EndpointPool(config));
+    }
+
+    private static synchronized ScheduledExecutorService healthCheckExecutor() {
+        if (healthCheckExecutor == null) {
+            healthCheckExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "Endpoint Health Check");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return healthCheckExecutor;
+    }
+
+    public List<Endpoint> getEndpoints() {
+        return Collections.unmodifiableList(endpoints);
+    }
+
+    public int size() {
+        return endpoints.size();
+    }
+
+    /** Key identifying this pool, e.g. for the {@link GenerationScheduler}. */
+    public String getKey() {
+        return String.join(",", config.getBaseUrls());
+    }
+
+    /**
+     * Polls {@code /model_info} on every server and updates which ones are up.
+     * The returned future completes when every server has answered or timed out.
+     */
+    public CompletableFuture<Void> checkHealth() {
+        List<CompletableFuture<?>> checks = new ArrayList<>();
+        for (Endpoint endpoint : endpoints) {
+            HttpRequest request = HttpRequest.newBuilder()
+                    .uri(URI.create(endpoint.baseUrl + "/model_info"))
+                    .header("ngrok-skip-browser-warning", "1")
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.noBody())
+                    .timeout(config.getModelInfoTimeout())
+                    .build();
+            checks.add(endpoint.client.sendAsync(request, HttpResponse.BodyHandlers.discarding()).handle((response, error) -> {
+                boolean up = error == null && response.statusCode() == 200;
+                if (up != endpoint.healthy) {
+                    System.out.println("EndpointPool: " + endpoint + " is " + (up ? "up" : "down")
+                            + (error != null ? " (" + error.getMessage() + ")" : up ? "" : " (status " + response.statusCode() + ")"));
+                }
+                endpoint.healthy = up;
+                return null;
+            }));
+        }
+        return CompletableFuture.allOf(checks.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Sends a request built for the chosen server, failing over on 503 and on connection errors.
+     * If every server has been tried, the last 503 response (or error) is the result.
+     * Cancelling the returned future aborts every exchange of the request.
+     *
+     * @param requestFor builds the request for a server
+     * @param generation whether this is a {@code /generate} call: only those feed the latency statistics
+     *                   and are hedged (if enabled in the configuration)
+     */
+    public <T> CompletableFuture<HttpResponse<T>> send(Function<Endpoint, HttpRequest> requestFor,
+                                                       HttpResponse.BodyHandler<T> handler, boolean generation) {
+        return send(requestFor, handler, generation, () -> { });
+    }
+
+    /**
+     * Like {@link #send(Function, HttpResponse.BodyHandler, boolean)}, and calls onFinished once the request
+     * is settled and every exchange it started (including aborted hedges and failovers) has finished, so no
+     * further exchange can read the request body. The returned future may complete earlier than that.
+     */
+    public <T> CompletableFuture<HttpResponse<T>> send(Function<Endpoint, HttpRequest> requestFor,
+                                                       HttpResponse.BodyHandler<T> handler, boolean generation,
+                                                       Runnable onFinished) {
+        Attempts<T> attempts = new Attempts<>(requestFor, handler, generation, onFinished);
+        if (!attempts.launch()) {
+            onFinished.run();
+            return CompletableFuture.failedFuture(new IOException("No API server available"));
+        }
+        long hedgeDelay = generation && config.isHedging() && endpoints.size() > 1 ? hedgeDelayMillis() : -1;
+        if (hedgeDelay >= 0) {
+            CompletableFuture.delayedExecutor(hedgeDelay, TimeUnit.MILLISECONDS).execute(() -> attempts.hedge(hedgeDelay));
+        }
+        attempts.result.whenComplete((response, error) -> {
+            if (attempts.result.isCancelled()) {
+                attempts.abortAll();
+            }
+            attempts.finishIfDone();
+        });
+        return attempts.result;
+    }
+
+    /** The exchanges of one request: the first one, failovers, and at most one hedge. */
+    private final class Attempts<T> {
+        final Function<Endpoint, HttpRequest> requestFor;
+        final HttpResponse.BodyHandler<T> handler;
+        final boolean recordLatency;
+        final Runnable onFinished;
+        final CompletableFuture<HttpResponse<T>> result = new CompletableFuture<>();
+        final Set<Endpoint> tried = new HashSet<>();
+        final List<CompletableFuture<HttpResponse<T>>> running = new ArrayList<>();
+        int outstanding = 0; // exchanges started (or being started) that have not completed yet
+        boolean finished = false;
+        HttpResponse<T> lastUnavailable = null;
+        Throwable lastError = null;
+
+        Attempts(Function<Endpoint, HttpRequest> requestFor, HttpResponse.BodyHandler<T> handler, boolean recordLatency,
+                 Runnable onFinished) {
+            this.requestFor = requestFor;
+            this.handler = handler;
+            this.recordLatency = recordLatency;
+            this.onFinished = onFinished;
+        }
+
+        /** Sends to the best server not tried yet. Returns false if there is none. */
+        boolean launch() {
+            Endpoint endpoint;
+            synchronized (this) {
+                if (result.isDone()) {
+                    return false;
+                }
+                endpoint = acquire(tried);
+                if (endpoint == null) {
+                    return false;
+                }
+                tried.add(endpoint);
+                outstanding++; // counted before the exchange exists, so the request cannot look finished meanwhile
+            }
+            long start = System.nanoTime();
+            CompletableFuture<HttpResponse<T>> exchange;
+            try {
+                exchange = endpoint.client.sendAsync(requestFor.apply(endpoint), handler);
+            } catch (RuntimeException e) {
+                exchange = CompletableFuture.failedFuture(e);
+            }
+            synchronized (this) {
+                running.add(exchange);
+            }
+            CompletableFuture<HttpResponse<T>> finalExchange = exchange;
+            exchange.whenComplete((response, error) -> completed(endpoint, finalExchange, start, response, error));
+            if (result.isDone()) {
+                exchange.cancel(true); // the request was answered or cancelled meanwhile
+            }
+            return true;
+        }
+
+        void hedge(long delayMillis) {
+            if (!result.isDone() && launch()) {
+                System.out.println("EndpointPool: No response after " + delayMillis + " ms (p95), hedging to another server");
+            }
+        }
+
+        void completed(Endpoint endpoint, CompletableFuture<HttpResponse<T>> exchange, long start,
+                       HttpResponse<T> response, Throwable error) {
+            synchronized (this) {
+                running.remove(exchange);
+                outstanding--;
+            }
+            try {
+                settle(endpoint, start, response, error);
+            } finally {
+                finishIfDone();
+            }
+        }
+
+        private void settle(Endpoint endpoint, long start, HttpResponse<T> response, Throwable error) {
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            if (response != null && response.statusCode() != 503) {
+                long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+                release(endpoint, recordLatency && response.statusCode() == 200 ? elapsedMillis : -1);
+                endpoint.healthy = true;
+                if (result.complete(response)) {
+                    abortAll(); // a hedged twin is no longer needed
+                }
+                return;
+            }
+            release(endpoint, -1);
+            if (result.isDone() || cause instanceof CancellationException) {
+                return;
+            }
+            if (response != null) {
+                markDown(endpoint, "503 Service Unavailable");
+                synchronized (this) {
+                    lastUnavailable = response;
+                }
+            } else if (cause instanceof HttpTimeoutException) {
+                // Slow, not broken: do not send the same work again elsewhere
+                synchronized (this) {
+                    lastError = cause;
+                }
+                finishIfIdle();
+                return;
+            } else {
+                markDown(endpoint, cause.getMessage());
+                synchronized (this) {
+                    lastError = cause;
+                }
+            }
+            if (launch()) {
+                System.out.println("EndpointPool: Failed over from " + endpoint);
+            } else {
+                finishIfIdle();
+            }
+        }
+
+        /** Settles the result with the last failure once no exchange is left running. */
+        void finishIfIdle() {
+            HttpResponse<T> unavailable;
+            Throwable error;
+            synchronized (this) {
+                if (outstanding > 0) {
+                    return;
+                }
+                unavailable = lastUnavailable;
+                error = lastError;
+            }
+            if (unavailable != null) {
+                result.complete(unavailable); // let the caller report the server's own 503 message
+            } else {
+                result.completeExceptionally(error);
+            }
+        }
+
+        /** Calls onFinished once the result is settled and no exchange is outstanding (launch() refuses new ones by then). */
+        void finishIfDone() {
+            synchronized (this) {
+                if (finished || outstanding > 0 || !result.isDone()) {
+                    return;
+                }
+                finished = true;
+            }
+            onFinished.run();
+        }
+
+        void abortAll() {
+            List<CompletableFuture<HttpResponse<T>>> exchanges;
+            synchronized (this) {
+                exchanges = new ArrayList<>(running);
+            }
+            for (CompletableFuture<HttpResponse<T>> exchange : exchanges) {
+                exchange.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Picks the server with the lowest expected wait among those not excluded, preferring healthy ones,
+     * and counts the request as in flight there. Returns null if every server is excluded.
+     */
+    private synchronized Endpoint acquire(Collection<Endpoint> exclude) {
+        double known = 0;
+        int knownCount = 0;
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.latencyMillis >= 0) {
+                known += endpoint.latencyMillis;
+                knownCount++;
+            }
+        }
+        double unknownLatency = knownCount == 0 ? 1 : known / knownCount; // untried servers look average
+        Endpoint best = null;
+        double bestScore = Double.MAX_VALUE;
+        for (Endpoint endpoint : endpoints) {
+            if (exclude.contains(endpoint)) {
+                continue;
+            }
+            double latency = endpoint.latencyMillis >= 0 ? Math.max(1, endpoint.latencyMillis) : unknownLatency;
+            double score = latency * (1 + endpoint.inFlight);
+            if (!endpoint.healthy) {
+                score += 1e12; // only when every healthy server has been tried
+            }
+            if (score < bestScore) {
+                best = endpoint;
+                bestScore = score;
+            }
+        }
+        if (best != null) {
+            best.inFlight++;
+        }
+        return best;
+    }
+
+    /** Ends an in-flight request; latencyMillis is recorded unless negative. */
+    private synchronized void release(Endpoint endpoint, long latencyMillis) {
+        endpoint.inFlight--;
+        if (latencyMillis < 0) {
+            return;
+        }
+        endpoint.latencyMillis = endpoint.latencyMillis < 0 ? latencyMillis
+                : LATENCY_EWMA_WEIGHT * latencyMillis + (1 - LATENCY_EWMA_WEIGHT) * endpoint.latencyMillis;
+        latencies[latencyNext] = latencyMillis;
+        latencyNext = (latencyNext + 1) % latencies.length;
+        latencyCount = Math.min(latencyCount + 1, latencies.length);
+    }
+
+    private void markDown(Endpoint endpoint, String reason) {
+        if (endpoint.healthy) {
+            System.out.println("EndpointPool: " + endpoint + " is down (" + reason + ")");
+        }
+        endpoint.healthy = false;
+    }
+
+    /** The p95 of recent {@code /generate} latencies, or -1 while there are too few samples. */
+    synchronized long hedgeDelayMillis() {
+        if (latencyCount < MIN_HEDGE_SAMPLES) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(latencies, latencyCount);
+        Arrays.sort(sorted);
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(sorted.length * 0.95) - 1)];
+    }
+
+    /** Recent latency estimate of a server in milliseconds, or -1 if none is known yet. */
+    public synchronized double getLatencyMillis(Endpoint endpoint) {
+        return endpoint.latencyMillis;
+    }
+
+    public synchronized int getInFlight(Endpoint endpoint) {
+        return endpoint.inFlight;
+    }
+}
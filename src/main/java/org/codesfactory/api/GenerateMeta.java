@@ -38,6 +38,9 @@ public class GenerateMeta {
     @SerializedName("genfield_measure")
     private Integer genfieldMeasure;
 
+    @SerializedName("num_gems")
+    private Integer numGems; // Number of candidates; the server answers with a ZIP when > 1
+
     public GenerateMeta(String modelType, List<Object> program, int tempo, String task) {
         this.modelType = modelType;
         this.program = program;
@@ -45,6 +48,10 @@ public class GenerateMeta {
         this.task = task;
     }
 
+    public String getModelType() {
+        return modelType;
+    }
+
     public void setP(Double p) {
         this.p = p;
     }
@@ -79,4 +86,8 @@ public class GenerateMeta {
     public void setCotTemperature(Double cotTemperature) {
         this.cotTemperature = cotTemperature;
     }
+
+    public void setNumGems(Integer numGems) {
+        this.numGems = numGems;
+    }
 }
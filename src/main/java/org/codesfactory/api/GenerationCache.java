@@ -0,0 +1,281 @@
+package org.codesfactory.api;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+/**
+ * Content-addressed cache of {@code /generate} responses.
+ *
+ * Entries are keyed by the SHA-256 of the request content (the meta JSON and the encoded MIDI parts,
+ * without the random multipart boundary), so an identical request maps to the same entry no matter when
+ * or from which window it is sent. There are two tiers: a small in-memory LRU bounded by bytes, and a
+ * directory under {@code ~/.compass/cache/generation} bounded by total size, where the least recently used
+ * files are evicted first. Disk errors are logged and otherwise ignored; the cache never fails a request.
+ *
+ * {@link #get} may be called on the EDT, so the cache lock only guards the memory tier. Disk writes,
+ * recency updates and eviction run on a single background thread, which also owns the disk size accounting.
+ *
+ * The memory and disk limits can be changed with {@code -Dcompass.cache.memoryMB=...} and
+ * {@code -Dcompass.cache.diskMB=...}.
+ */
+public final class GenerationCache {
+
+    public static final long DEFAULT_MEMORY_BYTES = Long.getLong("compass.cache.memoryMB", 16L) * 1024 * 1024;
+    public static final long DEFAULT_DISK_BYTES = Long.getLong("compass.cache.diskMB", 256L) * 1024 * 1024;
+    /** After an eviction pass the disk tier is trimmed down to this fraction of its limit. */
+    private static final double DISK_LOW_WATER = 0.8;
+    private static final String SUFFIX = ".bin";
+
+    private static volatile GenerationCache shared;
+
+    private final long memoryLimitBytes;
+    private final long diskLimitBytes;
+    private final Path directory; // null when the disk tier is unavailable
+    private final LinkedHashMap<String, byte[]> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryBytes = 0;
+    private volatile long diskBytes = 0; // written by the disk thread only (and the constructor)
+    // responses queued for the disk thread but not written yet, so a get() in between still finds them
+    private final Map<String, byte[]> pendingWrites = new ConcurrentHashMap<>();
+    private final ExecutorService diskWriter = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "Generation Cache Disk");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public GenerationCache(Path directory, long memoryLimitBytes, long diskLimitBytes) {
+        this.memoryLimitBytes = memoryLimitBytes;
+        this.diskLimitBytes = diskLimitBytes;
+        this.directory = openDirectory(directory);
+    }
+
+    /** The process-wide cache under {@code ~/.compass/cache/generation}, opened on first use. */
+    public static GenerationCache shared() {
+        GenerationCache cache = shared;
+        if (cache == null) {
+            synchronized (GenerationCache.class) {
+                cache = shared;
+                if (cache == null) {
+                    cache = new GenerationCache(Paths.get(System.getProperty("user.home"), ".compass", "cache", "generation"),
+                            DEFAULT_MEMORY_BYTES, DEFAULT_DISK_BYTES);
+                    shared = cache;
+                }
+            }
+        }
+        return cache;
+    }
+
+    private Path openDirectory(Path dir) {
+        if (dir == null) {
+            return null;
+        }
+        try {
+            Files.createDirectories(dir);
+            try (Stream<Path> files = Files.list(dir)) {
+                diskBytes = files.filter(p -> p.getFileName().toString().endsWith(SUFFIX)).mapToLong(GenerationCache::sizeOf).sum();
+            }
+            System.out.println("GenerationCache: Disk tier at " + dir + " (" + diskBytes / 1024 + " KB used)");
+            return dir;
+        } catch (IOException e) {
+            System.err.println("GenerationCache: Disk tier disabled: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Returns the cached response for key, or null. A disk hit is promoted to the memory tier.
+     * Only the memory tier is read under the cache lock; a disk read does not block other callers.
+     */
+    public byte[] get(String key) {
+        synchronized (this) {
+            byte[] bytes = memory.get(key);
+            if (bytes != null) {
+                return bytes;
+            }
+        }
+        if (directory == null) {
+            return null;
+        }
+        byte[] pending = pendingWrites.get(key);
+        if (pending != null) {
+            return pending;
+        }
+        Path file = directory.resolve(key + SUFFIX);
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(file);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            System.err.println("GenerationCache: Failed to read " + file + ": " + e.getMessage());
+            return null;
+        }
+        synchronized (this) {
+            putInMemory(key, bytes);
+        }
+        diskWriter.execute(() -> touch(file)); // recency for eviction
+        return bytes;
+    }
+
+    /**
+     * Stores a response in both tiers. The memory tier is updated immediately; the file is written by the
+     * disk thread, and until then {@link #get} answers from the pending write.
+     */
+    public void put(String key, byte[] response) {
+        synchronized (this) {
+            putInMemory(key, response);
+        }
+        if (directory == null) {
+            return;
+        }
+        pendingWrites.put(key, response);
+        diskWriter.execute(() -> {
+            try {
+                writeToDisk(key, response);
+            } finally {
+                pendingWrites.remove(key, response);
+            }
+        });
+    }
+
+    /** Removes every entry from both tiers. Files are deleted after the disk writes queued before this call. */
+    public void clear() {
+        synchronized (this) {
+            memory.clear();
+            memoryBytes = 0;
+        }
+        if (directory == null) {
+            return;
+        }
+        pendingWrites.clear();
+        diskWriter.execute(this::clearDisk);
+    }
+
+    /** Waits until the disk writes queued so far have finished (for shutdown and tests). */
+    public void flush() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        diskWriter.execute(done::countDown);
+        done.await();
+    }
+
+    public synchronized long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    public long getDiskBytes() {
+        return diskBytes;
+    }
+
+    // --- disk tier (runs on the disk thread only) ---
+
+    private void writeToDisk(String key, byte[] response) {
+        Path file = directory.resolve(key + SUFFIX);
+        try {
+            long previous = Files.exists(file) ? sizeOf(file) : 0;
+            Path temp = Files.createTempFile(directory, key, ".tmp");
+            Files.write(temp, response);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            diskBytes += response.length - previous;
+            if (diskBytes > diskLimitBytes) {
+                evictDisk();
+            }
+        } catch (IOException e) {
+            System.err.println("GenerationCache: Failed to write " + file + ": " + e.getMessage());
+        }
+    }
+
+    private void clearDisk() {
+        for (Path file : listEntries()) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                System.err.println("GenerationCache: Failed to delete " + file + ": " + e.getMessage());
+            }
+        }
+        diskBytes = 0;
+    }
+
+    private static void touch(Path file) {
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // evicted in the meantime; nothing to update
+        }
+    }
+
+    private void putInMemory(String key, byte[] bytes) {
+        if (bytes.length > memoryLimitBytes) {
+            return;
+        }
+        byte[] previous = memory.put(key, bytes);
+        memoryBytes += bytes.length - (previous == null ? 0 : previous.length);
+        Iterator<Map.Entry<String, byte[]>> eldest = memory.entrySet().iterator();
+        while (memoryBytes > memoryLimitBytes && eldest.hasNext()) {
+            memoryBytes -= eldest.next().getValue().length;
+            eldest.remove();
+        }
+    }
+
+    /** Deletes the least recently used files until the disk tier is below its low-water mark. */
+    private void evictDisk() {
+        List<Path> files = listEntries();
+        files.sort(Comparator.comparingLong(GenerationCache::lastModified));
+        long target = (long) (diskLimitBytes * DISK_LOW_WATER);
+        int evicted = 0;
+        for (Path file : files) {
+            if (diskBytes <= target) {
+                break;
+            }
+            long size = sizeOf(file);
+            try {
+                Files.deleteIfExists(file);
+                diskBytes -= size;
+                evicted++;
+            } catch (IOException e) {
+                System.err.println("GenerationCache: Failed to evict " + file + ": " + e.getMessage());
+            }
+        }
+        System.out.println("GenerationCache: Evicted " + evicted + " entries from disk (" + diskBytes / 1024 + " KB left)");
+    }
+
+    private List<Path> listEntries() {
+        List<Path> entries = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(p -> p.getFileName().toString().endsWith(SUFFIX)).forEach(entries::add);
+        } catch (IOException e) {
+            System.err.println("GenerationCache: Failed to list " + directory + ": " + e.getMessage());
+        }
+        return entries;
+    }
+
+    private static long sizeOf(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static long lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package org.codesfactory.api;
+
+import com.google.gson.Gson;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * A {@code /generate} request: the meta JSON plus optional MIDI parts (past_midi, future_midi, conditions_midi).
+ *
+ * Parts are given as writer callbacks instead of files, so the caller encodes its notes (e.g. as SMF)
+ * directly into the multipart body when the request is sent. Nothing touches the disk and the body is
+ * built in a single pooled buffer.
+ */
+public final class GenerationRequest {
+
+    /** Writes the content of one multipart part. */
+    @FunctionalInterface
+    public interface PartWriter {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    static final class Part {
+        final String name;
+        final String filename;
+        final String contentType;
+        final PartWriter writer;
+
+        Part(String name, String filename, String contentType, PartWriter writer) {
+            this.name = name;
+            this.filename = filename;
+            this.contentType = contentType;
+            this.writer = writer;
+        }
+    }
+
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final Gson GSON = new Gson();
+
+    private final GenerateMeta meta;
+    private final List<Part> parts;
+    private final boolean cacheReplay;
+
+    private GenerationRequest(GenerateMeta meta, List<Part> parts, boolean cacheReplay) {
+        this.meta = meta;
+        this.parts = parts;
+        this.cacheReplay = cacheReplay;
+    }
+
+    public static Builder builder(GenerateMeta meta) {
+        return new Builder(meta);
+    }
+
+    public GenerateMeta getMeta() {
+        return meta;
+    }
+
+    /**
+     * Whether a cached response for identical content may be returned instead of sending the request.
+     * Responses are cached either way; this only controls whether they are replayed.
+     */
+    public boolean isCacheReplay() {
+        return cacheReplay;
+    }
+
+    /** Names of the parts that will be sent, in order (meta_json first). */
+    public List<String> getPartNames() {
+        List<String> names = new ArrayList<>(parts.size());
+        for (Part part : parts) {
+            names.add(part.name);
+        }
+        return names;
+    }
+
+    /**
+     * A hex SHA-256 of the request content, the same key {@link MozartAPIClient} uses for the {@link GenerationCache}.
+     * Parts are encoded at the time of the call, so the key reflects the notes as they are now.
+     */
+    public String contentKey() throws IOException {
+        MessageDigest digest = MozartAPIClient.sha256();
+        encode("", digest).release();
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Encodes the multipart body into a pooled buffer. The caller must {@link PooledBuffer#release()} it.
+     * If contentDigest is non-null it is fed each part's name, type and content (but not the random boundary),
+     * which gives a key that is the same for every request with identical content.
+     */
+    PooledBuffer encode(String boundary, MessageDigest contentDigest) throws IOException {
+        PooledBuffer out = PooledBuffer.acquire();
+        try {
+            for (Part part : parts) {
+                int start = out.size();
+                ascii(out, "--" + boundary + "\r\n");
+                ascii(out, "Content-Disposition: form-data; name=\"" + part.name + "\"; filename=\"" + part.filename + "\"\r\n");
+                ascii(out, "Content-Type: " + part.contentType + "\r\n\r\n");
+                int contentStart = out.size();
+                part.writer.writeTo(out);
+                if (contentDigest != null) {
+                    contentDigest.update((part.name + '\0' + part.filename + '\0' + part.contentType + '\0'
+                            + (out.size() - contentStart) + '\0').getBytes(StandardCharsets.UTF_8));
+                    out.digest(contentDigest, contentStart, out.size() - contentStart);
+                }
+                out.write(CRLF);
+                System.out.println("  - " + part.name + ": " + (out.size() - contentStart - CRLF.length) + " bytes (part " + (out.size() - start) + " bytes)");
+            }
+            ascii(out, "--" + boundary + "--\r\n");
+            return out;
+        } catch (IOException | RuntimeException e) {
+            out.release();
+            throw e;
+        }
+    }
+
+    private static void ascii(OutputStream out, String s) throws IOException {
+        out.write(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static final class Builder {
+        private final GenerateMeta meta;
+        private final List<Part> parts = new ArrayList<>();
+        private boolean cacheReplay = false;
+
+        private Builder(GenerateMeta meta) {
+            this.meta = meta;
+            parts.add(new Part("meta_json", "meta.json", "application/json", out -> {
+                Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+                GSON.toJson(this.meta, writer);
+                writer.flush(); // do not close: that would close the shared body buffer
+            }));
+        }
+
+        /** Adds an arbitrary part. */
+        public Builder part(String name, String filename, String contentType, PartWriter writer) {
+            parts.add(new Part(name, filename, contentType, writer));
+            return this;
+        }
+
+        /** Adds a Standard MIDI File part (e.g. "past_midi"). */
+        public Builder midi(String name, PartWriter writer) {
+            return part(name, name + ".mid", "audio/midi", writer);
+        }
+
+        /** Allows a cached response for identical content to be returned (see {@link GenerationCache}). */
+        public Builder cacheReplay(boolean cacheReplay) {
+            this.cacheReplay = cacheReplay;
+            return this;
+        }
+
+        public GenerationRequest build() {
+            return new GenerationRequest(meta, Collections.unmodifiableList(new ArrayList<>(parts)), cacheReplay);
+        }
+    }
+}
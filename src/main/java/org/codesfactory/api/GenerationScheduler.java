@@ -0,0 +1,374 @@
+package org.codesfactory.api;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Process-wide queue in front of every {@code /generate} call.
+ *
+ * All piano roll windows, prefetchers and arrangement jobs share one server, usually a single GPU
+ * that keeps only one model loaded. Requests therefore go through this scheduler instead of straight
+ * to the HTTP client:
+ * <ul>
+ *   <li>At most {@code maxConcurrentPerEndpoint} requests are in flight per server; the rest wait in a queue.
+ *       The servers of one {@link EndpointPool} share a queue, with room for that many requests per server.</li>
+ *   <li>The queue is ordered by {@link Priority} (interactive before prefetch), then by arrival.</li>
+ *   <li>Requests with identical content (same {@link GenerationRequest#contentKey()}) that are queued or in flight
+ *       share a single exchange. The request is only aborted once every caller has cancelled.</li>
+ *   <li>Within a priority level, requests for the model that is currently loaded are sent first, and a request for
+ *       another model waits until the in-flight requests drain, so the server does not swap models back and forth.
+ *       After {@link #MAX_BATCH} requests in a row for one model, a waiting model gets its turn.</li>
+ * </ul>
+ * Queue depth, wait times and coalescing counts are available from {@link #getMetrics()}.
+ *
+ * The concurrency cap can be changed with {@code -Dcompass.scheduler.maxConcurrent=...}.
+ */
+public final class GenerationScheduler {
+
+    /** Order in which queued requests are sent. */
+    public enum Priority {
+        /** The user is waiting for the result. */
+        INTERACTIVE,
+        /** Speculative work that may never be used. */
+        PREFETCH
+    }
+
+    public static final int DEFAULT_MAX_CONCURRENT_PER_ENDPOINT = Integer.getInteger("compass.scheduler.maxConcurrent", 4);
+    /** Consecutive requests for one model before a request for another model is let through. */
+    static final int MAX_BATCH = 8;
+
+    private static volatile GenerationScheduler shared;
+
+    private final int maxConcurrentPerEndpoint;
+    private final Map<String, Endpoint> endpoints = new HashMap<>();
+    private long sequence = 0;
+
+    // Metrics (guarded by this)
+    private long submitted = 0;
+    private long coalesced = 0;
+    private long dispatched = 0;
+    private long modelSwitches = 0;
+    private long totalWaitNanos = 0;
+    private long maxWaitNanos = 0;
+
+    public GenerationScheduler(int maxConcurrentPerEndpoint) {
+        this.maxConcurrentPerEndpoint = Math.max(1, maxConcurrentPerEndpoint);
+    }
+
+    /** The scheduler shared by every {@link MozartAPIClient} that does not get its own. */
+    public static GenerationScheduler shared() {
+        GenerationScheduler scheduler = shared;
+        if (scheduler == null) {
+            synchronized (GenerationScheduler.class) {
+                scheduler = shared;
+                if (scheduler == null) {
+                    scheduler = new GenerationScheduler(DEFAULT_MAX_CONCURRENT_PER_ENDPOINT);
+                    shared = scheduler;
+                }
+            }
+        }
+        return scheduler;
+    }
+
+    /** A queued or in-flight request and the callers waiting for it. */
+    private final class Task {
+        final Endpoint endpoint;
+        final String key;
+        final String modelType;
+        final Supplier<CompletableFuture<byte[]>> send;
+        final Runnable discard;
+        final long enqueuedAt = System.nanoTime();
+        final long seq = sequence++;
+        final List<CompletableFuture<byte[]>> subscribers = new ArrayList<>();
+        Priority priority;
+        CompletableFuture<byte[]> exchange; // non-null once sent
+
+        Task(Endpoint endpoint, String key, String modelType, Priority priority,
+             Supplier<CompletableFuture<byte[]>> send, Runnable discard) {
+            this.endpoint = endpoint;
+            this.key = key;
+            this.modelType = modelType;
+            this.priority = priority;
+            this.send = send;
+            this.discard = discard;
+        }
+    }
+
+    private static final class Endpoint {
+        final String baseUrl;
+        final List<Task> queue = new ArrayList<>(); // small, scanned on each dispatch
+        final Map<String, Task> byKey = new HashMap<>(); // queued and in-flight tasks
+        int capacity = 0;
+        int running = 0;
+        String currentModel = null;
+        int batchCount = 0;
+
+        Endpoint(String baseUrl) {
+            this.baseUrl = baseUrl;
+        }
+    }
+
+    /**
+     * Queues a request.
+     *
+     * @param baseUrl the endpoint (or {@linkplain EndpointPool#getKey() pool}) the request goes to
+     * @param servers number of servers behind baseUrl; the concurrency cap is multiplied by it
+     * @param key content key of the request; identical keys share one exchange
+     * @param modelType model_type of the request, used to batch requests for the same model
+     * @param send starts the exchange; called at most once, when the request leaves the queue
+     * @param discard called instead of send if the request is coalesced or cancelled before it is sent
+     * @return completes with the response body. Cancelling it withdraws this caller; the exchange is aborted
+     *         when no caller is left.
+     */
+    CompletableFuture<byte[]> submit(String baseUrl, int servers, String key, String modelType, Priority priority,
+                                     Supplier<CompletableFuture<byte[]>> send, Runnable discard) {
+        CompletableFuture<byte[]> subscriber = new CompletableFuture<>();
+        Task task;
+        List<Task> launches;
+        synchronized (this) {
+            submitted++;
+            Endpoint endpoint = endpoints.computeIfAbsent(baseUrl, Endpoint::new);
+            endpoint.capacity = maxConcurrentPerEndpoint * Math.max(1, servers);
+            task = endpoint.byKey.get(key);
+            if (task != null) {
+                coalesced++;
+                if (task.exchange == null && priority.compareTo(task.priority) < 0) {
+                    task.priority = priority; // an interactive caller joined a queued prefetch
+                }
+                task.subscribers.add(subscriber);
+                System.out.println("GenerationScheduler: Coalesced request " + shortKey(key) + " with one "
+                        + (task.exchange != null ? "in flight" : "in the queue"));
+                discard.run();
+            } else {
+                task = new Task(endpoint, key, Objects.toString(modelType, ""), priority, send, discard);
+                task.subscribers.add(subscriber);
+                endpoint.byKey.put(key, task);
+                endpoint.queue.add(task);
+            }
+            launches = dispatch(endpoint);
+        }
+        Task owner = task;
+        subscriber.whenComplete((bytes, error) -> {
+            if (subscriber.isCancelled()) {
+                withdraw(owner, subscriber);
+            }
+        });
+        launch(launches);
+        return subscriber;
+    }
+
+    /** A caller gave up on task; drop it from the queue or abort the exchange when it was the last one. */
+    private void withdraw(Task task, CompletableFuture<byte[]> subscriber) {
+        CompletableFuture<byte[]> abort = null;
+        boolean discard = false;
+        synchronized (this) {
+            if (!task.subscribers.remove(subscriber) || !task.subscribers.isEmpty()) {
+                return;
+            }
+            Endpoint endpoint = task.endpoint;
+            // Unlink it right away, so an identical request submitted from now on starts afresh
+            // instead of joining the task that is about to be aborted
+            endpoint.byKey.remove(task.key, task);
+            if (task.exchange == null) {
+                endpoint.queue.remove(task);
+                discard = true;
+            } else {
+                abort = task.exchange;
+            }
+        }
+        if (discard) {
+            System.out.println("GenerationScheduler: Dropped queued request " + shortKey(task.key));
+            task.discard.run();
+        } else {
+            abort.cancel(true); // completes the task, which frees its slot
+        }
+    }
+
+    /** Takes tasks off the queue while there are free slots. Must hold the lock; the returned tasks are sent outside it. */
+    private List<Task> dispatch(Endpoint endpoint) {
+        List<Task> launches = new ArrayList<>();
+        while (endpoint.running < endpoint.capacity && !endpoint.queue.isEmpty()) {
+            Task next = choose(endpoint);
+            if (next == null) {
+                break; // a different model is waiting for the in-flight requests to drain
+            }
+            endpoint.queue.remove(next);
+            endpoint.running++;
+            if (!next.modelType.equals(endpoint.currentModel)) {
+                if (endpoint.currentModel != null) {
+                    modelSwitches++;
+                }
+                endpoint.currentModel = next.modelType;
+                endpoint.batchCount = 0;
+            }
+            endpoint.batchCount++;
+            long waited = System.nanoTime() - next.enqueuedAt;
+            dispatched++;
+            totalWaitNanos += waited;
+            maxWaitNanos = Math.max(maxWaitNanos, waited);
+            next.exchange = new CompletableFuture<>(); // placeholder until send() runs, marks the task as started
+            System.out.println("GenerationScheduler: Sending " + next.priority + " " + next.modelType + " request " + shortKey(next.key)
+                    + " (waited " + waited / 1_000_000 + " ms, " + endpoint.queue.size() + " queued, " + endpoint.running + " in flight)");
+            launches.add(next);
+        }
+        return launches;
+    }
+
+    /** The next task to send, or null if the head of the queue must wait for the current model's requests to finish. */
+    private Task choose(Endpoint endpoint) {
+        Priority top = Priority.PREFETCH;
+        for (Task task : endpoint.queue) {
+            if (task.priority.compareTo(top) < 0) {
+                top = task.priority;
+            }
+        }
+        Task oldest = null;
+        Task oldestSameModel = null;
+        for (Task task : endpoint.queue) {
+            if (task.priority != top) {
+                continue;
+            }
+            if (oldest == null || task.seq < oldest.seq) {
+                oldest = task;
+            }
+            if (task.modelType.equals(endpoint.currentModel) && (oldestSameModel == null || task.seq < oldestSameModel.seq)) {
+                oldestSameModel = task;
+            }
+        }
+        if (oldestSameModel != null && (oldestSameModel == oldest || endpoint.batchCount < MAX_BATCH)) {
+            return oldestSameModel;
+        }
+        if (endpoint.running > 0 && !oldest.modelType.equals(endpoint.currentModel)) {
+            return null;
+        }
+        return oldest;
+    }
+
+    private void launch(List<Task> launches) {
+        for (Task task : launches) {
+            CompletableFuture<byte[]> placeholder = task.exchange;
+            CompletableFuture<byte[]> exchange;
+            try {
+                exchange = task.send.get();
+            } catch (RuntimeException e) {
+                exchange = CompletableFuture.failedFuture(e);
+            }
+            synchronized (this) {
+                task.exchange = exchange;
+            }
+            // Every caller may have withdrawn while the request was being sent
+            if (placeholder.isCancelled()) {
+                exchange.cancel(true);
+            }
+            exchange.whenComplete((bytes, error) -> complete(task, bytes, error));
+        }
+    }
+
+    private void complete(Task task, byte[] bytes, Throwable error) {
+        List<CompletableFuture<byte[]>> subscribers;
+        List<Task> launches;
+        synchronized (this) {
+            Endpoint endpoint = task.endpoint;
+            endpoint.running--;
+            endpoint.byKey.remove(task.key, task);
+            subscribers = new ArrayList<>(task.subscribers);
+            task.subscribers.clear();
+            launches = dispatch(endpoint);
+        }
+        for (CompletableFuture<byte[]> subscriber : subscribers) {
+            if (error != null) {
+                subscriber.completeExceptionally(error);
+            } else {
+                subscriber.complete(bytes);
+            }
+        }
+        launch(launches);
+    }
+
+    /** A snapshot of the scheduler's counters. */
+    public synchronized Metrics getMetrics() {
+        int queued = 0;
+        int inFlight = 0;
+        for (Endpoint endpoint : endpoints.values()) {
+            queued += endpoint.queue.size();
+            inFlight += endpoint.running;
+        }
+        return new Metrics(queued, inFlight, submitted, coalesced, dispatched, modelSwitches,
+                dispatched == 0 ? 0 : totalWaitNanos / dispatched / 1_000_000, maxWaitNanos / 1_000_000);
+    }
+
+    /** Queue depth and wait times of a {@link GenerationScheduler}. */
+    public static final class Metrics {
+        private final int queueDepth;
+        private final int inFlight;
+        private final long submitted;
+        private final long coalesced;
+        private final long dispatched;
+        private final long modelSwitches;
+        private final long averageWaitMillis;
+        private final long maxWaitMillis;
+
+        Metrics(int queueDepth, int inFlight, long submitted, long coalesced, long dispatched, long modelSwitches,
+                long averageWaitMillis, long maxWaitMillis) {
+            this.queueDepth = queueDepth;
+            this.inFlight = inFlight;
+            this.submitted = submitted;
+            this.coalesced = coalesced;
+            this.dispatched = dispatched;
+            this.modelSwitches = modelSwitches;
+            this.averageWaitMillis = averageWaitMillis;
+            this.maxWaitMillis = maxWaitMillis;
+        }
+
+        /** Requests waiting to be sent, over all endpoints. */
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        public int getInFlight() {
+            return inFlight;
+        }
+
+        public long getSubmitted() {
+            return submitted;
+        }
+
+        /** Requests that joined an identical queued or in-flight request instead of being sent. */
+        public long getCoalesced() {
+            return coalesced;
+        }
+
+        public long getDispatched() {
+            return dispatched;
+        }
+
+        /** Times a request for a different model than the previous one was sent. */
+        public long getModelSwitches() {
+            return modelSwitches;
+        }
+
+        /** Average time a sent request spent in the queue. */
+        public long getAverageWaitMillis() {
+            return averageWaitMillis;
+        }
+
+        public long getMaxWaitMillis() {
+            return maxWaitMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "queued=" + queueDepth + ", inFlight=" + inFlight + ", submitted=" + submitted + ", coalesced=" + coalesced
+                    + ", modelSwitches=" + modelSwitches + ", avgWait=" + averageWaitMillis + "ms, maxWait=" + maxWaitMillis + "ms";
+        }
+    }
+
+    private static String shortKey(String key) {
+        return key.length() > 12 ? key.substring(0, 12) : key;
+    }
+}
@@ -0,0 +1,61 @@
+package org.codesfactory.api;
+
+import java.net.http.HttpClient;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Long-lived {@link HttpClient} instances shared by every API call, one per endpoint.
+ *
+ * Building a new client per request costs a fresh TCP/TLS handshake and a new selector thread each time.
+ * A shared client keeps its connections alive (HTTP/2 where the server supports it, otherwise pooled
+ * HTTP/1.1 keep-alive), so back-to-back requests reuse a warm connection.
+ */
+public final class HttpClients {
+
+    private static final Map<String, HttpClient> CLIENTS = new ConcurrentHashMap<>();
+    private static volatile ExecutorService virtualExecutor;
+    private static volatile ExecutorService platformExecutor;
+
+    private HttpClients() {
+    }
+
+    /** Returns the shared client for the configuration's base URL, creating it on first use. */
+    public static HttpClient forConfig(ApiConfig config) {
+        return CLIENTS.computeIfAbsent(config.getBaseUrl(), url -> create(config));
+    }
+
+    private static HttpClient create(ApiConfig config) {
+        // The JDK client reads the idle-connection timeout from this property when its pool is first used
+        if (System.getProperty("jdk.httpclient.keepalive.timeout") == null) {
+            System.setProperty("jdk.httpclient.keepalive.timeout", Long.toString(config.getKeepAlive().toSeconds()));
+        }
+        System.out.println("HttpClients: Creating shared HTTP client for " + config.getBaseUrl()
+                + (config.useVirtualThreads() ? " (virtual threads)" : ""));
+        return HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(config.getConnectTimeout())
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .executor(executor(config.useVirtualThreads()))
+                .build();
+    }
+
+    private static synchronized ExecutorService executor(boolean virtualThreads) {
+        if (virtualThreads) {
+            if (virtualExecutor == null) {
+                virtualExecutor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("http-client-", 0).factory());
+            }
+            return virtualExecutor;
+        }
+        if (platformExecutor == null) {
+            platformExecutor = Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "HTTP Client");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return platformExecutor;
+    }
+}
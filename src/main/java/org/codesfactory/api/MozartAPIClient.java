@@ -3,34 +3,68 @@ package org.codesfactory.api;
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
 
-import java.io.File;
 import java.io.IOException;
 import java.net.URI;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.time.Duration;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 
 public class MozartAPIClient {
-    private static final String BASE_URL = "https://c7be-133-43-172-128.ngrok-free.app";
+    private final ApiConfig config;
+    private final EndpointPool pool; // shared per server list, so connections and latency statistics persist between calls
+    private final GenerationCache cache; // null disables caching
+    private final GenerationScheduler scheduler; // null sends every request immediately
 
-    public List<ModelInfo> getModelInfo() throws Exception {
-        HttpClient client = HttpClient.newBuilder()
-                .connectTimeout(Duration.ofSeconds(10))
-                .build();
+    public MozartAPIClient() {
+        this(ApiConfig.load());
+    }
+
+    public MozartAPIClient(ApiConfig config) {
+        this(config, GenerationCache.shared());
+    }
+
+    public MozartAPIClient(ApiConfig config, GenerationCache cache) {
+        this(config, cache, GenerationScheduler.shared());
+    }
+
+    public MozartAPIClient(ApiConfig config, GenerationCache cache, GenerationScheduler scheduler) {
+        this.config = config;
+        this.pool = EndpointPool.forConfig(config);
+        this.cache = cache;
+        this.scheduler = scheduler;
+    }
+
+    public ApiConfig getConfig() {
+        return config;
+    }
 
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(BASE_URL + "/model_info"))
+    public EndpointPool getEndpointPool() {
+        return pool;
+    }
+
+    public List<ModelInfo> getModelInfo() throws Exception {
+        CompletableFuture<HttpResponse<String>> exchange = pool.send(endpoint -> HttpRequest.newBuilder()
+                .uri(URI.create(endpoint.getBaseUrl() + "/model_info"))
                 .header("ngrok-skip-browser-warning", "1")
                 .header("Content-Type", "application/json")
                 .POST(HttpRequest.BodyPublishers.noBody())
-                .timeout(Duration.ofSeconds(10))
-                .build();
-
-        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+                .timeout(config.getModelInfoTimeout())
+                .build(), HttpResponse.BodyHandlers.ofString(), false);
+        HttpResponse<String> response;
+        try {
+            response = exchange.get();
+        } catch (InterruptedException e) {
+            exchange.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
 
         if (response.statusCode() != 200) {
             throw new IOException("HTTP error: " + response.statusCode());
@@ -57,112 +91,118 @@ public class MozartAPIClient {
         return list;
     }
 
-    public byte[] generate(File pastMidiFile, File futureMidiFile, File conditionsMidiFile, File metaFile) throws Exception {
-        HttpClient client = HttpClient.newBuilder()
-                .connectTimeout(Duration.ofSeconds(30))
-                .build();
-
-        // Debug prints to verify transmitted files
-        System.out.println("MozartAPIClient: Preparing generate request:");
-        if (metaFile != null) {
-            System.out.println("  - meta_json: " + metaFile.getName() + " (" + metaFile.length() + " bytes)");
-        }
-        if (pastMidiFile != null && pastMidiFile.exists() && pastMidiFile.length() > 0) {
-            System.out.println("  - past_midi: " + pastMidiFile.getName() + " (" + pastMidiFile.length() + " bytes)");
-        } else {
-            System.out.println("  - past_midi: NONE / EMPTY");
-        }
-        if (futureMidiFile != null && futureMidiFile.exists() && futureMidiFile.length() > 0) {
-            System.out.println("  - future_midi: " + futureMidiFile.getName() + " (" + futureMidiFile.length() + " bytes)");
-        } else {
-            System.out.println("  - future_midi: NONE / EMPTY");
-        }
-        if (conditionsMidiFile != null && conditionsMidiFile.exists() && conditionsMidiFile.length() > 0) {
-            System.out.println("  - conditions_midi: " + conditionsMidiFile.getName() + " (" + conditionsMidiFile.length() + " bytes)");
-        } else {
-            System.out.println("  - conditions_midi: NONE / EMPTY");
-        }
-
-        String boundary = "Boundary-" + UUID.randomUUID().toString();
-        byte[] body = createMultipartBody(pastMidiFile, futureMidiFile, conditionsMidiFile, metaFile, boundary);
-
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(BASE_URL + "/generate"))
-                .header("ngrok-skip-browser-warning", "1")
-                .header("Content-Type", "multipart/form-data; boundary=" + boundary)
-                .POST(HttpRequest.BodyPublishers.ofByteArray(body))
-                .timeout(Duration.ofSeconds(60))
-                .build();
-
-        HttpResponse<byte[]> response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
-
-        if (response.statusCode() != 200) {
-            String errorMsg = new String(response.body(), StandardCharsets.UTF_8);
-            throw new IOException("Generation failed with status " + response.statusCode() + ": " + errorMsg);
+    /**
+     * Sends a generation request and returns the response body (a MIDI file, or a ZIP of MIDI files).
+     * Blocks until the response arrives; interrupting the calling thread aborts the HTTP exchange.
+     */
+    public byte[] generate(GenerationRequest generationRequest) throws IOException, InterruptedException {
+        CompletableFuture<byte[]> future = generateAsync(generationRequest);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Generation failed: " + cause.getMessage(), cause);
         }
+    }
 
-        return response.body();
+    /** Same as {@link #generateAsync(GenerationRequest, GenerationScheduler.Priority)} with interactive priority. */
+    public CompletableFuture<byte[]> generateAsync(GenerationRequest generationRequest) {
+        return generateAsync(generationRequest, GenerationScheduler.Priority.INTERACTIVE);
     }
 
-    private byte[] createMultipartBody(File pastMidiFile, File futureMidiFile, File conditionsMidiFile, File metaFile, String boundary) throws IOException {
-        List<byte[]> byteArrays = new ArrayList<>();
-        String lineSeparator = "\r\n";
-
-        // 1. meta_json
-        StringBuilder metaHeader = new StringBuilder();
-        metaHeader.append("--").append(boundary).append(lineSeparator);
-        metaHeader.append("Content-Disposition: form-data; name=\"meta_json\"; filename=\"").append(metaFile.getName()).append("\"").append(lineSeparator);
-        metaHeader.append("Content-Type: application/json").append(lineSeparator).append(lineSeparator);
-        byteArrays.add(metaHeader.toString().getBytes(StandardCharsets.UTF_8));
-        byteArrays.add(Files.readAllBytes(metaFile.toPath()));
-        byteArrays.add(lineSeparator.getBytes(StandardCharsets.UTF_8));
-
-        // 2. past_midi
-        if (pastMidiFile != null && pastMidiFile.exists() && pastMidiFile.length() > 0) {
-            StringBuilder midiHeader = new StringBuilder();
-            midiHeader.append("--").append(boundary).append(lineSeparator);
-            midiHeader.append("Content-Disposition: form-data; name=\"past_midi\"; filename=\"").append(pastMidiFile.getName()).append("\"").append(lineSeparator);
-            midiHeader.append("Content-Type: audio/midi").append(lineSeparator).append(lineSeparator);
-            byteArrays.add(midiHeader.toString().getBytes(StandardCharsets.UTF_8));
-            byteArrays.add(Files.readAllBytes(pastMidiFile.toPath()));
-            byteArrays.add(lineSeparator.getBytes(StandardCharsets.UTF_8));
+    /**
+     * Sends a generation request without blocking and completes with the response body
+     * (a MIDI file, or a ZIP of MIDI files).
+     *
+     * The multipart body is encoded into a pooled in-memory buffer and streamed from there.
+     * Cancelling the returned future aborts the underlying HTTP exchange, so an abandoned request
+     * does not keep holding a connection until the timeout. Non-200 responses complete the future
+     * exceptionally with an {@link IOException}.
+     *
+     * Successful responses are stored in the {@link GenerationCache} under the hash of the request content.
+     * If the request allows {@linkplain GenerationRequest#isCacheReplay() cache replay} and an identical
+     * request was answered before, the cached response is returned without contacting the server.
+     *
+     * Otherwise the request is queued in the {@link GenerationScheduler} with the given priority, where it
+     * may wait for a free slot or share the exchange of an identical request that is already queued or in flight.
+     */
+    public CompletableFuture<byte[]> generateAsync(GenerationRequest generationRequest, GenerationScheduler.Priority priority) {
+        System.out.println("MozartAPIClient: Preparing generate request: " + generationRequest.getPartNames());
+        String boundary = "Boundary-" + UUID.randomUUID();
+        MessageDigest digest = sha256();
+        PooledBuffer body;
+        try {
+            body = generationRequest.encode(boundary, digest);
+        } catch (IOException | RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
         }
-
-        // 3. future_midi
-        if (futureMidiFile != null && futureMidiFile.exists() && futureMidiFile.length() > 0) {
-            StringBuilder midiHeader = new StringBuilder();
-            midiHeader.append("--").append(boundary).append(lineSeparator);
-            midiHeader.append("Content-Disposition: form-data; name=\"future_midi\"; filename=\"").append(futureMidiFile.getName()).append("\"").append(lineSeparator);
-            midiHeader.append("Content-Type: audio/midi").append(lineSeparator).append(lineSeparator);
-            byteArrays.add(midiHeader.toString().getBytes(StandardCharsets.UTF_8));
-            byteArrays.add(Files.readAllBytes(futureMidiFile.toPath()));
-            byteArrays.add(lineSeparator.getBytes(StandardCharsets.UTF_8));
+        String cacheKey = HexFormat.of().formatHex(digest.digest());
+        if (cache != null && generationRequest.isCacheReplay()) {
+            byte[] cached = cache.get(cacheKey);
+            if (cached != null) {
+                body.release();
+                System.out.println("MozartAPIClient: Replaying cached response " + cacheKey.substring(0, 12) + " (" + cached.length + " bytes)");
+                return CompletableFuture.completedFuture(cached);
+            }
         }
 
-        // 4. conditions_midi
-        if (conditionsMidiFile != null && conditionsMidiFile.exists() && conditionsMidiFile.length() > 0) {
-            StringBuilder midiHeader = new StringBuilder();
-            midiHeader.append("--").append(boundary).append(lineSeparator);
-            midiHeader.append("Content-Disposition: form-data; name=\"conditions_midi\"; filename=\"").append(conditionsMidiFile.getName()).append("\"").append(lineSeparator);
-            midiHeader.append("Content-Type: audio/midi").append(lineSeparator).append(lineSeparator);
-            byteArrays.add(midiHeader.toString().getBytes(StandardCharsets.UTF_8));
-            byteArrays.add(Files.readAllBytes(conditionsMidiFile.toPath()));
-            byteArrays.add(lineSeparator.getBytes(StandardCharsets.UTF_8));
+        if (scheduler == null) {
+            return send(body, boundary, cacheKey);
         }
+        return scheduler.submit(pool.getKey(), pool.size(), cacheKey, generationRequest.getMeta().getModelType(), priority,
+                () -> send(body, boundary, cacheKey), body::release);
+    }
 
-        // End Boundary
-        String endBoundary = "--" + boundary + "--" + lineSeparator;
-        byteArrays.add(endBoundary.getBytes(StandardCharsets.UTF_8));
-
-        // Flatten list of byte arrays
-        int totalLength = byteArrays.stream().mapToInt(a -> a.length).sum();
-        byte[] flattened = new byte[totalLength];
-        int destPos = 0;
-        for (byte[] array : byteArrays) {
-            System.arraycopy(array, 0, flattened, destPos, array.length);
-            destPos += array.length;
-        }
+    /**
+     * Starts the HTTP exchange for an encoded body on the best server of the pool (with failover and hedging).
+     * The body is released once every attempt is over, not when the first response wins: an aborted hedge or
+     * failover exchange may still be streaming it until then.
+     */
+    private CompletableFuture<byte[]> send(PooledBuffer body, String boundary, String cacheKey) {
+        // Every attempt (failover or hedge) streams the same encoded body
+        CompletableFuture<HttpResponse<byte[]>> exchange = pool.send(endpoint -> HttpRequest.newBuilder()
+                .uri(URI.create(endpoint.getBaseUrl() + "/generate"))
+                .header("ngrok-skip-browser-warning", "1")
+                .header("Content-Type", "multipart/form-data; boundary=" + boundary)
+                .POST(new MultipartBodyPublisher(body))
+                .timeout(config.getGenerateTimeout())
+                .build(), HttpResponse.BodyHandlers.ofByteArray(), true, body::release);
+
+        CompletableFuture<byte[]> result = new CompletableFuture<>();
+        exchange.whenComplete((response, error) -> {
+            if (error != null) {
+                result.completeExceptionally(error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+            } else if (response.statusCode() != 200) {
+                String errorMsg = new String(response.body(), StandardCharsets.UTF_8);
+                result.completeExceptionally(new IOException("Generation failed with status " + response.statusCode() + ": " + errorMsg));
+            } else {
+                if (cache != null) {
+                    cache.put(cacheKey, response.body());
+                }
+                result.complete(response.body());
+            }
+        });
+        // Dependent stages do not propagate cancellation, so forward it to the exchange explicitly
+        result.whenComplete((bytes, error) -> {
+            if (result.isCancelled()) {
+                System.out.println("MozartAPIClient: Generate request cancelled, aborting the exchange.");
+                exchange.cancel(true);
+            }
+        });
+        return result;
+    }
 
-        return flattened;
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e); // every JRE provides it
+        }
     }
 }
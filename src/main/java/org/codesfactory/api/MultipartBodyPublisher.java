@@ -0,0 +1,74 @@
+package org.codesfactory.api;
+
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Streams an already encoded body from a {@link PooledBuffer} in fixed-size chunks.
+ *
+ * Each chunk is a read-only view of the buffer, so nothing is copied on the way to the socket.
+ * The client may subscribe more than once (e.g. on a retry); every subscription starts from the beginning.
+ */
+final class MultipartBodyPublisher implements HttpRequest.BodyPublisher {
+
+    private static final int CHUNK_BYTES = 16 * 1024;
+
+    private final PooledBuffer body;
+
+    MultipartBodyPublisher(PooledBuffer body) {
+        this.body = body;
+    }
+
+    @Override
+    public long contentLength() {
+        return body.size();
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+        subscriber.onSubscribe(new Flow.Subscription() {
+            private final AtomicBoolean done = new AtomicBoolean(false);
+            private long demand = 0;
+            private int position = 0;
+            private boolean emitting = false;
+
+            @Override
+            public synchronized void request(long n) {
+                if (done.get()) {
+                    return;
+                }
+                if (n <= 0) {
+                    done.set(true);
+                    subscriber.onError(new IllegalArgumentException("non-positive subscription request: " + n));
+                    return;
+                }
+                demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                if (emitting) {
+                    return; // request() called re-entrantly from onNext; the outer loop keeps emitting
+                }
+                emitting = true;
+                try {
+                    while (demand > 0 && position < body.size() && !done.get()) {
+                        int length = Math.min(CHUNK_BYTES, body.size() - position);
+                        ByteBuffer chunk = body.slice(position, length);
+                        position += length;
+                        demand--;
+                        subscriber.onNext(chunk);
+                    }
+                    if (position >= body.size() && done.compareAndSet(false, true)) {
+                        subscriber.onComplete();
+                    }
+                } finally {
+                    emitting = false;
+                }
+            }
+
+            @Override
+            public void cancel() {
+                done.set(true);
+            }
+        });
+    }
+}
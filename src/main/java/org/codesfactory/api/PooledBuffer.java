@@ -0,0 +1,76 @@
+package org.codesfactory.api;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A growable in-memory output buffer that is recycled between requests.
+ *
+ * Request bodies are encoded straight into one of these and handed to the HTTP client as read-only
+ * {@link ByteBuffer} views, so the body is never copied again after encoding. Call {@link #release()}
+ * once the exchange has finished to return the buffer to the pool.
+ */
+final class PooledBuffer extends OutputStream {
+
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+    /** Buffers that grew beyond this are not kept, so one huge request does not pin memory forever. */
+    private static final int MAX_POOLED_CAPACITY = 8 * 1024 * 1024;
+    private static final ArrayBlockingQueue<PooledBuffer> POOL = new ArrayBlockingQueue<>(4);
+
+    private byte[] buf;
+    private int count;
+
+    private PooledBuffer(int capacity) {
+        this.buf = new byte[capacity];
+    }
+
+    /** Takes a cleared buffer from the pool, or allocates one if the pool is empty. */
+    static PooledBuffer acquire() {
+        PooledBuffer buffer = POOL.poll();
+        return buffer != null ? buffer : new PooledBuffer(INITIAL_CAPACITY);
+    }
+
+    /** Returns this buffer to the pool. It must not be used afterwards. */
+    void release() {
+        count = 0;
+        if (buf.length <= MAX_POOLED_CAPACITY) {
+            POOL.offer(this);
+        }
+    }
+
+    int size() {
+        return count;
+    }
+
+    /** A read-only view of [offset, offset + length) that shares this buffer's memory. */
+    ByteBuffer slice(int offset, int length) {
+        return ByteBuffer.wrap(buf, offset, length).slice().asReadOnlyBuffer();
+    }
+
+    /** Feeds [offset, offset + length) to the digest without copying. */
+    void digest(MessageDigest digest, int offset, int length) {
+        digest.update(buf, offset, length);
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(count + 1);
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ensureCapacity(count + len);
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    private void ensureCapacity(int needed) {
+        if (needed > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(needed, buf.length * 2));
+        }
+    }
+}
@@ -3,12 +3,23 @@ package org.codesfactory.ux.pianoroll;
 import com.formdev.flatlaf.FlatDarkLaf;
 import com.google.gson.Gson;
 import org.codesfactory.api.GenerateMeta;
+import org.codesfactory.api.ModelInfo;
 import org.codesfactory.api.MozartAPIClient;
+import org.codesfactory.ux.pianoroll.commands.*;
+import org.codesfactory.ux.pianoroll.journal.EditJournal;
+import org.codesfactory.ux.pianoroll.playback.AudioEngine;
+import org.codesfactory.ux.pianoroll.playback.NoteEventIndex;
+import org.codesfactory.ux.pianoroll.playback.OfflineRenderer;
+import org.codesfactory.ux.pianoroll.playback.ScrubEngine;
+import org.codesfactory.ux.pianoroll.playback.TempoMap;
 import java.io.File;
 import java.io.FileWriter;
+import java.io.IOException;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import javax.sound.midi.*;
 import javax.swing.*;
 import java.awt.*;
@@ -41,7 +52,12 @@ public class ArrangementFrame extends JFrame {
     private final java.util.Set<Track> selectedTracks = new java.util.HashSet<>();
     private MidiRegion selectedRegion = null;
     private final java.util.Set<MidiRegion> selectedRegions = new java.util.HashSet<>();
-    private final java.util.Stack<byte[]> undoStack = new java.util.Stack<>();
+    // アレンジメント編集の履歴 (トラック/リージョン単位のコマンド。変更した部分だけを記録する)
+    private final UndoManager undoManager = new UndoManager();
+    // 履歴をディスクに追記するジャーナル (クラッシュ復元と、メモリから捨てられた古い履歴のUndo用)。開けなければ null
+    private final EditJournal journal;
+
+    private final MozartAPIClient mozartAPIClient = new MozartAPIClient();
     
     public ArrangementFrame() {
         setTitle("COMPASS - Arrangement View");
@@ -57,6 +73,8 @@ public class ArrangementFrame extends JFrame {
         
         // PlaybackManagerの初期化
         playbackManager = new PlaybackManager(null); // Timeline用の再生ヘッド同期は別で行う
+        // 共有オーディオエンジンは裏で開いておく (初回の再生ボタンで待たされないように)
+        AudioEngine.getInstance().openAsync();
         
         // ツールバー
         JToolBar toolBar = new JToolBar();
@@ -65,6 +83,8 @@ public class ArrangementFrame extends JFrame {
         
         JButton newProjectButton = new JButton("📄 New Project");
         JButton loadMidiButton = new JButton("📁 Load MIDI");
+        JButton bounceButton = new JButton("🎧 Bounce WAV");
+        JButton generatePartsButton = new JButton("🎼 Generate Parts");
         JButton playButton = new JButton("▶ Play");
         JButton pauseButton = new JButton("⏸ Pause");
         JButton stopButton = new JButton("■ Stop");
@@ -77,6 +97,8 @@ public class ArrangementFrame extends JFrame {
         
         toolBar.add(newProjectButton);
         toolBar.add(loadMidiButton);
+        toolBar.add(bounceButton);
+        toolBar.add(generatePartsButton);
         toolBar.addSeparator();
         toolBar.add(playButton);
         toolBar.add(Box.createHorizontalStrut(5));
@@ -130,14 +152,15 @@ public class ArrangementFrame extends JFrame {
         // イベントハンドラ
         newProjectButton.addActionListener(e -> createNewProject());
         loadMidiButton.addActionListener(e -> loadMidiFile());
+        bounceButton.addActionListener(e -> bounceToWav());
+        generatePartsButton.addActionListener(e -> generateParts());
         playButton.addActionListener(e -> startPlayback());
         pauseButton.addActionListener(e -> pausePlayback());
         stopButton.addActionListener(e -> stopPlayback());
         
         addTrackButton.addActionListener(e -> {
-            saveUndoState();
             Track newTrack = new Track("Track " + (tracks.size() + 1));
-            tracks.add(newTrack);
+            undoManager.executeCommand(new AddTrackCommand(tracks, newTrack));
             selectedTrack = newTrack;
             selectedTracks.clear();
             selectedTracks.add(newTrack);
@@ -149,8 +172,7 @@ public class ArrangementFrame extends JFrame {
         
         deleteTrackButton.addActionListener(e -> {
             if (tracks.size() > selectedTracks.size()) {
-                saveUndoState();
-                tracks.removeAll(selectedTracks);
+                undoManager.executeCommand(new DeleteTracksCommand(tracks, selectedTracks));
                 selectedTracks.clear();
                 selectedTrack = tracks.get(tracks.size() - 1);
                 selectedTracks.add(selectedTrack);
@@ -171,18 +193,16 @@ public class ArrangementFrame extends JFrame {
             }
         });
         
-        // 再生位置の定期更新タイマー (再生ヘッドのアニメーション用)
-        Timer repaintTimer = new Timer(30, e -> {
-            if (playbackManager.getSequencer() != null && playbackManager.getSequencer().isRunning()) {
-                long currentTick = playbackManager.getSequencer().getTickPosition();
-                timelinePanel.repaint();
+        // 再生ヘッドのアニメーション: 共通の PlayheadClock が表示フレームごとに1回だけ位置を読み取って通知する
+        playbackManager.addPlayheadListener((currentTick, playing) -> {
+            timelinePanel.repaint();
+            if (playing) {
                 autoScrollToPlayHead(currentTick);
-                for (PianoRoll pr : activePianoRolls) {
-                    pr.updatePlaybackHeadOnly(currentTick);
-                }
+            }
+            for (PianoRoll pr : activePianoRolls) {
+                pr.updatePlaybackHeadOnly(currentTick, playing);
             }
         });
-        repaintTimer.start();
         
         // グローバルキーショートカットの設定 (Space: 再生/一時停止, Delete/Backspace: 選択リージョン削除, Up/Down: トラック切替)
         JComponent mainContent = (JComponent) getContentPane();
@@ -192,7 +212,7 @@ public class ArrangementFrame extends JFrame {
         mainContent.getActionMap().put("togglePlayback", new AbstractAction() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                if (playbackManager.getSequencer() != null && playbackManager.getSequencer().isRunning()) {
+                if (playbackManager.isPlaying()) {
                     pausePlayback();
                 } else {
                     startPlayback();
@@ -223,6 +243,16 @@ public class ArrangementFrame extends JFrame {
             }
         });
 
+        mainContent.getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW).put(
+                KeyStroke.getKeyStroke(KeyEvent.VK_Y, java.awt.event.InputEvent.CTRL_DOWN_MASK), "redo"
+        );
+        mainContent.getActionMap().put("redo", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                redo();
+            }
+        });
+
         mainContent.getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW).put(
                 KeyStroke.getKeyStroke(KeyEvent.VK_M, 0), "toggleMute"
         );
@@ -230,14 +260,11 @@ public class ArrangementFrame extends JFrame {
             @Override
             public void actionPerformed(ActionEvent e) {
                 if (selectedTrack != null) {
-                    saveUndoState();
-                    selectedTrack.setMuted(!selectedTrack.isMuted());
+                    undoManager.executeCommand(new SetTrackPropertyCommand<>(selectedTrack, "Mute",
+                            selectedTrack.isMuted(), !selectedTrack.isMuted(), Track::setMuted));
                     rebuildTrackHeaders();
-                    if (playbackManager.isPlaying()) {
-                        long currentTick = playbackManager.getSequencer().getTickPosition();
-                        startPlayback();
-                        playbackManager.setTickPosition(currentTick);
-                    }
+                    // 再生を止めずにシーケンサのトラックミュートへ即時反映
+                    playbackManager.applyMuteSolo(tracks);
                 }
             }
         });
@@ -249,14 +276,11 @@ public class ArrangementFrame extends JFrame {
             @Override
             public void actionPerformed(ActionEvent e) {
                 if (selectedTrack != null) {
-                    saveUndoState();
-                    selectedTrack.setSoloed(!selectedTrack.isSoloed());
+                    undoManager.executeCommand(new SetTrackPropertyCommand<>(selectedTrack, "Solo",
+                            selectedTrack.isSoloed(), !selectedTrack.isSoloed(), Track::setSoloed));
                     rebuildTrackHeaders();
-                    if (playbackManager.isPlaying()) {
-                        long currentTick = playbackManager.getSequencer().getTickPosition();
-                        startPlayback();
-                        playbackManager.setTickPosition(currentTick);
-                    }
+                    // 再生を止めずにシーケンサのトラックミュートへ即時反映
+                    playbackManager.applyMuteSolo(tracks);
                 }
             }
         });
@@ -296,9 +320,19 @@ public class ArrangementFrame extends JFrame {
             @Override
             public void windowClosing(WindowEvent e) {
                 playbackManager.close();
+                AudioEngine.getInstance().shutdown();
+                if (journal != null) {
+                    journal.closeAndDiscard(); // 正常終了なので次回の復元は不要
+                }
             }
         });
 
+        journal = EditJournal.openDefault();
+        if (journal != null) {
+            recoverOrStartJournal();
+            undoManager.setHistoryListener(journal.newHistory());
+        }
+
         // 起動時にデフォルトでテキストボックスが入力待機にならないよう、フォーカスをメインタイムラインに移動
         SwingUtilities.invokeLater(() -> timelinePanel.requestFocusInWindow());
     }
@@ -308,8 +342,7 @@ public class ArrangementFrame extends JFrame {
         JMenuItem deleteTrackItem = new JMenuItem("Delete Track");
         deleteTrackItem.addActionListener(ev -> {
             if (tracks.size() > selectedTracks.size()) {
-                saveUndoState();
-                tracks.removeAll(selectedTracks);
+                undoManager.executeCommand(new DeleteTracksCommand(tracks, selectedTracks));
                 selectedTracks.clear();
                 selectedTrack = tracks.get(tracks.size() - 1);
                 selectedTracks.add(selectedTrack);
@@ -336,8 +369,8 @@ public class ArrangementFrame extends JFrame {
         for (java.util.Map.Entry<String, java.awt.Color> entry : colorMap.entrySet()) {
             JMenuItem colorItem = new JMenuItem(entry.getKey());
             colorItem.addActionListener(ev -> {
-                saveUndoState();
-                track.setColor(entry.getValue());
+                undoManager.executeCommand(new SetTrackPropertyCommand<>(track, "Color",
+                        track.getColor(), entry.getValue(), Track::setColor));
                 rebuildTrackHeaders();
                 timelinePanel.repaint();
             });
@@ -352,6 +385,10 @@ public class ArrangementFrame extends JFrame {
             mergeSelectedRegions();
         });
         trackPopupMenu.add(mergeRegionsItem);
+
+        JMenuItem generatePartsItem = new JMenuItem("Generate Parts for Selected Tracks...");
+        generatePartsItem.addActionListener(ev -> generateParts());
+        trackPopupMenu.add(generatePartsItem);
         
         return trackPopupMenu;
     }
@@ -390,8 +427,8 @@ public class ArrangementFrame extends JFrame {
             JTextField nameField = new JTextField(track.getName(), 8);
             nameField.addActionListener(e -> {
                 if (!nameField.getText().equals(track.getName())) {
-                    saveUndoState();
-                    track.setName(nameField.getText());
+                    undoManager.executeCommand(new SetTrackPropertyCommand<>(track, "Name",
+                            track.getName(), nameField.getText(), Track::setName));
                     timelinePanel.repaint();
                 }
             });
@@ -399,8 +436,8 @@ public class ArrangementFrame extends JFrame {
                 @Override
                 public void focusLost(FocusEvent e) {
                     if (!nameField.getText().equals(track.getName())) {
-                        saveUndoState();
-                        track.setName(nameField.getText());
+                        undoManager.executeCommand(new SetTrackPropertyCommand<>(track, "Name",
+                                track.getName(), nameField.getText(), Track::setName));
                         timelinePanel.repaint();
                     }
                 }
@@ -413,8 +450,8 @@ public class ArrangementFrame extends JFrame {
             instCombo.addActionListener(e -> {
                 String selected = (String) instCombo.getSelectedItem();
                 if (selected != null && !selected.equals(track.getInstrument())) {
-                    saveUndoState();
-                    track.setInstrument(selected);
+                    undoManager.executeCommand(new SetTrackPropertyCommand<>(track, "Instrument",
+                            track.getInstrument(), selected, Track::setInstrument));
                 }
             });
 
@@ -426,14 +463,10 @@ public class ArrangementFrame extends JFrame {
             muteBtn.setFont(new Font("SansSerif", Font.BOLD, 10));
             muteBtn.setBackground(track.isMuted() ? new Color(180, 50, 50) : null);
             muteBtn.addActionListener(e -> {
-                saveUndoState();
-                track.setMuted(muteBtn.isSelected());
+                undoManager.executeCommand(new SetTrackPropertyCommand<>(track, "Mute",
+                        track.isMuted(), muteBtn.isSelected(), Track::setMuted));
                 muteBtn.setBackground(track.isMuted() ? new Color(180, 50, 50) : null);
-                if (playbackManager.isPlaying()) {
-                    long currentTick = playbackManager.getSequencer().getTickPosition();
-                    startPlayback();
-                    playbackManager.setTickPosition(currentTick);
-                }
+                playbackManager.applyMuteSolo(tracks);
             });
 
             // ソロ (S) ボタン
@@ -444,14 +477,10 @@ public class ArrangementFrame extends JFrame {
             soloBtn.setFont(new Font("SansSerif", Font.BOLD, 10));
             soloBtn.setBackground(track.isSoloed() ? new Color(180, 150, 50) : null);
             soloBtn.addActionListener(e -> {
-                saveUndoState();
-                track.setSoloed(soloBtn.isSelected());
+                undoManager.executeCommand(new SetTrackPropertyCommand<>(track, "Solo",
+                        track.isSoloed(), soloBtn.isSelected(), Track::setSoloed));
                 soloBtn.setBackground(track.isSoloed() ? new Color(180, 150, 50) : null);
-                if (playbackManager.isPlaying()) {
-                    long currentTick = playbackManager.getSequencer().getTickPosition();
-                    startPlayback();
-                    playbackManager.setTickPosition(currentTick);
-                }
+                playbackManager.applyMuteSolo(tracks);
             });
             
             GridBagConstraints gbc = new GridBagConstraints();
@@ -555,25 +584,10 @@ public class ArrangementFrame extends JFrame {
     }
     
     private void startPlayback() {
-        long savedTick = 0;
-        if (playbackManager.getSequencer() != null) {
-            savedTick = playbackManager.getSequencer().getTickPosition();
-        }
+        long savedTick = playbackManager.getTickPosition();
 
-        List<Note> playNotes = new ArrayList<>();
-        boolean anySolo = tracks.stream().anyMatch(Track::isSoloed);
-        for (Track track : tracks) {
-            if (anySolo) {
-                if (track.isSoloed() && !track.isMuted()) {
-                    playNotes.addAll(track.getNotes());
-                }
-            } else {
-                if (!track.isMuted()) {
-                    playNotes.addAll(track.getNotes());
-                }
-            }
-        }
-        playbackManager.loadNotes(playNotes, ppqn);
+        // トラックごとに供給元を分けてロード (ミュート/ソロは applyMuteSolo で反映)
+        playbackManager.loadTracks(tracks, ppqn);
         
         // テンポを設定
         try {
@@ -588,23 +602,22 @@ public class ArrangementFrame extends JFrame {
     }
     
     private void pausePlayback() {
-        playbackManager.pause();
-        if (playbackManager.getSequencer() != null) {
-            long tick = playbackManager.getSequencer().getTickPosition();
-            for (PianoRoll pr : activePianoRolls) {
-                pr.updatePlaybackHeadOnly(tick);
-            }
-        }
+        playbackManager.pause(); // 停止位置は PlayheadClock が次のフレームで各ビューに通知する
     }
     
     private void stopPlayback() {
         playbackManager.stop();
-        timelinePanel.repaint();
-        for (PianoRoll pr : activePianoRolls) {
-            pr.updatePlaybackHeadOnly(0);
-        }
     }
     
+    /**
+     * ピアノロールでトラックのノートが編集されたときに呼ばれます。
+     * 再生中でもスケジューラの時間インデックスを差し替えるだけで反映されます。
+     */
+    public void onTrackNotesEdited() {
+        playbackManager.refreshNotes();
+        timelinePanel.repaint();
+    }
+
     public void setBpmAndSync(double bpm) {
         bpmField.setText(String.format("%.1f", bpm));
         playbackManager.setTempo((float) bpm);
@@ -622,21 +635,18 @@ public class ArrangementFrame extends JFrame {
 
     private void deleteSelectedRegion() {
         if (!selectedRegions.isEmpty()) {
-            saveUndoState();
+            List<DeleteRegionsCommand.Target> targets = new ArrayList<>();
             for (MidiRegion region : selectedRegions) {
-                for (Track t : tracks) {
-                    if (t.getRegions().contains(region)) {
-                        t.removeRegion(region);
-                        long start = region.getStartTick();
-                        long end = region.getEndTick();
-                        t.getNotes().removeIf(n -> n.getStartTimeTicks() >= start && n.getStartTimeTicks() < end);
-                        break;
-                    }
+                Track owner = findRegionOwner(region);
+                if (owner != null) {
+                    targets.add(new DeleteRegionsCommand.Target(owner, region));
                 }
             }
+            undoManager.executeCommand(new DeleteRegionsCommand(targets));
             selectedRegions.clear();
             selectedRegion = null;
             System.out.println("Arrangement: Deleted selected MIDI regions and their notes.");
+            playbackManager.refreshNotes();
             timelinePanel.repaint();
         }
     }
@@ -698,6 +708,7 @@ public class ArrangementFrame extends JFrame {
         private long dragOffsetTicks = 0;
         private long dragStartTickOffset = 0;
         private boolean isDraggingRuler = false;
+        private ScrubEngine scrubEngine; // ルーラーをドラッグ中 (停止中のみ) のスクラブ試聴
         
         private final MouseAdapter mouseAdapter = new MouseAdapter() {
             private void checkPopup(MouseEvent e) {
@@ -741,8 +752,16 @@ public class ArrangementFrame extends JFrame {
                     // ルーラーをクリックした場合は再生位置の移動
                     isDraggingRuler = true;
                     long tick = (long) (e.getX() / zoomX);
-                    if (playbackManager.getSequencer() != null) {
-                        playbackManager.setTickPosition(tick);
+                    playbackManager.setTickPosition(tick);
+                    if (!playbackManager.isPlaying()) {
+                        // 再生用に作ってあるインデックスを使い回し、ロードされていないトラックの分だけ作る
+                        List<NoteEventIndex> indexes = new ArrayList<>();
+                        for (Track track : getAudibleTracks()) {
+                            NoteEventIndex index = playbackManager.getIndexFor(track.getNotes());
+                            indexes.add(index != null ? index : NoteEventIndex.build(track.getNotes()));
+                        }
+                        scrubEngine = new ScrubEngine(indexes);
+                        scrubEngine.scrubTo(tick);
                     }
                     timelinePanel.repaint();
                     return;
@@ -830,8 +849,9 @@ public class ArrangementFrame extends JFrame {
             public void mouseDragged(MouseEvent e) {
                 if (isDraggingRuler) {
                     long tick = (long) (e.getX() / zoomX);
-                    if (playbackManager.getSequencer() != null) {
-                        playbackManager.setTickPosition(Math.max(0, tick));
+                    playbackManager.setTickPosition(Math.max(0, tick));
+                    if (scrubEngine != null) {
+                        scrubEngine.scrubTo(Math.max(0, tick));
                     }
                     timelinePanel.repaint();
                     return;
@@ -853,6 +873,10 @@ public class ArrangementFrame extends JFrame {
             @Override
             public void mouseReleased(MouseEvent e) {
                 isDraggingRuler = false;
+                if (scrubEngine != null) {
+                    scrubEngine.stop();
+                    scrubEngine = null;
+                }
                 if (isDrawingRegion) {
                     isDrawingRegion = false;
                     setCursor(Cursor.getDefaultCursor());
@@ -877,9 +901,8 @@ public class ArrangementFrame extends JFrame {
                             if (startTick < endTick) {
                                 // 既存のリージョンとの重複チェック (重複させない仕様)
                                 if (!hasOverlap(track, startTick, endTick)) {
-                                    saveUndoState();
                                     MidiRegion region = new MidiRegion(startTick, endTick);
-                                    track.addRegion(region);
+                                    undoManager.executeCommand(new AddRegionCommand(track, region));
                                     System.out.println("Arrangement: Added MIDI Region to " + track.getName() + " -> " + region);
                                 }
                             }
@@ -897,20 +920,10 @@ public class ArrangementFrame extends JFrame {
                         long newEnd = selectedRegion.getEndTick() + dragOffsetTicks;
                         
                         if (!hasOverlapExcluding(selectedTrack, newStart, newEnd, selectedRegion)) {
-                            saveUndoState();
-                            long oldStart = selectedRegion.getStartTick();
-                            long oldEnd = selectedRegion.getEndTick();
-                            
-                            // ノートの位置も平行移動
-                            for (Note note : selectedTrack.getNotes()) {
-                                if (note.getStartTimeTicks() >= oldStart && note.getStartTimeTicks() < oldEnd) {
-                                    note.setStartTimeTicks(note.getStartTimeTicks() + dragOffsetTicks);
-                                }
-                            }
-                            
-                            selectedRegion.setStartTick(newStart);
-                            selectedRegion.setEndTick(newEnd);
+                            // ノートの位置も平行移動 (履歴には移動量と動かしたノートの参照だけが残る)
+                            undoManager.executeCommand(new MoveRegionCommand(selectedTrack, selectedRegion, dragOffsetTicks));
                             System.out.println("Arrangement: Moved region " + selectedRegion.getId() + " by " + dragOffsetTicks + " ticks.");
+                            playbackManager.refreshNotes();
                         }
                     }
                     dragOffsetTicks = 0;
@@ -1143,9 +1156,7 @@ public class ArrangementFrame extends JFrame {
             
             // 再生ヘッドの描画
             long playHeadTick = 0;
-            if (playbackManager.getSequencer() != null) {
-                playHeadTick = playbackManager.getSequencer().getTickPosition();
-            }
+            playHeadTick = playbackManager.getTickPosition();
             int px = (int) (playHeadTick * zoomX);
             g2.setColor(Color.RED);
             g2.setStroke(new BasicStroke(1.5f));
@@ -1219,49 +1230,25 @@ public class ArrangementFrame extends JFrame {
             return;
         }
 
-        saveUndoState();
         List<MidiRegion> sortedRegions = new ArrayList<>(selectedRegions);
         sortedRegions.sort(java.util.Comparator.comparingLong(MidiRegion::getStartTick));
         
-        Track targetTrack = null;
-        for (Track t : tracks) {
-            if (t.getRegions().contains(sortedRegions.get(0))) {
-                targetTrack = t;
-                break;
-            }
-        }
+        Track targetTrack = findRegionOwner(sortedRegions.get(0));
         if (targetTrack == null) return;
 
         long startTick = sortedRegions.get(0).getStartTick();
         long endTick = sortedRegions.get(sortedRegions.size() - 1).getEndTick();
 
+        List<MergeRegionsCommand.Part> parts = new ArrayList<>();
         for (MidiRegion r : sortedRegions) {
-            Track sourceTrack = null;
-            for (Track t : tracks) {
-                if (t.getRegions().contains(r)) {
-                    sourceTrack = t;
-                    break;
-                }
-            }
+            Track sourceTrack = findRegionOwner(r);
             if (sourceTrack != null) {
-                if (sourceTrack != targetTrack) {
-                    long start = r.getStartTick();
-                    long end = r.getEndTick();
-                    List<Note> notesToMove = new ArrayList<>();
-                    for (Note n : sourceTrack.getNotes()) {
-                        if (n.getStartTimeTicks() >= start && n.getStartTimeTicks() < end) {
-                            notesToMove.add(n);
-                        }
-                    }
-                    sourceTrack.getNotes().removeAll(notesToMove);
-                    targetTrack.getNotes().addAll(notesToMove);
-                }
-                sourceTrack.removeRegion(r);
+                parts.add(new MergeRegionsCommand.Part(sourceTrack, r));
             }
         }
 
         MidiRegion mergedRegion = new MidiRegion(startTick, endTick);
-        targetTrack.addRegion(mergedRegion);
+        undoManager.executeCommand(new MergeRegionsCommand(parts, targetTrack, mergedRegion));
 
         selectedRegions.clear();
         selectedRegions.add(mergedRegion);
@@ -1335,11 +1322,8 @@ public class ArrangementFrame extends JFrame {
                 
                 setTitle("COMPASS - new project (" + file.getName() + ")");
                 
-                saveUndoState();
-                tracks.clear();
-                selectedTracks.clear();
-                
                 MidiHandler.MidiData midiData = MidiHandler.loadMidiFile(file);
+                List<Track> loadedTracks = new ArrayList<>();
                 
                 for (MidiHandler.MidiTrackInfo info : selectedTrackInfos) {
                     Track newTrack = new Track(info.name);
@@ -1371,7 +1355,7 @@ public class ArrangementFrame extends JFrame {
                         new java.awt.Color(168, 160, 50),
                         new java.awt.Color(168, 101, 50)
                     };
-                    newTrack.setColor(palette[tracks.size() % palette.length]);
+                    newTrack.setColor(palette[loadedTracks.size() % palette.length]);
 
                     newTrack.getNotes().addAll(info.notes);
                     
@@ -1392,9 +1376,12 @@ public class ArrangementFrame extends JFrame {
                         }
                     }
                     
-                    tracks.add(newTrack);
+                    loadedTracks.add(newTrack);
                 }
                 
+                // 読み込み前のトラックは参照のまま履歴に残す (Undo で元のプロジェクトに戻せる)
+                undoManager.executeCommand(new ReplaceTracksCommand(tracks, loadedTracks));
+                selectedTracks.clear();
                 if (!tracks.isEmpty()) {
                     selectedTrack = tracks.get(0);
                     selectedTracks.add(selectedTrack);
@@ -1418,64 +1405,119 @@ public class ArrangementFrame extends JFrame {
         }
     }
 
-    private void saveUndoState() {
-        try {
-            java.io.ByteArrayOutputStream baos = new java.io.ByteArrayOutputStream();
-            java.io.ObjectOutputStream oos = new java.io.ObjectOutputStream(baos);
-            oos.writeObject(new ArrayList<>(tracks));
-            oos.close();
-            undoStack.push(baos.toByteArray());
-            if (undoStack.size() > 30) {
-                undoStack.remove(0);
+    /** リージョンを持っているトラックを返します (見つからなければ null)。 */
+    private Track findRegionOwner(MidiRegion region) {
+        for (Track t : tracks) {
+            if (t.getRegions().contains(region)) {
+                return t;
             }
-            System.out.println("Arrangement: Saved Undo state. Stack size: " + undoStack.size());
-        } catch (Exception e) {
-            e.printStackTrace();
         }
+        return null;
     }
 
     private void undo() {
-        if (undoStack.isEmpty()) {
-            System.out.println("Arrangement: No undo states available.");
+        if (!undoManager.canUndo()) {
+            if (journal != null && journal.canRewind()) {
+                rewindJournal();
+            } else {
+                System.out.println("Arrangement: No undo states available.");
+            }
             return;
         }
-        try {
-            byte[] state = undoStack.pop();
-            java.io.ByteArrayInputStream bais = new java.io.ByteArrayInputStream(state);
-            java.io.ObjectInputStream ois = new java.io.ObjectInputStream(bais);
-            @SuppressWarnings("unchecked")
-            List<Track> restoredTracks = (List<Track>) ois.readObject();
-            ois.close();
-            
-            tracks.clear();
-            tracks.addAll(restoredTracks);
-            
-            if (!tracks.isEmpty()) {
-                selectedTrack = tracks.get(0);
-                selectedTracks.clear();
-                selectedTracks.add(selectedTrack);
-            } else {
-                selectedTrack = null;
-                selectedTracks.clear();
+        undoManager.undo();
+        refreshAfterHistoryChange();
+        System.out.println("Arrangement: Undo executed. Retained history: " + undoManager.getRetainedBytes() / 1024 + " KB");
+    }
+
+    private void redo() {
+        if (!undoManager.canRedo()) {
+            System.out.println("Arrangement: No redo states available.");
+            return;
+        }
+        undoManager.redo();
+        refreshAfterHistoryChange();
+        System.out.println("Arrangement: Redo executed.");
+    }
+
+    /**
+     * メモリ上の履歴を使い切った後の Undo。ジャーナルから最新の編集を1つ取り消します。
+     * ジャーナルを戻すとメモリ上の履歴 (各ピアノロールの分も) とは対応しなくなるので、それらは破棄します。
+     */
+    private void rewindJournal() {
+        if (!journal.rewind()) {
+            System.out.println("Arrangement: Journal history cannot be rewound further.");
+            return;
+        }
+        undoManager.clearStacks();
+        for (PianoRoll pr : activePianoRolls) {
+            pr.clearHistory();
+        }
+        refreshAfterHistoryChange();
+        System.out.println("Arrangement: Undo executed from the edit journal.");
+    }
+
+    /**
+     * 前回のセッションの編集がジャーナルに残っていれば復元するか尋ね、そうでなければ新しいセッションを始めます。
+     */
+    private void recoverOrStartJournal() {
+        if (journal.hasRecoverableEdits()) {
+            int option = JOptionPane.showConfirmDialog(this,
+                    "The previous session did not exit normally.\nRecover " + journal.getRecordCount() + " unsaved edits?",
+                    "Recover Session", JOptionPane.YES_NO_OPTION, JOptionPane.WARNING_MESSAGE);
+            if (option == JOptionPane.YES_OPTION) {
+                try {
+                    journal.recoverInto(tracks);
+                    selectedTrack = null;
+                    selectedTracks.clear();
+                    refreshAfterHistoryChange();
+                    return;
+                } catch (Exception ex) {
+                    System.err.println("Arrangement: Failed to recover from the edit journal: " + ex.getMessage());
+                    ex.printStackTrace();
+                    JOptionPane.showMessageDialog(this, "Could not recover the previous session: " + ex.getMessage(),
+                            "Recover Session", JOptionPane.ERROR_MESSAGE);
+                }
             }
+        }
+        journal.startSession(tracks);
+    }
+
+    /** ピアノロールの履歴をジャーナルに記録するリスナーを返します (ジャーナルが無ければ null)。 */
+    public UndoManager.HistoryListener newHistoryListener() {
+        return journal != null ? journal.newHistory() : null;
+    }
+
+    /**
+     * Undo/Redo の後に、選択状態・トラックヘッダー・再生中のノートを現在のトラックに合わせます。
+     * トラックやノートは同じインスタンスのまま戻るので、開いているピアノロールもそのまま使えます。
+     */
+    private void refreshAfterHistoryChange() {
+        selectedTracks.retainAll(tracks);
+        if (selectedTrack == null || !tracks.contains(selectedTrack)) {
+            selectedTrack = tracks.isEmpty() ? null : tracks.get(0);
+        }
+        if (selectedTrack != null && selectedTracks.isEmpty()) {
+            selectedTracks.add(selectedTrack);
+        }
+        selectedRegions.removeIf(r -> findRegionOwner(r) == null);
+        if (selectedRegion != null && findRegionOwner(selectedRegion) == null) {
             selectedRegion = null;
-            selectedRegions.clear();
-            
-            rebuildTrackHeaders();
-            timelinePanel.recalculateSize();
-            timelinePanel.repaint();
-            
-            if (selectedTrack != null) {
-                playbackManager.loadNotes(selectedTrack.getNotes(), ppqn);
-            }
-            System.out.println("Arrangement: Undo executed. Stack size left: " + undoStack.size());
-        } catch (Exception e) {
-            e.printStackTrace();
+        }
+
+        rebuildTrackHeaders();
+        timelinePanel.recalculateSize();
+        scrollPane.revalidate();
+        timelinePanel.repaint();
+
+        playbackManager.refreshNotes();
+        playbackManager.applyMuteSolo(tracks);
+        for (PianoRoll pr : activePianoRolls) {
+            pr.repaint();
         }
     }
 
     private boolean isProjectModified() {
-        if (!undoStack.isEmpty()) {
+        if (undoManager.canUndo()) {
             return true;
         }
         if (tracks.size() > 1) {
@@ -1559,6 +1601,290 @@ public class ArrangementFrame extends JFrame {
         return false;
     }
 
+    /**
+     * ミュート/ソロを考慮して、現在聞こえるトラックを返します。
+     * ソロが1つでもあれば「ソロかつ非ミュート」のトラックのみ、無ければ非ミュートのトラック。
+     */
+    private List<Track> getAudibleTracks() {
+        boolean anySolo = tracks.stream().anyMatch(Track::isSoloed);
+        List<Track> audible = new ArrayList<>();
+        for (Track track : tracks) {
+            if (anySolo ? (track.isSoloed() && !track.isMuted()) : !track.isMuted()) {
+                audible.add(track);
+            }
+        }
+        return audible;
+    }
+
+    /**
+     * プロジェクト全体をオフラインでレンダリングして WAV に書き出します。
+     * ミュート/ソロは再生時と同じ規則で反映されます。
+     */
+    private void bounceToWav() {
+        if (playbackManager.isPlaying()) playbackManager.stop();
+
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setFileFilter(new javax.swing.filechooser.FileNameExtensionFilter("WAV Files", "wav"));
+        if (fileChooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        File selected = fileChooser.getSelectedFile();
+        File outputFile = selected.getName().toLowerCase().endsWith(".wav") ? selected : new File(selected.getAbsolutePath() + ".wav");
+
+        // ノートのスナップショットはEDT上で取る (レンダリング中に編集されても影響しない)
+        List<OfflineRenderer.TrackPart> parts = new ArrayList<>();
+        for (Track track : getAudibleTracks()) {
+            if (!track.getNotes().isEmpty()) {
+                parts.add(new OfflineRenderer.TrackPart(
+                        NoteEventIndex.build(track.getNotes()),
+                        MidiHandler.getProgramForInstrument(track.getInstrument())));
+            }
+        }
+        if (parts.isEmpty()) {
+            JOptionPane.showMessageDialog(this, "There are no audible notes to render.", "Bounce WAV", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        TempoMap tempoMap =
+                TempoMap.constant(ppqn, getBpm());
+
+        ProgressMonitor progressMonitor = new ProgressMonitor(this, "Rendering " + outputFile.getName(), "", 0, 1000);
+        progressMonitor.setMillisToDecideToPopup(200);
+        SwingWorker<Void, Integer> worker = new SwingWorker<>() {
+            @Override
+            protected Void doInBackground() throws Exception {
+                OfflineRenderer.renderToWav(parts, tempoMap, outputFile,
+                        (rendered, total) -> setProgress((int) (rendered * 100 / Math.max(1, total))));
+                return null;
+            }
+
+            @Override
+            protected void done() {
+                progressMonitor.close();
+                try {
+                    get();
+                    System.out.println("Arrangement: Bounced project to " + outputFile.getAbsolutePath());
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                    JOptionPane.showMessageDialog(ArrangementFrame.this, "Error rendering WAV: " + ex.getMessage(), "Bounce WAV", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        };
+        worker.addPropertyChangeListener(evt -> {
+            if ("progress".equals(evt.getPropertyName())) {
+                progressMonitor.setProgress((Integer) evt.getNewValue() * 10);
+            }
+        });
+        worker.execute();
+    }
+
+    // --- Arrangement Generation ---
+
+    /**
+     * 選択したトラックのパートを、ほかの (鳴っている) トラックを条件 (inst_comp) として同じ範囲で同時に生成します。
+     * 結果は全トラック分をまとめて1つの Undo 履歴として反映します。
+     */
+    private void generateParts() {
+        SwingWorker<List<ModelInfo>, Void> worker = new SwingWorker<>() {
+            @Override
+            protected List<ModelInfo> doInBackground() throws Exception {
+                return mozartAPIClient.getModelInfo();
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    List<ModelInfo> models = get();
+                    if (models.isEmpty()) {
+                        JOptionPane.showMessageDialog(ArrangementFrame.this, "No AI models found.", "Generate Parts", JOptionPane.WARNING_MESSAGE);
+                        return;
+                    }
+                    showGeneratePartsDialog(models);
+                } catch (InterruptedException | ExecutionException e) {
+                    e.printStackTrace();
+                    JOptionPane.showMessageDialog(ArrangementFrame.this, "Error loading AI models. Offline or maintenance.", "Generate Parts", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        };
+        worker.execute();
+    }
+
+    private void showGeneratePartsDialog(List<ModelInfo> models) {
+        // 範囲の初期値は選択中のリージョン (無ければ先頭の8小節)
+        int maxMeasures = GenerationRequests.MAX_GENFIELD_MEASURES;
+        int defaultStart = 1;
+        int defaultMeasures = maxMeasures;
+        if (selectedRegion != null) {
+            defaultStart = (int) (selectedRegion.getStartTick() / ticksPerMeasure) + 1;
+            long length = selectedRegion.getEndTick() - selectedRegion.getStartTick();
+            defaultMeasures = (int) Math.max(1, Math.min(maxMeasures, (length + ticksPerMeasure - 1) / ticksPerMeasure));
+        }
+
+        JComboBox<ModelInfo> modelCombo = new JComboBox<>(models.toArray(new ModelInfo[0]));
+        JSpinner startSpinner = new JSpinner(new SpinnerNumberModel(defaultStart, 1, 9999, 1));
+        JSpinner measuresSpinner = new JSpinner(new SpinnerNumberModel(defaultMeasures, 1, maxMeasures, 1));
+        JPanel trackPanel = new JPanel();
+        trackPanel.setLayout(new BoxLayout(trackPanel, BoxLayout.Y_AXIS));
+        Map<Track, JCheckBox> trackChecks = new java.util.LinkedHashMap<>();
+        for (Track track : tracks) {
+            JCheckBox check = new JCheckBox(track.getName(), selectedTracks.contains(track));
+            trackChecks.put(track, check);
+            trackPanel.add(check);
+        }
+
+        JPanel panel = new JPanel(new GridBagLayout());
+        GridBagConstraints gbc = new GridBagConstraints();
+        gbc.insets = new Insets(4, 4, 4, 4);
+        gbc.anchor = GridBagConstraints.WEST;
+        gbc.fill = GridBagConstraints.HORIZONTAL;
+        gbc.gridx = 0; gbc.gridy = 0; panel.add(new JLabel("Model:"), gbc);
+        gbc.gridx = 1; panel.add(modelCombo, gbc);
+        gbc.gridx = 0; gbc.gridy = 1; panel.add(new JLabel("Start Measure:"), gbc);
+        gbc.gridx = 1; panel.add(startSpinner, gbc);
+        gbc.gridx = 0; gbc.gridy = 2; panel.add(new JLabel("Measures:"), gbc);
+        gbc.gridx = 1; panel.add(measuresSpinner, gbc);
+        gbc.gridx = 0; gbc.gridy = 3; gbc.gridwidth = 2; panel.add(new JLabel("Tracks to generate (the other audible tracks are used as conditions):"), gbc);
+        gbc.gridy = 4;
+        JScrollPane trackScroll = new JScrollPane(trackPanel);
+        trackScroll.setPreferredSize(new Dimension(320, Math.min(200, 28 * tracks.size() + 8)));
+        panel.add(trackScroll, gbc);
+
+        if (JOptionPane.showConfirmDialog(this, panel, "Generate Parts", JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE) != JOptionPane.OK_OPTION) {
+            return;
+        }
+        List<Track> targets = new ArrayList<>();
+        for (Map.Entry<Track, JCheckBox> entry : trackChecks.entrySet()) {
+            if (entry.getValue().isSelected()) {
+                targets.add(entry.getKey());
+            }
+        }
+        if (targets.isEmpty()) {
+            JOptionPane.showMessageDialog(this, "Select at least one track to generate.", "Generate Parts", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+        List<Track> conditionTracks = new ArrayList<>(getAudibleTracks());
+        conditionTracks.removeAll(targets);
+
+        long startTick = (long) ((Integer) startSpinner.getValue() - 1) * ticksPerMeasure;
+        long endTick = startTick + (long) (Integer) measuresSpinner.getValue() * ticksPerMeasure;
+        String modelName = ((ModelInfo) modelCombo.getSelectedItem()).getModelName();
+
+        ArrangementGenerator generator;
+        try {
+            generator = new ArrangementGenerator(mozartAPIClient, modelName, ppqn, beatsPerMeasure, startTick, endTick, targets, conditionTracks);
+        } catch (IOException e) {
+            e.printStackTrace();
+            JOptionPane.showMessageDialog(this, "Error preparing generation: " + e.getMessage(), "Generate Parts", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        runArrangementGeneration(generator, targets, startTick, endTick);
+    }
+
+    /** トラックごとの進み具合を表示しながら生成し、終わったら成功したトラックをまとめて反映します。 */
+    private void runArrangementGeneration(ArrangementGenerator generator, List<Track> targets, long startTick, long endTick) {
+        JDialog progressDialog = new JDialog(this, "Generating Parts", false);
+        progressDialog.setDefaultCloseOperation(WindowConstants.DO_NOTHING_ON_CLOSE);
+        JPanel rows = new JPanel(new GridBagLayout());
+        rows.setBorder(BorderFactory.createEmptyBorder(8, 8, 8, 8));
+        GridBagConstraints gbc = new GridBagConstraints();
+        gbc.insets = new Insets(3, 4, 3, 4);
+        gbc.anchor = GridBagConstraints.WEST;
+        Map<Track, JProgressBar> bars = new HashMap<>();
+        Map<Track, JLabel> statusLabels = new HashMap<>();
+        for (int i = 0; i < targets.size(); i++) {
+            Track track = targets.get(i);
+            JProgressBar bar = new JProgressBar(0, 1);
+            bar.setPreferredSize(new Dimension(160, 14));
+            JLabel status = new JLabel("Queued");
+            bars.put(track, bar);
+            statusLabels.put(track, status);
+            gbc.gridy = i;
+            gbc.gridx = 0; rows.add(new JLabel(track.getName()), gbc);
+            gbc.gridx = 1; rows.add(bar, gbc);
+            gbc.gridx = 2; rows.add(status, gbc);
+        }
+        JButton cancelButton = new JButton("Cancel");
+        cancelButton.addActionListener(e -> {
+            cancelButton.setEnabled(false);
+            generator.cancel();
+        });
+        JPanel buttons = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        buttons.add(cancelButton);
+        progressDialog.add(rows, BorderLayout.CENTER);
+        progressDialog.add(buttons, BorderLayout.SOUTH);
+        progressDialog.pack();
+        progressDialog.setLocationRelativeTo(this);
+
+        generator.start(new ArrangementGenerator.Listener() {
+            private int failed = 0;
+
+            @Override
+            public void trackStarted(Track track) {
+                bars.get(track).setIndeterminate(true);
+                statusLabels.get(track).setText("Generating...");
+            }
+
+            @Override
+            public void trackFinished(Track track, List<Note> notes, Exception error) {
+                JProgressBar bar = bars.get(track);
+                bar.setIndeterminate(false);
+                if (notes != null) {
+                    bar.setValue(1);
+                    statusLabels.get(track).setText("Done (" + notes.size() + " notes)");
+                } else if (error instanceof CancellationException) {
+                    statusLabels.get(track).setText("Cancelled");
+                } else {
+                    failed++;
+                    statusLabels.get(track).setText("Failed");
+                    statusLabels.get(track).setToolTipText(error != null ? error.getMessage() : null);
+                }
+            }
+
+            @Override
+            public void allFinished(Map<Track, List<Note>> results, boolean cancelled) {
+                progressDialog.dispose();
+                if (cancelled) {
+                    System.out.println("Arrangement: Part generation cancelled.");
+                    return;
+                }
+                applyGeneratedParts(results, startTick, endTick);
+                if (failed > 0) {
+                    JOptionPane.showMessageDialog(ArrangementFrame.this, failed + " of " + targets.size() + " track(s) failed to generate.",
+                            "Generate Parts", JOptionPane.WARNING_MESSAGE);
+                }
+            }
+        });
+        progressDialog.setVisible(true);
+    }
+
+    /** 生成したノートで各トラックの範囲内のノートを置き換えます (全トラックで Undo 1回分)。 */
+    private void applyGeneratedParts(Map<Track, List<Note>> results, long startTick, long endTick) {
+        if (results.isEmpty()) {
+            return;
+        }
+        undoManager.runInTransaction("Generate Parts", () -> {
+            for (Map.Entry<Track, List<Note>> entry : results.entrySet()) {
+                Track track = entry.getKey();
+                if (!tracks.contains(track)) {
+                    continue; // 生成中に削除されたトラック
+                }
+                undoManager.executeCommand(new ReplaceNotesCommand(null, track.getNotes(),
+                        GenerationRequests.notesIn(track.getNotes(), startTick, endTick), entry.getValue()));
+                boolean covered = false;
+                for (MidiRegion region : track.getRegions()) {
+                    if (region.getStartTick() < endTick && region.getEndTick() > startTick) {
+                        covered = true;
+                        break;
+                    }
+                }
+                if (!covered) {
+                    undoManager.executeCommand(new AddRegionCommand(track, new MidiRegion(startTick, endTick)));
+                }
+            }
+        });
+        System.out.println("Arrangement: Generated parts for " + results.size() + " track(s).");
+        refreshAfterHistoryChange();
+    }
+
     private void closeAllActivePianoRolls() {
         List<PianoRoll> rolls = new ArrayList<>(activePianoRolls);
         for (PianoRoll pr : rolls) {
@@ -1570,7 +1896,7 @@ public class ArrangementFrame extends JFrame {
     private void resetProject() {
         tracks.clear();
         selectedTracks.clear();
-        undoStack.clear();
+        undoManager.clearStacks();
         
         Track defaultTrack = new Track("Track 1");
         tracks.add(defaultTrack);
@@ -1580,8 +1906,9 @@ public class ArrangementFrame extends JFrame {
         bpmField.setText("120.0");
         quantizeComboBox.setSelectedIndex(2); // "1/4" default
         
-        if (playbackManager.getSequencer() != null) {
-            playbackManager.setTickPosition(0);
+        playbackManager.setTickPosition(0);
+        if (journal != null) {
+            journal.startSession(tracks);
         }
         
         setTitle("COMPASS - Arrangement View");
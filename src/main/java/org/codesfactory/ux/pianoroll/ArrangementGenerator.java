@@ -0,0 +1,231 @@
+package org.codesfactory.ux.pianoroll;
+
+import org.codesfactory.api.GenerationRequest;
+import org.codesfactory.api.MozartAPIClient;
+
+import javax.swing.SwingUtilities;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * アレンジメントの複数のトラックのパートを、同じ範囲で同時に生成するエンジン (inst_comp)。
+ *
+ * 生成するトラック以外のトラックの範囲内のノートを条件 (conditions_midi) とし、条件は開始時に1回だけエンコードして
+ * すべてのリクエストで共有します。各トラックの過去・未来の文脈もその時点のノートのコピーから作るので、
+ * 生成中にトラックが編集されても影響しません。同時に送るリクエストは MAX_CONCURRENT_TRACKS までで
+ * (非同期に送るので、待っている間スレッドは使いません)、全体の所要時間はおおよそ一番遅いトラックの分になります。
+ * 結果の反映 (1つの Undo 履歴にまとめる) は呼び出し側で行います。
+ */
+final class ArrangementGenerator {
+
+    /** 同時に生成するトラック数の上限。 */
+    static final int MAX_CONCURRENT_TRACKS = 4;
+
+    /** 進み具合の通知。すべて EDT で呼ばれます。 */
+    interface Listener {
+        void trackStarted(Track track);
+
+        /**
+         * notes は生成範囲に置いた (絶対位置の) ノート。失敗した場合は notes が null で error が非null
+         * (キャンセルされた場合は {@link CancellationException})。
+         */
+        void trackFinished(Track track, List<Note> notes, Exception error);
+
+        /** すべてのトラックが終わった (またはキャンセルされた) ときに1回呼ばれます。 */
+        void allFinished(Map<Track, List<Note>> results, boolean cancelled);
+    }
+
+    private static final class Job {
+        final Track track;
+        final GenerationRequest request;
+
+        Job(Track track, GenerationRequest request) {
+            this.track = track;
+            this.request = request;
+        }
+    }
+
+    private final MozartAPIClient client;
+    private final int ppqn;
+    private final int beatsPerMeasure;
+    private final long startTick;
+    private final List<Job> jobs = new ArrayList<>();
+    private final Map<Track, List<Note>> results = new LinkedHashMap<>(); // EDT からのみ触る
+    private Listener listener;
+
+    // 同時実行数の制御と中断 (通信スレッドからも触るので this で同期)
+    private final Deque<Job> waiting = new ArrayDeque<>();
+    private final List<CompletableFuture<byte[]>> exchanges = new ArrayList<>();
+    private int running = 0;
+    private int remaining = 0; // まだ trackFinished を通知していないジョブの数
+    private volatile boolean cancelled = false;
+
+    /**
+     * 生成するトラックごとのリクエストを作ります (EDT で呼んでください)。
+     * @param targets 生成するトラック
+     * @param conditionTracks 条件にするトラック (範囲内にノートが無ければ inst_comp にしない)
+     */
+    ArrangementGenerator(MozartAPIClient client, String modelName, int ppqn, int beatsPerMeasure, long startTick, long endTick,
+                         List<Track> targets, List<Track> conditionTracks) throws IOException {
+        this.client = client;
+        this.ppqn = ppqn;
+        this.beatsPerMeasure = beatsPerMeasure;
+        this.startTick = startTick;
+        int ticksPerMeasure = ppqn * beatsPerMeasure;
+        long contextTicks = (long) ticksPerMeasure * GenerationRequests.CONTEXT_MEASURES;
+
+        // 条件は全トラック共通なので1回だけエンコードする (単音のトラックは ch1、それ以外は ch0)
+        List<Note> conditionsNotes = new ArrayList<>();
+        for (Track t : conditionTracks) {
+            int mappedChannel = t.isMonophonic() ? 1 : 0;
+            for (Note n : GenerationRequests.notesIn(t.getNotes(), startTick, endTick)) {
+                conditionsNotes.add(new Note(n.getPitch(), n.getStartTimeTicks(), n.getDurationTicks(), n.getVelocity(), mappedChannel));
+            }
+        }
+        byte[] conditionsMidi = conditionsNotes.isEmpty() ? null : GenerationRequests.encodeConditions(conditionsNotes, startTick, ppqn);
+        System.out.println("ArrangementGenerator: " + targets.size() + " target track(s), " + conditionsNotes.size() + " condition notes"
+                + (conditionsMidi != null ? " (" + conditionsMidi.length + " bytes SMF, shared)" : " (no inst_comp)"));
+
+        for (Track track : targets) {
+            long pastStart = Math.max(0, startTick - contextTicks);
+            List<Note> pastNotes = copyOf(GenerationRequests.notesIn(track.getNotes(), pastStart, startTick));
+            List<Note> futureNotes = copyOf(GenerationRequests.notesIn(track.getNotes(), endTick, endTick + contextTicks));
+            boolean hasContext = !pastNotes.isEmpty() || !futureNotes.isEmpty();
+            GenerationRequest request = GenerationRequests.build(modelName, track.isMonophonic() ? "SAX" : "PIANO", ppqn, ticksPerMeasure,
+                    startTick, endTick, pastNotes, pastStart, futureNotes, endTick,
+                    conditionsMidi != null ? out -> out.write(conditionsMidi) : null, PianoRoll.lastSettings(hasContext));
+            jobs.add(new Job(track, request));
+        }
+    }
+
+    /** 生成を開始します。MAX_CONCURRENT_TRACKS 本ずつ非同期に送り、1本終わるたびに次のトラックを送ります。 */
+    void start(Listener listener) {
+        this.listener = listener;
+        List<Job> launches = new ArrayList<>();
+        synchronized (this) {
+            remaining = jobs.size();
+            for (Job job : jobs) {
+                if (running < MAX_CONCURRENT_TRACKS) {
+                    running++;
+                    launches.add(job);
+                } else {
+                    waiting.add(job);
+                }
+            }
+        }
+        if (jobs.isEmpty()) {
+            SwingUtilities.invokeLater(() -> listener.allFinished(results, cancelled));
+        }
+        for (Job job : launches) {
+            launch(job);
+        }
+    }
+
+    /** 枠を1つ持った状態でジョブを送ります。枠は通信が終わったとき (中断済みなら直ちに) 返します。 */
+    private void launch(Job job) {
+        if (cancelled) {
+            release();
+            finish(job, null, new CancellationException());
+            return;
+        }
+        SwingUtilities.invokeLater(() -> listener.trackStarted(job.track));
+        CompletableFuture<byte[]> exchange = client.generateAsync(job.request);
+        synchronized (this) {
+            exchanges.add(exchange);
+        }
+        if (cancelled) {
+            exchange.cancel(true); // cancel() が一覧を写した後に加わった分
+        }
+        exchange.whenComplete((responseBytes, error) -> {
+            synchronized (this) {
+                exchanges.remove(exchange);
+            }
+            List<Note> notes = null;
+            Exception failure = null;
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            if (cause instanceof CancellationException) {
+                failure = (CancellationException) cause;
+            } else if (cause != null) {
+                System.err.println("ArrangementGenerator: Failed to generate " + job.track.getName() + ": " + cause.getMessage());
+                failure = cause instanceof Exception ? (Exception) cause : new Exception(cause);
+            } else {
+                try {
+                    MidiHandler.MidiData data = GenerationRequests.decodeCandidates(responseBytes).get(0);
+                    notes = GenerationRequests.placeGenerated(data.notes, data.ppqn, ppqn, beatsPerMeasure, startTick);
+                } catch (Exception e) {
+                    System.err.println("ArrangementGenerator: Failed to decode " + job.track.getName() + ": " + e.getMessage());
+                    failure = e;
+                }
+            }
+            release();
+            finish(job, notes, failure);
+        });
+    }
+
+    private void release() {
+        Job next;
+        synchronized (this) {
+            next = cancelled ? null : waiting.poll(); // 中断後の待機分は cancel() が片付ける
+            if (next == null) {
+                running--;
+                return;
+            }
+        }
+        launch(next); // 空いた枠をそのまま次のトラックに渡す
+    }
+
+    /** ジョブの結果を EDT で通知し、最後のジョブなら allFinished も通知します。 */
+    private void finish(Job job, List<Note> notes, Exception error) {
+        boolean last;
+        synchronized (this) {
+            last = --remaining == 0;
+        }
+        SwingUtilities.invokeLater(() -> {
+            if (notes != null && !cancelled) {
+                results.put(job.track, notes);
+            }
+            listener.trackFinished(job.track, notes, error);
+            if (last) {
+                listener.allFinished(results, cancelled);
+            }
+        });
+    }
+
+    /** 実行中の生成を中断し、待機中のトラックは送りません (どちらもキャンセルとして通知されます)。 */
+    void cancel() {
+        List<CompletableFuture<byte[]>> inFlight;
+        List<Job> skipped;
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            inFlight = new ArrayList<>(exchanges);
+            skipped = new ArrayList<>(waiting);
+            waiting.clear();
+        }
+        System.out.println("ArrangementGenerator: Cancelling " + inFlight.size() + " in-flight and " + skipped.size() + " queued track(s).");
+        for (CompletableFuture<byte[]> exchange : inFlight) {
+            exchange.cancel(true);
+        }
+        for (Job job : skipped) {
+            finish(job, null, new CancellationException()); // 枠を持っていないので release() しない
+        }
+    }
+
+    private static List<Note> copyOf(List<Note> notes) {
+        List<Note> copies = new ArrayList<>(notes.size());
+        for (Note n : notes) {
+            copies.add(new Note(n.getPitch(), n.getStartTimeTicks(), n.getDurationTicks(), n.getVelocity(), n.getChannel()));
+        }
+        return copies;
+    }
+}
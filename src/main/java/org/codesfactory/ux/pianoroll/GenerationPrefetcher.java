@@ -0,0 +1,102 @@
+package org.codesfactory.ux.pianoroll;
+
+import org.codesfactory.api.GenerationRequest;
+import org.codesfactory.api.GenerationScheduler;
+import org.codesfactory.api.MozartAPIClient;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 次に生成しそうな範囲を先読みで生成しておく仕組み (ピアノロールのウィンドウごとに1つ)。
+ *
+ * 生成が終わった直後に、続きの範囲のリクエスト (生成したばかりのノートを past_midi に含む) をバックグラウンドで送り、
+ * 結果をユーザーがその範囲を生成するまで保持します。先読みは同時に1つだけで、対話的な生成と内容が違えば捨てます。
+ * リクエストの内容 (メタ情報とノート) のハッシュで照合するので、先読みの後に文脈が変わっていれば
+ * 古い結果が使われることはありません。ノートが編集された時点でも {@link #invalidate()} で中断します。
+ * 先読みは {@link GenerationScheduler} に低い優先度で並ぶので、対話的な生成を待たせることはありません。
+ * EDT 上で使ってください。
+ */
+final class GenerationPrefetcher {
+
+    private final MozartAPIClient client;
+    private CompletableFuture<byte[]> pending = null; // 先読み中または完了済みの結果 (無ければ null)
+    private String pendingKey = null;
+    private long pendingStartTick;
+    private long pendingEndTick;
+
+    GenerationPrefetcher(MozartAPIClient client) {
+        this.client = client;
+    }
+
+    /**
+     * [startTick, endTick) の先読みを開始します。前の先読みは中断します。
+     * リクエストのノートはこの時点でエンコードされます。
+     */
+    void prefetch(GenerationRequest request, long startTick, long endTick) {
+        invalidate();
+        try {
+            pendingKey = request.contentKey();
+        } catch (IOException e) {
+            System.err.println("GenerationPrefetcher: Failed to encode prefetch request: " + e.getMessage());
+            return;
+        }
+        pendingStartTick = startTick;
+        pendingEndTick = endTick;
+        pending = client.generateAsync(request, GenerationScheduler.Priority.PREFETCH);
+        pending.whenComplete((bytes, error) -> {
+            if (error == null) {
+                System.out.println("GenerationPrefetcher: Prefetched " + startTick + "-" + endTick + " (" + bytes.length + " bytes)");
+            }
+        });
+        System.out.println("GenerationPrefetcher: Prefetching " + startTick + "-" + endTick + "...");
+    }
+
+    /**
+     * request と同じ内容の先読みがあれば、その結果 (まだ通信中の場合もある) を返して手放します。
+     * 無ければ先読みを中断して null を返します (対話的な生成を優先する)。
+     */
+    CompletableFuture<byte[]> take(GenerationRequest request, long startTick, long endTick) {
+        if (pending == null) {
+            return null;
+        }
+        if (startTick == pendingStartTick && endTick == pendingEndTick && !pending.isCompletedExceptionally()) {
+            try {
+                if (pendingKey.equals(request.contentKey())) {
+                    CompletableFuture<byte[]> result = pending;
+                    if (!result.isDone()) {
+                        // 同じ内容の対話的なリクエストとして合流させ、待ち行列での優先度を上げる
+                        result = client.generateAsync(request);
+                        pending.cancel(true);
+                    }
+                    pending = null;
+                    pendingKey = null;
+                    System.out.println("GenerationPrefetcher: Using prefetched result for " + startTick + "-" + endTick
+                            + (result.isDone() ? "" : " (still in flight)"));
+                    return result;
+                }
+            } catch (IOException e) {
+                System.err.println("GenerationPrefetcher: Failed to encode request: " + e.getMessage());
+            }
+        }
+        invalidate();
+        return null;
+    }
+
+    /** 先読みを捨てます。通信中なら中断します。 */
+    void invalidate() {
+        if (pending == null) {
+            return;
+        }
+        if (!pending.isDone()) {
+            System.out.println("GenerationPrefetcher: Cancelling prefetch " + pendingStartTick + "-" + pendingEndTick);
+            pending.cancel(true);
+        }
+        pending = null;
+        pendingKey = null;
+    }
+
+    boolean hasPending() {
+        return pending != null;
+    }
+}
@@ -0,0 +1,307 @@
+package org.codesfactory.ux.pianoroll;
+
+import org.codesfactory.api.GenerateMeta;
+import org.codesfactory.api.GenerationRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import javax.sound.midi.InvalidMidiDataException;
+
+/**
+ * ノートの範囲と生成パラメータから MozartAPI の生成リクエストを組み立て、レスポンスを読み取るヘルパー。
+ *
+ * 過去/未来/条件のノートは一時ファイルを介さず、リクエスト送信時に MidiHandler で直接SMFとして本文に書き込みます
+ * (範囲の先頭を 0 にするずらしも書き込み時に行うので、ノートのコピーも作りません)。
+ * ピアノロールの生成と、同じリクエストを作る他の機能 (先読み・長尺生成など) で共有します。
+ */
+public final class GenerationRequests {
+
+    /** API との整合性のため、テンポは 120BPM 固定で送る。 */
+    public static final int API_TEMPO = 120;
+    /** 1回の生成で指定できる最大の小節数。 */
+    public static final int MAX_GENFIELD_MEASURES = 8;
+    /** 生成範囲の前後に文脈として送る小節数。 */
+    public static final int CONTEXT_MEASURES = 8;
+    /** 1回のリクエストで求める候補数 (num_gems) の上限。 */
+    public static final int MAX_CANDIDATES = 8;
+
+    private GenerationRequests() {
+    }
+
+    /** ダイアログで選んだ生成パラメータ。null の項目は送信しません。 */
+    public static final class Settings {
+        final double p;
+        final double temperature;
+        final String key;
+        final List<String> genres;
+        final Integer density;
+        final boolean thinking;
+        final int candidates;
+        boolean cacheReplay = false;
+
+        public Settings(double p, double temperature, String key, List<String> genres, Integer density, boolean thinking) {
+            this(p, temperature, key, genres, density, thinking, 1);
+        }
+
+        /** @param candidates 生成する候補の数 (1〜MAX_CANDIDATES)。2以上なら num_gems として送る */
+        public Settings(double p, double temperature, String key, List<String> genres, Integer density, boolean thinking, int candidates) {
+            this.p = p;
+            this.temperature = temperature;
+            this.key = key;
+            this.genres = genres == null ? null : new ArrayList<>(genres);
+            this.density = density;
+            this.thinking = thinking;
+            this.candidates = Math.max(1, Math.min(MAX_CANDIDATES, candidates));
+        }
+
+        /** 同じ内容のリクエストの結果がキャッシュにあれば、サーバーに送らずそれを使うかどうか。 */
+        public Settings cacheReplay(boolean cacheReplay) {
+            this.cacheReplay = cacheReplay;
+            return this;
+        }
+
+        /** 候補を1つだけ求める同じ設定 (長尺生成の各区間など)。 */
+        public Settings singleCandidate() {
+            return candidates == 1 ? this : new Settings(p, temperature, key, genres, density, thinking, 1).cacheReplay(cacheReplay);
+        }
+
+        /** p = 0 (または temperature = 0) は貪欲なデコードなので、同じ入力なら結果も同じになる。 */
+        boolean isDeterministic() {
+            return p <= 0 || temperature <= 0;
+        }
+    }
+
+    /**
+     * ダイアログなどで決めた、範囲によらない生成の設定。{@link #request} で任意の範囲のリクエストを作れます。
+     * 条件ノート (inst_comp) は生成範囲全体の分を持ち、リクエストごとにその範囲の分だけを送ります。
+     */
+    public static final class Setup {
+        final String modelName;
+        final String targetInst;
+        final Settings settings;
+        final List<Note> conditionsNotes;
+
+        /** @param conditionsNotes inst_comp の条件ノート (絶対位置)。inst_comp にしない場合は空 */
+        public Setup(String modelName, String targetInst, Settings settings, List<Note> conditionsNotes) {
+            this.modelName = modelName;
+            this.targetInst = targetInst;
+            this.settings = settings;
+            this.conditionsNotes = conditionsNotes;
+        }
+
+        public String getModelName() {
+            return modelName;
+        }
+
+        public Settings getSettings() {
+            return settings;
+        }
+
+        /** 同じ設定で、候補を1つだけ求める Setup。 */
+        public Setup singleCandidate() {
+            return new Setup(modelName, targetInst, settings.singleCandidate(), conditionsNotes);
+        }
+
+        /** [startTick, endTick) を生成するリクエストを作ります。 */
+        public GenerationRequest request(int ppqn, int ticksPerMeasure, long startTick, long endTick,
+                                         List<Note> pastNotes, long pastStart, List<Note> futureNotes, long futureStart) {
+            return build(modelName, targetInst, ppqn, ticksPerMeasure, startTick, endTick, pastNotes, pastStart, futureNotes, futureStart,
+                    notesIn(conditionsNotes, startTick, endTick), settings);
+        }
+    }
+
+    /** 開始位置が [fromTick, toTick) にあるノート。 */
+    public static List<Note> notesIn(List<Note> notes, long fromTick, long toTick) {
+        List<Note> result = new ArrayList<>();
+        for (Note n : notes) {
+            if (n.getStartTimeTicks() >= fromTick && n.getStartTimeTicks() < toTick) {
+                result.add(n);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 生成されたノート (範囲の先頭が 0) を、startTick から始まる絶対位置に置いたノートにします。
+     * PPQN の違いはスケーリングし、先頭に1小節以上の空白があればそれを詰めます。
+     */
+    public static List<Note> placeGenerated(List<Note> generatedNotes, int generatedPpqn, int ppqn, int beatsPerMeasure, long startTick) {
+        double scale = (double) ppqn / generatedPpqn;
+        long measureTicks = (long) generatedPpqn * beatsPerMeasure;
+
+        // Check if there is at least a 1-measure blank in the generated MIDI
+        boolean hasOneMeasureBlank = false;
+        if (!generatedNotes.isEmpty()) {
+            long minStart = generatedNotes.stream()
+                    .mapToLong(Note::getStartTimeTicks)
+                    .min()
+                    .orElse(0);
+            if (minStart >= measureTicks) {
+                hasOneMeasureBlank = true;
+                System.out.println("placeGenerated: Detected 1 measure blank in generated MIDI (" + measureTicks + " ticks). Trimming it.");
+            }
+        }
+
+        // 生成されたノートの開始時間を startTick 起点に補正し、かつ PPQN 比率でスケーリング
+        List<Note> placed = new ArrayList<>(generatedNotes.size());
+        for (Note note : generatedNotes) {
+            long adjustedStart = note.getStartTimeTicks();
+            if (hasOneMeasureBlank) {
+                adjustedStart -= measureTicks;
+            }
+            long scaledStart = Math.round(adjustedStart * scale);
+            long scaledDuration = Math.round(note.getDurationTicks() * scale);
+            placed.add(new Note(
+                    note.getPitch(),
+                    scaledStart + startTick,
+                    scaledDuration,
+                    note.getVelocity(),
+                    note.getChannel()
+            ));
+        }
+        return placed;
+    }
+
+    /**
+     * 生成リクエストを作ります。ノートのリストは送信時に読むので、呼び出し後に変更しないでください。
+     * @param targetInst 生成するパートの楽器 ("PIANO" や "SAX")
+     * @param pastNotes 過去コンテキスト (pastStart を 0 として送る)
+     * @param futureNotes 未来コンテキスト (futureStart を 0 として送る)
+     * @param conditionsNotes inst_comp の条件 (startTick を 0 として送る)。空なら inst_comp にしない
+     */
+    public static GenerationRequest build(String modelName, String targetInst, int ppqn, int ticksPerMeasure,
+                                          long startTick, long endTick,
+                                          List<Note> pastNotes, long pastStart,
+                                          List<Note> futureNotes, long futureStart,
+                                          List<Note> conditionsNotes, Settings settings) {
+        boolean useInstComp = conditionsNotes != null && !conditionsNotes.isEmpty();
+        return build(modelName, targetInst, ppqn, ticksPerMeasure, startTick, endTick, pastNotes, pastStart, futureNotes, futureStart,
+                useInstComp ? out -> MidiHandler.writeConditionsMidi(out, conditionsNotes, startTick, ppqn, API_TEMPO) : null, settings);
+    }
+
+    /**
+     * エンコード済みの条件 MIDI (conditions_midi) を使う版。複数のパートを同じ条件で生成するときに、
+     * 条件を1回だけエンコードして共有できます。
+     * @param conditionsMidi 条件の SMF を書き出す処理 (例えば {@link #encodeConditions} の結果を書く)。null なら inst_comp にしない
+     */
+    public static GenerationRequest build(String modelName, String targetInst, int ppqn, int ticksPerMeasure,
+                                          long startTick, long endTick,
+                                          List<Note> pastNotes, long pastStart,
+                                          List<Note> futureNotes, long futureStart,
+                                          GenerationRequest.PartWriter conditionsMidi, Settings settings) {
+        boolean useInstComp = conditionsMidi != null;
+        String task = "Meta2MIDI";
+        if (useInstComp) {
+            task = "inst_comp";
+        } else if (!pastNotes.isEmpty() && !futureNotes.isEmpty()) {
+            task = "infill";
+        }
+
+        GenerateMeta meta = new GenerateMeta(modelName, Collections.singletonList(targetInst), API_TEMPO, task);
+        meta.setP(settings.p);
+        meta.setTemperature(settings.temperature);
+        if (settings.key != null) {
+            meta.setKey(settings.key);
+        }
+        if (settings.genres != null) {
+            meta.setGenre(settings.genres);
+        }
+        if (settings.density != null) {
+            Map<String, Integer> densities = new HashMap<>();
+            densities.put(targetInst, settings.density);
+            meta.setGenNoteDense(densities);
+        }
+        if (settings.thinking) {
+            meta.setThinking(true);
+        }
+        if (settings.candidates > 1) {
+            meta.setNumGems(settings.candidates);
+        }
+        meta.setGenfieldMeasure(measuresOf(startTick, endTick, ticksPerMeasure));
+
+        // サンプリングが決定的なとき、または明示的に指定されたときだけキャッシュの結果を再利用する
+        GenerationRequest.Builder builder = GenerationRequest.builder(meta)
+                .cacheReplay(settings.cacheReplay || settings.isDeterministic());
+        if (!pastNotes.isEmpty()) {
+            builder.midi("past_midi", out -> MidiHandler.writeMidi(out, pastNotes, pastStart, ppqn, API_TEMPO, targetInst));
+        }
+        if (!futureNotes.isEmpty()) {
+            builder.midi("future_midi", out -> MidiHandler.writeMidi(out, futureNotes, futureStart, ppqn, API_TEMPO, targetInst));
+        }
+        if (useInstComp) {
+            builder.midi("conditions_midi", conditionsMidi);
+        }
+        return builder.build();
+    }
+
+    /** inst_comp の条件ノートを、startTick を 0 とする SMF にエンコードします。 */
+    public static byte[] encodeConditions(List<Note> conditionsNotes, long startTick, int ppqn) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MidiHandler.writeConditionsMidi(out, conditionsNotes, startTick, ppqn, API_TEMPO);
+        return out.toByteArray();
+    }
+
+    /** 生成範囲の小節数 (1〜MAX_GENFIELD_MEASURES)。 */
+    public static int measuresOf(long startTick, long endTick, int ticksPerMeasure) {
+        int measures = (int) ((endTick - startTick) / ticksPerMeasure);
+        return Math.max(1, Math.min(MAX_GENFIELD_MEASURES, measures));
+    }
+
+    /**
+     * 生成 API のレスポンス (MIDIファイル、または MIDI を含む ZIP) を読み取り、候補のリストにします。
+     * ZIP (num_gems > 1 の応答) の場合はすべての MIDI エントリを取り出してから並列にデコードし、
+     * エントリ名の順に並べて返します。
+     */
+    public static List<MidiHandler.MidiData> decodeCandidates(byte[] responseBytes) throws IOException, InvalidMidiDataException {
+        if (!(responseBytes.length > 2 && responseBytes[0] == 0x50 && responseBytes[1] == 0x4B)) {
+            return Collections.singletonList(MidiHandler.loadMidiFromBytes(responseBytes));
+        }
+
+        System.out.println("GenerationRequests: ZIP archive detected. Decompressing...");
+        // ZipInputStream は順にしか読めないので、展開だけ先に済ませてデコードを並列にする
+        TreeMap<String, byte[]> entries = new TreeMap<>();
+        try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(responseBytes))) {
+            ZipEntry zipEntry = zis.getNextEntry();
+            while (zipEntry != null) {
+                String name = zipEntry.getName().toLowerCase();
+                if (!zipEntry.isDirectory() && (name.endsWith(".mid") || name.endsWith(".midi"))) {
+                    entries.put(zipEntry.getName(), zis.readAllBytes());
+                }
+                zipEntry = zis.getNextEntry();
+            }
+        }
+        if (entries.isEmpty()) {
+            throw new IOException("No MIDI file found inside generated ZIP.");
+        }
+        System.out.println("GenerationRequests: Found " + entries.size() + " generated midi file(s) inside ZIP: " + entries.keySet());
+
+        try {
+            return entries.values().parallelStream()
+                    .map(midiBytes -> {
+                        try {
+                            return MidiHandler.loadMidiFromBytes(midiBytes);
+                        } catch (IOException | InvalidMidiDataException e) {
+                            throw new CompletionException(e);
+                        }
+                    })
+                    .collect(Collectors.toList());
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof InvalidMidiDataException) {
+                throw (InvalidMidiDataException) e.getCause();
+            }
+            throw (IOException) e.getCause();
+        }
+    }
+}
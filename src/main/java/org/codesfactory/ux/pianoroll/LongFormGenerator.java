@@ -0,0 +1,282 @@
+package org.codesfactory.ux.pianoroll;
+
+import org.codesfactory.api.GenerationRequest;
+import org.codesfactory.api.MozartAPIClient;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * API の1回の生成 (最大 {@link GenerationRequests#MAX_GENFIELD_MEASURES} 小節) より長い範囲を、
+ * 区間に分けて生成するエンジン。
+ *
+ * 通常は区間を先頭から順につなげて生成し、各区間は直前の区間の生成結果を past_midi として使います
+ * (続き生成)。範囲の前後に範囲外の既存のノートがある (両端が固定されている) 場合は、
+ * 偶数番目の区間を範囲外のノートだけを文脈に同時に生成し、奇数番目の区間は両隣の新しい結果がそろい次第
+ * infill で生成します。範囲内の古いノートは置き換えられるので、文脈には使いません。どちらの場合も、レスポンスのデコードと次のリクエストのエンコードは
+ * 通信スレッドで行うので、EDT を待たずに次の区間を送れます。
+ *
+ * ノートは開始時にコピーしたスナップショットだけを読み、結果は全区間の (絶対位置の) ノートをまとめて返します。
+ * 反映は呼び出し側で1つの置き換えとして行ってください。
+ */
+final class LongFormGenerator {
+
+    /** 同時に送る区間の数の上限。 */
+    static final int MAX_CONCURRENT_WINDOWS = 3;
+
+    /** 区間が1つ終わるたびに (通信スレッドから) 呼ばれます。 */
+    interface ProgressListener {
+        void windowCompleted(int completed, int total);
+    }
+
+    private final MozartAPIClient client;
+    private final GenerationRequests.Setup setup;
+    private final int ppqn;
+    private final int beatsPerMeasure;
+    private final int ticksPerMeasure;
+    private final long contextTicks;
+    private final List<Note> snapshot; // 開始時点のトラックのノート (コピー)
+    private final ProgressListener listener;
+
+    private List<Note> outside; // 生成範囲の外のノート
+    private int totalWindows;
+    private final AtomicInteger completed = new AtomicInteger();
+
+    // 同時実行数の制御と中断 (通信スレッドからも触るので this で同期)
+    private final Deque<Pending> waiting = new ArrayDeque<>();
+    private final List<CompletableFuture<byte[]>> exchanges = new ArrayList<>();
+    private int running = 0;
+    private volatile boolean cancelled = false;
+
+    /**
+     * @param snapshot トラックのノートのコピー (生成中に変更されないもの)
+     * @param setup 各区間に使う設定 (候補は1つだけ求める)
+     */
+    LongFormGenerator(MozartAPIClient client, GenerationRequests.Setup setup, int ppqn, int beatsPerMeasure,
+                      List<Note> snapshot, ProgressListener listener) {
+        this.client = client;
+        this.setup = setup.singleCandidate();
+        this.ppqn = ppqn;
+        this.beatsPerMeasure = beatsPerMeasure;
+        this.ticksPerMeasure = ppqn * beatsPerMeasure;
+        this.contextTicks = (long) ticksPerMeasure * GenerationRequests.CONTEXT_MEASURES;
+        this.snapshot = snapshot;
+        this.listener = listener;
+    }
+
+    /**
+     * [startTick, endTick) を生成します。返り値をキャンセルすると、通信中と待機中の区間もすべて中断します。
+     * 1つの区間でも失敗すれば全体が失敗します。
+     */
+    CompletableFuture<List<Note>> generate(long startTick, long endTick) {
+        outside = new ArrayList<>();
+        for (Note n : snapshot) {
+            if (n.getStartTimeTicks() < startTick || n.getStartTimeTicks() >= endTick) {
+                outside.add(n);
+            }
+        }
+
+        long windowTicks = (long) ticksPerMeasure * GenerationRequests.MAX_GENFIELD_MEASURES;
+        List<long[]> windows = new ArrayList<>();
+        for (long ws = startTick; ws < endTick; ws += windowTicks) {
+            windows.add(new long[]{ws, Math.min(endTick, ws + windowTicks)});
+        }
+        totalWindows = windows.size();
+        // 範囲内の古いノートは置き換えられるので、固定された端かどうかは範囲外のノートだけで決める
+        boolean bothEndsFixed = windows.size() > 1
+                && !GenerationRequests.notesIn(outside, startTick - contextTicks, startTick).isEmpty()
+                && !GenerationRequests.notesIn(outside, endTick, endTick + contextTicks).isEmpty();
+        System.out.println("LongFormGenerator: " + windows.size() + " windows over " + (endTick - startTick) / ticksPerMeasure
+                + " measures (" + (bothEndsFixed ? "concurrent infill" : "chained continuation") + ")");
+
+        List<CompletableFuture<List<Note>>> results = bothEndsFixed ? infillWindows(windows) : chainWindows(windows);
+
+        CompletableFuture<List<Note>> all = CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0]))
+                .thenApply(v -> {
+                    List<Note> merged = new ArrayList<>();
+                    for (CompletableFuture<List<Note>> result : results) {
+                        merged.addAll(result.join());
+                    }
+                    return merged;
+                });
+        // 1区間でも失敗・キャンセルされたら残りを中断する
+        for (CompletableFuture<List<Note>> result : results) {
+            result.whenComplete((notes, error) -> {
+                if (error != null) {
+                    cancel();
+                }
+            });
+        }
+        CompletableFuture<List<Note>> output = new CompletableFuture<>();
+        all.whenComplete((notes, error) -> {
+            if (error != null) {
+                output.completeExceptionally(error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+            } else {
+                output.complete(notes);
+            }
+        });
+        output.whenComplete((notes, error) -> {
+            if (output.isCancelled()) {
+                cancel();
+            }
+        });
+        return output;
+    }
+
+    /** 先頭から順に、直前の区間の結果を past として生成します。 */
+    private List<CompletableFuture<List<Note>>> chainWindows(List<long[]> windows) {
+        List<CompletableFuture<List<Note>>> results = new ArrayList<>();
+        CompletableFuture<List<Note>> previous = CompletableFuture.completedFuture(Collections.emptyList());
+        for (long[] w : windows) {
+            CompletableFuture<List<Note>> current = previous.thenCompose(prevNotes ->
+                    sendWindow(w, context(w[0] - contextTicks, w[0], prevNotes), context(w[1], w[1] + contextTicks, Collections.emptyList())));
+            results.add(current);
+            previous = current;
+        }
+        return results;
+    }
+
+    /**
+     * 偶数番目の区間を範囲外の既存のノートを文脈に同時に生成し、奇数番目の区間は両隣の結果がそろった時点で生成します。
+     */
+    private List<CompletableFuture<List<Note>>> infillWindows(List<long[]> windows) {
+        List<CompletableFuture<List<Note>>> results = new ArrayList<>(Collections.nCopies(windows.size(), null));
+        for (int i = 0; i < windows.size(); i += 2) {
+            long[] w = windows.get(i);
+            results.set(i, sendWindow(w, context(w[0] - contextTicks, w[0], Collections.emptyList()),
+                    context(w[1], w[1] + contextTicks, Collections.emptyList())));
+        }
+        for (int i = 1; i < windows.size(); i += 2) {
+            long[] w = windows.get(i);
+            CompletableFuture<List<Note>> before = results.get(i - 1);
+            CompletableFuture<List<Note>> after = i + 1 < windows.size() ? results.get(i + 1) : CompletableFuture.completedFuture(Collections.emptyList());
+            results.set(i, before.thenCombine(after, (pastNotes, futureNotes) -> sendWindow(w,
+                            context(w[0] - contextTicks, w[0], pastNotes),
+                            context(w[1], w[1] + contextTicks, futureNotes)))
+                    .thenCompose(window -> window));
+        }
+        return results;
+    }
+
+    /** [from, to) の文脈: 範囲外の既存のノートと、隣の区間の生成結果。 */
+    private List<Note> context(long from, long to, List<Note> generatedNeighbour) {
+        List<Note> notes = GenerationRequests.notesIn(outside, from, to);
+        notes.addAll(GenerationRequests.notesIn(generatedNeighbour, from, to));
+        return notes;
+    }
+
+    private CompletableFuture<List<Note>> sendWindow(long[] w, List<Note> pastNotes, List<Note> futureNotes) {
+        long pastStart = Math.max(0, w[0] - contextTicks);
+        GenerationRequest request = setup.request(ppqn, ticksPerMeasure, w[0], w[1], pastNotes, pastStart, futureNotes, w[1]);
+        return throttled(() -> client.generateAsync(request)).thenApply(responseBytes -> {
+            try {
+                MidiHandler.MidiData data = GenerationRequests.decodeCandidates(responseBytes).get(0);
+                // 区間の外に始まるノートは隣の区間と重なるので捨てる
+                List<Note> placed = GenerationRequests.notesIn(
+                        GenerationRequests.placeGenerated(data.notes, data.ppqn, ppqn, beatsPerMeasure, w[0]), w[0], w[1]);
+                int done = completed.incrementAndGet();
+                System.out.println("LongFormGenerator: Window " + w[0] + "-" + w[1] + " done (" + placed.size() + " notes)");
+                if (listener != null) {
+                    listener.windowCompleted(done, totalWindows);
+                }
+                return placed;
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    /** 枠が空くのを待っている区間のリクエスト。 */
+    private static final class Pending {
+        final Supplier<CompletableFuture<byte[]>> send;
+        final CompletableFuture<byte[]> result = new CompletableFuture<>();
+
+        Pending(Supplier<CompletableFuture<byte[]>> send) {
+            this.send = send;
+        }
+    }
+
+    /** 同時に送る区間を MAX_CONCURRENT_WINDOWS までに抑えて、リクエストを送ります。 */
+    private CompletableFuture<byte[]> throttled(Supplier<CompletableFuture<byte[]>> send) {
+        Pending pending = new Pending(send);
+        synchronized (this) {
+            if (running >= MAX_CONCURRENT_WINDOWS) {
+                waiting.add(pending);
+                return pending.result;
+            }
+            running++;
+        }
+        launch(pending);
+        return pending.result;
+    }
+
+    /** 枠を1つ持った状態で送ります。枠は通信が終わったとき (中断済みなら直ちに) 返します。 */
+    private void launch(Pending pending) {
+        if (cancelled) {
+            pending.result.cancel(false);
+            release();
+            return;
+        }
+        CompletableFuture<byte[]> exchange = pending.send.get();
+        synchronized (this) {
+            exchanges.add(exchange);
+        }
+        if (cancelled) {
+            exchange.cancel(true); // cancel() が一覧を写した後に加わった分
+        }
+        exchange.whenComplete((bytes, error) -> {
+            synchronized (this) {
+                exchanges.remove(exchange);
+            }
+            release();
+            if (error != null) {
+                pending.result.completeExceptionally(error);
+            } else {
+                pending.result.complete(bytes);
+            }
+        });
+    }
+
+    private void release() {
+        Pending next;
+        synchronized (this) {
+            next = cancelled ? null : waiting.poll(); // 中断後の待機分は cancel() が片付ける
+            if (next == null) {
+                running--;
+                return;
+            }
+        }
+        launch(next); // 空いた枠をそのまま次の区間に渡す
+    }
+
+    /** 通信中の区間を中断し、待機中の区間は送らずに終わらせます。 */
+    void cancel() {
+        List<CompletableFuture<byte[]>> inFlight;
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            inFlight = new ArrayList<>(exchanges);
+        }
+        System.out.println("LongFormGenerator: Cancelling " + inFlight.size() + " in-flight window(s).");
+        for (CompletableFuture<byte[]> exchange : inFlight) {
+            exchange.cancel(true);
+        }
+        Pending next;
+        while ((next = pollWaiting()) != null) {
+            next.result.cancel(false); // 枠を持っていないので release() しない
+        }
+    }
+
+    private synchronized Pending pollWaiting() {
+        return waiting.poll();
+    }
+}
@@ -4,6 +4,7 @@ import javax.sound.midi.*;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -98,6 +99,24 @@ public class MidiHandler {
     }
 
     public static void saveMidiFile(File file, List<Note> notes, int ppqn, float tempo, String instrument) throws InvalidMidiDataException, IOException {
+        Sequence sequence = buildSequence(notes, 0, ppqn, tempo, instrument);
+        MidiSystem.write(sequence, MidiSystem.getMidiFileTypes(sequence)[0], file);
+    }
+
+    /**
+     * saveMidiFile と同じ内容のSMFを、ファイルを介さずストリームに書き出します (生成リクエストの本文用)。
+     * @param tickOffset 各ノートの開始位置から引く Tick (範囲の先頭を 0 にするため。ノートのコピーを作らずに済む)
+     */
+    public static void writeMidi(OutputStream out, List<Note> notes, long tickOffset, int ppqn, float tempo, String instrument) throws IOException {
+        try {
+            Sequence sequence = buildSequence(notes, tickOffset, ppqn, tempo, instrument);
+            MidiSystem.write(sequence, MidiSystem.getMidiFileTypes(sequence)[0], out);
+        } catch (InvalidMidiDataException e) {
+            throw new IOException("Failed to encode MIDI: " + e.getMessage(), e);
+        }
+    }
+
+    private static Sequence buildSequence(List<Note> notes, long tickOffset, int ppqn, float tempo, String instrument) throws InvalidMidiDataException {
         Sequence sequence = new Sequence(Sequence.PPQ, ppqn);
         javax.sound.midi.Track track = sequence.createTrack();
 
@@ -134,19 +153,37 @@ public class MidiHandler {
                 ShortMessage noteOn = new ShortMessage();
                 // Ensure everything is on Channel 0 to match Program Change channel
                 noteOn.setMessage(ShortMessage.NOTE_ON, 0, note.getPitch(), note.getVelocity());
-                track.add(new MidiEvent(noteOn, note.getStartTimeTicks()));
+                track.add(new MidiEvent(noteOn, note.getStartTimeTicks() - tickOffset));
 
                 ShortMessage noteOff = new ShortMessage();
                 noteOff.setMessage(ShortMessage.NOTE_OFF, 0, note.getPitch(), 0); // Velocity 0 for NOTE_OFF
-                track.add(new MidiEvent(noteOff, note.getStartTimeTicks() + note.getDurationTicks()));
+                track.add(new MidiEvent(noteOff, note.getStartTimeTicks() - tickOffset + note.getDurationTicks()));
             } catch (InvalidMidiDataException e) {
                 System.err.println("Error creating MIDI message for note: " + note);
             }
         }
-        MidiSystem.write(sequence, MidiSystem.getMidiFileTypes(sequence)[0], file);
+        return sequence;
     }
 
     public static void saveConditionsMidiFile(File file, List<Note> notes, int ppqn, float tempo) throws InvalidMidiDataException, IOException {
+        Sequence sequence = buildConditionsSequence(notes, 0, ppqn, tempo);
+        MidiSystem.write(sequence, MidiSystem.getMidiFileTypes(sequence)[0], file);
+    }
+
+    /**
+     * saveConditionsMidiFile と同じ内容のSMFをストリームに書き出します。
+     * @param tickOffset 各ノートの開始位置から引く Tick
+     */
+    public static void writeConditionsMidi(OutputStream out, List<Note> notes, long tickOffset, int ppqn, float tempo) throws IOException {
+        try {
+            Sequence sequence = buildConditionsSequence(notes, tickOffset, ppqn, tempo);
+            MidiSystem.write(sequence, MidiSystem.getMidiFileTypes(sequence)[0], out);
+        } catch (InvalidMidiDataException e) {
+            throw new IOException("Failed to encode MIDI: " + e.getMessage(), e);
+        }
+    }
+
+    private static Sequence buildConditionsSequence(List<Note> notes, long tickOffset, int ppqn, float tempo) throws InvalidMidiDataException {
         Sequence sequence = new Sequence(Sequence.PPQ, ppqn);
         javax.sound.midi.Track track = sequence.createTrack();
 
@@ -184,16 +221,16 @@ public class MidiHandler {
                 
                 ShortMessage noteOn = new ShortMessage();
                 noteOn.setMessage(ShortMessage.NOTE_ON, ch, note.getPitch(), note.getVelocity());
-                track.add(new MidiEvent(noteOn, note.getStartTimeTicks()));
+                track.add(new MidiEvent(noteOn, note.getStartTimeTicks() - tickOffset));
 
                 ShortMessage noteOff = new ShortMessage();
                 noteOff.setMessage(ShortMessage.NOTE_OFF, ch, note.getPitch(), 0);
-                track.add(new MidiEvent(noteOff, note.getStartTimeTicks() + note.getDurationTicks()));
+                track.add(new MidiEvent(noteOff, note.getStartTimeTicks() - tickOffset + note.getDurationTicks()));
             } catch (InvalidMidiDataException e) {
                 System.err.println("Error creating MIDI message for note: " + note);
             }
         }
-        MidiSystem.write(sequence, MidiSystem.getMidiFileTypes(sequence)[0], file);
+        return sequence;
     }
 
     public static MidiData loadMidiFromBytes(byte[] midiBytes) throws InvalidMidiDataException, IOException {
@@ -335,6 +372,20 @@ public class MidiHandler {
         return trackList;
     }
 
+    /**
+     * トラックの楽器名に対応する GM プログラム番号を返します (未対応の楽器はピアノ)。
+     */
+    public static int getProgramForInstrument(String instrument) {
+        if ("SAX".equalsIgnoreCase(instrument)) {
+            return 65;
+        } else if ("BASS".equalsIgnoreCase(instrument)) {
+            return 32;
+        } else if ("VIOLIN".equalsIgnoreCase(instrument)) {
+            return 40;
+        }
+        return 0; // Default to Piano
+    }
+
     public static void saveMidiTracks(File file, List<Track> tracks, int ppqn, float tempo) throws InvalidMidiDataException, IOException {
         Sequence sequence = new Sequence(Sequence.PPQ, ppqn);
         for (int i = 0; i < tracks.size(); i++) {
@@ -365,15 +416,7 @@ public class MidiHandler {
                 }
             }
             
-            int program = 0; // Default to Piano
-            String instrument = appTrack.getInstrument();
-            if ("SAX".equalsIgnoreCase(instrument)) {
-                program = 65;
-            } else if ("BASS".equalsIgnoreCase(instrument)) {
-                program = 32;
-            } else if ("VIOLIN".equalsIgnoreCase(instrument)) {
-                program = 40;
-            }
+            int program = getProgramForInstrument(appTrack.getInstrument());
             
             int channel = i % 16;
             if (channel == 9) { // Skip rhythm/drums channel in GM
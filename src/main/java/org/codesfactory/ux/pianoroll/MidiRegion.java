@@ -11,7 +11,12 @@ public class MidiRegion implements Serializable {
     private long endTick;
 
     public MidiRegion(long startTick, long endTick) {
-        this.id = UUID.randomUUID().toString();
+        this(UUID.randomUUID().toString(), startTick, endTick);
+    }
+
+    /** 既存のIDでリージョンを作り直します (編集ジャーナルからの復元用)。 */
+    public MidiRegion(String id, long startTick, long endTick) {
+        this.id = id;
         this.startTick = startTick;
         this.endTick = endTick;
     }
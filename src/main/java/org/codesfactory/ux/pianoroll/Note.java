@@ -1,9 +1,19 @@
 package org.codesfactory.ux.pianoroll;
 
 import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * ピアノロールの1ノート。
+ * ID はプロセスごとに 1 から採番する、このプロセス内でだけ一意な値です。別のプロセスで作ったノートの ID とは
+ * 重なりうるので、ファイルに残した ID を読み戻すときは {@link #restore} (編集ジャーナル) かデシリアライズを通し、
+ * 採番をその先へ進めてから使います。
+ */
 public class Note implements Serializable {
     private static final long serialVersionUID = 1L;
+    private static final AtomicLong NEXT_ID = new AtomicLong(1);
+
+    private final long id;      // プロセス内で一意なID (同一性と、編集ジャーナルでのノートの特定に使う)
     private int pitch;          // MIDIノート番号 (0-127)
     private long startTimeTicks; // 開始時間 (Tick単位)
     private long durationTicks;  // 音の長さ (Tick単位)
@@ -11,6 +21,11 @@ public class Note implements Serializable {
     private int channel;        // MIDIチャンネル (0-15)
 
     public Note(int pitch, long startTimeTicks, long durationTicks, int velocity, int channel) {
+        this(NEXT_ID.getAndIncrement(), pitch, startTimeTicks, durationTicks, velocity, channel);
+    }
+
+    private Note(long id, int pitch, long startTimeTicks, long durationTicks, int velocity, int channel) {
+        this.id = id;
         this.pitch = pitch;
         this.startTimeTicks = startTimeTicks;
         this.durationTicks = durationTicks;
@@ -18,6 +33,19 @@ public class Note implements Serializable {
         this.channel = channel;
     }
 
+    /**
+     * 記録したIDのままノートを作り直します (編集ジャーナルからの復元や、{@link NoteDiff} の変更の適用用)。
+     * 以後に作るノートと重ならないよう、IDの採番をその先へ進めます。
+     */
+    public static Note restore(long id, int pitch, long startTimeTicks, long durationTicks, int velocity, int channel) {
+        NEXT_ID.accumulateAndGet(id + 1, Math::max);
+        return new Note(id, pitch, startTimeTicks, durationTicks, velocity, channel);
+    }
+
+    public long getId() {
+        return id;
+    }
+
     public int getPitch() {
         return pitch;
     }
@@ -58,10 +86,30 @@ public class Note implements Serializable {
         this.channel = channel;
     }
 
+    /** デシリアライズしたノートの ID と、以後に作るノートの ID が重ならないようにします。 */
+    private Object readResolve() {
+        NEXT_ID.accumulateAndGet(id + 1, Math::max);
+        return this;
+    }
+
+    /** IDが同じなら同じノート (値が変わっていても) として扱います。 */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Note)) return false;
+        return id == ((Note) o).id;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(id);
+    }
+
     @Override
     public String toString() {
         return "Note{" +
-                "pitch=" + pitch +
+                "id=" + id +
+                ", pitch=" + pitch +
                 ", startTimeTicks=" + startTimeTicks +
                 ", durationTicks=" + durationTicks +
                 ", velocity=" + velocity +
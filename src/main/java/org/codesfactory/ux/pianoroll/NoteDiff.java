@@ -0,0 +1,242 @@
+package org.codesfactory.ux.pianoroll;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * ノート列の2つの版を比べて、追加・削除・変更されたノートの変更セットを求める差分エンジン。
+ *
+ * 版は {@link Snapshot} (ノートの値をID順のプリミティブ配列に写したもの) で表し、
+ * 2つのスナップショットをID順にマージするように1回走査するだけで O(n) で比較します。
+ * リスト全体をコピーして持ち回る代わりに、スナップショットと変更セットを Undo の圧縮・再生中の差し替え・
+ * 自動保存の差分・生成結果のプレビューなどで使い回せます。
+ */
+public final class NoteDiff {
+
+    private NoteDiff() {
+    }
+
+    /**
+     * ある時点のノート列の値を、ID順に並べた不変のスナップショット。1ノートあたり28バイトです。
+     */
+    public static final class Snapshot {
+        private static final Snapshot EMPTY = new Snapshot(0);
+
+        final long[] ids;
+        final long[] starts;
+        final long[] durations;
+        final int[] packed; // pitch | velocity << 8 | channel << 16
+
+        private Snapshot(int size) {
+            ids = new long[size];
+            starts = new long[size];
+            durations = new long[size];
+            packed = new int[size];
+        }
+
+        /**
+         * ノート列のスナップショットを作ります。ノートはほぼ作成順 (=ID順) に並んでいることが多いので、
+         * 並べ替えは既に整列しているかを確かめてから必要な場合だけ行います。
+         */
+        public static Snapshot of(List<Note> notes) {
+            Note[] ordered = notes.toArray(new Note[0]);
+            if (!isSortedById(ordered)) {
+                Arrays.sort(ordered, Comparator.comparingLong(Note::getId));
+            }
+            Snapshot snapshot = new Snapshot(ordered.length);
+            for (int i = 0; i < ordered.length; i++) {
+                snapshot.set(i, ordered[i]);
+            }
+            return snapshot;
+        }
+
+        public int size() {
+            return ids.length;
+        }
+
+        public long getId(int i) {
+            return ids[i];
+        }
+
+        /** i 番目の値を持つノートを、同じIDで作ります。 */
+        public Note toNote(int i) {
+            return Note.restore(ids[i], packed[i] & 0xFF, starts[i], durations[i], (packed[i] >>> 8) & 0xFF, (packed[i] >>> 16) & 0xFF);
+        }
+
+        /** ID が id の要素の位置。無ければ負の値。 */
+        int indexOf(long id) {
+            return Arrays.binarySearch(ids, id);
+        }
+
+        private void set(int i, Note note) {
+            ids[i] = note.getId();
+            starts[i] = note.getStartTimeTicks();
+            durations[i] = note.getDurationTicks();
+            packed[i] = (note.getPitch() & 0xFF) | (note.getVelocity() & 0xFF) << 8 | (note.getChannel() & 0xFF) << 16;
+        }
+
+        private boolean sameValues(int i, Snapshot other, int j) {
+            return starts[i] == other.starts[j] && durations[i] == other.durations[j] && packed[i] == other.packed[j];
+        }
+
+        private void copyInto(int i, Note note) {
+            note.setStartTimeTicks(starts[i]);
+            note.setDurationTicks(durations[i]);
+            note.setPitch(packed[i] & 0xFF);
+            note.setVelocity((packed[i] >>> 8) & 0xFF);
+            note.setChannel((packed[i] >>> 16) & 0xFF);
+        }
+
+        private static Snapshot select(Snapshot source, int[] indexes, int count) {
+            Snapshot selected = new Snapshot(count);
+            for (int k = 0; k < count; k++) {
+                int i = indexes[k];
+                selected.ids[k] = source.ids[i];
+                selected.starts[k] = source.starts[i];
+                selected.durations[k] = source.durations[i];
+                selected.packed[k] = source.packed[i];
+            }
+            return selected;
+        }
+
+        private static boolean isSortedById(Note[] notes) {
+            for (int i = 1; i < notes.length; i++) {
+                if (notes[i - 1].getId() > notes[i].getId()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * 2つの版の間の変更。各要素はID順のスナップショットです。
+     * 変更 (modified) は同じIDのノートの変更前と変更後の値を、同じ位置に持ちます。
+     */
+    public static final class ChangeSet {
+        private final Snapshot added;
+        private final Snapshot removed;
+        private final Snapshot modifiedBefore;
+        private final Snapshot modifiedAfter;
+
+        private ChangeSet(Snapshot added, Snapshot removed, Snapshot modifiedBefore, Snapshot modifiedAfter) {
+            this.added = added;
+            this.removed = removed;
+            this.modifiedBefore = modifiedBefore;
+            this.modifiedAfter = modifiedAfter;
+        }
+
+        public Snapshot getAdded() {
+            return added;
+        }
+
+        public Snapshot getRemoved() {
+            return removed;
+        }
+
+        public Snapshot getModifiedBefore() {
+            return modifiedBefore;
+        }
+
+        public Snapshot getModifiedAfter() {
+            return modifiedAfter;
+        }
+
+        public boolean isEmpty() {
+            return added.size() == 0 && removed.size() == 0 && modifiedAfter.size() == 0;
+        }
+
+        /** 変更されたノートの総数 (追加 + 削除 + 変更)。 */
+        public int size() {
+            return added.size() + removed.size() + modifiedAfter.size();
+        }
+
+        /** 逆向きの変更セット (新しい版から古い版へ戻す変更)。 */
+        public ChangeSet inverse() {
+            return new ChangeSet(removed, added, modifiedAfter, modifiedBefore);
+        }
+
+        /**
+         * 古い版の状態のリストに変更を適用して新しい版にします。
+         * 変更されたノートはその場で値を書き換え (インスタンスは同じまま)、削除は1回の走査で取り除き、
+         * 追加分は同じIDのノートとして末尾に足します。全体で O(n + k log k) です。
+         */
+        public void applyTo(List<Note> notes) {
+            int write = 0;
+            int size = notes.size();
+            for (int read = 0; read < size; read++) {
+                Note note = notes.get(read);
+                if (removed.size() > 0 && removed.indexOf(note.getId()) >= 0) {
+                    continue;
+                }
+                if (modifiedAfter.size() > 0) {
+                    int m = modifiedAfter.indexOf(note.getId());
+                    if (m >= 0) {
+                        modifiedAfter.copyInto(m, note);
+                    }
+                }
+                notes.set(write++, note);
+            }
+            notes.subList(write, size).clear();
+            List<Note> created = new ArrayList<>(added.size());
+            for (int i = 0; i < added.size(); i++) {
+                created.add(added.toNote(i));
+            }
+            notes.addAll(created);
+        }
+
+        @Override
+        public String toString() {
+            return "ChangeSet{added=" + added.size() + ", removed=" + removed.size() + ", modified=" + modifiedAfter.size() + '}';
+        }
+    }
+
+    /** 2つのリストを比べます (それぞれのスナップショットを作ってから比較します)。 */
+    public static ChangeSet diff(List<Note> before, List<Note> after) {
+        return diff(Snapshot.of(before), Snapshot.of(after));
+    }
+
+    /**
+     * 2つのスナップショットの変更セットを求めます。ID順の配列を先頭から同時にたどるので O(n) です。
+     */
+    public static ChangeSet diff(Snapshot before, Snapshot after) {
+        int[] addedIdx = new int[after.size()];
+        int[] removedIdx = new int[before.size()];
+        int[] modifiedBeforeIdx = new int[Math.min(before.size(), after.size())];
+        int[] modifiedAfterIdx = new int[modifiedBeforeIdx.length];
+        int addedCount = 0;
+        int removedCount = 0;
+        int modifiedCount = 0;
+        int i = 0;
+        int j = 0;
+        while (i < before.size() && j < after.size()) {
+            long a = before.ids[i];
+            long b = after.ids[j];
+            if (a == b) {
+                if (!before.sameValues(i, after, j)) {
+                    modifiedBeforeIdx[modifiedCount] = i;
+                    modifiedAfterIdx[modifiedCount++] = j;
+                }
+                i++;
+                j++;
+            } else if (a < b) {
+                removedIdx[removedCount++] = i++;
+            } else {
+                addedIdx[addedCount++] = j++;
+            }
+        }
+        while (i < before.size()) {
+            removedIdx[removedCount++] = i++;
+        }
+        while (j < after.size()) {
+            addedIdx[addedCount++] = j++;
+        }
+        return new ChangeSet(
+                addedCount == 0 ? Snapshot.EMPTY : Snapshot.select(after, addedIdx, addedCount),
+                removedCount == 0 ? Snapshot.EMPTY : Snapshot.select(before, removedIdx, removedCount),
+                modifiedCount == 0 ? Snapshot.EMPTY : Snapshot.select(before, modifiedBeforeIdx, modifiedCount),
+                modifiedCount == 0 ? Snapshot.EMPTY : Snapshot.select(after, modifiedAfterIdx, modifiedCount));
+    }
+}
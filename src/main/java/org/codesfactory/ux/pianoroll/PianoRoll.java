@@ -3,11 +3,13 @@
 package org.codesfactory.ux.pianoroll;
 
 import com.formdev.flatlaf.FlatDarkLaf;
-import com.google.gson.Gson;
-import org.codesfactory.api.GenerateMeta;
+import org.codesfactory.api.GenerationRequest;
+import org.codesfactory.api.GenerationScheduler;
 import org.codesfactory.api.ModelInfo;
 import org.codesfactory.api.MozartAPIClient;
 import org.codesfactory.ux.pianoroll.commands.ReplaceNotesCommand;
+import org.codesfactory.ux.pianoroll.playback.AudioEngine;
+import org.codesfactory.ux.pianoroll.playback.MidiInputRecorder;
 
 import javax.swing.*;
 import javax.swing.filechooser.FileNameExtensionFilter;
@@ -20,12 +22,12 @@ import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
 import java.util.stream.Collectors;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
 
 public class PianoRoll extends JFrame {
 
@@ -37,6 +39,9 @@ public class PianoRoll extends JFrame {
     private final JFileChooser fileChooser;
     private JButton playButton;
     private JButton stopButton;
+    private JButton recordButton;
+    private MidiInputRecorder recorder; // 録音中のみ非null
+    private javax.sound.midi.Transmitter recordInput;
     private JButton loopButton;
     private JMenuItem undoItem;
     private JMenuItem redoItem;
@@ -49,6 +54,18 @@ public class PianoRoll extends JFrame {
     private final MozartAPIClient mozartAPIClient;
     private JComboBox<ModelInfo> modelComboBox;
     private JButton generateButton;
+    private JButton cancelGenerationButton;
+    // 実行中の生成リクエスト (EDTからのみ触る)。キャンセル・ウィンドウを閉じた時にHTTP通信ごと中断する
+    private static final int MAX_GENERATIONS_IN_FLIGHT = 2;
+    private final List<CompletableFuture<?>> inFlightGenerations = new ArrayList<>();
+    // 直近の生成で得た候補 (num_gems)。候補の切り替えは同じ範囲への ReplaceNotesCommand 1回で行う
+    private JComboBox<String> candidateComboBox;
+    private List<MidiHandler.MidiData> generationCandidates = Collections.emptyList();
+    private long candidateStartTick;
+    private long candidateEndTick;
+    private boolean updatingCandidates = false;
+    private static boolean prefetchEnabled = false; // 生成後に続きの範囲を先読みするか (ウィンドウ間で共有)
+    private final GenerationPrefetcher prefetcher;
 
     // 音楽生成パラメータの共有保存用スタティック変数（直近の設定を保持）
     private static double lastPValue = 0.95;
@@ -62,6 +79,8 @@ public class PianoRoll extends JFrame {
     private static boolean lastSendThinking = true;
     private static boolean lastUseInstComp = false;
     private static String lastSelectedTargetTrackName = ""; // 直近で考慮した他トラック名
+    private static int lastNumCandidates = 1;
+    private static boolean lastReplayCache = false;
 
     private File currentFile = null;
 
@@ -88,6 +107,7 @@ public class PianoRoll extends JFrame {
                 if (onCloseCallback != null) {
                     onCloseCallback.run();
                 }
+                stopRecording();
                 if (playbackManager != null) {
                     playbackManager.close();
                 }
@@ -101,9 +121,14 @@ public class PianoRoll extends JFrame {
         pianoRollView = new PianoRollView(this);
         playbackManager = new PlaybackManager(pianoRollView);
         mozartAPIClient = new MozartAPIClient();
+        prefetcher = new GenerationPrefetcher(mozartAPIClient);
 
         // Bind shared notes list from parent track
         pianoRollView.setNotesList(track.getNotes());
+        if (parentFrame != null) {
+            // このウィンドウの編集もアレンジメントの編集ジャーナルに記録する
+            pianoRollView.getUndoManager().setHistoryListener(parentFrame.newHistoryListener());
+        }
 
         // Setup UI components
         scrollPane = new JScrollPane(pianoRollView);
@@ -204,6 +229,7 @@ public class PianoRoll extends JFrame {
         pianoRollView = new PianoRollView(this);
         playbackManager = new PlaybackManager(pianoRollView);
         mozartAPIClient = new MozartAPIClient();
+        prefetcher = new GenerationPrefetcher(mozartAPIClient);
 
         // Setup UI components
         scrollPane = new JScrollPane(pianoRollView);
@@ -284,8 +310,19 @@ public class PianoRoll extends JFrame {
         stopButton.setFont(iconFont);
         stopButton.setToolTipText("Stop and Reset");
         stopButton.setFocusPainted(false);
-        stopButton.addActionListener(e -> playbackManager.stop());
+        stopButton.addActionListener(e -> {
+            stopRecording();
+            playbackManager.stop();
+        });
         toolBar.add(stopButton);
+        toolBar.add(Box.createHorizontalStrut(5));
+
+        recordButton = new JButton("●");
+        recordButton.setFont(iconFont);
+        recordButton.setToolTipText("Record from MIDI keyboard");
+        recordButton.setFocusPainted(false);
+        recordButton.addActionListener(e -> toggleRecording());
+        toolBar.add(recordButton);
         toolBar.add(Box.createHorizontalStrut(10));
 
         toolBar.add(Box.createHorizontalStrut(15));
@@ -334,6 +371,37 @@ public class PianoRoll extends JFrame {
         generateButton.setEnabled(false);
         generateButton.addActionListener(e -> generateMusic(true));
         toolBar.add(generateButton);
+        toolBar.add(Box.createHorizontalStrut(3));
+
+        cancelGenerationButton = new JButton("✖");
+        cancelGenerationButton.setToolTipText("Cancel Generation (Esc)");
+        cancelGenerationButton.setFocusPainted(false);
+        cancelGenerationButton.setEnabled(false);
+        cancelGenerationButton.addActionListener(e -> cancelGenerations());
+        toolBar.add(cancelGenerationButton);
+        toolBar.add(Box.createHorizontalStrut(3));
+
+        candidateComboBox = new JComboBox<>();
+        candidateComboBox.setToolTipText("Switch Generated Candidate");
+        candidateComboBox.setMaximumSize(new Dimension(110, 26));
+        candidateComboBox.setVisible(false);
+        candidateComboBox.addActionListener(e -> {
+            if (!updatingCandidates) {
+                applyCandidate(candidateComboBox.getSelectedIndex());
+            }
+        });
+        toolBar.add(candidateComboBox);
+
+        // Esc: 実行中の生成をキャンセル
+        getRootPane().getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW).put(
+                KeyStroke.getKeyStroke(KeyEvent.VK_ESCAPE, 0), "cancelGeneration"
+        );
+        getRootPane().getActionMap().put("cancelGeneration", new AbstractAction() {
+            @Override
+            public void actionPerformed(java.awt.event.ActionEvent e) {
+                cancelGenerations();
+            }
+        });
 
         // Right alignment Glue
         toolBar.add(Box.createHorizontalGlue());
@@ -462,6 +530,19 @@ public class PianoRoll extends JFrame {
         editMenu.add(localDeleteAllItem);
         menuBar.add(editMenu);
 
+        // Generate Menu
+        JMenu generateMenu = new JMenu("Generate");
+        JCheckBoxMenuItem prefetchItem = new JCheckBoxMenuItem("Prefetch Next Section", prefetchEnabled);
+        prefetchItem.setToolTipText("After a generation, generate the following section in the background");
+        prefetchItem.addActionListener(e -> {
+            prefetchEnabled = prefetchItem.isSelected();
+            if (!prefetchEnabled) {
+                prefetcher.invalidate();
+            }
+        });
+        generateMenu.add(prefetchItem);
+        menuBar.add(generateMenu);
+
         return menuBar;
     }
 
@@ -469,14 +550,13 @@ public class PianoRoll extends JFrame {
 
     public void togglePlayback() {
         if (playbackManager.isPlaying()) {
+            stopRecording(); // 一時停止したら録音も確定させる
             playbackManager.pause();
         } else {
-            long savedTick = 0;
-            if (playbackManager.getSequencer() != null) {
-                savedTick = playbackManager.getSequencer().getTickPosition();
-            }
+            long savedTick = playbackManager.getTickPosition();
 
-            List<Note> notesForPlayback = pianoRollView.getAllNotes();
+            // コピーではなく編集中のリストを渡し、再生中の編集は onNotesEdited() で反映する
+            List<Note> notesForPlayback = pianoRollView.getNotesList();
             if (notesForPlayback.isEmpty()) {
                 infoLabel.setText("Add some notes to play.");
                 return;
@@ -488,12 +568,76 @@ public class PianoRoll extends JFrame {
 
             // Always load the latest notes before playing
             playbackManager.loadNotes(notesForPlayback, pianoRollView.getPpqn());
+            syncPlaybackLoop();
 
             playbackManager.setTickPosition(savedTick);
             playbackManager.play();
         }
     }
 
+    // --- Recording ---
+
+    public void toggleRecording() {
+        if (recorder != null) {
+            stopRecording();
+            playbackManager.pause();
+        } else {
+            startRecording();
+        }
+    }
+
+    /**
+     * MIDIキーボードからの録音を開始します。再生が止まっていれば現在位置から再生を始め、
+     * 録音したノートは停止時に1つの Undo 単位としてこのトラックに追加されます。
+     */
+    private void startRecording() {
+        try {
+            recordInput = MidiInputRecorder.openDefaultTransmitter();
+        } catch (javax.sound.midi.MidiUnavailableException e) {
+            System.err.println("PianoRoll: No MIDI input device: " + e.getMessage());
+            JOptionPane.showMessageDialog(this, "No MIDI input device found.", "Record", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+        if (!playbackManager.isPlaying()) {
+            togglePlayback();
+        }
+        recorder = new MidiInputRecorder(playbackManager.getTempoMap(), playbackManager.getTickPosition(), System.nanoTime());
+        recorder.start(recordInput);
+        recordButton.setForeground(Color.RED);
+        infoLabel.setText("Recording...");
+    }
+
+    private void stopRecording() {
+        if (recorder == null) {
+            return;
+        }
+        List<Note> recordedNotes = recorder.stop();
+        recorder = null;
+        if (recordInput != null) {
+            recordInput.close();
+            recordInput = null;
+        }
+        recordButton.setForeground(null);
+        if (!recordedNotes.isEmpty()) {
+            // 1テイク = 1コマンド (Undo で丸ごと取り消せる)。再生への反映は onNotesEdited() 経由
+            pianoRollView.getUndoManager().executeCommand(
+                    new ReplaceNotesCommand(pianoRollView, pianoRollView.getNotesList(), new ArrayList<>(), recordedNotes));
+        }
+        infoLabel.setText("Recorded " + recordedNotes.size() + " notes.");
+    }
+
+    /**
+     * PianoRollView のノートがコマンド経由で編集されたときに呼ばれます。
+     * 再生を止めずにスケジューラのノートを差し替え、アレンジメント側にも伝えます。
+     */
+    public void onNotesEdited() {
+        prefetcher.invalidate(); // 文脈が変わったので先読みの結果はもう使えない
+        playbackManager.refreshNotes();
+        if (parentFrame != null) {
+            parentFrame.onTrackNotesEdited();
+        }
+    }
+
     public void setPlaybackTickPosition(long tick) {
         if (playbackManager != null) {
             playbackManager.setTickPosition(tick);
@@ -502,6 +646,14 @@ public class PianoRoll extends JFrame {
 
     // --- Public Methods Called by Other Classes ---
 
+    /** このウィンドウの Undo/Redo 履歴を破棄します (アレンジメント側で編集ジャーナルをさかのぼった後など)。 */
+    public void clearHistory() {
+        if (pianoRollView != null) {
+            pianoRollView.getUndoManager().clearStacks();
+        }
+        updateUndoRedoMenuItems(false, false);
+    }
+
     public void updateUndoRedoMenuItems(boolean canUndo, boolean canRedo) {
         if (undoItem == null || redoItem == null) return;
         SwingUtilities.invokeLater(() -> {
@@ -564,7 +716,20 @@ public class PianoRoll extends JFrame {
         }
     }
 
+    /**
+     * PianoRollView に表示している範囲をループ再生範囲として PlaybackManager に反映します。
+     */
+    private void syncPlaybackLoop() {
+        if (playbackManager == null || pianoRollView == null) return;
+        if (pianoRollView.isLoopRangeVisible()) {
+            playbackManager.setLoop(pianoRollView.getLoopStartTick(), pianoRollView.getLoopEndTick());
+        } else {
+            playbackManager.clearLoop();
+        }
+    }
+
     public void updateLoopButtonText() {
+        syncPlaybackLoop();
         SwingUtilities.invokeLater(() -> {
             if (loopButton != null && pianoRollView != null) {
                 loopButton.setSelected(pianoRollView.isLoopRangeVisible());
@@ -695,7 +860,7 @@ public class PianoRoll extends JFrame {
 
                 MidiHandler.MidiData midiData = MidiHandler.loadMidiFile(file);
                 pianoRollView.loadNotes(selectedTrackInfo.notes, midiData.ppqn, midiData.totalTicks);
-                playbackManager.loadNotes(pianoRollView.getAllNotes(), pianoRollView.getPpqn());
+                playbackManager.loadNotes(pianoRollView.getNotesList(), pianoRollView.getPpqn());
                 playbackManager.setTempo(midiData.tempo);
                 updateTempoField();
                 currentFile = file;
@@ -827,11 +992,37 @@ public class PianoRoll extends JFrame {
             return;
         }
 
+        GenerationRequests.Setup setup = prepareSetup(selectedModel.getModelName(), startTick, endTick, showDialog);
+        if (setup == null) {
+            return; // User cancelled
+        }
+        if ((endTick - startTick) / ((long) pianoRollView.getPpqn() * pianoRollView.getBeatsPerMeasure()) > GenerationRequests.MAX_GENFIELD_MEASURES) {
+            // 1回の生成の上限 (8小節) を超える範囲は区間に分けて生成する
+            startLongFormGeneration(setup, startTick, endTick);
+            return;
+        }
+        GenerationRequest request = buildRequest(setup, startTick, endTick);
+
+        // 先読み済みの結果があればそれを使う (内容が違えば先読みは捨てて、この生成を優先する)
+        CompletableFuture<byte[]> exchange = prefetcher.take(request, startTick, endTick);
+        if (exchange == null) {
+            System.out.println("generateMusic: Sending generation request...");
+            exchange = mozartAPIClient.generateAsync(request);
+        }
+        startGeneration(exchange, selectedModel.getModelName(), startTick, endTick);
+    }
+
+    /**
+     * [startTick, endTick) の生成の設定を決めます (モデル・パラメータ・inst_comp の条件ノート)。
+     * showDialog が false なら直近の設定 (last***) をそのまま使います (Ctrl+G と先読み)。
+     * ダイアログでキャンセルされた場合は null を返します。
+     */
+    private GenerationRequests.Setup prepareSetup(String modelName, long startTick, long endTick, boolean showDialog) {
         // --- Past / Future Context Extraction (Max 8 Measures) ---
         int ppqn = pianoRollView.getPpqn();
         int beatsPerMeasure = pianoRollView.getBeatsPerMeasure();
         int ticksPerMeasure = ppqn * beatsPerMeasure;
-        long maxContextTicks = (long) ticksPerMeasure * 8; // 8小節
+        long maxContextTicks = (long) ticksPerMeasure * GenerationRequests.CONTEXT_MEASURES; // 8小節
 
         List<Note> allNotes = pianoRollView.getAllNotes();
 
@@ -879,6 +1070,8 @@ public class PianoRoll extends JFrame {
         int densityValue = lastDensityValue;
         boolean sendThinking = hasContext && lastSendThinking;
         boolean useInstComp = hasConditions && lastUseInstComp;
+        int numCandidates = lastNumCandidates;
+        boolean replayCache = lastReplayCache;
         Track targetTrackForConditions = null;
 
         if (showDialog) {
@@ -1056,9 +1249,21 @@ public class PianoRoll extends JFrame {
                 panel.add(tracksPanel, gbc);
             }
 
+            // Candidates (num_gems): 1回のリクエストで複数の候補を生成し、後から切り替えられる
+            JSpinner candidatesSpinner = new JSpinner(new SpinnerNumberModel(numCandidates, 1, GenerationRequests.MAX_CANDIDATES, 1));
+            gbc.gridy = 8; gbc.gridwidth = 1;
+            gbc.gridx = 0; panel.add(new JLabel("Candidates:"), gbc);
+            gbc.gridx = 1; panel.add(candidatesSpinner, gbc);
+
+            // 同じ設定・同じ前後の文脈での生成はキャッシュの結果を再利用する (サーバーに送らない)
+            JCheckBox replayCacheCheckBox = new JCheckBox("Reuse cached result for identical request");
+            replayCacheCheckBox.setSelected(replayCache);
+            gbc.gridy = 9; gbc.gridx = 0; gbc.gridwidth = 2;
+            panel.add(replayCacheCheckBox, gbc);
+
             int optionResult = JOptionPane.showConfirmDialog(this, panel, "Generation Parameters", JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
             if (optionResult != JOptionPane.OK_OPTION) {
-                return; // User cancelled
+                return null; // User cancelled
             }
 
             // UIから値を取得
@@ -1080,6 +1285,8 @@ public class PianoRoll extends JFrame {
             densityValue = densitySlider.getValue();
             sendThinking = hasContext && thinkingCheckBox.isSelected();
             useInstComp = hasConditions && instCompCheckBox.isSelected();
+            numCandidates = (Integer) candidatesSpinner.getValue();
+            replayCache = replayCacheCheckBox.isSelected();
 
             if (useInstComp) {
                 for (int i = 0; i < candidateTracks.size(); i++) {
@@ -1101,6 +1308,8 @@ public class PianoRoll extends JFrame {
             lastDensityValue = densityValue;
             lastSendThinking = sendThinking;
             lastUseInstComp = useInstComp;
+            lastNumCandidates = numCandidates;
+            lastReplayCache = replayCache;
             if (targetTrackForConditions != null) {
                 lastSelectedTargetTrackName = targetTrackForConditions.getName();
             } else {
@@ -1135,197 +1344,214 @@ public class PianoRoll extends JFrame {
 
 
 
-        final double finalPValue = pValue;
-        final double finalTempValue = tempValue;
-        final boolean finalSendKey = sendKey;
-        final String finalSelectedKey = selectedKey;
-        final boolean finalSendGenre = sendGenre;
-        final List<String> finalSelectedGenres = selectedGenres;
-        final boolean finalSendDensity = sendDensity;
-        final int finalDensityValue = densityValue;
-        final boolean finalSendThinking = sendThinking;
-
-        // --- Set up variables for GenerationWorker ---
-        generateButton.setEnabled(false);
-        infoLabel.setText("Generating music with " + selectedModel.getModelName() + "...");
-        System.out.println("generateMusic: Starting GenerationWorker...");
-
-        class GenerationWorker extends SwingWorker<MidiHandler.MidiData, Void> {
-            private final ModelInfo model;
-            private final long workerStartTick;
-            private final long workerEndTick;
-            private final List<Note> wPastNotes;
-            private final List<Note> wFutureNotes;
-            private final List<Note> wConditionsNotes;
-            private final long wPastStart;
-            private final long wFutureStart;
-            private final boolean useInstComp;
-
-            public GenerationWorker(ModelInfo model, long startTick, long endTick,
-                                    List<Note> pastNotes, List<Note> futureNotes, List<Note> conditionsNotes,
-                                    long pastStart, long futureStart, boolean useInstComp) {
-                this.model = model;
-                this.workerStartTick = startTick;
-                this.workerEndTick = endTick;
-                this.wPastNotes = pastNotes;
-                this.wFutureNotes = futureNotes;
-                this.wConditionsNotes = conditionsNotes;
-                this.wPastStart = pastStart;
-                this.wFutureStart = futureStart;
-                this.useInstComp = useInstComp;
-            }
-
-            @Override
-            protected MidiHandler.MidiData doInBackground() throws Exception {
-                System.out.println("GenerationWorker: doInBackground started.");
-                File tempPastMidiFile = null;
-                File tempFutureMidiFile = null;
-                File tempConditionsMidiFile = null;
-                File tempMetaFile = File.createTempFile("compass-meta-", ".json");
-
-                try {
-                    System.out.println("GenerationWorker: Temporary files created.");
-
-                    String targetInst = linkedTrack.isMonophonic() ? "SAX" : "PIANO";
+        GenerationRequests.Settings settings = new GenerationRequests.Settings(pValue, tempValue,
+                sendKey ? selectedKey : null, sendGenre ? selectedGenres : null, sendDensity ? densityValue : null, sendThinking,
+                numCandidates).cacheReplay(replayCache);
+        String targetInst = linkedTrack.isMonophonic() ? "SAX" : "PIANO";
+        return new GenerationRequests.Setup(modelName, targetInst, settings,
+                useInstComp ? conditionsNotes : Collections.<Note>emptyList());
+    }
 
-                    // 過去コンテキスト保存
-                    if (!wPastNotes.isEmpty()) {
-                        tempPastMidiFile = File.createTempFile("compass-past-", ".mid");
-                        List<Note> shiftedPast = new ArrayList<>();
-                        for (Note n : wPastNotes) {
-                            shiftedPast.add(new Note(n.getPitch(), n.getStartTimeTicks() - wPastStart, n.getDurationTicks(), n.getVelocity(), n.getChannel()));
-                        }
-                        MidiHandler.saveMidiFile(tempPastMidiFile, shiftedPast, pianoRollView.getPpqn(), 120.0f, targetInst);
-                        System.out.println("GenerationWorker: Saved past context with " + wPastNotes.size() + " notes.");
-                    }
+    /**
+     * ダイアログを出さずに生成するときと同じ、直近の生成パラメータ (候補は1つ)。
+     * 文脈が無い場合はキー・ジャンル・密度を必ず送ります。アレンジメント全体の生成などで使います。
+     */
+    static GenerationRequests.Settings lastSettings(boolean hasContext) {
+        return new GenerationRequests.Settings(lastPValue, lastTempValue,
+                !hasContext || lastSendKey ? lastSelectedKey : null,
+                !hasContext || lastSendGenre ? lastSelectedGenres : null,
+                !hasContext || lastSendDensity ? lastDensityValue : null,
+                hasContext && lastSendThinking).cacheReplay(lastReplayCache);
+    }
 
-                    // 未来コンテキスト保存
-                    if (!wFutureNotes.isEmpty()) {
-                        tempFutureMidiFile = File.createTempFile("compass-future-", ".mid");
-                        List<Note> shiftedFuture = new ArrayList<>();
-                        for (Note n : wFutureNotes) {
-                            shiftedFuture.add(new Note(n.getPitch(), n.getStartTimeTicks() - wFutureStart, n.getDurationTicks(), n.getVelocity(), n.getChannel()));
-                        }
-                        MidiHandler.saveMidiFile(tempFutureMidiFile, shiftedFuture, pianoRollView.getPpqn(), 120.0f, targetInst);
-                        System.out.println("GenerationWorker: Saved future context with " + wFutureNotes.size() + " notes.");
-                    }
+    /** [startTick, endTick) を生成するリクエストを、前後8小節のノートを文脈として作ります。 */
+    private GenerationRequest buildRequest(GenerationRequests.Setup setup, long startTick, long endTick) {
+        int ppqn = pianoRollView.getPpqn();
+        int ticksPerMeasure = ppqn * pianoRollView.getBeatsPerMeasure();
+        long maxContextTicks = (long) ticksPerMeasure * GenerationRequests.CONTEXT_MEASURES;
+        List<Note> allNotes = pianoRollView.getAllNotes();
+        long pastStart = Math.max(0, startTick - maxContextTicks);
+        // ノートはリクエスト送信時に直接SMFとして本文へ書き込む (一時ファイルは使わない)
+        return setup.request(ppqn, ticksPerMeasure, startTick, endTick,
+                GenerationRequests.notesIn(allNotes, pastStart, startTick), pastStart,
+                GenerationRequests.notesIn(allNotes, endTick, endTick + maxContextTicks), endTick);
+    }
 
-                    // 条件コンテキスト保存
-                    if (useInstComp && !wConditionsNotes.isEmpty()) {
-                        tempConditionsMidiFile = File.createTempFile("compass-conditions-", ".mid");
-                        List<Note> shiftedConditions = new ArrayList<>();
-                        for (Note n : wConditionsNotes) {
-                            shiftedConditions.add(new Note(n.getPitch(), n.getStartTimeTicks() - workerStartTick, n.getDurationTicks(), n.getVelocity(), n.getChannel()));
-                        }
-                        MidiHandler.saveConditionsMidiFile(tempConditionsMidiFile, shiftedConditions, pianoRollView.getPpqn(), 120.0f);
-                        System.out.println("GenerationWorker: Saved conditions context with " + wConditionsNotes.size() + " notes.");
+    /**
+     * 8小節を超える範囲を {@link LongFormGenerator} で区間に分けて生成し、全体を1回の置き換え (Undo 1回分) で反映します。
+     * 生成中のトラックの編集は結果に含まれません (開始時のノートのコピーを文脈に使います)。
+     */
+    private void startLongFormGeneration(GenerationRequests.Setup setup, long startTick, long endTick) {
+        List<Note> snapshot = new ArrayList<>();
+        for (Note n : pianoRollView.getAllNotes()) {
+            snapshot.add(new Note(n.getPitch(), n.getStartTimeTicks(), n.getDurationTicks(), n.getVelocity(), n.getChannel()));
+        }
+        LongFormGenerator generator = new LongFormGenerator(mozartAPIClient, setup, pianoRollView.getPpqn(), pianoRollView.getBeatsPerMeasure(),
+                snapshot, (completed, total) -> SwingUtilities.invokeLater(() -> {
+                    if (isDisplayable()) {
+                        infoLabel.setText("Generating long-form music... " + completed + "/" + total + " sections (Esc to cancel)");
                     }
+                }));
+        CompletableFuture<List<Note>> generation = generator.generate(startTick, endTick);
+        inFlightGenerations.add(generation);
+        updateGenerationControls();
+        infoLabel.setText("Generating long-form music with " + setup.getModelName() + "... (Esc to cancel)");
+
+        generation.whenComplete((notes, error) -> SwingUtilities.invokeLater(() -> {
+            inFlightGenerations.remove(generation);
+            updateGenerationControls();
+            if (!isDisplayable()) {
+                return;
+            }
+            if (error instanceof CancellationException) {
+                infoLabel.setText("Music generation cancelled.");
+            } else if (error != null) {
+                System.err.println("startLongFormGeneration error: " + error.getMessage());
+                error.printStackTrace();
+                infoLabel.setText("Error during music generation.");
+                JOptionPane.showMessageDialog(PianoRoll.this, "Failed to generate music: " + error.getMessage(), "Generation Error", JOptionPane.ERROR_MESSAGE);
+            } else {
+                showCandidates(Collections.emptyList(), startTick, endTick);
+                // 全区間をまとめて1つの ReplaceNotesCommand で置き換える
+                pianoRollView.replaceRangeWithNotes(startTick, endTick, notes);
+                infoLabel.setText("Long-form music generation complete (" + notes.size() + " notes).");
+            }
+        }));
+    }
 
-                    // meta_jsonの構築 (テンポはAPIとの整合性のために120BPM固定)
-                    String modelType = model.getModelName();
-                    int tempoVal = 120;
+    /**
+     * 送信済みの生成リクエストの完了を待ちます。レスポンスのデコードは通信スレッドで行い、
+     * ノートへの反映だけを EDT で行います。ウィンドウごとの同時実行数は MAX_GENERATIONS_IN_FLIGHT まで。
+     */
+    private void startGeneration(CompletableFuture<byte[]> exchange, String modelName, long startTick, long endTick) {
+        inFlightGenerations.add(exchange);
+        updateGenerationControls();
+        // ほかのウィンドウの生成や先読みが先に並んでいれば、待ち行列の長さも表示する
+        int queued = GenerationScheduler.shared().getMetrics().getQueueDepth();
+        infoLabel.setText("Generating music with " + modelName + "..."
+                + (queued > 0 ? " (" + queued + " request(s) queued)" : "") + " (Esc to cancel)");
+
+        exchange.thenApply(responseBytes -> {
+            System.out.println("startGeneration: API client response received.");
+            try {
+                return GenerationRequests.decodeCandidates(responseBytes);
+            } catch (IOException | javax.sound.midi.InvalidMidiDataException e) {
+                throw new CompletionException(e);
+            }
+        }).whenComplete((candidates, error) -> SwingUtilities.invokeLater(() -> {
+            inFlightGenerations.remove(exchange);
+            updateGenerationControls();
+            if (!isDisplayable()) {
+                return; // ウィンドウが閉じられた後に届いた結果は捨てる
+            }
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            if (cause instanceof CancellationException) {
+                infoLabel.setText("Music generation cancelled.");
+            } else if (cause != null) {
+                System.err.println("startGeneration error: " + cause.getMessage());
+                cause.printStackTrace();
+                infoLabel.setText("Error during music generation.");
+                JOptionPane.showMessageDialog(PianoRoll.this, "Failed to generate music: " + cause.getMessage(), "Generation Error", JOptionPane.ERROR_MESSAGE);
+            } else {
+                showCandidates(candidates, startTick, endTick);
+                applyCandidate(0);
+                infoLabel.setText(candidates.size() > 1
+                        ? "Music generation complete. " + candidates.size() + " candidates (switch in toolbar)."
+                        : "Music generation complete.");
+                prefetchNextSection(modelName, startTick, endTick);
+            }
+        }));
+    }
 
-                    String taskStr = "Meta2MIDI";
-                    if (useInstComp) {
-                        taskStr = "inst_comp";
-                    } else if (tempPastMidiFile != null && tempFutureMidiFile != null) {
-                        taskStr = "infill";
-                    }
+    /**
+     * 先読みが有効なら、生成したばかりの範囲の続き (同じ長さ) を直近の設定で先に生成しておきます。
+     * 対話的な生成が実行中の間は先読みしません。
+     */
+    private void prefetchNextSection(String modelName, long startTick, long endTick) {
+        if (!prefetchEnabled || !inFlightGenerations.isEmpty()) {
+            return;
+        }
+        long nextStart = endTick;
+        long nextEnd = endTick + (endTick - startTick);
+        if (linkedRegion != null && nextEnd > linkedRegion.getEndTick()) {
+            return; // リージョンの外は生成しない
+        }
+        GenerationRequests.Setup setup = prepareSetup(modelName, nextStart, nextEnd, false);
+        if (setup != null) {
+            prefetcher.prefetch(buildRequest(setup, nextStart, nextEnd), nextStart, nextEnd);
+        }
+    }
 
-                    GenerateMeta meta = new GenerateMeta(modelType, Collections.singletonList(targetInst), tempoVal, taskStr);
-                    meta.setP(finalPValue);
-                    meta.setTemperature(finalTempValue);
+    /** 候補の切り替え用コンボボックスを更新します。候補が1つだけなら隠します。 */
+    private void showCandidates(List<MidiHandler.MidiData> candidates, long startTick, long endTick) {
+        generationCandidates = candidates;
+        candidateStartTick = startTick;
+        candidateEndTick = endTick;
+        updatingCandidates = true;
+        try {
+            candidateComboBox.removeAllItems();
+            for (int i = 0; i < candidates.size(); i++) {
+                candidateComboBox.addItem("Candidate " + (i + 1) + "/" + candidates.size());
+            }
+            candidateComboBox.setVisible(candidates.size() > 1);
+        } finally {
+            updatingCandidates = false;
+        }
+        candidateComboBox.getParent().revalidate();
+    }
 
-                    if (finalSendKey) {
-                        meta.setKey(finalSelectedKey);
-                    }
-                    if (finalSendGenre) {
-                        meta.setGenre(finalSelectedGenres);
-                    }
-                    if (finalSendDensity) {
-                        Map<String, Integer> densities = new HashMap<>();
-                        densities.put(targetInst, finalDensityValue);
-                        meta.setGenNoteDense(densities);
-                    }
-                    if (finalSendThinking) {
-                        meta.setThinking(true);
-                    }
+    /**
+     * index 番目の候補を生成範囲に反映します。範囲内のノートを置き換える ReplaceNotesCommand 1回なので、
+     * 候補を切り替えるたびに Undo 1回分の履歴になります。
+     */
+    private void applyCandidate(int index) {
+        if (index < 0 || index >= generationCandidates.size()) {
+            return;
+        }
+        MidiHandler.MidiData candidate = generationCandidates.get(index);
+        // 選択範囲に限定してノートをマージ (PPQNスケーリング対応)。
+        // 1回の生成 = 1つの履歴で、再描画や再生への反映はコミット時に1回だけ行う
+        pianoRollView.getUndoManager().runInTransaction(index == 0 ? "Generate" : "Switch Candidate", () ->
+                pianoRollView.replaceNotesInRange(candidateStartTick, candidateEndTick, candidate.notes, candidate.ppqn));
 
-                    // 生成小節数を設定
-                    int totalTargetTicks = (int) (workerEndTick - workerStartTick);
-                    int measures = totalTargetTicks / ticksPerMeasure;
-                    if (measures < 1) measures = 1;
-                    if (measures > 8) measures = 8;
-                    meta.setGenfieldMeasure(measures);
+        // 再生中のノートは ReplaceNotesCommand 経由の onNotesEdited() で差し替え済み
+        updateTempoField();
+        if (generationCandidates.size() > 1) {
+            infoLabel.setText("Applied candidate " + (index + 1) + " of " + generationCandidates.size() + ".");
+        }
+    }
 
-                    try (FileWriter writer = new FileWriter(tempMetaFile)) {
-                        new Gson().toJson(meta, writer);
-                    }
-                    System.out.println("GenerationWorker: Meta JSON configuration prepared.");
-
-                    System.out.println("GenerationWorker: Calling API client...");
-                    byte[] responseBytes = mozartAPIClient.generate(tempPastMidiFile, tempFutureMidiFile, tempConditionsMidiFile, tempMetaFile);
-                    System.out.println("GenerationWorker: API client response received.");
-
-                    byte[] midiBytes;
-                    if (responseBytes.length > 2 && responseBytes[0] == 0x50 && responseBytes[1] == 0x4B) {
-                        System.out.println("GenerationWorker: ZIP archive detected. Decompressing...");
-                        try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(responseBytes))) {
-                            ZipEntry zipEntry = zis.getNextEntry();
-                            midiBytes = null;
-                            while (zipEntry != null) {
-                                if (!zipEntry.isDirectory() && (zipEntry.getName().toLowerCase().endsWith(".mid") || zipEntry.getName().toLowerCase().endsWith(".midi"))) {
-                                    midiBytes = zis.readAllBytes();
-                                    System.out.println("GenerationWorker: Found generated midi file inside ZIP: " + zipEntry.getName());
-                                    break;
-                                }
-                                zipEntry = zis.getNextEntry();
-                            }
-                            if (midiBytes == null) {
-                                throw new IOException("No MIDI file found inside generated ZIP.");
-                            }
-                        }
-                    } else {
-                        System.out.println("GenerationWorker: Loading raw MIDI response.");
-                        midiBytes = responseBytes;
-                    }
+    /** 実行中の生成をすべてキャンセルします (HTTP通信も中断されます)。 */
+    private void cancelGenerations() {
+        if (inFlightGenerations.isEmpty()) {
+            return;
+        }
+        System.out.println("Cancelling " + inFlightGenerations.size() + " generation(s)...");
+        for (CompletableFuture<?> generation : new ArrayList<>(inFlightGenerations)) {
+            generation.cancel(true);
+        }
+    }
 
-                    return MidiHandler.loadMidiFromBytes(midiBytes);
+    private void updateGenerationControls() {
+        generateButton.setEnabled(inFlightGenerations.size() < MAX_GENERATIONS_IN_FLIGHT && isModelSelectable());
+        cancelGenerationButton.setEnabled(!inFlightGenerations.isEmpty());
+    }
 
-                } finally {
-                    System.out.println("GenerationWorker: Cleaning up temp files...");
-                    if (tempPastMidiFile != null) tempPastMidiFile.delete();
-                    if (tempFutureMidiFile != null) tempFutureMidiFile.delete();
-                    if (tempConditionsMidiFile != null) tempConditionsMidiFile.delete();
-                    if (tempMetaFile != null) tempMetaFile.delete();
-                }
-            }
+    private boolean isModelSelectable() {
+        ModelInfo model = (ModelInfo) modelComboBox.getSelectedItem();
+        return modelComboBox.isEnabled() && model != null && !"MAINTENANCE".equals(model.getModelName());
+    }
 
-            @Override
-            protected void done() {
-                try {
-                    MidiHandler.MidiData generatedData = get();
-                    System.out.println("GenerationWorker: done() successfully retrieved MIDI data.");
-                    
-                    // 選択範囲に限定してノートをマージ (PPQNスケーリング対応)
-                    pianoRollView.replaceNotesInRange(this.workerStartTick, this.workerEndTick, generatedData.notes, generatedData.ppqn);
-                    
-                    // Force playback reload
-                    playbackManager.loadNotes(pianoRollView.getAllNotes(), pianoRollView.getPpqn());
-                    updateTempoField();
-                    infoLabel.setText("Music generation complete.");
-                } catch (Exception e) {
-                    System.err.println("GenerationWorker done() error: " + e.getMessage());
-                    e.printStackTrace();
-                    infoLabel.setText("Error during music generation.");
-                    JOptionPane.showMessageDialog(PianoRoll.this, "Failed to generate music: " + e.getMessage(), "Generation Error", JOptionPane.ERROR_MESSAGE);
-                } finally {
-                    generateButton.setEnabled(true);
-                }
-            }
+    @Override
+    public void dispose() {
+        // 閉じたウィンドウの生成リクエストが接続やスレッドを持ち続けないように中断する
+        if (cancelGenerationButton != null) {
+            cancelGenerations();
         }
-
-        new GenerationWorker(selectedModel, startTick, endTick, pastNotes, futureNotes, conditionsNotes, pastStart, futureStart, useInstComp).execute();
+        if (prefetcher != null) {
+            prefetcher.invalidate();
+        }
+        super.dispose();
     }
 
     // --- Utility ---
@@ -1340,12 +1566,15 @@ public class PianoRoll extends JFrame {
         return this.playbackManager;
     }
 
-    public void updatePlaybackHeadOnly(long tick) {
+    /**
+     * アレンジメント側の再生ヘッドを表示します。PlayheadClock から EDT 上で呼ばれるので、そのまま反映します。
+     */
+    public void updatePlaybackHeadOnly(long tick, boolean playing) {
         if (pianoRollView != null) {
-            SwingUtilities.invokeLater(() -> {
-                pianoRollView.setPlaybackTick(tick);
+            pianoRollView.setPlaybackTick(tick);
+            if (playing) {
                 autoScrollToPlayHead(tick);
-            });
+            }
         }
     }
 
@@ -1462,9 +1691,11 @@ public class PianoRoll extends JFrame {
     // --- Window Closing Logic ---
     private void handleWindowClosing() {
         System.out.println("Window closing...");
+        stopRecording();
         if (playbackManager != null) {
             playbackManager.close();
         }
+        AudioEngine.getInstance().shutdown();
         dispose();
         System.exit(0);
     }
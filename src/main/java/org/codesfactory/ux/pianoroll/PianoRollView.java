@@ -3,6 +3,8 @@
 package org.codesfactory.ux.pianoroll;
 
 import org.codesfactory.ux.pianoroll.commands.*; // コマンド関連をまとめてインポート
+import org.codesfactory.ux.pianoroll.playback.NoteEventIndex;
+import org.codesfactory.ux.pianoroll.playback.ScrubEngine;
 
 import javax.swing.*;
 import java.awt.*;
@@ -57,6 +59,7 @@ public class PianoRollView extends JPanel implements MouseListener, MouseMotionL
     private Point dragStartPoint = null;
     private Note dragNoteOriginal = null; // 単一ノートの移動/リサイズ開始時の状態
     private final List<Note> dragNotesOriginal = new ArrayList<>(); // 複数ノートのオリジナル状態
+    private int lastAuditionPitchDiff = 0; // ドラッグ中に最後に試聴した音高の移動量
     // TODO: 複数ノート移動/リサイズ時の Undo/Redo 対応 (dragNoteOriginal の扱いを要検討)
 
     private enum DragMode {NONE, MOVE, RESIZE_END} // PITCH_ONLY は長押し用
@@ -66,6 +69,7 @@ public class PianoRollView extends JPanel implements MouseListener, MouseMotionL
     private final List<Point> outlinePathPoints = new ArrayList<>(); // 外形描画の軌跡
 
     private boolean isDraggingRuler = false;
+    private ScrubEngine scrubEngine; // ルーラーをドラッグ中 (停止中のみ) のスクラブ試聴
     private boolean isMarqueeSelecting = false; // 範囲(マーキー)選択中フラグ
     private Rectangle marqueeRect = null;
     private Point marqueeStartPoint = null;
@@ -86,6 +90,9 @@ public class PianoRollView extends JPanel implements MouseListener, MouseMotionL
     // --- Other ---
     private final PianoRoll parentFrame; // 親フレームへの参照 (final)
     private final UndoManager undoManager; // Undo/Redo マネージャ (final)
+    private boolean deferringUpdates = false; // トランザクション中はノート情報の更新を溜める
+    private boolean noteInfoPending = false;
+    private Note pendingNoteInfo = null;
 
     // --- Constructor ---
     public PianoRollView(PianoRoll parent) {
@@ -189,6 +196,23 @@ public class PianoRollView extends JPanel implements MouseListener, MouseMotionL
         return new ArrayList<>(this.notes); // 防御的コピーを返す
     }
 
+    /**
+     * 編集対象のノートリストそのもの (コピーではない) を返します。
+     * 再生側がライブ参照し、編集のたびに再ロードせずに済むようにするためのものです。
+     */
+    public List<Note> getNotesList() {
+        return this.notes;
+    }
+
+    /**
+     * コマンドの実行/Undo/Redoでノートが変わったことを親フレームに通知します (再生中のノートを差し替えるため)。
+     */
+    public void notifyNotesEdited() {
+        if (parentFrame != null) {
+            parentFrame.onNotesEdited();
+        }
+    }
+
     public int getPpqn() {
         return ppqn;
     }
@@ -219,18 +243,14 @@ public class PianoRollView extends JPanel implements MouseListener, MouseMotionL
         if (note != null) {
             this.selectedNotesList.add(note);
         }
-        if (parentFrame != null) {
-            parentFrame.updateNoteInfo(note);
-        }
+        publishNoteInfo(note);
         // repaint(); // UndoManagerが最後に呼ぶ
     }
 
     public void clearSelectionAfterCommand() {
         this.selectedNote = null;
         this.selectedNotesList.clear();
-        if (parentFrame != null) {
-            parentFrame.updateNoteInfo(null);
-        }
+        publishNoteInfo(null);
         // repaint();
     }
 
@@ -239,20 +259,41 @@ public class PianoRollView extends JPanel implements MouseListener, MouseMotionL
         if (notesToSelect != null && !notesToSelect.isEmpty()) {
             this.selectedNotesList.addAll(notesToSelect);
             this.selectedNote = notesToSelect.getFirst(); // 代表として最初のノート
-            if (parentFrame != null) {
-                parentFrame.updateNoteInfo(this.selectedNote); // 代表情報を表示
-            }
+            publishNoteInfo(this.selectedNote); // 代表情報を表示
         } else {
             this.selectedNote = null;
-            if (parentFrame != null) {
-                parentFrame.updateNoteInfo(null);
-            }
+            publishNoteInfo(null);
         }
         // repaint();
     }
 
     public void updateNoteInfoForFrame(Note note) {
-        if (parentFrame != null) {
+        publishNoteInfo(note);
+    }
+
+    /**
+     * トランザクション中 (UndoManager#beginTransaction) は、コマンドごとのノート情報の更新を溜めておき、
+     * {@link #flushDeferredUpdates()} で最後の1回だけ反映します。
+     */
+    public void deferUpdates() {
+        deferringUpdates = true;
+    }
+
+    public void flushDeferredUpdates() {
+        deferringUpdates = false;
+        if (noteInfoPending) {
+            noteInfoPending = false;
+            Note note = pendingNoteInfo;
+            pendingNoteInfo = null;
+            publishNoteInfo(note);
+        }
+    }
+
+    private void publishNoteInfo(Note note) {
+        if (deferringUpdates) {
+            pendingNoteInfo = note;
+            noteInfoPending = true;
+        } else if (parentFrame != null) {
             parentFrame.updateNoteInfo(note);
         }
     }
@@ -389,45 +430,18 @@ public class PianoRollView extends JPanel implements MouseListener, MouseMotionL
     }
 
     public void replaceNotesInRange(long startTick, long endTick, List<Note> generatedNotes, int generatedPpqn) {
-        double scale = (double) this.ppqn / generatedPpqn;
-        long measureTicks = (long) generatedPpqn * beatsPerMeasure;
-
-        // Check if there is at least a 1-measure blank in the generated MIDI
-        boolean hasOneMeasureBlank = false;
-        if (!generatedNotes.isEmpty()) {
-            long minStart = generatedNotes.stream()
-                    .mapToLong(Note::getStartTimeTicks)
-                    .min()
-                    .orElse(0);
-            if (minStart >= measureTicks) {
-                hasOneMeasureBlank = true;
-                System.out.println("replaceNotesInRange: Detected 1 measure blank in generated MIDI (" + measureTicks + " ticks). Trimming it.");
-            }
-        }
+        // 生成されたノートの開始時間を startTick 起点に補正し、かつ PPQN 比率でスケーリング
+        List<Note> newNotes = GenerationRequests.placeGenerated(generatedNotes, generatedPpqn, this.ppqn, beatsPerMeasure, startTick);
+        replaceRangeWithNotes(startTick, endTick, newNotes);
+    }
 
+    /** 開始位置が [startTick, endTick) のノートを、newNotes (絶対位置) で置き換えます。1つの ReplaceNotesCommand になります。 */
+    public void replaceRangeWithNotes(long startTick, long endTick, List<Note> newNotes) {
         // 削除対象は指定範囲内のノートのみ
         List<Note> notesToDelete = this.notes.stream()
                 .filter(n -> n.getStartTimeTicks() >= startTick && n.getStartTimeTicks() < endTick)
                 .collect(Collectors.toList());
 
-        // 生成されたノートの開始時間を startTick 起点に補正し、かつ PPQN 比率でスケーリング
-        List<Note> newNotes = new ArrayList<>();
-        for (Note note : generatedNotes) {
-            long adjustedStart = note.getStartTimeTicks();
-            if (hasOneMeasureBlank) {
-                adjustedStart -= measureTicks;
-            }
-            long scaledStart = Math.round(adjustedStart * scale);
-            long scaledDuration = Math.round(note.getDurationTicks() * scale);
-            newNotes.add(new Note(
-                    note.getPitch(),
-                    scaledStart + startTick,
-                    scaledDuration,
-                    note.getVelocity(),
-                    note.getChannel()
-            ));
-        }
-
         // ReplaceNotesCommand を実行
         ReplaceNotesCommand command = new ReplaceNotesCommand(
                 this,
@@ -1081,6 +1095,7 @@ public class PianoRollView extends JPanel implements MouseListener, MouseMotionL
                     if (parentFrame != null) {
                         parentFrame.setPlaybackTickPosition(clickedTick);
                     }
+                    startScrub(clickedTick);
                     System.out.println(String.format("  Playback position set to: %d by Click on ruler.", clickedTick));
                 }
                 // Consume the event to prevent other interactions
@@ -1109,6 +1124,7 @@ public class PianoRollView extends JPanel implements MouseListener, MouseMotionL
                         // 元の状態を保存 (単一および複数選択)
                         dragNoteOriginal = new Note(selectedNote.getPitch(), selectedNote.getStartTimeTicks(), selectedNote.getDurationTicks(), selectedNote.getVelocity(), selectedNote.getChannel());
                         dragNotesOriginal.clear();
+                        lastAuditionPitchDiff = 0;
                         for (Note n : selectedNotesList) {
                             dragNotesOriginal.add(new Note(n.getPitch(), n.getStartTimeTicks(), n.getDurationTicks(), n.getVelocity(), n.getChannel()));
                         }
@@ -1165,6 +1181,10 @@ public class PianoRollView extends JPanel implements MouseListener, MouseMotionL
         longPressTimer.stop(); // ボタンが離されたら長押しタイマー停止
         isLongPress = false;   // 長押しフラグもリセット
         isDraggingRuler = false;
+        if (scrubEngine != null) {
+            scrubEngine.stop();
+            scrubEngine = null;
+        }
 
         // --- マーキー選択モードの終了処理 ---
         if (isMarqueeSelecting) {
@@ -1349,6 +1369,35 @@ public class PianoRollView extends JPanel implements MouseListener, MouseMotionL
         }
     }
 
+    /**
+     * ルーラーのドラッグ開始時にスクラブ試聴を始めます。時間インデックスは再生用に保たれているものを使い、
+     * このノートリストがまだロードされていない場合だけ作ります。
+     * 再生中はトランスポート自体が鳴っているのでスクラブしません。
+     */
+    private void startScrub(long tick) {
+        if (parentFrame == null || parentFrame.getPlaybackManager() == null || parentFrame.getPlaybackManager().isPlaying()) {
+            return;
+        }
+        NoteEventIndex index = parentFrame.getPlaybackManager().getIndexFor(notes);
+        scrubEngine = new ScrubEngine(List.of(index != null ? index : NoteEventIndex.build(notes)));
+        scrubEngine.scrubTo(tick);
+    }
+
+    private void auditionSelectedNotes() {
+        if (parentFrame == null || parentFrame.getPlaybackManager() == null) {
+            return;
+        }
+        if (selectedNotesList.size() == 1) {
+            parentFrame.getPlaybackManager().playNotePreview(selectedNotesList.get(0).getPitch());
+        } else {
+            int[] pitches = new int[selectedNotesList.size()];
+            for (int i = 0; i < pitches.length; i++) {
+                pitches[i] = selectedNotesList.get(i).getPitch();
+            }
+            parentFrame.getPlaybackManager().playChordPreview(pitches);
+        }
+    }
+
     @Override
     public void mouseDragged(MouseEvent e) {
         JScrollPane scrollPane = (JScrollPane) SwingUtilities.getAncestorOfClass(JScrollPane.class, this);
@@ -1360,6 +1409,10 @@ public class PianoRollView extends JPanel implements MouseListener, MouseMotionL
             if (parentFrame != null) {
                 parentFrame.setPlaybackTickPosition(clickedTick);
             }
+            if (scrubEngine != null) {
+                // スナップ前の位置で引くと、グリッドの間にあるノートも拾える
+                scrubEngine.scrubTo(Math.max(0, xToTick(e.getX())));
+            }
             e.consume();
             return;
         }
@@ -1425,6 +1478,12 @@ public class PianoRollView extends JPanel implements MouseListener, MouseMotionL
                     n.setPitch(orig.getPitch() + pitchDiff);
                 }
 
+                // 音高が変わったときだけ試聴 (複数ノートなら和音で)
+                if (pitchDiff != lastAuditionPitchDiff) {
+                    lastAuditionPitchDiff = pitchDiff;
+                    auditionSelectedNotes();
+                }
+
                 if (parentFrame != null) parentFrame.updateNoteInfo(selectedNote);
                 repaint();
             }
@@ -1,143 +1,184 @@
 package org.codesfactory.ux.pianoroll;
 
-import javax.sound.midi.*;
+import org.codesfactory.ux.pianoroll.playback.AudioEngine;
+import org.codesfactory.ux.pianoroll.playback.NoteEventIndex;
+import org.codesfactory.ux.pianoroll.playback.PlaybackSource;
+import org.codesfactory.ux.pianoroll.playback.PlayheadClock;
+import org.codesfactory.ux.pianoroll.playback.PreviewEngine;
+import org.codesfactory.ux.pianoroll.playback.TempoMap;
+import org.codesfactory.ux.pianoroll.playback.Transport;
+
 import javax.swing.SwingUtilities; // ★★★ SwingUtilities をインポート ★★★
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class PlaybackManager {
 
-    private Sequencer sequencer;
-    private Sequence sequence;
-    private Synthesizer synthesizer;
+    // 共有オーディオエンジン上の、このウィンドウ専用のトランスポート
+    private final Transport transport;
+    private boolean startPending = false; // エンジンが開くのを待っている再生要求
     private final PianoRollView pianoRollView;
-    private Thread playbackHeadUpdaterThread;
     private boolean isLoopingEnabled = false; // ★★★ ループ状態を管理するフラグを追加 ★★★
     private float currentBpm = 120.0f; // User specified tempo in BPM
+    private int ppqn = MidiHandler.DEFAULT_PPQN;
+    // トラックID -> スケジューラに渡しているノート供給元
+    private final Map<String, PlaybackSource> sourcesByTrackId = new HashMap<>();
+    private final List<PlaybackSource> sources = new ArrayList<>();
 
     /**
-     * PlaybackManagerのコンストラクタ
+     * PlaybackManagerのコンストラクタ。
+     * シンセサイザーは全ウィンドウで共有する {@link AudioEngine} のものを使うため、ここではオーディオ資源に触れません。
      * @param view 再生ヘッドの更新対象となるPianoRollView
      */
     public PlaybackManager(PianoRollView view) {
         this.pianoRollView = view;
-        try {
-            // Get a sequencer that is not connected to a default device
-            sequencer = MidiSystem.getSequencer(false);
-            if (sequencer == null) {
-                System.err.println("Cannot get a sequencer device.");
-                return;
-            }
-            sequencer.open();
-
-            // Explicitly connect the sequencer to a synthesizer
-            synthesizer = MidiSystem.getSynthesizer();
-            synthesizer.open();
-            Receiver receiver = synthesizer.getReceiver();
-            Transmitter transmitter = sequencer.getTransmitter();
-            transmitter.setReceiver(receiver);
-
-            // Add a listener for the end of the track
-            sequencer.addMetaEventListener(meta -> {
-                if (meta.getType() == 47) { // End of Track meta event
-                    // ★★★ ループ状態を自身のフラグで確認 ★★★
-                    if (!this.isLoopingEnabled) { // ループ中でなければ停止処理
-                        stopAndReset(); // 再生停止とヘッドリセット
-                    } else {
-                        // ループ中の場合、Sequencerが自動でループ開始点に戻る
-                        // 必要であれば再生ヘッド表示を強制的にループ開始点に合わせる？
-                        // updatePlaybackHead(sequencer.getLoopStartPoint());
-                        System.out.println("PlaybackManager: Looping back to " + sequencer.getLoopStartPoint());
-                    }
-                }
-            });
-
-        } catch (MidiUnavailableException e) {
-            System.err.println("MIDI Unavailable: " + e.getMessage());
-            sequencer = null;
+        this.transport = AudioEngine.getInstance().createTransport();
+        if (view != null) {
+            // 再生ヘッドは共通の PlayheadClock が表示フレームごとに通知する (専用スレッドは持たない)
+            addPlayheadListener((tick, playing) -> view.setPlaybackTick(tick));
         }
+
+        // 曲の終端に達したら停止して先頭に戻す (スケジューラスレッドから呼ばれる)
+        transport.setEndOfSequenceListener(() -> SwingUtilities.invokeLater(() -> {
+            if (!this.isLoopingEnabled) {
+                stopAndReset();
+            }
+        }));
     }
 
     /**
      * 再生するノートデータをロードします。
+     * ノートリストは参照として保持されるため、編集後は {@link #refreshNotes()} を呼ぶと再生中でも反映されます。
      * @param notes 再生するノートのリスト (java.util.List<Note>)
      * @param ppqn MIDIシーケンスの解像度 (Pulse Per Quarter Note)
      */
     public void loadNotes(List<Note> notes, int ppqn) {
-        if (sequencer == null) {
-            System.err.println("Sequencer not available, cannot load notes.");
-            return;
+        if (transport.isPlaying()) {
+            stopAndReset();
+        }
+        if (notes == null) {
+            System.out.println("loadNotes: Input notes list is null.");
+            notes = new ArrayList<>();
         }
-        if (sequencer.isRunning()) {
+
+        sourcesByTrackId.clear();
+        sources.clear();
+        sources.add(new PlaybackSource("notes", notes));
+        applySources(ppqn);
+        System.out.println("PlaybackManager: Loaded " + notes.size() + " notes into transport.");
+    }
+
+    /**
+     * アレンジメントの各トラックを、個別のノート供給元としてロードします。
+     * ミュート/ソロはノートの取捨選択ではなく供給元単位の発音可否で表現するため、
+     * 再生中の切り替えも作り直さずに {@link #applyMuteSolo(List)} で即時反映できます。
+     * @param tracks 再生するトラックのリスト (ミュート中のトラックも含めて渡す)
+     * @param ppqn MIDIシーケンスの解像度 (Pulse Per Quarter Note)
+     */
+    public void loadTracks(List<Track> tracks, int ppqn) {
+        if (transport.isPlaying()) {
             stopAndReset();
         }
 
-        try {
-            sequence = new Sequence(Sequence.PPQ, ppqn);
-            javax.sound.midi.Track track = sequence.createTrack();
-
-            // Add tempo event at tick 0 to enforce the current BPM in the sequence itself
-            try {
-                MetaMessage tempoMessage = new MetaMessage();
-                int mspqn = (int)(60000000 / this.currentBpm);
-                byte[] data = new byte[3];
-                data[0] = (byte)((mspqn >> 16) & 0xff);
-                data[1] = (byte)((mspqn >> 8) & 0xff);
-                data[2] = (byte)(mspqn & 0xff);
-                tempoMessage.setMessage(0x51, data, data.length);
-                track.add(new MidiEvent(tempoMessage, 0));
-            } catch (InvalidMidiDataException e) {
-                System.err.println("Error creating tempo event in loadNotes: " + e.getMessage());
-            }
+        sourcesByTrackId.clear();
+        sources.clear();
+        int noteCount = 0;
+        for (Track appTrack : tracks) {
+            PlaybackSource source = new PlaybackSource(appTrack.getId(), appTrack.getNotes());
+            sourcesByTrackId.put(appTrack.getId(), source);
+            sources.add(source);
+            noteCount += appTrack.getNotes().size();
+        }
+        applySources(ppqn);
+        applyMuteSolo(tracks);
+        System.out.println("PlaybackManager: Loaded " + tracks.size() + " tracks (" + noteCount + " notes) into transport.");
+    }
 
-            if (notes != null) {
-                for (Note note : notes) {
-                    try {
-                        ShortMessage noteOn = new ShortMessage(ShortMessage.NOTE_ON, note.getChannel(), note.getPitch(), note.getVelocity());
-                        track.add(new MidiEvent(noteOn, note.getStartTimeTicks()));
-                        ShortMessage noteOff = new ShortMessage(ShortMessage.NOTE_OFF, note.getChannel(), note.getPitch(), 0);
-                        track.add(new MidiEvent(noteOff, note.getStartTimeTicks() + note.getDurationTicks()));
-                    } catch (InvalidMidiDataException e) {
-                        System.err.println("Error creating MIDI message for note: " + note + " - " + e.getMessage());
-                    }
-                }
-            } else {
-                System.out.println("loadNotes: Input notes list is null.");
-            }
+    private void applySources(int ppqn) {
+        this.ppqn = ppqn;
+        transport.setSources(sources);
+        transport.setTempoMap(TempoMap.constant(ppqn, this.currentBpm));
+        transport.seek(0);
+        publishPlaybackHead();
+        clearLoop(); // 新規ロード時はループは無効 (必要なら呼び出し側で setLoop し直す)
+    }
 
-            sequencer.setSequence(sequence);
-            sequencer.setTempoInBPM(this.currentBpm); // Apply BPM after sequence load
-            System.out.println("PlaybackManager: Loaded " + (notes != null ? notes.size() : 0) + " notes into sequence.");
-            sequencer.setTickPosition(0);
-            updatePlaybackHead(0);
-            this.isLoopingEnabled = false; // 新規ロード時はループは無効
+    /**
+     * ロード済みのノートリストが編集されたときに呼び出します。
+     * 時間インデックスを作り直すだけなので、再生中でも止めずに次の先読みから反映されます。
+     */
+    public void refreshNotes() {
+        for (PlaybackSource source : sources) {
+            source.refresh();
+        }
+    }
 
-        } catch (InvalidMidiDataException e) {
-            System.err.println("Error setting MIDI sequence: " + e.getMessage());
+    /**
+     * 指定のノートリストを参照している供給元の時間インデックスを返します (編集のたびに {@link #refreshNotes()} で最新になっています)。
+     * @return そのリストがロードされていなければ null
+     */
+    public NoteEventIndex getIndexFor(List<Note> notes) {
+        for (PlaybackSource source : sources) {
+            if (source.getNotes() == notes) {
+                return source.getIndex();
+            }
         }
+        return null;
     }
 
     /**
-     * 再生を開始します。
+     * トラックのミュート/ソロ状態を再生に反映します。再生中でも停止せずに次のスケジューリング周期で反映されます。
+     * ソロが1つでもあれば「ソロかつ非ミュート」のトラックのみ、無ければ非ミュートのトラックを鳴らします。
+     * @param tracks 現在のトラックのリスト
      */
-    // PlaybackManager.java
+    public void applyMuteSolo(List<Track> tracks) {
+        if (sourcesByTrackId.isEmpty()) {
+            return;
+        }
+        boolean anySolo = tracks.stream().anyMatch(Track::isSoloed);
+        for (Track appTrack : tracks) {
+            PlaybackSource source = sourcesByTrackId.get(appTrack.getId());
+            if (source == null) {
+                continue; // ロード後に追加されたトラック (次回のロードで反映)
+            }
+            boolean audible = anySolo ? (appTrack.isSoloed() && !appTrack.isMuted()) : !appTrack.isMuted();
+            // 無効化されたソースが鳴らしているノートはスケジューラ側で Note Off される
+            transport.setSourceAudible(source, audible);
+        }
+    }
 
+    /**
+     * 再生を開始します。
+     */
     public void play() {
-        if (sequencer != null && sequence != null && !sequencer.isRunning()) {
-            System.out.println("PlaybackManager: Starting playback.");
-            long startTick = sequencer.getTickPosition();
-            updatePlaybackHead(startTick); // 開始位置を即時反映
-
-            sequencer.start();
-            sequencer.setTempoInBPM(this.currentBpm); // Re-apply BPM immediately after start (prevents standard MIDI reset)
-            startPlaybackHeadUpdater();
+        if (!AudioEngine.getInstance().isReady()) {
+            // 初回のみ: エンジンがバックグラウンドで開き終わってから再生を始める
+            if (!startPending) {
+                startPending = true;
+                System.out.println("PlaybackManager: Waiting for audio engine to open...");
+                AudioEngine.getInstance().whenReady(() -> {
+                    if (startPending) {
+                        startPending = false;
+                        play();
+                    }
+                });
+            }
+            return;
+        }
+        if (!sources.isEmpty() && !transport.isPlaying()) {
+            System.out.println("PlaybackManager: Starting playback at tick " + transport.getTickPosition());
+            if (!transport.start()) {
+                return;
+            }
+            publishPlaybackHead();
             // ボタン状態の更新を View 経由で親フレームに依頼
             if (pianoRollView != null) {
                 pianoRollView.updateParentPlayButtonState(true);
             }
-        } else if (sequencer == null) {
-            System.err.println("PlaybackManager: Cannot play, sequencer not available.");
-        } else if (sequence == null) {
-            System.err.println("PlaybackManager: Cannot play, no sequence loaded.");
+        } else if (sources.isEmpty()) {
+            System.err.println("PlaybackManager: Cannot play, no notes loaded.");
         } else {
             System.out.println("PlaybackManager: Already playing.");
         }
@@ -147,23 +188,19 @@ public class PlaybackManager {
      * 再生を停止し、再生位置を先頭に戻します。
      */
     public void stop() {
-        if (sequencer != null) { // isRunning() でなくても停止処理は試みる
-            System.out.println("PlaybackManager: Stopping playback requested.");
-            stopAndReset();
-        } else {
-            System.out.println("PlaybackManager: Sequencer not available.");
-        }
+        System.out.println("PlaybackManager: Stopping playback requested.");
+        stopAndReset(); // isPlaying() でなくても停止処理は試みる
     }
 
     public void pause() {
-        if (sequencer != null && sequencer.isRunning()) {
-            sequencer.stop(); // This effectively pauses playback
-            allNotesOff();
-            stopPlaybackHeadUpdaterThread();
+        startPending = false;
+        if (transport.isPlaying()) {
+            transport.pause(); // 位置を保持したまま停止 (このトランスポートが鳴らしている音だけ止まる)
+            publishPlaybackHead();
             if (pianoRollView != null) {
                 pianoRollView.updateParentPlayButtonState(false);
             }
-            System.out.println("PlaybackManager: Paused at tick " + sequencer.getTickPosition());
+            System.out.println("PlaybackManager: Paused at tick " + transport.getTickPosition());
         }
     }
 
@@ -171,28 +208,13 @@ public class PlaybackManager {
      * 内部的な再生停止処理（ヘッド位置リセットとView更新を含む）
      */
     private void stopAndReset() {
-        this.isLoopingEnabled = false; // 停止時はループも解除
-        if (sequencer != null && sequencer.isRunning()) {
-            sequencer.stop();
-            System.out.println("PlaybackManager: Sequencer stopped.");
-        }
-        allNotesOff();
-        // 再生ヘッド更新スレッドが動いていれば停止を待つ
-        if (playbackHeadUpdaterThread != null && playbackHeadUpdaterThread.isAlive()) {
-            try {
-                playbackHeadUpdaterThread.interrupt();
-                playbackHeadUpdaterThread.join(100);
-                System.out.println("PlaybackManager: Head updater thread stopped.");
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-            }
-        }
-        playbackHeadUpdaterThread = null; // スレッド参照をクリア
-
-        if(sequencer != null){
-            sequencer.setTickPosition(0); // 再生位置を先頭にリセット
+        startPending = false;
+        if (transport.isPlaying()) {
+            transport.pause(); // 共有シンセサイザーなので、他のウィンドウの音は止めない
+            System.out.println("PlaybackManager: Transport stopped.");
         }
-        updatePlaybackHead(0); // Viewの再生ヘッドも0に更新
+        transport.seek(0); // 再生位置を先頭にリセット
+        publishPlaybackHead(); // Viewの再生ヘッドも次のフレームで0に更新
 
         // ★★★ View経由で親フレームのボタン状態更新メソッドを呼び出す ★★★
         if (pianoRollView != null) {
@@ -207,15 +229,14 @@ public class PlaybackManager {
      * @return 再生中であればtrue
      */
     public boolean isPlaying() {
-        return sequencer != null && sequencer.isRunning();
-    }
-
-    public Sequence getSequence() {
-        return sequence;
+        return transport.isPlaying();
     }
 
-    public Sequencer getSequencer() {
-        return sequencer;
+    /**
+     * 現在の再生位置 (Tick) を返します。
+     */
+    public long getTickPosition() {
+        return transport.getTickPosition();
     }
 
     public float getTempo() {
@@ -224,29 +245,27 @@ public class PlaybackManager {
 
     public void setTempo(float bpm) {
         this.currentBpm = bpm;
-        if (sequencer != null) {
-            sequencer.setTempoInBPM(bpm);
-        }
+        transport.setTempoMap(TempoMap.constant(ppqn, bpm));
+    }
+
+    /** 現在のテンポマップ (不変オブジェクト) を返します。 */
+    public TempoMap getTempoMap() {
+        return transport.getTempoMap();
     }
 
     public void setTickPosition(long tick) {
-        if (sequencer != null) {
-            sequencer.setTickPosition(tick);
-            updatePlaybackHead(tick);
-        }
+        transport.seek(tick);
+        publishPlaybackHead();
     }
 
     /**
-     * ループ再生範囲を設定します。
+     * ループ再生範囲を設定します。再生中でも次の先読みから反映され、終端で隙間なく折り返します。
      * @param startTick ループ開始Tick
      * @param endTick ループ終了Tick (このTickは含まれない)
      */
-    // PlaybackManager.java
     public void setLoop(long startTick, long endTick) {
-        this.isLoopingEnabled = false;
-        if (sequencer != null) {
-            sequencer.setLoopCount(0);
-        }
+        this.isLoopingEnabled = endTick > startTick;
+        transport.setLoop(startTick, endTick);
     }
 
     /**
@@ -254,130 +273,65 @@ public class PlaybackManager {
      */
     public void clearLoop() {
         this.isLoopingEnabled = false;
-        if (sequencer != null) {
-            sequencer.setLoopCount(0);
-        }
+        transport.clearLoop();
     }
 
-    /**
-     * 再生ヘッドの位置をViewに通知して更新します。
-     * @param tick 現在のTick位置
-     */
-    private void updatePlaybackHead(long tick) {
-        if (pianoRollView != null) {
-            // ★★★ SwingUtilities.invokeLater を使用 ★★★
-            SwingUtilities.invokeLater(() -> pianoRollView.setPlaybackTick(tick));
-        }
+    public boolean isLoopingEnabled() {
+        return this.isLoopingEnabled;
     }
 
     /**
-     * 再生ヘッドの位置を更新するための別スレッドを開始します。
+     * このトランスポートの再生ヘッドを購読します。リスナーは表示フレームごとに、位置が変わったときだけ EDT 上で呼ばれます。
      */
-    private void startPlaybackHeadUpdater() {
-        if (playbackHeadUpdaterThread != null && playbackHeadUpdaterThread.isAlive()) {
-            System.out.println("PlaybackManager: Head updater thread already running.");
-            return;
-        }
+    public void addPlayheadListener(PlayheadClock.Listener listener) {
+        PlayheadClock.getInstance().addListener(transport, listener);
+    }
 
-        playbackHeadUpdaterThread = new Thread(() -> {
-            System.out.println("PlaybackManager: Head updater thread started.");
-            try {
-                while (sequencer != null && sequencer.isRunning()) {
-                    long currentTick = sequencer.getTickPosition();
-                    updatePlaybackHead(currentTick);
-                    // より正確なスリープ時間 (ただし負荷は上がる可能性)
-                    // long sleepTime = Math.max(5, 30 - (System.currentTimeMillis() % 30));
-                    Thread.sleep(30); // 約33fps
-                }
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                System.out.println("PlaybackManager: Head updater thread interrupted.");
-            } catch (Exception e) { // 予期せぬ例外もキャッチ
-                System.err.println("Error in playback head updater thread: " + e.getMessage());
-                e.printStackTrace();
-            } finally {
-                System.out.println("PlaybackManager: Head updater thread finished.");
-                // スレッド終了時にも最終位置を更新
-                if (sequencer != null) {
-                    updatePlaybackHead(sequencer.getTickPosition());
-                } else {
-                    updatePlaybackHead(0);
-                }
-                playbackHeadUpdaterThread = null; // スレッド参照をクリア
-            }
-        });
-        playbackHeadUpdaterThread.setDaemon(true);
-        playbackHeadUpdaterThread.setName("Playback Head Updater");
-        playbackHeadUpdaterThread.start();
+    public void removePlayheadListener(PlayheadClock.Listener listener) {
+        PlayheadClock.getInstance().removeListener(transport, listener);
     }
 
-    private synchronized void stopPlaybackHeadUpdaterThread() {
-        Thread thread = this.playbackHeadUpdaterThread;
-        if (thread != null && thread.isAlive()) {
-            try {
-                thread.interrupt();
-                thread.join(100);
-                System.out.println("PlaybackManager: Head updater thread stopped.");
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-            }
-        }
-        this.playbackHeadUpdaterThread = null;
+    /**
+     * 再生開始・停止・シークを再生ヘッドのクロックに知らせます。実際の通知は次の表示フレームでまとめて行われます。
+     */
+    private void publishPlaybackHead() {
+        PlayheadClock.getInstance().wake();
     }
 
     /**
-     * Sequencerリソースを解放します。アプリケーション終了時に呼び出されるべきです。
+     * このウィンドウのトランスポートを解放します。共有のオーディオエンジンは閉じません
+     * (アプリケーション終了時に {@link AudioEngine#shutdown()} で閉じます)。
      */
     public void close() {
         System.out.println("PlaybackManager: Closing...");
         stopAndReset(); // 停止処理を呼ぶ
-        if (sequencer != null && sequencer.isOpen()) {
-            sequencer.close();
-            System.out.println("PlaybackManager: Sequencer closed.");
-        }
-        if (synthesizer != null && synthesizer.isOpen()) {
-            synthesizer.close();
-        }
+        transport.close();
+        PlayheadClock.getInstance().removeAll(transport);
+        System.out.println("PlaybackManager: Transport released.");
     }
 
+    /**
+     * 1音を試聴します。共有のプレビューエンジンのボイスで鳴らすため、連打してもスレッドは増えません。
+     */
     public void playNotePreview(int pitch) {
-        if (synthesizer != null && synthesizer.isOpen()) {
-            try {
-                MidiChannel[] channels = synthesizer.getChannels();
-                if (channels != null && channels.length > 0) {
-                    channels[0].noteOn(pitch, 100);
-                    new Thread(() -> {
-                        try {
-                            Thread.sleep(200);
-                        } catch (InterruptedException e) {
-                            Thread.currentThread().interrupt();
-                        }
-                        if (synthesizer != null && synthesizer.isOpen()) {
-                            channels[0].noteOff(pitch);
-                        }
-                    }).start();
-                }
-            } catch (Exception e) {
-                System.err.println("Error playing preview note: " + e.getMessage());
-            }
-        }
+        PreviewEngine.getInstance().audition(pitch, 100, PreviewEngine.DEFAULT_DURATION_MILLIS);
+    }
+
+    /**
+     * 複数ノートをまとめて和音として試聴します (複数ノートのドラッグ用)。
+     */
+    public void playChordPreview(int[] pitches) {
+        PreviewEngine.getInstance().auditionChord(pitches, 100, PreviewEngine.DEFAULT_DURATION_MILLIS);
     }
 
+    /**
+     * 共有シンセサイザーの全チャンネルの発音を止めます (他のウィンドウの再生音も止まります)。
+     */
     public void allNotesOff() {
-        if (synthesizer != null && synthesizer.isOpen()) {
-            try {
-                MidiChannel[] channels = synthesizer.getChannels();
-                if (channels != null) {
-                    for (MidiChannel channel : channels) {
-                        if (channel != null) {
-                            channel.allNotesOff();
-                            channel.allSoundOff();
-                        }
-                    }
-                }
-            } catch (Exception e) {
-                System.err.println("Error sending allNotesOff: " + e.getMessage());
-            }
+        try {
+            AudioEngine.getInstance().allNotesOff();
+        } catch (Exception e) {
+            System.err.println("Error sending allNotesOff: " + e.getMessage());
         }
     }
 }
@@ -18,7 +18,12 @@ public class Track implements Serializable {
     private boolean isSoloed = false;
 
     public Track(String name) {
-        this.id = UUID.randomUUID().toString();
+        this(UUID.randomUUID().toString(), name);
+    }
+
+    /** 既存のIDでトラックを作り直します (編集ジャーナルからの復元用)。 */
+    public Track(String id, String name) {
+        this.id = id;
         this.name = name;
     }
 
@@ -12,6 +12,7 @@ public class AddNoteCommand implements Command {
     private final List<Note> notesListRef;      // Viewのnotesリストへの参照 (final)
     private final Note noteToAdd;               // 追加するノートオブジェクト (final)
     private boolean wasExecuted = false;       // executeが呼ばれたかどうかのフラグ（Redo用）
+    private int position = -1;                 // 追加した位置 (Undo で削除した位置)
 
     // --- Constructor ---
     /**
@@ -42,6 +43,7 @@ public class AddNoteCommand implements Command {
 
         // まだリストに含まれていない場合のみ追加（重複を防ぐ、equalsの実装に依存）
         // または、重複を許容する場合はこのif文は不要
+        position = notesListRef.size();
         if (!notesListRef.contains(noteToAdd)) {
             boolean added = notesListRef.add(noteToAdd);
             System.out.println("  -> notesListRef.add(noteToAdd) returned: " + added);
@@ -76,7 +78,14 @@ public class AddNoteCommand implements Command {
         }
 
         System.out.println("  -> List size BEFORE remove: " + notesListRef.size());
-        boolean removed = notesListRef.remove(noteToAdd); // オブジェクトで削除
+        // 追加した位置にそのまま残っていればそこから、そうでなければオブジェクトで削除
+        if (position < 0 || position >= notesListRef.size() || notesListRef.get(position) != noteToAdd) {
+            position = notesListRef.indexOf(noteToAdd);
+        }
+        boolean removed = position >= 0;
+        if (removed) {
+            notesListRef.remove(position);
+        }
         System.out.println("  -> notesListRef.remove(noteToAdd) result: " + removed);
         if (!removed) {
             System.err.println("  WARNING: Note to remove was not found in the list during undo!");
@@ -98,4 +107,21 @@ public class AddNoteCommand implements Command {
     public String getDescription() {
         return "Add Note (Pitch: " + noteToAdd.getPitch() + ")";
     }
+
+    @Override
+    public long retainedSizeBytes() {
+        return 64 + NOTE_RETAINED_BYTES;
+    }
+
+    @Override
+    public void reportChanges(ChangeSink sink, boolean undone) {
+        if (position < 0) {
+            return;
+        }
+        if (undone) {
+            sink.notesRemoved(notesListRef, new int[]{position}, List.of(noteToAdd));
+        } else {
+            sink.notesInserted(notesListRef, new int[]{position}, List.of(noteToAdd));
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,32 @@
+package org.codesfactory.ux.pianoroll.commands;
+
+import org.codesfactory.ux.pianoroll.MidiRegion;
+import org.codesfactory.ux.pianoroll.Track;
+
+/**
+ * トラックにMIDIリージョンを追加するコマンド。
+ */
+public class AddRegionCommand implements Command {
+    private final Track track;
+    private final MidiRegion region;
+
+    public AddRegionCommand(Track track, MidiRegion region) {
+        this.track = track;
+        this.region = region;
+    }
+
+    @Override
+    public void execute() {
+        track.addRegion(region);
+    }
+
+    @Override
+    public void undo() {
+        track.removeRegion(region);
+    }
+
+    @Override
+    public String getDescription() {
+        return "Add Region to " + track.getName();
+    }
+}
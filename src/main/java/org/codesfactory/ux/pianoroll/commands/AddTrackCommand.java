@@ -0,0 +1,33 @@
+package org.codesfactory.ux.pianoroll.commands;
+
+import org.codesfactory.ux.pianoroll.Track;
+
+import java.util.List;
+
+/**
+ * アレンジメントにトラックを追加するコマンド。
+ */
+public class AddTrackCommand implements Command {
+    private final List<Track> tracks;
+    private final Track track;
+
+    public AddTrackCommand(List<Track> tracks, Track track) {
+        this.tracks = tracks;
+        this.track = track;
+    }
+
+    @Override
+    public void execute() {
+        tracks.add(track);
+    }
+
+    @Override
+    public void undo() {
+        tracks.remove(track);
+    }
+
+    @Override
+    public String getDescription() {
+        return "Add Track " + track.getName();
+    }
+}
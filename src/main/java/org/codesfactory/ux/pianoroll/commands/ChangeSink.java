@@ -0,0 +1,29 @@
+package org.codesfactory.ux.pianoroll.commands;
+
+import org.codesfactory.ux.pianoroll.Note;
+
+import java.util.List;
+
+/**
+ * コマンドが直前の実行/取り消しでノートをどう変えたかの報告先 (編集ジャーナルが実装します)。
+ * プロジェクト全体を比べ直さずに、変わったノートの分だけを記録できるようにするためのものです。
+ * トラックの並びやリージョンなど、ノート以外の状態の変化は報告しません。
+ */
+public interface ChangeSink {
+
+    /**
+     * notes から items を削除した。
+     * @param positions 各ノートの削除前の位置 (昇順、items と同じ順序)
+     */
+    void notesRemoved(List<Note> notes, int[] positions, List<Note> items);
+
+    /**
+     * notes に items を挿入した。
+     * @param positions 各ノートの挿入後の位置 (昇順、items と同じ順序)
+     */
+    void notesInserted(List<Note> notes, int[] positions, List<Note> items);
+
+    /** notes に入っている note の開始位置・ピッチ・長さを変えた (変わっていない値は前後で同じ値を渡します)。 */
+    void noteChanged(List<Note> notes, Note note, long oldStart, int oldPitch, long oldDuration,
+                     long newStart, int newPitch, long newDuration);
+}
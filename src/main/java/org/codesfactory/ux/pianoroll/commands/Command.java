@@ -2,7 +2,35 @@
 package org.codesfactory.ux.pianoroll.commands; // パッケージを分けることを推奨
 
 public interface Command {
+    /** 1ノート分の参照とオブジェクトを保持するのにかかるおおよそのバイト数 (メモリ予算の見積もり用)。 */
+    long NOTE_RETAINED_BYTES = 48;
+
     void execute();
     void undo();
     String getDescription(); // オプション
-}
\ No newline at end of file
+
+    /**
+     * このコマンドが履歴に積まれている間に保持するおおよそのメモリ量 (バイト)。
+     * UndoManager は履歴全体の合計がメモリ予算を超えると、古いものから捨てます。
+     */
+    default long retainedSizeBytes() {
+        return 64;
+    }
+
+    /**
+     * 直後に実行された next をこのコマンドに統合できれば統合して true を返します
+     * (同じノートへの連続した移動やリサイズを、Undo 1回分にまとめるため)。
+     * next は実行済みです。統合した場合、このコマンドの Undo で next の分もまとめて戻る必要があります。
+     */
+    default boolean mergeWith(Command next) {
+        return false;
+    }
+
+    /**
+     * 直前の execute() (undone=false) または undo() (undone=true) で変えたノートを sink に報告します。
+     * ノートを変えるコマンドは実装してください (編集ジャーナルはこの報告だけを記録します)。
+     * 統合された実行 (mergeWith が true) の後は、統合された側 (next) の実行分が報告されます。
+     */
+    default void reportChanges(ChangeSink sink, boolean undone) {
+    }
+}
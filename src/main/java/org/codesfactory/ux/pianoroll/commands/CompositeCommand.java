@@ -0,0 +1,84 @@
+package org.codesfactory.ux.pianoroll.commands;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 複数のコマンドを1つの履歴としてまとめたコマンド (UndoManager のトランザクション用)。
+ * Redo では順に、Undo では逆順に実行します。
+ */
+public class CompositeCommand implements Command {
+    private final String description;
+    private final List<Command> commands = new ArrayList<>();
+
+    public CompositeCommand(String description) {
+        this.description = description;
+    }
+
+    /** 実行済みのコマンドを追加します。 */
+    public void add(Command command) {
+        commands.add(command);
+    }
+
+    public boolean isEmpty() {
+        return commands.isEmpty();
+    }
+
+    public int size() {
+        return commands.size();
+    }
+
+    public List<Command> getCommands() {
+        return Collections.unmodifiableList(commands);
+    }
+
+    /** size 件目以降に追加されたコマンドを逆順に取り消し、まとめから外します (入れ子のトランザクションのロールバック用)。 */
+    void rollbackTo(int size) {
+        for (int i = commands.size() - 1; i >= size; i--) {
+            Command command = commands.remove(i);
+            command.undo();
+        }
+    }
+
+    @Override
+    public void execute() {
+        for (Command command : commands) {
+            command.execute();
+        }
+    }
+
+    @Override
+    public void undo() {
+        for (int i = commands.size() - 1; i >= 0; i--) {
+            commands.get(i).undo();
+        }
+    }
+
+    @Override
+    public void reportChanges(ChangeSink sink, boolean undone) {
+        if (undone) {
+            for (int i = commands.size() - 1; i >= 0; i--) {
+                commands.get(i).reportChanges(sink, true);
+            }
+        } else {
+            for (Command command : commands) {
+                command.reportChanges(sink, false);
+            }
+        }
+    }
+
+    @Override
+    public String getDescription() {
+        return description;
+    }
+
+    @Override
+    public long retainedSizeBytes() {
+        long bytes = 64;
+        for (Command command : commands) {
+            bytes += command.retainedSizeBytes();
+        }
+        return bytes;
+    }
+}
@@ -9,6 +9,8 @@ public class DeleteMultipleNotesCommand implements Command {
     final private PianoRollView view;
     final private List<Note> notesListRef; // PianoRollViewのnotesリストへの参照
     final private List<Note> deletedNotes; // 削除されたノートのコピーを保持
+    private List<Note> removedInListOrder = new ArrayList<>(); // 実際に削除したノート (リスト内の順)
+    private int[] removedPositions = new int[0]; // removedInListOrder の元の位置 (Undo で同じ位置に戻す)
 
     public DeleteMultipleNotesCommand(PianoRollView view, List<Note> notesList, List<Note> notesToDelete) {
         this.view = view;
@@ -26,7 +28,9 @@ public class DeleteMultipleNotesCommand implements Command {
         // PianoRollView側で notes.removeAll(selectedNotesList) を実行した後にこのコマンドが作られる場合、
         // executeでは何もしないか、最終的な状態確認のみ。
         // ここでは、コマンドが削除処理自体も担う設計とする。
-        notesListRef.removeAll(deletedNotes);
+        // removeAll(List) は contains の線形探索で O(n*m) になるので、同一性セットで1回の走査にする
+        removedInListOrder = new ArrayList<>(deletedNotes.size());
+        removedPositions = ListEdits.removeAllByIdentity(notesListRef, deletedNotes, removedInListOrder);
 
         if (view != null) {
             view.clearSelectionAfterCommand(); // 選択をクリア
@@ -36,9 +40,8 @@ public class DeleteMultipleNotesCommand implements Command {
 
     @Override
     public void undo() {
-        // 削除されたノートをリストに再度追加する
-        // 単純に追加すると順序が最後になる。元の順序を保持するには工夫が必要。
-        notesListRef.addAll(deletedNotes);
+        // 削除されたノートを元の位置に戻す (末尾に追加すると並び順が変わってしまう)
+        ListEdits.insertAtPositions(notesListRef, removedPositions, removedInListOrder);
 
         if (view != null) {
             // (オプション) Undo後にこれらのノートを再度選択状態にする
@@ -53,4 +56,18 @@ public class DeleteMultipleNotesCommand implements Command {
     }
 
     @Override public String getDescription() { return "Delete " + deletedNotes.size() + " Notes"; }
+
+    @Override
+    public long retainedSizeBytes() {
+        return 64 + (NOTE_RETAINED_BYTES + 8 + 8 + 4) * deletedNotes.size(); // 2つのリストと位置の配列
+    }
+
+    @Override
+    public void reportChanges(ChangeSink sink, boolean undone) {
+        if (undone) {
+            sink.notesInserted(notesListRef, removedPositions, removedInListOrder);
+        } else {
+            sink.notesRemoved(notesListRef, removedPositions, removedInListOrder);
+        }
+    }
 }
\ No newline at end of file
@@ -9,21 +9,21 @@ public class DeleteNoteCommand implements Command {
     private PianoRollView view;
     private List<Note> notesList;
     private Note noteToDelete;
-    // private int originalIndex; // (オプション) 元の位置に復元する場合
+    private int originalIndex = -1; // 削除した位置 (Undo で同じ位置に戻す)
 
     public DeleteNoteCommand(PianoRollView view, List<Note> notesList, Note noteToDelete) {
         this.view = view;
         this.notesList = notesList;
         this.noteToDelete = noteToDelete;
-        // this.originalIndex = notesList.indexOf(noteToDelete); // 削除前にインデックスを保存
     }
 
     @Override
     public void execute() {
         // 実行時は既にノートが削除されている前提
         // もしコマンド作成時にまだ削除されていなければ、ここで行う
-        if (notesList.contains(noteToDelete)) {
-            notesList.remove(noteToDelete);
+        originalIndex = notesList.indexOf(noteToDelete);
+        if (originalIndex >= 0) {
+            notesList.remove(originalIndex);
         }
         // view.setSelectedNote(null);
         // view.repaint();
@@ -31,10 +31,31 @@ public class DeleteNoteCommand implements Command {
 
     @Override
     public void undo() {
-        notesList.add(noteToDelete); // (オプション) originalIndexに挿入するなら add(originalIndex, noteToDelete)
+        if (originalIndex < 0) {
+            return;
+        }
+        originalIndex = Math.min(originalIndex, notesList.size());
+        notesList.add(originalIndex, noteToDelete);
         //view.setSelectedNote(noteToDelete); // (オプション)
         // view.repaint();
     }
+    @Override
+    public long retainedSizeBytes() {
+        return 64 + NOTE_RETAINED_BYTES;
+    }
+
+    @Override
+    public void reportChanges(ChangeSink sink, boolean undone) {
+        if (originalIndex < 0) {
+            return;
+        }
+        if (undone) {
+            sink.notesInserted(notesList, new int[]{originalIndex}, List.of(noteToDelete));
+        } else {
+            sink.notesRemoved(notesList, new int[]{originalIndex}, List.of(noteToDelete));
+        }
+    }
+
     @Override
     public String getDescription() {
         // このコマンドの説明を返す
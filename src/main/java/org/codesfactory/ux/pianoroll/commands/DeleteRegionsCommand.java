@@ -0,0 +1,92 @@
+package org.codesfactory.ux.pianoroll.commands;
+
+import org.codesfactory.ux.pianoroll.MidiRegion;
+import org.codesfactory.ux.pianoroll.Note;
+import org.codesfactory.ux.pianoroll.Track;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * MIDIリージョンを、その範囲に開始するノートごと削除するコマンド。
+ * 削除したリージョンとノートを元の位置とともに保持し、Undo で同じ位置に戻します。
+ */
+public class DeleteRegionsCommand implements Command {
+
+    /** 削除するリージョンと、その持ち主のトラック。 */
+    public static final class Target {
+        final Track track;
+        final MidiRegion region;
+        int regionIndex;
+        int[] notePositions = new int[0];
+        List<Note> removedNotes = new ArrayList<>();
+
+        public Target(Track track, MidiRegion region) {
+            this.track = track;
+            this.region = region;
+        }
+    }
+
+    private final List<Target> targets;
+
+    public DeleteRegionsCommand(List<Target> targets) {
+        this.targets = new ArrayList<>(targets);
+    }
+
+    @Override
+    public void execute() {
+        for (Target target : targets) {
+            target.regionIndex = target.track.getRegions().indexOf(target.region);
+            target.track.removeRegion(target.region);
+            long start = target.region.getStartTick();
+            long end = target.region.getEndTick();
+            List<Note> inRange = new ArrayList<>();
+            for (Note n : target.track.getNotes()) {
+                if (n.getStartTimeTicks() >= start && n.getStartTimeTicks() < end) {
+                    inRange.add(n);
+                }
+            }
+            target.removedNotes = new ArrayList<>();
+            target.notePositions = ListEdits.removeAllByIdentity(target.track.getNotes(), inRange, target.removedNotes);
+        }
+    }
+
+    @Override
+    public void undo() {
+        // 実行と逆順に戻す (同じトラックの複数リージョンでも位置がずれない)
+        for (int i = targets.size() - 1; i >= 0; i--) {
+            Target target = targets.get(i);
+            ListEdits.insertAtPositions(target.track.getNotes(), target.notePositions, target.removedNotes);
+            List<MidiRegion> regions = target.track.getRegions();
+            regions.add(Math.max(0, Math.min(target.regionIndex, regions.size())), target.region);
+        }
+    }
+
+    @Override
+    public String getDescription() {
+        return "Delete " + targets.size() + " Regions";
+    }
+
+    @Override
+    public void reportChanges(ChangeSink sink, boolean undone) {
+        if (undone) {
+            for (int i = targets.size() - 1; i >= 0; i--) {
+                Target target = targets.get(i);
+                sink.notesInserted(target.track.getNotes(), target.notePositions, target.removedNotes);
+            }
+        } else {
+            for (Target target : targets) {
+                sink.notesRemoved(target.track.getNotes(), target.notePositions, target.removedNotes);
+            }
+        }
+    }
+
+    @Override
+    public long retainedSizeBytes() {
+        long bytes = 64;
+        for (Target target : targets) {
+            bytes += 64 + (NOTE_RETAINED_BYTES + 4) * target.removedNotes.size();
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,44 @@
+package org.codesfactory.ux.pianoroll.commands;
+
+import org.codesfactory.ux.pianoroll.Track;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * アレンジメントからトラックを削除するコマンド。
+ * トラックはコピーせず参照のまま保持し、Undo で元の位置に戻します。
+ */
+public class DeleteTracksCommand implements Command {
+    private final List<Track> tracks;
+    private final List<Track> targets;
+    private List<Track> removed = new ArrayList<>();
+    private int[] positions = new int[0];
+
+    public DeleteTracksCommand(List<Track> tracks, Collection<Track> tracksToDelete) {
+        this.tracks = tracks;
+        this.targets = new ArrayList<>(tracksToDelete);
+    }
+
+    @Override
+    public void execute() {
+        removed = new ArrayList<>();
+        positions = ListEdits.removeAllByIdentity(tracks, targets, removed);
+    }
+
+    @Override
+    public void undo() {
+        ListEdits.insertAtPositions(tracks, positions, removed);
+    }
+
+    @Override
+    public String getDescription() {
+        return "Delete " + targets.size() + " Tracks";
+    }
+
+    @Override
+    public long retainedSizeBytes() {
+        return 64 + 16L * targets.size();
+    }
+}
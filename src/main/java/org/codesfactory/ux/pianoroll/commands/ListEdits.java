@@ -0,0 +1,71 @@
+package org.codesfactory.ux.pianoroll.commands;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * コマンドの実行/取り消しで使う、リストの一括削除と位置を保った復元のヘルパー。
+ */
+final class ListEdits {
+
+    private ListEdits() {
+    }
+
+    /**
+     * 指定した要素を (同一インスタンスとして) まとめて削除し、削除した位置を昇順で返します。
+     * 全体を1回走査するだけなので、削除数が多くても O(n) です。
+     * @param removedOut 実際に削除した要素がリスト内の順序で追加される (戻り値の位置と対応)
+     */
+    static <T> int[] removeAllByIdentity(List<T> list, Collection<? extends T> toRemove, List<T> removedOut) {
+        Set<T> targets = Collections.newSetFromMap(new IdentityHashMap<>());
+        targets.addAll(toRemove);
+        int[] positions = new int[targets.size()];
+        int found = 0;
+        int write = 0;
+        int size = list.size();
+        for (int read = 0; read < size; read++) {
+            T item = list.get(read);
+            if (found < positions.length && targets.contains(item)) {
+                positions[found++] = read;
+                removedOut.add(item);
+            } else {
+                list.set(write++, item);
+            }
+        }
+        list.subList(write, size).clear();
+        return found == positions.length ? positions : Arrays.copyOf(positions, found);
+    }
+
+    /**
+     * {@link #removeAllByIdentity} で削除した要素を元の位置に戻します。
+     * @param positions 削除時の位置 (昇順)
+     * @param items 削除した要素 (positions と同じ順序)
+     */
+    static <T> void insertAtPositions(List<T> list, int[] positions, List<T> items) {
+        if (positions.length <= 16) {
+            for (int i = 0; i < positions.length; i++) {
+                list.add(Math.min(positions[i], list.size()), items.get(i));
+            }
+            return;
+        }
+        // 件数が多いときは1回のマージで組み立て直す (1件ずつ挿入すると O(n*k) になる)
+        List<T> merged = new ArrayList<>(list.size() + positions.length);
+        int next = 0;
+        for (T item : list) {
+            while (next < positions.length && positions[next] <= merged.size()) {
+                merged.add(items.get(next++));
+            }
+            merged.add(item);
+        }
+        while (next < positions.length) {
+            merged.add(items.get(next++));
+        }
+        list.clear();
+        list.addAll(merged);
+    }
+}
@@ -0,0 +1,124 @@
+package org.codesfactory.ux.pianoroll.commands;
+
+import org.codesfactory.ux.pianoroll.MidiRegion;
+import org.codesfactory.ux.pianoroll.Note;
+import org.codesfactory.ux.pianoroll.Track;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 複数のMIDIリージョンを1つに結合するコマンド。
+ * 別トラックのリージョンに含まれるノートは結合先のトラックへ移し、Undo で元のトラックの元の位置へ戻します。
+ */
+public class MergeRegionsCommand implements Command {
+
+    /** 結合されるリージョンと、その持ち主のトラック。 */
+    public static final class Part {
+        final Track track;
+        final MidiRegion region;
+        int regionIndex;
+        int[] notePositions = new int[0];
+        List<Note> movedNotes = new ArrayList<>();
+        int movedFrom; // 結合先のトラックで移したノートが並ぶ先頭の位置
+        int[] undonePositions = new int[0]; // Undo で結合先から外した位置と、そのノート (リスト内の順)
+        List<Note> undoneNotes = new ArrayList<>();
+
+        public Part(Track track, MidiRegion region) {
+            this.track = track;
+            this.region = region;
+        }
+    }
+
+    private final List<Part> parts;
+    private final Track targetTrack;
+    private final MidiRegion mergedRegion;
+
+    /**
+     * @param parts 結合するリージョン (開始Tick順)
+     * @param targetTrack 結合先のトラック
+     * @param mergedRegion 結合後のリージョン
+     */
+    public MergeRegionsCommand(List<Part> parts, Track targetTrack, MidiRegion mergedRegion) {
+        this.parts = new ArrayList<>(parts);
+        this.targetTrack = targetTrack;
+        this.mergedRegion = mergedRegion;
+    }
+
+    @Override
+    public void execute() {
+        for (Part part : parts) {
+            part.regionIndex = part.track.getRegions().indexOf(part.region);
+            part.movedNotes = new ArrayList<>();
+            part.notePositions = new int[0];
+            if (part.track != targetTrack) {
+                long start = part.region.getStartTick();
+                long end = part.region.getEndTick();
+                List<Note> notesToMove = new ArrayList<>();
+                for (Note n : part.track.getNotes()) {
+                    if (n.getStartTimeTicks() >= start && n.getStartTimeTicks() < end) {
+                        notesToMove.add(n);
+                    }
+                }
+                part.notePositions = ListEdits.removeAllByIdentity(part.track.getNotes(), notesToMove, part.movedNotes);
+                part.movedFrom = targetTrack.getNotes().size();
+                targetTrack.getNotes().addAll(part.movedNotes);
+            }
+            part.track.removeRegion(part.region);
+        }
+        targetTrack.addRegion(mergedRegion);
+    }
+
+    @Override
+    public void undo() {
+        targetTrack.removeRegion(mergedRegion);
+        for (int i = parts.size() - 1; i >= 0; i--) {
+            Part part = parts.get(i);
+            List<MidiRegion> regions = part.track.getRegions();
+            regions.add(Math.max(0, Math.min(part.regionIndex, regions.size())), part.region);
+            if (!part.movedNotes.isEmpty()) {
+                part.undoneNotes = new ArrayList<>(part.movedNotes.size());
+                part.undonePositions = ListEdits.removeAllByIdentity(targetTrack.getNotes(), part.movedNotes, part.undoneNotes);
+                ListEdits.insertAtPositions(part.track.getNotes(), part.notePositions, part.movedNotes);
+            }
+        }
+    }
+
+    @Override
+    public String getDescription() {
+        return "Merge " + parts.size() + " Regions";
+    }
+
+    @Override
+    public void reportChanges(ChangeSink sink, boolean undone) {
+        if (undone) {
+            for (int i = parts.size() - 1; i >= 0; i--) {
+                Part part = parts.get(i);
+                if (!part.movedNotes.isEmpty()) {
+                    sink.notesRemoved(targetTrack.getNotes(), part.undonePositions, part.undoneNotes);
+                    sink.notesInserted(part.track.getNotes(), part.notePositions, part.movedNotes);
+                }
+            }
+            return;
+        }
+        for (Part part : parts) {
+            if (!part.movedNotes.isEmpty()) {
+                int[] movedPositions = new int[part.movedNotes.size()];
+                for (int i = 0; i < movedPositions.length; i++) {
+                    movedPositions[i] = part.movedFrom + i;
+                }
+                sink.notesRemoved(part.track.getNotes(), part.notePositions, part.movedNotes);
+                sink.notesInserted(targetTrack.getNotes(), movedPositions, part.movedNotes);
+            }
+        }
+    }
+
+    @Override
+    public long retainedSizeBytes() {
+        long bytes = 64;
+        for (Part part : parts) {
+            bytes += 64 + 12L * part.movedNotes.size();
+        }
+        return bytes;
+    }
+}
@@ -52,4 +52,51 @@ public class MoveMultipleNotesCommand implements Command {
     public String getDescription() {
         return "Move " + notes.size() + " Notes";
     }
+
+    @Override
+    public void reportChanges(ChangeSink sink, boolean undone) {
+        if (view == null) {
+            return;
+        }
+        List<Note> list = view.getNotesList();
+        for (int i = 0; i < notes.size(); i++) {
+            Note note = notes.get(i);
+            long duration = note.getDurationTicks();
+            if (undone) {
+                sink.noteChanged(list, note, finalStartTicks.get(i), finalPitches.get(i), duration,
+                        originalStartTicks.get(i), originalPitches.get(i), duration);
+            } else {
+                sink.noteChanged(list, note, originalStartTicks.get(i), originalPitches.get(i), duration,
+                        finalStartTicks.get(i), finalPitches.get(i), duration);
+            }
+        }
+    }
+
+    /** 同じノートの組の連続した移動は、最初の位置から最後の位置への1回の移動にまとめる。 */
+    @Override
+    public boolean mergeWith(Command next) {
+        if (!(next instanceof MoveMultipleNotesCommand)) {
+            return false;
+        }
+        MoveMultipleNotesCommand move = (MoveMultipleNotesCommand) next;
+        if (move.notes.size() != notes.size()) {
+            return false;
+        }
+        for (int i = 0; i < notes.size(); i++) {
+            if (move.notes.get(i) != notes.get(i)) {
+                return false;
+            }
+        }
+        finalStartTicks.clear();
+        finalStartTicks.addAll(move.finalStartTicks);
+        finalPitches.clear();
+        finalPitches.addAll(move.finalPitches);
+        return true;
+    }
+
+    @Override
+    public long retainedSizeBytes() {
+        // ノート参照 + 4つの Long/Integer リストの要素 (ボクシング込み)
+        return 64 + 120L * notes.size();
+    }
 }
@@ -34,6 +34,31 @@ public class MoveNoteCommand implements Command {
         // view.repaint();
     }
 
+    /** 同じノートの連続した移動は、最初の位置から最後の位置への1回の移動にまとめる。 */
+    @Override
+    public boolean mergeWith(Command next) {
+        if (next instanceof MoveNoteCommand && ((MoveNoteCommand) next).noteToMove == noteToMove) {
+            MoveNoteCommand move = (MoveNoteCommand) next;
+            this.newStartTime = move.newStartTime;
+            this.newPitch = move.newPitch;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void reportChanges(ChangeSink sink, boolean undone) {
+        if (view == null) {
+            return;
+        }
+        long duration = noteToMove.getDurationTicks();
+        if (undone) {
+            sink.noteChanged(view.getNotesList(), noteToMove, newStartTime, newPitch, duration, oldStartTime, oldPitch, duration);
+        } else {
+            sink.noteChanged(view.getNotesList(), noteToMove, oldStartTime, oldPitch, duration, newStartTime, newPitch, duration);
+        }
+    }
+
     // ★★★ このメソッドを追加 ★★★
     @Override
     public String getDescription() {
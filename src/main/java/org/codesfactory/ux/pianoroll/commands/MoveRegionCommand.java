@@ -0,0 +1,74 @@
+package org.codesfactory.ux.pianoroll.commands;
+
+import org.codesfactory.ux.pianoroll.MidiRegion;
+import org.codesfactory.ux.pianoroll.Note;
+import org.codesfactory.ux.pianoroll.Track;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * MIDIリージョンを、その範囲に含まれるノートごと時間方向に移動するコマンド。
+ * 記録するのは移動量と動かしたノートの参照だけです。
+ */
+public class MoveRegionCommand implements Command {
+    private final Track track;
+    private final MidiRegion region;
+    private final long offsetTicks;
+    private List<Note> movedNotes; // 初回実行時に決まる (Redo でも同じノートを動かす)
+
+    public MoveRegionCommand(Track track, MidiRegion region, long offsetTicks) {
+        this.track = track;
+        this.region = region;
+        this.offsetTicks = offsetTicks;
+    }
+
+    @Override
+    public void execute() {
+        if (movedNotes == null) {
+            movedNotes = new ArrayList<>();
+            long start = region.getStartTick();
+            long end = region.getEndTick();
+            for (Note note : track.getNotes()) {
+                if (note.getStartTimeTicks() >= start && note.getStartTimeTicks() < end) {
+                    movedNotes.add(note);
+                }
+            }
+        }
+        shift(offsetTicks);
+    }
+
+    @Override
+    public void undo() {
+        shift(-offsetTicks);
+    }
+
+    private void shift(long delta) {
+        for (Note note : movedNotes) {
+            note.setStartTimeTicks(note.getStartTimeTicks() + delta);
+        }
+        region.setStartTick(region.getStartTick() + delta);
+        region.setEndTick(region.getEndTick() + delta);
+    }
+
+    @Override
+    public String getDescription() {
+        return "Move Region by " + offsetTicks + " ticks";
+    }
+
+    @Override
+    public void reportChanges(ChangeSink sink, boolean undone) {
+        long delta = undone ? -offsetTicks : offsetTicks;
+        for (Note note : movedNotes) {
+            long start = note.getStartTimeTicks();
+            int pitch = note.getPitch();
+            long duration = note.getDurationTicks();
+            sink.noteChanged(track.getNotes(), note, start - delta, pitch, duration, start, pitch, duration);
+        }
+    }
+
+    @Override
+    public long retainedSizeBytes() {
+        return 64 + 8L * (movedNotes != null ? movedNotes.size() : 0);
+    }
+}
@@ -10,6 +10,11 @@ public class ReplaceNotesCommand implements Command {
     private final List<Note> notesListRef;
     private final List<Note> deletedNotes;
     private final List<Note> addedNotes;
+    private List<Note> removedInListOrder = new ArrayList<>(); // 実際に削除したノート (リスト内の順)
+    private int[] removedPositions = new int[0]; // removedInListOrder の元の位置
+    private int addedFrom = -1; // 追加したノートが並ぶ先頭の位置 (末尾に追加する)
+    private List<Note> undoneAddedNotes = new ArrayList<>(); // Undo で外した追加分 (リスト内の順)
+    private int[] undoneAddedPositions = new int[0];
 
     public ReplaceNotesCommand(PianoRollView view, List<Note> notesList, List<Note> notesToDelete, List<Note> newNotes) {
         this.view = view;
@@ -20,7 +25,10 @@ public class ReplaceNotesCommand implements Command {
 
     @Override
     public void execute() {
-        notesListRef.removeAll(deletedNotes);
+        // 同一性セットによる1回の走査で削除し、追加分は末尾にまとめて足す (全体で O(n + m))
+        removedInListOrder = new ArrayList<>(deletedNotes.size());
+        removedPositions = ListEdits.removeAllByIdentity(notesListRef, deletedNotes, removedInListOrder);
+        addedFrom = notesListRef.size();
         notesListRef.addAll(addedNotes);
 
         if (view != null) {
@@ -31,8 +39,18 @@ public class ReplaceNotesCommand implements Command {
 
     @Override
     public void undo() {
-        notesListRef.removeAll(addedNotes);
-        notesListRef.addAll(deletedNotes);
+        if (addedTailIsIntact()) {
+            undoneAddedNotes = new ArrayList<>(addedNotes);
+            undoneAddedPositions = new int[addedNotes.size()];
+            for (int i = 0; i < undoneAddedPositions.length; i++) {
+                undoneAddedPositions[i] = addedFrom + i;
+            }
+            notesListRef.subList(addedFrom, notesListRef.size()).clear();
+        } else {
+            undoneAddedNotes = new ArrayList<>(addedNotes.size());
+            undoneAddedPositions = ListEdits.removeAllByIdentity(notesListRef, addedNotes, undoneAddedNotes);
+        }
+        ListEdits.insertAtPositions(notesListRef, removedPositions, removedInListOrder);
 
         if (view != null) {
             view.setSelectedNotesAfterCommand(new ArrayList<>(deletedNotes));
@@ -44,8 +62,41 @@ public class ReplaceNotesCommand implements Command {
         }
     }
 
+    /** 実行直後のまま、追加したノートがリストの末尾にそのまま並んでいるか。 */
+    private boolean addedTailIsIntact() {
+        if (addedFrom < 0 || notesListRef.size() - addedFrom != addedNotes.size()) {
+            return false;
+        }
+        for (int i = 0; i < addedNotes.size(); i++) {
+            if (notesListRef.get(addedFrom + i) != addedNotes.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     @Override
     public String getDescription() {
         return "Replace " + deletedNotes.size() + " Notes with " + addedNotes.size() + " Notes";
     }
+
+    @Override
+    public void reportChanges(ChangeSink sink, boolean undone) {
+        if (undone) {
+            sink.notesRemoved(notesListRef, undoneAddedPositions, undoneAddedNotes);
+            sink.notesInserted(notesListRef, removedPositions, removedInListOrder);
+        } else {
+            int[] addedPositions = new int[addedNotes.size()];
+            for (int i = 0; i < addedPositions.length; i++) {
+                addedPositions[i] = addedFrom + i;
+            }
+            sink.notesRemoved(notesListRef, removedPositions, removedInListOrder);
+            sink.notesInserted(notesListRef, addedPositions, addedNotes);
+        }
+    }
+
+    @Override
+    public long retainedSizeBytes() {
+        return 64 + (NOTE_RETAINED_BYTES + 8) * (deletedNotes.size() + addedNotes.size()) + (8 + 4) * deletedNotes.size();
+    }
 }
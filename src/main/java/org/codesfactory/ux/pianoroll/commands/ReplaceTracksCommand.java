@@ -0,0 +1,49 @@
+package org.codesfactory.ux.pianoroll.commands;
+
+import org.codesfactory.ux.pianoroll.Track;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * アレンジメントのトラックをまとめて入れ替えるコマンド (MIDIファイルの読み込みなど)。
+ * 入れ替え前のトラックは参照のまま保持するので、ノート数に関係なく一定のコストで記録できます。
+ */
+public class ReplaceTracksCommand implements Command {
+    private final List<Track> tracks;
+    private final List<Track> newTracks;
+    private List<Track> oldTracks = new ArrayList<>();
+
+    public ReplaceTracksCommand(List<Track> tracks, List<Track> newTracks) {
+        this.tracks = tracks;
+        this.newTracks = new ArrayList<>(newTracks);
+    }
+
+    @Override
+    public void execute() {
+        oldTracks = new ArrayList<>(tracks);
+        tracks.clear();
+        tracks.addAll(newTracks);
+    }
+
+    @Override
+    public void undo() {
+        tracks.clear();
+        tracks.addAll(oldTracks);
+    }
+
+    @Override
+    public String getDescription() {
+        return "Replace Tracks (" + newTracks.size() + ")";
+    }
+
+    @Override
+    public long retainedSizeBytes() {
+        // 取り消し後は新しいトラックのノートもこのコマンドだけが保持している可能性がある
+        long bytes = 64 + 8L * (oldTracks.size() + newTracks.size());
+        for (Track track : newTracks) {
+            bytes += NOTE_RETAINED_BYTES * track.getNotes().size();
+        }
+        return bytes;
+    }
+}
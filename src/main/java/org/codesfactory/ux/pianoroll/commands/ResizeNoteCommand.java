@@ -33,4 +33,25 @@ public class ResizeNoteCommand implements Command {
     }
 
     @Override public String getDescription() { return "Resize Note"; } // (オプション)
+
+    @Override
+    public void reportChanges(ChangeSink sink, boolean undone) {
+        if (view == null) {
+            return;
+        }
+        long start = noteToResize.getStartTimeTicks();
+        int pitch = noteToResize.getPitch();
+        sink.noteChanged(view.getNotesList(), noteToResize, start, pitch, undone ? newDuration : oldDuration,
+                start, pitch, undone ? oldDuration : newDuration);
+    }
+
+    /** 同じノートの連続したリサイズは、最初の長さから最後の長さへの1回にまとめる。 */
+    @Override
+    public boolean mergeWith(Command next) {
+        if (next instanceof ResizeNoteCommand && ((ResizeNoteCommand) next).noteToResize == noteToResize) {
+            this.newDuration = ((ResizeNoteCommand) next).newDuration;
+            return true;
+        }
+        return false;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,47 @@
+package org.codesfactory.ux.pianoroll.commands;
+
+import org.codesfactory.ux.pianoroll.Track;
+
+import java.util.function.BiConsumer;
+
+/**
+ * トラックの属性 (名前・色・楽器・ミュート・ソロなど) を変更するコマンド。
+ * @param <T> 属性の型
+ */
+public class SetTrackPropertyCommand<T> implements Command {
+    private final Track track;
+    private final String propertyName;
+    private final T oldValue;
+    private final T newValue;
+    private final BiConsumer<Track, T> setter;
+
+    /**
+     * @param track 対象のトラック
+     * @param propertyName 表示用の属性名
+     * @param oldValue 変更前の値
+     * @param newValue 変更後の値
+     * @param setter 値を設定する処理 (Track::setName など)
+     */
+    public SetTrackPropertyCommand(Track track, String propertyName, T oldValue, T newValue, BiConsumer<Track, T> setter) {
+        this.track = track;
+        this.propertyName = propertyName;
+        this.oldValue = oldValue;
+        this.newValue = newValue;
+        this.setter = setter;
+    }
+
+    @Override
+    public void execute() {
+        setter.accept(track, newValue);
+    }
+
+    @Override
+    public void undo() {
+        setter.accept(track, oldValue);
+    }
+
+    @Override
+    public String getDescription() {
+        return "Set " + propertyName + " of " + track.getName();
+    }
+}
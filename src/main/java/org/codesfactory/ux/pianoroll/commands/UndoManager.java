@@ -1,42 +1,219 @@
 // UndoManager.java
 package org.codesfactory.ux.pianoroll.commands;
 import org.codesfactory.ux.pianoroll.PianoRollView; // ★★★ この行を追加 ★★★
-import java.util.Stack;
+import java.util.ArrayDeque;
+import java.util.Deque;
 
 public class UndoManager {
-    final private Stack<Command> undoStack = new Stack<>();
-    final private Stack<Command> redoStack = new Stack<>();
-    final private PianoRollView view; // repaintなどのためにViewへの参照を持つ
+    /**
+     * 履歴全体で保持してよいメモリ量の既定値 (バイト)。
+     * 起動時に -Dcompass.undo.budgetMB=128 のように指定すると変更できます。
+     */
+    public static final long DEFAULT_MEMORY_BUDGET_BYTES = Long.getLong("compass.undo.budgetMB", 64L) * 1024 * 1024;
+    /** この時間内に続けて実行された同種のコマンド (同じノートの移動・リサイズ) は1つにまとめる。 */
+    public static final long COALESCE_WINDOW_MILLIS = 1500;
+
+    // 先頭が最新。最も古い履歴 (末尾) も O(1) で捨てられる
+    final private Deque<Command> undoStack = new ArrayDeque<>();
+    final private Deque<Command> redoStack = new ArrayDeque<>();
+    final private PianoRollView view; // repaintなどのためにViewへの参照を持つ (アレンジメント用はnull)
+    private long memoryBudgetBytes = DEFAULT_MEMORY_BUDGET_BYTES;
+    private long retainedBytes = 0; // undoStack と redoStack のコマンドが保持しているメモリ量の合計 (積む/降ろす/統合のたびに増減)
+    private Command lastExecuted = null; // 直前に executeCommand されたコマンド (統合の対象)
+    private long lastExecutedMillis = 0;
+    private HistoryListener historyListener = null;
+    private CompositeCommand transaction = null; // 進行中のトランザクション (無ければ null)
+    private int transactionDepth = 0;
+    private final Deque<Integer> nestedStarts = new ArrayDeque<>(); // 入れ子の各段の開始時点のコマンド数 (内側が先頭)
+
+    /** 履歴の操作の種類。MERGE は直前のコマンドに統合された実行です。 */
+    public enum Action { EXECUTE, MERGE, UNDO, REDO }
+
+    /**
+     * 履歴が変わるたび (コマンドの実行/Undo/Redo の直後) に呼ばれるリスナー。
+     * 編集ジャーナルへの記録などに使います。
+     */
+    public interface HistoryListener {
+        void historyChanged(Action action, Command command);
+    }
 
     public UndoManager(PianoRollView view) {
         this.view = view;
     }
 
+    /**
+     * View に紐付かない履歴 (アレンジメントなど) 用のコンストラクタ。
+     * 実行/Undo後の画面更新は呼び出し側で行います。
+     */
+    public UndoManager() {
+        this(null);
+    }
+
+    public void setHistoryListener(HistoryListener historyListener) {
+        this.historyListener = historyListener;
+    }
+
     public void executeCommand(Command command) {
         command.execute();
-        undoStack.push(command);
+        if (transaction != null) {
+            transaction.add(command); // 画面やメニューの更新はコミット時に1回だけ行う
+            return;
+        }
+        recordExecuted(command);
+    }
+
+    /**
+     * トランザクションを開始します。コミットまでに実行したコマンドは1つの履歴にまとめられ、
+     * 再描画・メニュー更新・選択情報の更新・再生への反映はコミット時に1回だけ行われます。
+     * 入れ子で呼んだ場合は、一番外側のコミットでまとめて確定します。
+     */
+    public void beginTransaction(String description) {
+        if (transactionDepth++ == 0) {
+            transaction = new CompositeCommand(description);
+            if (view != null) view.deferUpdates();
+        } else {
+            nestedStarts.push(transaction.size());
+        }
+    }
+
+    /** トランザクションを確定し、1つの履歴として積みます。 */
+    public void commitTransaction() {
+        if (transactionDepth == 0) {
+            throw new IllegalStateException("No transaction in progress.");
+        }
+        if (--transactionDepth > 0) {
+            nestedStarts.pop(); // 内側の段のコマンドは外側のまとめに残る
+            return;
+        }
+        CompositeCommand committed = transaction;
+        transaction = null;
+        if (view != null) view.flushDeferredUpdates();
+        if (!committed.isEmpty()) {
+            // 1件だけなら包まずに積む (連続した移動などの統合がそのまま効くように)
+            recordExecuted(committed.size() == 1 ? committed.getCommands().get(0) : committed);
+        }
+    }
+
+    /**
+     * 一番内側のトランザクションで実行したコマンドを逆順に取り消し、その段の開始前の状態に戻します。
+     * 外側の段はそのまま続き、外側でコミットすれば外側の段のコマンドだけが1つの履歴になります。
+     */
+    public void rollbackTransaction() {
+        if (transactionDepth == 0) {
+            throw new IllegalStateException("No transaction in progress.");
+        }
+        if (transactionDepth > 1) {
+            // 段を先に閉じておく (取り消しが例外で止まっても、外側のロールバックは行える)
+            int start = nestedStarts.pop();
+            transactionDepth--;
+            int count = transaction.size() - start;
+            transaction.rollbackTo(start);
+            System.out.println("UndoManager: Rolled back nested transaction in '" + transaction.getDescription() + "' (" + count + " commands).");
+            return;
+        }
+        CompositeCommand rolledBack = transaction;
+        transaction = null;
+        transactionDepth = 0;
+        rolledBack.undo();
+        if (view != null) view.flushDeferredUpdates();
+        if (!rolledBack.isEmpty()) {
+            if (view != null) view.notifyNotesEdited();
+            if (view != null) view.repaint();
+        }
+        System.out.println("UndoManager: Rolled back transaction '" + rolledBack.getDescription() + "' (" + rolledBack.size() + " commands).");
+    }
+
+    /**
+     * edits をトランザクション内で実行します。例外が発生した場合はこの段をロールバックしてから再スローします。
+     * ロールバック中の例外は元の例外に抑制された例外として付け、元の例外を隠しません。
+     */
+    public void runInTransaction(String description, Runnable edits) {
+        beginTransaction(description);
+        try {
+            edits.run();
+        } catch (RuntimeException | Error e) {
+            try {
+                rollbackTransaction();
+            } catch (RuntimeException | Error rollbackFailure) {
+                e.addSuppressed(rollbackFailure);
+            }
+            throw e;
+        }
+        commitTransaction();
+    }
+
+    public boolean isInTransaction() {
+        return transaction != null;
+    }
+
+    /** 実行済みのコマンドを履歴に積み (直前のコマンドに統合できれば統合し)、画面などを更新します。 */
+    private void recordExecuted(Command command) {
+        long now = System.currentTimeMillis();
+        // 直前に実行したコマンドがまだ履歴の先頭にあり (Undo されておらず)、時間も近ければ統合を試みる
+        boolean merged = false;
+        if (redoStack.isEmpty() && !undoStack.isEmpty() && undoStack.peek() == lastExecuted
+                && now - lastExecutedMillis <= COALESCE_WINDOW_MILLIS) {
+            long before = lastExecuted.retainedSizeBytes();
+            merged = lastExecuted.mergeWith(command);
+            if (merged) {
+                retainedBytes += lastExecuted.retainedSizeBytes() - before;
+            }
+        }
+        if (!merged) {
+            undoStack.push(command);
+            retainedBytes += command.retainedSizeBytes();
+            lastExecuted = command;
+        }
+        lastExecutedMillis = now;
+        for (Command discarded : redoStack) {
+            retainedBytes -= discarded.retainedSizeBytes();
+        }
         redoStack.clear();
+        trimToBudget();
+        fireHistoryChanged(merged ? Action.MERGE : Action.EXECUTE, command);
         updateUndoRedoStates();
+        if (view != null) view.notifyNotesEdited();
         if (view != null) view.repaint();
     }
 
     public void undo() {
+        if (transaction != null) {
+            System.err.println("UndoManager: Cannot undo while a transaction is in progress.");
+            return;
+        }
         if (!undoStack.isEmpty()) {
             Command command = undoStack.pop();
+            // 保持量は Undo で変わりうるので、前後で測り直す
+            retainedBytes -= command.retainedSizeBytes();
             command.undo();
+            lastExecuted = null; // Undo を挟んだら統合しない
             redoStack.push(command);
+            retainedBytes += command.retainedSizeBytes();
+            trimToBudget();
+            fireHistoryChanged(Action.UNDO, command);
             updateUndoRedoStates();
-            view.repaint();
+            if (view != null) view.notifyNotesEdited();
+            if (view != null) view.repaint();
         }
     }
 
     public void redo() {
+        if (transaction != null) {
+            System.err.println("UndoManager: Cannot redo while a transaction is in progress.");
+            return;
+        }
         if (!redoStack.isEmpty()) {
             Command command = redoStack.pop();
+            retainedBytes -= command.retainedSizeBytes();
             command.execute(); // または command.redo()
             undoStack.push(command);
+            retainedBytes += command.retainedSizeBytes();
+            lastExecuted = null;
+            trimToBudget();
+            fireHistoryChanged(Action.REDO, command);
             updateUndoRedoStates();
-            view.repaint();
+            if (view != null) view.notifyNotesEdited();
+            if (view != null) view.repaint();
         }
     }
 
@@ -48,16 +225,59 @@ public class UndoManager {
         return !redoStack.isEmpty();
     }
 
+    /**
+     * 履歴が保持してよいメモリ量を設定します。超えた分は古い履歴から捨てられます
+     * (直前の1手は予算を超えていても残します)。
+     */
+    public void setMemoryBudgetBytes(long memoryBudgetBytes) {
+        this.memoryBudgetBytes = memoryBudgetBytes;
+        trimToBudget();
+    }
+
+    public long getMemoryBudgetBytes() {
+        return memoryBudgetBytes;
+    }
+
+    /** 履歴が現在保持しているおおよそのメモリ量 (バイト)。 */
+    public long getRetainedBytes() {
+        return retainedBytes;
+    }
+
     // ★★★ このメソッドを追加 ★★★
     public void clearStacks() {
         undoStack.clear();
         redoStack.clear();
+        retainedBytes = 0;
+        lastExecuted = null;
         // updateUndoRedoStates(); // クリア後なので、メニューは無効になるはず。呼び出しは任意。
         // PianoRoll側でクリア後に updateUndoRedoMenuItems(false, false) を呼んでいるので、
         // ここで再度呼ぶ必要はないかもしれません。
     }
     // ★★★ ここまで ★★★
 
+    /**
+     * 予算を超えている間、最も古い履歴から捨てます。
+     * 合計は積む/降ろすたびに増減させているので、ここでは数え直しません (捨てる分だけの計算で済む)。
+     */
+    private void trimToBudget() {
+        int dropped = 0;
+        while (retainedBytes > memoryBudgetBytes && undoStack.size() > 1) {
+            Command oldest = undoStack.removeLast();
+            retainedBytes -= oldest.retainedSizeBytes();
+            dropped++;
+        }
+        if (dropped > 0) {
+            System.out.println("UndoManager: Dropped " + dropped + " oldest history entries to stay within "
+                    + (memoryBudgetBytes / 1024) + " KB (retained: " + (retainedBytes / 1024) + " KB, depth: " + undoStack.size() + ").");
+        }
+    }
+
+    private void fireHistoryChanged(Action action, Command command) {
+        if (historyListener != null) {
+            historyListener.historyChanged(action, command);
+        }
+    }
+
     private void updateUndoRedoStates() {
         if (view != null && view.getParentFrame() != null) { // nullチェックを追加
             view.getParentFrame().updateUndoRedoMenuItems(canUndo(), canRedo());
@@ -67,4 +287,4 @@ public class UndoManager {
             System.err.println("UndoManager: PianoRollView's parent frame is null, cannot update menu items.");
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,566 @@
+package org.codesfactory.ux.pianoroll.journal;
+
+import org.codesfactory.ux.pianoroll.Note;
+import org.codesfactory.ux.pianoroll.Track;
+import org.codesfactory.ux.pianoroll.commands.ChangeSink;
+import org.codesfactory.ux.pianoroll.commands.Command;
+import org.codesfactory.ux.pianoroll.commands.UndoManager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * 編集履歴を追記専用のファイルに書き出すジャーナル (クラッシュからの復元と、メモリに収まらない古い履歴用)。
+ *
+ * セッションの開始時にトラック全体をチェックポイントとして保存し、以後は履歴が変わるたびに
+ * 変わった部分 (コマンドが {@link Command#reportChanges} で報告したノートと、トラックの状態) だけを、
+ * 前後の値を持つバイナリのレコードとしてメモリマップしたファイルに追記します。
+ * ノートはIDごと記録するので、復元後のノートも記録時と同じIDを持ちます。
+ * 起動時にファイルが残っていれば (正常終了しなかった場合)、チェックポイントにレコードを順に適用して復元できます。
+ *
+ * UndoManager の履歴がメモリ予算で捨てられた後も、{@link #rewind()} でジャーナルをさかのぼって取り消せます。
+ * 最近のレコードはメモリにキャッシュし、それより古いものは必要になったときにファイルから読みます。
+ * EDT 上で使ってください。
+ */
+public final class EditJournal {
+
+    /** レコードの種類。UndoManager の操作と、ジャーナル自身の取り消し (REWIND) です。 */
+    public enum Kind { EXECUTE, MERGE, UNDO, REDO, REWIND }
+
+    private static final int MAGIC = 0x434A4E32; // "CJN2"
+    private static final int HEADER_BYTES = 4;
+    private static final int RECORD_HEADER_BYTES = 8; // 本体の長さ + CRC32
+    private static final long INITIAL_CAPACITY = 4L * 1024 * 1024;
+    private static final long MAX_CAPACITY = 1L << 30;
+    private static final int RECENT_CACHE_SIZE = 64;
+
+    private final Path journalFile;
+    private final Path checkpointFile;
+    private final FileChannel channel;
+    private final FileLock lock;
+    private MappedByteBuffer map;
+    private int writePosition;
+
+    // レコードの位置 (ファイル先頭からのオフセット)。1レコード8バイトなのでメモリはほとんど増えない
+    private long[] offsets = new long[256];
+    private int recordCount = 0;
+    private final Map<Integer, JournalRecord> recentRecords = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, JournalRecord> eldest) {
+            return size() > RECENT_CACHE_SIZE;
+        }
+    };
+
+    // 現在の状態を作っている (取り消されていない) レコードの列。rewind() は末尾から戻す
+    private int[] pathRecords = new int[256];
+    private int[] pathHistories = new int[256];
+    private boolean[] pathMerged = new boolean[256];
+    private int pathSize = 0;
+
+    // 記録中のトラックと、最後に記録した時点のトラックの並び/状態 (ノートは持たない)
+    private List<Track> tracks;
+    private List<TrackHeader> headers = new ArrayList<>();
+    private final Map<String, Track> knownTracks = new HashMap<>();
+    private int nextHistoryId = 1;
+
+    /**
+     * ジャーナルを開きます。ファイルが残っていれば、壊れていないレコードまでを読み込みます。
+     * @throws IOException 開けない場合や、別のプロセスが使用中の場合
+     */
+    public EditJournal(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        this.journalFile = directory.resolve("edits.journal");
+        this.checkpointFile = directory.resolve("checkpoint.bin");
+        this.channel = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.lock = channel.tryLock();
+        if (lock == null) {
+            channel.close();
+            throw new IOException("Journal is in use by another process: " + journalFile);
+        }
+        this.map = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(INITIAL_CAPACITY, channel.size()));
+        if (map.getInt(0) != MAGIC) {
+            map.putInt(0, MAGIC);
+            map.putInt(HEADER_BYTES, 0);
+            writePosition = HEADER_BYTES;
+        } else {
+            scanRecords();
+        }
+    }
+
+    /** ~/.compass/journal のジャーナルを開きます。開けなければ null を返します (ジャーナル無しで動作します)。 */
+    public static EditJournal openDefault() {
+        Path directory = Paths.get(System.getProperty("user.home"), ".compass", "journal");
+        try {
+            return new EditJournal(directory);
+        } catch (IOException e) {
+            System.err.println("EditJournal: Journal disabled: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /** 前回のセッションが正常終了せず、復元できる編集が残っていれば true。 */
+    public boolean hasRecoverableEdits() {
+        return recordCount > 0 && Files.exists(checkpointFile);
+    }
+
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * チェックポイントに残っているレコードをすべて適用して tracks を復元し、そのまま記録を続けます。
+     * 復元前の履歴も {@link #rewind()} でさかのぼれます。
+     */
+    public void recoverInto(List<Track> tracks) throws IOException {
+        List<Track> restored = readCheckpoint();
+        for (int i = 0; i < recordCount; i++) {
+            JournalRecord record = readRecord(i);
+            record.apply(restored, false);
+            replayPath(i, record.kind, record.historyId);
+            nextHistoryId = Math.max(nextHistoryId, record.historyId + 1);
+        }
+        tracks.clear();
+        tracks.addAll(restored);
+        this.tracks = tracks;
+        captureHeaders();
+        System.out.println("EditJournal: Recovered " + recordCount + " edits onto the last checkpoint (" + tracks.size() + " tracks).");
+    }
+
+    /**
+     * 新しいセッションを始めます (新規プロジェクトや、復元しなかった起動時)。
+     * 現在の tracks をチェックポイントとして保存し、それまでのレコードを捨てます。
+     * 以後、tracks (呼び出し側が持つ編集中のリスト) の変化を記録します。
+     */
+    public void startSession(List<Track> tracks) {
+        this.tracks = tracks;
+        try {
+            writeCheckpoint(tracks);
+        } catch (IOException e) {
+            System.err.println("EditJournal: Failed to write checkpoint: " + e.getMessage());
+        }
+        resetRecords();
+        captureHeaders();
+    }
+
+    /** UndoManager に登録する、新しい履歴用のリスナーを返します (ウィンドウごとに1つ)。 */
+    public UndoManager.HistoryListener newHistory() {
+        int historyId = nextHistoryId++;
+        return (action, command) -> record(Kind.valueOf(action.name()), historyId, command);
+    }
+
+    /**
+     * command の直前の実行 (Undo なら取り消し) による変更を1レコードとして追記します。
+     * 変更が無くても、Undo との対応を保つため空のレコードを書きます。
+     */
+    public void record(Kind kind, int historyId, Command command) {
+        if (tracks == null) {
+            return;
+        }
+        append(new JournalRecord(kind, historyId, captureChanges(command, kind == Kind.UNDO)));
+    }
+
+    private void append(JournalRecord record) {
+        try {
+            if (!write(record)) {
+                return;
+            }
+        } catch (IOException e) {
+            System.err.println("EditJournal: Failed to append record: " + e.getMessage());
+            return;
+        }
+        replayPath(recordCount - 1, record.kind, record.historyId);
+    }
+
+    /** メモリ上の履歴より前へ、ジャーナルをさかのぼって取り消せるか。 */
+    public boolean canRewind() {
+        return pathSize > 0;
+    }
+
+    /**
+     * 現在の状態を作っている最新のレコードを1つ取り消します。
+     * その後の編集と食い違っていて安全に戻せない場合は何もせず false を返します。
+     * 取り消しもレコードとして追記するので、クラッシュ後の復元にも反映されます。
+     */
+    public boolean rewind() {
+        if (pathSize == 0 || tracks == null) {
+            return false;
+        }
+        int index = pathRecords[pathSize - 1];
+        int historyId = pathHistories[pathSize - 1];
+        JournalRecord record;
+        try {
+            record = readRecord(index);
+        } catch (IOException e) {
+            System.err.println("EditJournal: Failed to read record " + index + ": " + e.getMessage());
+            return false;
+        }
+        if (!record.canRevert(tracks)) {
+            System.out.println("EditJournal: Record " + index + " conflicts with later edits. Cannot rewind further.");
+            return false;
+        }
+        record.apply(tracks, true);
+        append(new JournalRecord(Kind.REWIND, historyId, record.inverseOps()));
+        captureHeaders();
+        return true;
+    }
+
+    /** 正常終了時に呼び出します。ジャーナルを空にしてファイルを削除します。 */
+    public void closeAndDiscard() {
+        resetRecords();
+        close();
+        try {
+            Files.deleteIfExists(checkpointFile);
+            Files.deleteIfExists(journalFile);
+        } catch (IOException e) {
+            System.err.println("EditJournal: Failed to delete journal files: " + e.getMessage());
+        }
+    }
+
+    public void close() {
+        try {
+            map.force();
+            lock.release();
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("EditJournal: Failed to close journal: " + e.getMessage());
+        }
+    }
+
+    // --- 変更の記録 ---
+
+    private void captureHeaders() {
+        headers = TrackHeader.of(tracks);
+        knownTracks.clear();
+        for (Track track : tracks) {
+            knownTracks.put(track.getId(), track);
+        }
+    }
+
+    /**
+     * command が報告したノートの変更と、トラックの並び/状態の変化から1レコード分の変更を組み立てます。
+     * ノートはコマンドが変えた分だけを記録するので、プロジェクト全体のノートを比べ直すことはありません。
+     * トラックのヘッダー (トラック数 + リージョン数の大きさ) だけは毎回比べ、トラックの追加/削除を検出します。
+     * 削除されたトラックのノート → トラックの並び/状態 → 追加されたトラックのノート → 残ったトラックのノート
+     * の順に並べるので、逆順に適用すれば取り消しになります。
+     */
+    private List<JournalRecord.Op> captureChanges(Command command, boolean undone) {
+        Map<List<Note>, Track> owners = new IdentityHashMap<>();
+        for (Track track : knownTracks.values()) {
+            owners.put(track.getNotes(), track);
+        }
+        for (Track track : tracks) {
+            owners.put(track.getNotes(), track);
+        }
+        ReportedChanges reported = new ReportedChanges(owners);
+        if (command != null) {
+            command.reportChanges(reported, undone);
+        }
+        reported.flush();
+
+        Map<String, Track> live = new LinkedHashMap<>();
+        for (Track track : tracks) {
+            live.put(track.getId(), track);
+        }
+        Set<Track> removed = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Track track : knownTracks.values()) {
+            if (live.get(track.getId()) != track) {
+                removed.add(track);
+            }
+        }
+        Set<Track> added = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Track track : tracks) {
+            if (knownTracks.get(track.getId()) != track) {
+                added.add(track);
+            }
+        }
+
+        List<JournalRecord.Op> ops = new ArrayList<>();
+        for (Track track : removed) {
+            for (int i = 0; i < reported.tracks.size(); i++) {
+                if (reported.tracks.get(i) == track) {
+                    ops.add(reported.ops.get(i));
+                }
+            }
+            ops.add(new JournalRecord.NotesOp(track.getId(), false, sequence(track.getNotes().size()), NoteBlock.capture(track.getNotes())));
+        }
+        List<TrackHeader> current = TrackHeader.of(tracks);
+        if (!current.equals(headers)) {
+            ops.add(new JournalRecord.HeadersOp(headers, current));
+        }
+        for (Track track : added) {
+            ops.add(new JournalRecord.NotesOp(track.getId(), true, sequence(track.getNotes().size()), NoteBlock.capture(track.getNotes())));
+        }
+        for (int i = 0; i < reported.tracks.size(); i++) {
+            Track track = reported.tracks.get(i);
+            if (!removed.contains(track) && !added.contains(track)) { // 追加/削除されたトラックは中身ごと記録済み
+                ops.add(reported.ops.get(i));
+            }
+        }
+        headers = current;
+        knownTracks.clear();
+        knownTracks.putAll(live);
+        return ops;
+    }
+
+    private static int[] sequence(int count) {
+        int[] positions = new int[count];
+        for (int i = 0; i < count; i++) {
+            positions[i] = i;
+        }
+        return positions;
+    }
+
+    /** コマンドからの報告を、報告された順にトラックごとのレコードの変更にします。 */
+    private static final class ReportedChanges implements ChangeSink {
+        private final Map<List<Note>, Track> owners;
+        final List<Track> tracks = new ArrayList<>();
+        final List<JournalRecord.Op> ops = new ArrayList<>();
+        // 同じトラックへの続けての値の変更は1つにまとめる
+        private Track changedTrack;
+        private NoteBlock changedBefore;
+        private NoteBlock changedAfter;
+
+        ReportedChanges(Map<List<Note>, Track> owners) {
+            this.owners = owners;
+        }
+
+        @Override
+        public void notesRemoved(List<Note> notes, int[] positions, List<Note> items) {
+            addNotesOp(notes, false, positions, items);
+        }
+
+        @Override
+        public void notesInserted(List<Note> notes, int[] positions, List<Note> items) {
+            addNotesOp(notes, true, positions, items);
+        }
+
+        @Override
+        public void noteChanged(List<Note> notes, Note note, long oldStart, int oldPitch, long oldDuration,
+                                long newStart, int newPitch, long newDuration) {
+            Track track = ownerOf(notes);
+            if (track == null) {
+                return;
+            }
+            if (track != changedTrack) {
+                flush();
+                changedTrack = track;
+                changedBefore = new NoteBlock(1);
+                changedAfter = new NoteBlock(1);
+            }
+            changedBefore.append(note.getId(), oldStart, oldDuration, oldPitch, note.getVelocity(), note.getChannel());
+            changedAfter.append(note.getId(), newStart, newDuration, newPitch, note.getVelocity(), note.getChannel());
+        }
+
+        void flush() {
+            if (changedTrack != null) {
+                tracks.add(changedTrack);
+                ops.add(new JournalRecord.FieldsOp(changedTrack.getId(), changedBefore, changedAfter));
+                changedTrack = null;
+            }
+        }
+
+        private void addNotesOp(List<Note> notes, boolean insert, int[] positions, List<Note> items) {
+            Track track = ownerOf(notes);
+            if (track == null || items.isEmpty()) {
+                return;
+            }
+            flush();
+            tracks.add(track);
+            ops.add(new JournalRecord.NotesOp(track.getId(), insert, positions.clone(), NoteBlock.capture(items)));
+        }
+
+        private Track ownerOf(List<Note> notes) {
+            Track track = owners.get(notes);
+            if (track == null) {
+                System.err.println("EditJournal: Change to a note list outside the project was not journaled.");
+            }
+            return track;
+        }
+    }
+
+    // --- 現在の状態を作っているレコードの列 ---
+
+    private void replayPath(int index, Kind kind, int historyId) {
+        switch (kind) {
+            case EXECUTE:
+            case REDO:
+                pushPath(index, historyId, false);
+                break;
+            case MERGE:
+                pushPath(index, historyId, true);
+                break;
+            case UNDO:
+                cancelLatest(historyId);
+                break;
+            case REWIND:
+                if (pathSize > 0) {
+                    pathSize--; // rewind() は常に末尾を戻す
+                }
+                break;
+        }
+    }
+
+    private void pushPath(int index, int historyId, boolean merged) {
+        if (pathSize == pathRecords.length) {
+            pathRecords = Arrays.copyOf(pathRecords, pathSize * 2);
+            pathHistories = Arrays.copyOf(pathHistories, pathSize * 2);
+            pathMerged = Arrays.copyOf(pathMerged, pathSize * 2);
+        }
+        pathRecords[pathSize] = index;
+        pathHistories[pathSize] = historyId;
+        pathMerged[pathSize] = merged;
+        pathSize++;
+    }
+
+    /** その履歴の最新の操作 (統合された実行を含む) を列から外します。Undo はその履歴の最新の操作を戻すため。 */
+    private void cancelLatest(int historyId) {
+        for (int i = pathSize - 1; i >= 0; i--) {
+            if (pathHistories[i] != historyId) {
+                continue;
+            }
+            boolean merged = pathMerged[i];
+            System.arraycopy(pathRecords, i + 1, pathRecords, i, pathSize - i - 1);
+            System.arraycopy(pathHistories, i + 1, pathHistories, i, pathSize - i - 1);
+            System.arraycopy(pathMerged, i + 1, pathMerged, i, pathSize - i - 1);
+            pathSize--;
+            if (!merged) {
+                return;
+            }
+        }
+    }
+
+    // --- ファイル ---
+
+    private void scanRecords() {
+        int position = HEADER_BYTES;
+        CRC32 crc = new CRC32();
+        while (position + RECORD_HEADER_BYTES <= map.capacity()) {
+            int length = map.getInt(position);
+            if (length <= 0 || (long) position + RECORD_HEADER_BYTES + length > map.capacity()) {
+                break;
+            }
+            ByteBuffer body = map.duplicate();
+            body.position(position + RECORD_HEADER_BYTES).limit(position + RECORD_HEADER_BYTES + length);
+            crc.reset();
+            crc.update(body);
+            if ((int) crc.getValue() != map.getInt(position + 4)) {
+                System.err.println("EditJournal: Torn record at offset " + position + ". Ignoring the rest of the journal.");
+                break;
+            }
+            addOffset(position);
+            position += RECORD_HEADER_BYTES + length;
+        }
+        writePosition = position;
+    }
+
+    /** @return 追記した場合 true。容量の上限に達してチェックポイントを取り直した場合は false */
+    private boolean write(JournalRecord record) throws IOException {
+        byte[] body = record.encode();
+        long needed = (long) writePosition + RECORD_HEADER_BYTES + body.length + 4;
+        if (needed > map.capacity()) {
+            if (needed > MAX_CAPACITY) {
+                System.out.println("EditJournal: Journal reached " + (MAX_CAPACITY >> 20) + " MB. Starting a new checkpoint.");
+                startSession(tracks);
+                return false;
+            }
+            long capacity = map.capacity();
+            while (capacity < needed) {
+                capacity *= 2;
+            }
+            map.force();
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.min(capacity, MAX_CAPACITY));
+        }
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        int position = writePosition;
+        map.put(position + RECORD_HEADER_BYTES, body);
+        map.putInt(position + 4, (int) crc.getValue());
+        map.putInt(position + RECORD_HEADER_BYTES + body.length, 0); // 終端
+        map.putInt(position, body.length); // 長さを最後に書く (途中で落ちても不完全なレコードは読まれない)
+        writePosition = position + RECORD_HEADER_BYTES + body.length;
+        addOffset(position);
+        recentRecords.put(recordCount - 1, record);
+        return true;
+    }
+
+    private JournalRecord readRecord(int index) throws IOException {
+        JournalRecord cached = recentRecords.get(index);
+        if (cached != null) {
+            return cached;
+        }
+        int position = (int) offsets[index];
+        byte[] body = new byte[map.getInt(position)];
+        map.get(position + RECORD_HEADER_BYTES, body);
+        JournalRecord record = JournalRecord.decode(body);
+        recentRecords.put(index, record);
+        return record;
+    }
+
+    private void addOffset(long position) {
+        if (recordCount == offsets.length) {
+            offsets = Arrays.copyOf(offsets, recordCount * 2);
+        }
+        offsets[recordCount++] = position;
+    }
+
+    private void resetRecords() {
+        map.putInt(HEADER_BYTES, 0);
+        writePosition = HEADER_BYTES;
+        recordCount = 0;
+        recentRecords.clear();
+        pathSize = 0;
+    }
+
+    private void writeCheckpoint(List<Track> tracks) throws IOException {
+        Path temp = checkpointFile.resolveSibling("checkpoint.tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            TrackHeader.writeAll(TrackHeader.of(tracks), out);
+            for (Track track : tracks) {
+                NoteBlock.capture(track.getNotes()).write(out);
+            }
+        }
+        Files.move(temp, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private List<Track> readCheckpoint() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(checkpointFile)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a journal checkpoint: " + checkpointFile);
+            }
+            List<TrackHeader> headers = TrackHeader.readAll(in);
+            List<Track> restored = new ArrayList<>(headers.size());
+            for (TrackHeader header : headers) {
+                Track track = header.create();
+                NoteBlock notes = NoteBlock.read(in);
+                for (int i = 0; i < notes.size(); i++) {
+                    track.getNotes().add(notes.toNote(i));
+                }
+                restored.add(track);
+            }
+            return restored;
+        }
+    }
+}
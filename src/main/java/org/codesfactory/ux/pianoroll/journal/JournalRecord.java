@@ -0,0 +1,371 @@
+package org.codesfactory.ux.pianoroll.journal;
+
+import org.codesfactory.ux.pianoroll.Note;
+import org.codesfactory.ux.pianoroll.Track;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * ジャーナルの1レコード (1回の履歴操作で変わった部分)。
+ *
+ * 変更前と変更後の両方を持つので、先頭から順に適用すればチェックポイントから現在の状態を再現でき、
+ * 逆向きに適用すれば変更を取り消せます。ノートの変更はコマンドが報告したノートの挿入・削除・値の変更を、
+ * ノートのIDとともに記録します。
+ */
+final class JournalRecord {
+
+    private static final byte OP_NOTES = 1;
+    private static final byte OP_HEADERS = 2;
+    private static final byte OP_FIELDS = 3;
+
+    final EditJournal.Kind kind;
+    final int historyId;
+    final List<Op> ops;
+
+    JournalRecord(EditJournal.Kind kind, int historyId, List<Op> ops) {
+        this.kind = kind;
+        this.historyId = historyId;
+        this.ops = ops;
+    }
+
+    /** 本体の先頭は kind (1バイト) と historyId (4バイト)。ジャーナルはここだけを読んで履歴をたどります。 */
+    byte[] encode() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(kind.ordinal());
+        out.writeInt(historyId);
+        out.writeInt(ops.size());
+        for (Op op : ops) {
+            op.write(out);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    static JournalRecord decode(byte[] body) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        EditJournal.Kind kind = EditJournal.Kind.values()[in.readByte()];
+        int historyId = in.readInt();
+        int count = in.readInt();
+        List<Op> ops = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte type = in.readByte();
+            if (type == OP_NOTES) {
+                ops.add(NotesOp.read(in));
+            } else if (type == OP_HEADERS) {
+                ops.add(HeadersOp.read(in));
+            } else if (type == OP_FIELDS) {
+                ops.add(FieldsOp.read(in));
+            } else {
+                throw new IOException("Unknown journal op: " + type);
+            }
+        }
+        return new JournalRecord(kind, historyId, ops);
+    }
+
+    /** 現在の状態がこのレコードの変更後の状態と一致していれば (逆適用しても壊れなければ) true。 */
+    boolean canRevert(List<Track> tracks) {
+        for (Op op : ops) {
+            if (!op.matchesAfter(tracks)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** 順方向 (inverse=false) または逆方向に適用します。 */
+    void apply(List<Track> tracks, boolean inverse) {
+        if (inverse) {
+            for (int i = ops.size() - 1; i >= 0; i--) {
+                ops.get(i).apply(tracks, true);
+            }
+        } else {
+            for (Op op : ops) {
+                op.apply(tracks, false);
+            }
+        }
+    }
+
+    /** このレコードを取り消す変更 (ops を逆順にし、それぞれを逆向きにしたもの)。 */
+    List<Op> inverseOps() {
+        List<Op> inverse = new ArrayList<>(ops.size());
+        for (int i = ops.size() - 1; i >= 0; i--) {
+            inverse.add(ops.get(i).inverse());
+        }
+        return inverse;
+    }
+
+    static Track findTrack(List<Track> tracks, String id) {
+        for (Track track : tracks) {
+            if (track.getId().equals(id)) {
+                return track;
+            }
+        }
+        return null;
+    }
+
+    abstract static class Op {
+        abstract void write(DataOutput out) throws IOException;
+
+        abstract boolean matchesAfter(List<Track> tracks);
+
+        abstract void apply(List<Track> tracks, boolean inverse);
+
+        abstract Op inverse();
+    }
+
+    /** ノートの挿入 (insert) または削除。ノートはIDで探し、位置は削除前/挿入後のものを手がかりに使います。 */
+    static final class NotesOp extends Op {
+        final String trackId;
+        final boolean insert;
+        final int[] positions;
+        final NoteBlock notes;
+
+        NotesOp(String trackId, boolean insert, int[] positions, NoteBlock notes) {
+            this.trackId = trackId;
+            this.insert = insert;
+            this.positions = positions;
+            this.notes = notes;
+        }
+
+        @Override
+        void write(DataOutput out) throws IOException {
+            out.writeByte(OP_NOTES);
+            out.writeUTF(trackId);
+            out.writeBoolean(insert);
+            out.writeInt(positions.length);
+            for (int position : positions) {
+                out.writeInt(position);
+            }
+            notes.write(out);
+        }
+
+        static NotesOp read(DataInput in) throws IOException {
+            String trackId = in.readUTF();
+            boolean insert = in.readBoolean();
+            int[] positions = new int[in.readInt()];
+            for (int i = 0; i < positions.length; i++) {
+                positions[i] = in.readInt();
+            }
+            return new NotesOp(trackId, insert, positions, NoteBlock.read(in));
+        }
+
+        @Override
+        boolean matchesAfter(List<Track> tracks) {
+            Track track = findTrack(tracks, trackId);
+            if (track == null) {
+                return !insert; // 削除されたトラックのノートは「無い」状態として扱う
+            }
+            Set<Long> present = new HashSet<>();
+            for (Note note : track.getNotes()) {
+                present.add(note.getId());
+            }
+            for (int i = 0; i < notes.size(); i++) {
+                if (present.contains(notes.id(i)) != insert) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        void apply(List<Track> tracks, boolean inverse) {
+            Track track = findTrack(tracks, trackId);
+            if (track == null) {
+                System.err.println("JournalRecord: Track " + trackId + " not found. Skipping note change.");
+                return;
+            }
+            if (insert != inverse) {
+                insertNotes(track.getNotes());
+            } else {
+                removeNotes(track.getNotes());
+            }
+        }
+
+        @Override
+        Op inverse() {
+            return new NotesOp(trackId, !insert, positions, notes);
+        }
+
+        private void insertNotes(List<Note> list) {
+            if (notes.size() <= 16) {
+                for (int i = 0; i < notes.size(); i++) {
+                    list.add(Math.min(positions[i], list.size()), notes.toNote(i));
+                }
+                return;
+            }
+            // 件数が多いときは1回のマージで組み立て直す
+            List<Note> merged = new ArrayList<>(list.size() + notes.size());
+            int next = 0;
+            for (Note note : list) {
+                while (next < notes.size() && positions[next] <= merged.size()) {
+                    merged.add(notes.toNote(next++));
+                }
+                merged.add(note);
+            }
+            while (next < notes.size()) {
+                merged.add(notes.toNote(next++));
+            }
+            list.clear();
+            list.addAll(merged);
+        }
+
+        private void removeNotes(List<Note> list) {
+            // 後ろから消せば、手がかりの位置は手前の削除でずれない
+            Set<Long> missed = null;
+            for (int i = notes.size() - 1; i >= 0; i--) {
+                int position = positions[i];
+                if (position >= 0 && position < list.size() && list.get(position).getId() == notes.id(i)) {
+                    list.remove(position);
+                } else {
+                    if (missed == null) {
+                        missed = new HashSet<>();
+                    }
+                    missed.add(notes.id(i));
+                }
+            }
+            if (missed != null) {
+                Set<Long> ids = missed;
+                list.removeIf(note -> ids.contains(note.getId()));
+            }
+        }
+    }
+
+    /** ノートの開始位置・ピッチ・長さの変更。前後で値が違う項目だけを書き換えます。 */
+    static final class FieldsOp extends Op {
+        final String trackId;
+        final NoteBlock before;
+        final NoteBlock after;
+
+        FieldsOp(String trackId, NoteBlock before, NoteBlock after) {
+            this.trackId = trackId;
+            this.before = before;
+            this.after = after;
+        }
+
+        @Override
+        void write(DataOutput out) throws IOException {
+            out.writeByte(OP_FIELDS);
+            out.writeUTF(trackId);
+            before.write(out);
+            after.write(out);
+        }
+
+        static FieldsOp read(DataInput in) throws IOException {
+            String trackId = in.readUTF();
+            NoteBlock before = NoteBlock.read(in);
+            NoteBlock after = NoteBlock.read(in);
+            return new FieldsOp(trackId, before, after);
+        }
+
+        @Override
+        boolean matchesAfter(List<Track> tracks) {
+            Track track = findTrack(tracks, trackId);
+            if (track == null) {
+                return false;
+            }
+            Map<Long, Note> byId = notesById(track.getNotes());
+            for (int i = 0; i < after.size(); i++) {
+                Note note = byId.get(after.id(i));
+                if (note == null
+                        || (before.start(i) != after.start(i) && note.getStartTimeTicks() != after.start(i))
+                        || (before.pitch(i) != after.pitch(i) && note.getPitch() != after.pitch(i))
+                        || (before.duration(i) != after.duration(i) && note.getDurationTicks() != after.duration(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        void apply(List<Track> tracks, boolean inverse) {
+            Track track = findTrack(tracks, trackId);
+            if (track == null) {
+                System.err.println("JournalRecord: Track " + trackId + " not found. Skipping note change.");
+                return;
+            }
+            NoteBlock target = inverse ? before : after;
+            Map<Long, Note> byId = notesById(track.getNotes());
+            for (int i = 0; i < target.size(); i++) {
+                Note note = byId.get(target.id(i));
+                if (note == null) {
+                    continue;
+                }
+                // 変わっていない項目は触らない (同じレコード内の別の変更で書き換わっていることがある)
+                if (before.start(i) != after.start(i)) {
+                    note.setStartTimeTicks(target.start(i));
+                }
+                if (before.pitch(i) != after.pitch(i)) {
+                    note.setPitch(target.pitch(i));
+                }
+                if (before.duration(i) != after.duration(i)) {
+                    note.setDurationTicks(target.duration(i));
+                }
+            }
+        }
+
+        @Override
+        Op inverse() {
+            return new FieldsOp(trackId, after, before);
+        }
+
+        private static Map<Long, Note> notesById(List<Note> notes) {
+            Map<Long, Note> byId = new HashMap<>(notes.size() * 2);
+            for (Note note : notes) {
+                byId.put(note.getId(), note);
+            }
+            return byId;
+        }
+    }
+
+    /** トラックの並びとノート以外の状態の変更。 */
+    static final class HeadersOp extends Op {
+        final List<TrackHeader> before;
+        final List<TrackHeader> after;
+
+        HeadersOp(List<TrackHeader> before, List<TrackHeader> after) {
+            this.before = before;
+            this.after = after;
+        }
+
+        @Override
+        void write(DataOutput out) throws IOException {
+            out.writeByte(OP_HEADERS);
+            TrackHeader.writeAll(before, out);
+            TrackHeader.writeAll(after, out);
+        }
+
+        static HeadersOp read(DataInput in) throws IOException {
+            List<TrackHeader> before = TrackHeader.readAll(in);
+            List<TrackHeader> after = TrackHeader.readAll(in);
+            return new HeadersOp(before, after);
+        }
+
+        @Override
+        boolean matchesAfter(List<Track> tracks) {
+            return TrackHeader.of(tracks).equals(after);
+        }
+
+        @Override
+        void apply(List<Track> tracks, boolean inverse) {
+            TrackHeader.applyAll(inverse ? before : after, tracks);
+        }
+
+        @Override
+        Op inverse() {
+            return new HeadersOp(after, before);
+        }
+    }
+}
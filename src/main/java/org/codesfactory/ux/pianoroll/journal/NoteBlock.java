@@ -0,0 +1,105 @@
+package org.codesfactory.ux.pianoroll.journal;
+
+import org.codesfactory.ux.pianoroll.Note;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * ノート列をプリミティブ配列で持つブロック (ジャーナルのレコードとチェックポイントのノート用)。
+ * 1ノートあたり 28 バイトで、Note オブジェクトを保持するより軽く済みます。
+ * ノートのIDも持つので、復元したノートは記録したときと同じIDになり、以後のレコードをIDで適用できます。
+ */
+final class NoteBlock {
+
+    private long[] ids;
+    private long[] starts;
+    private long[] durations;
+    private int[] packed; // pitch | velocity << 8 | channel << 16
+    private int size;
+
+    NoteBlock(int capacity) {
+        ids = new long[capacity];
+        starts = new long[capacity];
+        durations = new long[capacity];
+        packed = new int[capacity];
+    }
+
+    static NoteBlock capture(List<Note> notes) {
+        NoteBlock block = new NoteBlock(notes.size());
+        for (Note note : notes) {
+            block.append(note);
+        }
+        return block;
+    }
+
+    int size() {
+        return size;
+    }
+
+    long id(int i) {
+        return ids[i];
+    }
+
+    long start(int i) {
+        return starts[i];
+    }
+
+    long duration(int i) {
+        return durations[i];
+    }
+
+    int pitch(int i) {
+        return packed[i] & 0xFF;
+    }
+
+    void append(Note note) {
+        append(note.getId(), note.getStartTimeTicks(), note.getDurationTicks(),
+                note.getPitch(), note.getVelocity(), note.getChannel());
+    }
+
+    void append(long id, long start, long duration, int pitch, int velocity, int channel) {
+        if (size == ids.length) {
+            int capacity = Math.max(4, size + (size >> 1));
+            ids = Arrays.copyOf(ids, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            durations = Arrays.copyOf(durations, capacity);
+            packed = Arrays.copyOf(packed, capacity);
+        }
+        ids[size] = id;
+        starts[size] = start;
+        durations[size] = duration;
+        packed[size] = (pitch & 0xFF) | (velocity & 0xFF) << 8 | (channel & 0xFF) << 16;
+        size++;
+    }
+
+    Note toNote(int i) {
+        return Note.restore(ids[i], packed[i] & 0xFF, starts[i], durations[i], (packed[i] >>> 8) & 0xFF, (packed[i] >>> 16) & 0xFF);
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            out.writeLong(ids[i]);
+            out.writeLong(starts[i]);
+            out.writeLong(durations[i]);
+            out.writeInt(packed[i]);
+        }
+    }
+
+    static NoteBlock read(DataInput in) throws IOException {
+        int count = in.readInt();
+        NoteBlock block = new NoteBlock(count);
+        for (int i = 0; i < count; i++) {
+            block.ids[i] = in.readLong();
+            block.starts[i] = in.readLong();
+            block.durations[i] = in.readLong();
+            block.packed[i] = in.readInt();
+        }
+        block.size = count;
+        return block;
+    }
+}
@@ -0,0 +1,190 @@
+package org.codesfactory.ux.pianoroll.journal;
+
+import org.codesfactory.ux.pianoroll.MidiRegion;
+import org.codesfactory.ux.pianoroll.Track;
+
+import java.awt.Color;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * ノート以外のトラックの状態 (名前・音色・色・ミュート/ソロ・リージョン) の不変なスナップショット。
+ * トラックの並び順の変化もヘッダーの列の比較で検出します。
+ */
+final class TrackHeader {
+
+    final String id;
+    final String name;
+    final String instrument;
+    final int rgb;
+    final boolean muted;
+    final boolean soloed;
+    final String[] regionIds;
+    final long[] regionStarts;
+    final long[] regionEnds;
+
+    private TrackHeader(String id, String name, String instrument, int rgb, boolean muted, boolean soloed,
+                        String[] regionIds, long[] regionStarts, long[] regionEnds) {
+        this.id = id;
+        this.name = name;
+        this.instrument = instrument;
+        this.rgb = rgb;
+        this.muted = muted;
+        this.soloed = soloed;
+        this.regionIds = regionIds;
+        this.regionStarts = regionStarts;
+        this.regionEnds = regionEnds;
+    }
+
+    static TrackHeader of(Track track) {
+        List<MidiRegion> regions = track.getRegions();
+        String[] ids = new String[regions.size()];
+        long[] starts = new long[regions.size()];
+        long[] ends = new long[regions.size()];
+        for (int i = 0; i < ids.length; i++) {
+            MidiRegion region = regions.get(i);
+            ids[i] = region.getId();
+            starts[i] = region.getStartTick();
+            ends[i] = region.getEndTick();
+        }
+        return new TrackHeader(track.getId(), track.getName(), track.getInstrument(), track.getColor().getRGB(),
+                track.isMuted(), track.isSoloed(), ids, starts, ends);
+    }
+
+    static List<TrackHeader> of(List<Track> tracks) {
+        List<TrackHeader> headers = new ArrayList<>(tracks.size());
+        for (Track track : tracks) {
+            headers.add(of(track));
+        }
+        return headers;
+    }
+
+    /** このヘッダーの状態でトラックを新しく作ります (ノートは空)。 */
+    Track create() {
+        Track track = new Track(id, name);
+        applyTo(track);
+        return track;
+    }
+
+    /** トラックをこのヘッダーの状態に合わせます。同じIDのリージョンはインスタンスを使い回します。 */
+    void applyTo(Track track) {
+        track.setName(name);
+        track.setInstrument(instrument);
+        track.setColor(new Color(rgb, true));
+        track.setMuted(muted);
+        track.setSoloed(soloed);
+        Map<String, MidiRegion> existing = new HashMap<>();
+        for (MidiRegion region : track.getRegions()) {
+            existing.put(region.getId(), region);
+        }
+        List<MidiRegion> regions = new ArrayList<>(regionIds.length);
+        for (int i = 0; i < regionIds.length; i++) {
+            MidiRegion region = existing.get(regionIds[i]);
+            if (region == null) {
+                region = new MidiRegion(regionIds[i], regionStarts[i], regionEnds[i]);
+            } else {
+                region.setStartTick(regionStarts[i]);
+                region.setEndTick(regionEnds[i]);
+            }
+            regions.add(region);
+        }
+        track.getRegions().clear();
+        track.getRegions().addAll(regions);
+    }
+
+    /**
+     * トラックの並びと各トラックの状態を headers に合わせます。
+     * 残るトラックは同じインスタンスのまま、無くなったトラックは外し、新しいIDのトラックは作ります。
+     */
+    static void applyAll(List<TrackHeader> headers, List<Track> tracks) {
+        Map<String, Track> byId = new HashMap<>();
+        for (Track track : tracks) {
+            byId.put(track.getId(), track);
+        }
+        List<Track> ordered = new ArrayList<>(headers.size());
+        for (TrackHeader header : headers) {
+            Track track = byId.get(header.id);
+            if (track == null) {
+                track = header.create();
+            } else {
+                header.applyTo(track);
+            }
+            ordered.add(track);
+        }
+        tracks.clear();
+        tracks.addAll(ordered);
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeUTF(id);
+        out.writeUTF(name);
+        out.writeUTF(instrument);
+        out.writeInt(rgb);
+        out.writeBoolean(muted);
+        out.writeBoolean(soloed);
+        out.writeInt(regionIds.length);
+        for (int i = 0; i < regionIds.length; i++) {
+            out.writeUTF(regionIds[i]);
+            out.writeLong(regionStarts[i]);
+            out.writeLong(regionEnds[i]);
+        }
+    }
+
+    static TrackHeader read(DataInput in) throws IOException {
+        String id = in.readUTF();
+        String name = in.readUTF();
+        String instrument = in.readUTF();
+        int rgb = in.readInt();
+        boolean muted = in.readBoolean();
+        boolean soloed = in.readBoolean();
+        int count = in.readInt();
+        String[] ids = new String[count];
+        long[] starts = new long[count];
+        long[] ends = new long[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = in.readUTF();
+            starts[i] = in.readLong();
+            ends[i] = in.readLong();
+        }
+        return new TrackHeader(id, name, instrument, rgb, muted, soloed, ids, starts, ends);
+    }
+
+    static void writeAll(List<TrackHeader> headers, DataOutput out) throws IOException {
+        out.writeInt(headers.size());
+        for (TrackHeader header : headers) {
+            header.write(out);
+        }
+    }
+
+    static List<TrackHeader> readAll(DataInput in) throws IOException {
+        int count = in.readInt();
+        List<TrackHeader> headers = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            headers.add(read(in));
+        }
+        return headers;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof TrackHeader)) return false;
+        TrackHeader that = (TrackHeader) o;
+        return rgb == that.rgb && muted == that.muted && soloed == that.soloed
+                && id.equals(that.id) && Objects.equals(name, that.name) && Objects.equals(instrument, that.instrument)
+                && Arrays.equals(regionIds, that.regionIds) && Arrays.equals(regionStarts, that.regionStarts)
+                && Arrays.equals(regionEnds, that.regionEnds);
+    }
+
+    @Override
+    public int hashCode() {
+        return id.hashCode();
+    }
+}
@@ -0,0 +1,121 @@
+package org.codesfactory.ux.pianoroll.playback;
+
+import javax.sound.midi.MidiChannel;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Synthesizer;
+import javax.swing.SwingUtilities;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * プロセス全体で共有するオーディオエンジン (シンセサイザー1台 + スケジューラスレッド1本)。
+ *
+ * ArrangementFrame や PianoRoll はそれぞれ {@link #createTransport()} で軽量なトランスポートを受け取るだけで、
+ * シンセサイザーやサウンドバンクには触れません。シンセサイザーは最初に必要になった時点で
+ * バックグラウンドスレッド上で開かれるため、EDT が止まることはありません。
+ */
+public final class AudioEngine {
+
+    private static final AudioEngine INSTANCE = new AudioEngine();
+
+    private final MidiScheduler scheduler = new MidiScheduler();
+    private CompletableFuture<Void> openFuture; // this で保護
+    private volatile Synthesizer synthesizer;
+
+    private AudioEngine() {
+    }
+
+    public static AudioEngine getInstance() {
+        return INSTANCE;
+    }
+
+    /** 新しいトランスポートを作成します。オーディオ資源には触れないので EDT から呼んで構いません。 */
+    public Transport createTransport() {
+        return scheduler.createTransport();
+    }
+
+    /**
+     * シンセサイザーをバックグラウンドで開きます (既に開いている/開いている途中なら何もしません)。
+     * @return 開き終わると完了する Future
+     */
+    public synchronized CompletableFuture<Void> openAsync() {
+        if (openFuture == null || openFuture.isCompletedExceptionally()) {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            Thread opener = new Thread(() -> {
+                try {
+                    long startNanos = System.nanoTime();
+                    Synthesizer synth = MidiSystem.getSynthesizer();
+                    synth.open();
+                    scheduler.attach(synth.getReceiver(), synth::getMicrosecondPosition);
+                    synthesizer = synth;
+                    System.out.println("AudioEngine: Synthesizer opened in " + (System.nanoTime() - startNanos) / 1_000_000 + " ms.");
+                    future.complete(null);
+                } catch (MidiUnavailableException e) {
+                    System.err.println("AudioEngine: MIDI Unavailable: " + e.getMessage());
+                    future.completeExceptionally(e);
+                }
+            }, "Audio Engine Init");
+            opener.setDaemon(true);
+            opener.start();
+            openFuture = future;
+        }
+        return openFuture;
+    }
+
+    public boolean isReady() {
+        return synthesizer != null;
+    }
+
+    /**
+     * エンジンが開いた後に EDT 上で処理を実行します。既に開いていれば次のイベントで実行されます。
+     * 開くのに失敗した場合は実行されません。
+     */
+    public void whenReady(Runnable onEdt) {
+        openAsync().whenComplete((ignored, error) -> {
+            if (error == null) {
+                SwingUtilities.invokeLater(onEdt);
+            } else {
+                Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                System.err.println("AudioEngine: Not available: " + cause.getMessage());
+            }
+        });
+    }
+
+    /**
+     * プレビュー等で直接鳴らすためのチャンネルを返します。まだ開いていない場合は開き始めて null を返します。
+     */
+    public MidiChannel[] getChannels() {
+        Synthesizer synth = synthesizer;
+        if (synth == null) {
+            openAsync();
+            return null;
+        }
+        return synth.getChannels();
+    }
+
+    /** 全チャンネルの発音を止めます (全ウィンドウの再生音が止まります)。 */
+    public void allNotesOff() {
+        MidiChannel[] channels = synthesizer != null ? synthesizer.getChannels() : null;
+        if (channels == null) {
+            return;
+        }
+        for (MidiChannel channel : channels) {
+            if (channel != null) {
+                channel.allNotesOff();
+                channel.allSoundOff();
+            }
+        }
+    }
+
+    /** アプリケーション終了時に呼び出します。スケジューラを止めてシンセサイザーを閉じます。 */
+    public synchronized void shutdown() {
+        scheduler.close();
+        Synthesizer synth = synthesizer;
+        synthesizer = null;
+        if (synth != null && synth.isOpen()) {
+            synth.close();
+            System.out.println("AudioEngine: Synthesizer closed.");
+        }
+    }
+}
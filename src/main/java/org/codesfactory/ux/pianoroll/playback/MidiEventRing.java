@@ -0,0 +1,92 @@
+package org.codesfactory.ux.pianoroll.playback;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * MIDI入力イベント用のロックフリーなリングバッファ (単一プロデューサ・単一コンシューマ)。
+ *
+ * イベントはオブジェクトではなくプリミティブ配列 (時刻とパックしたショートメッセージ) に格納するので、
+ * 書き込み側 (MIDIデバイスのコールバックスレッド) はロックもメモリ確保も行いません。
+ * 満杯のときは待たずに破棄し、その数を {@link #getDroppedCount()} で返します。
+ */
+public final class MidiEventRing {
+
+    private final long[] nanos;
+    private final int[] messages;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(); // 次に読む位置 (コンシューマのみが進める)
+    private final AtomicLong tail = new AtomicLong(); // 次に書く位置 (プロデューサのみが進める)
+    private final AtomicLong dropped = new AtomicLong();
+    private long cachedHead = 0; // プロデューサ側のキャッシュ
+
+    /**
+     * @param capacityPowerOfTwo 容量 (2のべき乗に切り上げられます)
+     */
+    public MidiEventRing(int capacityPowerOfTwo) {
+        int capacity = Integer.highestOneBit(Math.max(2, capacityPowerOfTwo - 1)) << 1;
+        this.nanos = new long[capacity];
+        this.messages = new int[capacity];
+        this.mask = capacity - 1;
+    }
+
+    /** status / data1 / data2 を1つの int にパックします。 */
+    public static int pack(int status, int data1, int data2) {
+        return (status & 0xFF) | (data1 & 0x7F) << 8 | (data2 & 0x7F) << 16;
+    }
+
+    public static int status(int packed) {
+        return packed & 0xFF;
+    }
+
+    public static int data1(int packed) {
+        return (packed >>> 8) & 0x7F;
+    }
+
+    public static int data2(int packed) {
+        return (packed >>> 16) & 0x7F;
+    }
+
+    /**
+     * イベントを追加します (プロデューサスレッド専用)。
+     * @return 満杯で破棄した場合 false
+     */
+    public boolean offer(long eventNanos, int packedMessage) {
+        long t = tail.get();
+        if (t - cachedHead >= messages.length) {
+            cachedHead = head.get();
+            if (t - cachedHead >= messages.length) {
+                dropped.incrementAndGet();
+                return false;
+            }
+        }
+        int slot = (int) (t & mask);
+        nanos[slot] = eventNanos;
+        messages[slot] = packedMessage;
+        tail.lazySet(t + 1); // 書き込んだ内容を公開 (release)
+        return true;
+    }
+
+    /** 取り出したイベントを受け取るコールバック。 */
+    public interface Consumer {
+        void accept(long eventNanos, int packedMessage);
+    }
+
+    /**
+     * 溜まっているイベントを古い順にすべて取り出します (コンシューマスレッド専用)。
+     * @return 取り出した件数
+     */
+    public int drain(Consumer consumer) {
+        long h = head.get();
+        long t = tail.get();
+        for (long i = h; i < t; i++) {
+            int slot = (int) (i & mask);
+            consumer.accept(nanos[slot], messages[slot]);
+        }
+        head.lazySet(t);
+        return (int) (t - h);
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+}
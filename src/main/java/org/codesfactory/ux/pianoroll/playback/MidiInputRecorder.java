@@ -0,0 +1,247 @@
+package org.codesfactory.ux.pianoroll.playback;
+
+import org.codesfactory.ux.pianoroll.Note;
+
+import javax.sound.midi.MidiChannel;
+import javax.sound.midi.MidiDeviceTransmitter;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Transmitter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+
+/**
+ * MIDIキーボードからの入力をノートとして録音するレコーダー。
+ *
+ * 入力 {@link Transmitter} に自身を Receiver として接続し、コールバックではイベントの時刻とメッセージを
+ * {@link MidiEventRing} に書き込むだけにしています (ロックもメモリ確保もしません)。
+ * イベントの時刻にはデバイスが付けたタイムスタンプ (マイクロ秒) を使い、録音開始時に読んだデバイスの時計で
+ * System.nanoTime() の時刻に換算します。タイムスタンプが無い (-1) イベントは受信した時刻を使います。
+ * バックグラウンドのマージスレッドがリングを読み出し、ノートオン/オフの組をテンポマップで Tick に換算して
+ * ノートにまとめます。録音したテイクは {@link #stop()} で受け取り、呼び出し側でコマンド経由で確定させます。
+ * 入力はモニター用にプレビューチャンネルでも鳴らします。
+ */
+public class MidiInputRecorder implements Receiver {
+
+    private static final int RING_CAPACITY = 1 << 16;
+    private static final long MERGE_INTERVAL_NANOS = 2_000_000L;
+
+    private final MidiEventRing ring = new MidiEventRing(RING_CAPACITY);
+    private final TempoMap tempoMap;
+    private final long startTick;
+    private final double startSongMicros;
+    private final long startNanos;
+    private final MidiEventRing.Consumer merger = this::merge;
+    private final List<Note> take = new ArrayList<>(); // マージスレッドのみが書き込む (stop() 後に返す)
+    private final long[] openStartTick = new long[16 * 128];
+    private final int[] openVelocity = new int[16 * 128];
+    private Transmitter transmitter;
+    private Thread mergerThread;
+    private volatile boolean recording = false;
+    private volatile boolean monitoring = true;
+    private long lastEventNanos;
+    // デバイスのタイムスタンプ (マイクロ秒) * 1000 + deviceToNanos = System.nanoTime() の時刻
+    private volatile long deviceToNanos;
+    private volatile boolean deviceClockKnown = false;
+
+    /**
+     * @param tempoMap 録音中のテンポマップ
+     * @param startTick 録音開始時点の再生位置 (このTickを startNanos に対応させる)
+     * @param startNanos 録音開始時刻 (System.nanoTime())
+     */
+    public MidiInputRecorder(TempoMap tempoMap, long startTick, long startNanos) {
+        this.tempoMap = tempoMap;
+        this.startTick = startTick;
+        this.startSongMicros = tempoMap.tickToMicros(startTick);
+        this.startNanos = startNanos;
+        Arrays.fill(openStartTick, -1);
+    }
+
+    /**
+     * 既定のMIDI入力デバイスの Transmitter を開きます。
+     * @throws MidiUnavailableException 入力デバイスが無い場合
+     */
+    public static Transmitter openDefaultTransmitter() throws MidiUnavailableException {
+        return MidiSystem.getTransmitter();
+    }
+
+    /**
+     * 録音を開始します。入力元がデバイスの Transmitter なら、そのデバイスの時計でタイムスタンプを換算します。
+     * @param source 入力元 (ハードウェアの入力デバイスや、テスト用の仮想 Transmitter)
+     */
+    public void start(Transmitter source) {
+        start(source, source instanceof MidiDeviceTransmitter
+                ? ((MidiDeviceTransmitter) source).getMidiDevice()::getMicrosecondPosition : null);
+    }
+
+    /**
+     * 録音を開始します。
+     * @param source 入力元
+     * @param deviceClockMicros source が付けるタイムスタンプの現在値 (MidiDevice::getMicrosecondPosition など)。
+     *                          null または -1 を返す場合は、最初にタイムスタンプ付きのイベントが届いた時刻で合わせます
+     */
+    public synchronized void start(Transmitter source, LongSupplier deviceClockMicros) {
+        if (recording) {
+            return;
+        }
+        long deviceNow = deviceClockMicros != null ? deviceClockMicros.getAsLong() : -1;
+        if (deviceNow >= 0) {
+            deviceToNanos = System.nanoTime() - deviceNow * 1000;
+            deviceClockKnown = true;
+        }
+        this.transmitter = source;
+        recording = true;
+        mergerThread = new Thread(this::mergeLoop, "MIDI Input Merger");
+        mergerThread.setDaemon(true);
+        mergerThread.setPriority(Thread.MAX_PRIORITY - 1);
+        mergerThread.start();
+        source.setReceiver(this);
+        System.out.println("MidiInputRecorder: Recording started at tick " + startTick + ".");
+    }
+
+    /**
+     * 録音を終了し、録音したノートを返します。押されたままのノートは現在時刻で閉じます。
+     */
+    public synchronized List<Note> stop() {
+        if (!recording) {
+            return new ArrayList<>(take);
+        }
+        if (transmitter != null) {
+            transmitter.setReceiver(null);
+        }
+        recording = false;
+        LockSupport.unpark(mergerThread);
+        // リングのコンシューマはマージスレッドだけ。残りはマージスレッドが終了前に読み出すので、
+        // 終わるまで待ってから take を読む (割り込まれても待ち続け、割り込み状態は戻す)
+        boolean interrupted = false;
+        while (mergerThread.isAlive()) {
+            try {
+                mergerThread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        long endTick = tickAt(Math.max(System.nanoTime(), lastEventNanos));
+        for (int key = 0; key < openStartTick.length; key++) {
+            if (openStartTick[key] >= 0) {
+                closeNote(key, endTick);
+            }
+        }
+        if (ring.getDroppedCount() > 0) {
+            System.err.println("MidiInputRecorder: " + ring.getDroppedCount() + " events were dropped (ring buffer full).");
+        }
+        System.out.println("MidiInputRecorder: Recording stopped. " + take.size() + " notes recorded.");
+        return new ArrayList<>(take);
+    }
+
+    public boolean isRecording() {
+        return recording;
+    }
+
+    public long getDroppedEventCount() {
+        return ring.getDroppedCount();
+    }
+
+    /** 入力をプレビューチャンネルで鳴らすかどうか (既定は鳴らす)。 */
+    public void setMonitoring(boolean monitoring) {
+        this.monitoring = monitoring;
+    }
+
+    /**
+     * 入力デバイスのスレッドから呼ばれます。リングに書き込むだけで、ロックもメモリ確保もしません。
+     */
+    @Override
+    public void send(MidiMessage message, long timeStamp) {
+        long now = System.nanoTime();
+        if (!recording || !(message instanceof ShortMessage)) {
+            return; // SysEx などは録音対象外
+        }
+        long eventNanos = now;
+        if (timeStamp != -1) {
+            if (!deviceClockKnown) {
+                // デバイスの時計を読めなかった場合は、最初のイベントの受信時刻に合わせる (以降の間隔はデバイスのまま)
+                deviceToNanos = now - timeStamp * 1000;
+                deviceClockKnown = true;
+            }
+            eventNanos = timeStamp * 1000 + deviceToNanos;
+        }
+        ShortMessage sm = (ShortMessage) message;
+        ring.offer(eventNanos, MidiEventRing.pack(sm.getStatus(), sm.getData1(), sm.getData2()));
+    }
+
+    @Override
+    public void close() {
+        stop();
+    }
+
+    // --- マージスレッド ---
+
+    private void mergeLoop() {
+        while (recording) {
+            ring.drain(merger);
+            LockSupport.parkNanos(this, MERGE_INTERVAL_NANOS);
+        }
+        ring.drain(merger); // 停止までに届いた残り
+    }
+
+    private void merge(long eventNanos, int packed) {
+        lastEventNanos = eventNanos;
+        int status = MidiEventRing.status(packed);
+        int command = status & 0xF0;
+        int channel = status & 0x0F;
+        int pitch = MidiEventRing.data1(packed);
+        int velocity = MidiEventRing.data2(packed);
+        int key = channel * 128 + pitch;
+        if (command == ShortMessage.NOTE_ON && velocity > 0) {
+            long tick = tickAt(eventNanos);
+            if (openStartTick[key] >= 0) {
+                closeNote(key, tick); // 同じ鍵盤の二重押し: 前のノートを閉じる
+            }
+            openStartTick[key] = tick;
+            openVelocity[key] = velocity;
+            monitor(pitch, velocity);
+        } else if (command == ShortMessage.NOTE_OFF || command == ShortMessage.NOTE_ON) {
+            if (openStartTick[key] >= 0) {
+                closeNote(key, tickAt(eventNanos));
+            }
+            monitor(pitch, 0);
+        }
+    }
+
+    private void closeNote(int key, long endTick) {
+        long start = openStartTick[key];
+        long duration = Math.max(1, endTick - start);
+        // エディタで作るノートと同じく、チャンネルはトラック側 (0) に揃える
+        take.add(new Note(key % 128, start, duration, openVelocity[key], 0));
+        openStartTick[key] = -1;
+    }
+
+    private long tickAt(long eventNanos) {
+        double micros = startSongMicros + (eventNanos - startNanos) / 1000.0;
+        return Math.max(0, Math.round(tempoMap.microsToTick(micros)));
+    }
+
+    private void monitor(int pitch, int velocity) {
+        if (!monitoring) {
+            return;
+        }
+        MidiChannel[] channels = AudioEngine.getInstance().getChannels();
+        if (channels == null || channels.length <= PreviewEngine.PREVIEW_CHANNEL) {
+            return;
+        }
+        if (velocity > 0) {
+            channels[PreviewEngine.PREVIEW_CHANNEL].noteOn(pitch, velocity);
+        } else {
+            channels[PreviewEngine.PREVIEW_CHANNEL].noteOff(pitch);
+        }
+    }
+}
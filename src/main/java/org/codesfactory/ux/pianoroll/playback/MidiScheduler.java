@@ -0,0 +1,132 @@
+package org.codesfactory.ux.pianoroll.playback;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+
+/**
+ * javax.sound.midi.Sequencer の代わりに使う先読み型のリアルタイムMIDIスケジューラ。
+ *
+ * プロセス全体で1本だけの高優先度スレッドが約1msごとに起き、登録された全ての {@link Transport} を
+ * 順に処理します。どのトランスポートも再生していない間は start() されるまで眠ります。
+ * 送信先の Receiver は {@link AudioEngine} がシンセサイザーを開いた後に {@link #attach} で渡されます。
+ */
+public class MidiScheduler {
+
+    /** 先読み幅。シーク/停止時に取り消せないのはこの幅に送った分だけ。 */
+    public static final long LOOKAHEAD_NANOS = 25_000_000L;
+    /** スケジューラスレッドの起床間隔。 */
+    public static final long QUANTUM_NANOS = 1_000_000L;
+
+    private final List<Transport> transports = new CopyOnWriteArrayList<>();
+    private volatile Receiver receiver;
+    private volatile LongSupplier deviceClockMicros;
+    private volatile Thread schedulerThread;
+    private volatile boolean closed = false;
+    private final LongSupplier nanoClock;
+
+    MidiScheduler() {
+        this(System::nanoTime);
+    }
+
+    /**
+     * @param nanoClock 実時間 (ナノ秒) の取得元。テストでは手で進める時計を渡し、
+     *                  {@link #connect} と {@link Transport#serviceIfPlaying} でスレッドなしに駆動します
+     */
+    MidiScheduler(LongSupplier nanoClock) {
+        this.nanoClock = nanoClock;
+    }
+
+    /**
+     * 送信先を設定し、スケジューラスレッドを起動します。
+     * @param receiver 送信先 (シンセサイザーのReceiverなど)
+     * @param deviceClockMicros Receiverが解釈するタイムスタンプの現在値 (Synthesizer::getMicrosecondPosition など)
+     */
+    synchronized void attach(Receiver receiver, LongSupplier deviceClockMicros) {
+        connect(receiver, deviceClockMicros);
+        if (schedulerThread == null) {
+            Thread thread = new Thread(this::runLoop, "MIDI Scheduler");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MAX_PRIORITY);
+            schedulerThread = thread;
+            thread.start();
+        }
+    }
+
+    /** 送信先だけを設定します (スケジューラスレッドは起動しない)。 */
+    synchronized void connect(Receiver receiver, LongSupplier deviceClockMicros) {
+        this.deviceClockMicros = deviceClockMicros;
+        this.receiver = receiver;
+    }
+
+    /** スケジューラの時計の現在値 (ナノ秒)。 */
+    long nanoTime() {
+        return nanoClock.getAsLong();
+    }
+
+    boolean isAttached() {
+        return receiver != null && !closed;
+    }
+
+    /** 新しいトランスポートを登録します。オーディオ資源には触れません。 */
+    Transport createTransport() {
+        Transport transport = new Transport(this);
+        transports.add(transport);
+        return transport;
+    }
+
+    void release(Transport transport) {
+        transports.remove(transport);
+    }
+
+    void wake() {
+        Thread thread = schedulerThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    long deviceClockMicros() {
+        return deviceClockMicros.getAsLong();
+    }
+
+    void send(MidiMessage message, long timestampMicros) {
+        Receiver r = receiver;
+        if (r != null) {
+            r.send(message, timestampMicros);
+        }
+    }
+
+    void close() {
+        for (Transport transport : transports) {
+            transport.pause();
+        }
+        closed = true;
+        receiver = null;
+        wake();
+    }
+
+    private void runLoop() {
+        System.out.println("MidiScheduler: Scheduler thread started.");
+        while (!closed) {
+            boolean anyPlaying = false;
+            long now = nanoTime();
+            for (Transport transport : transports) {
+                Runnable finished = transport.serviceIfPlaying(now);
+                if (finished != null) {
+                    finished.run();
+                }
+                anyPlaying |= transport.isPlaying();
+            }
+            if (anyPlaying) {
+                LockSupport.parkNanos(this, QUANTUM_NANOS);
+            } else {
+                LockSupport.park(this); // 全トランスポート停止中は start() まで眠る
+            }
+        }
+        System.out.println("MidiScheduler: Scheduler thread finished.");
+    }
+}
@@ -0,0 +1,133 @@
+package org.codesfactory.ux.pianoroll.playback;
+
+import org.codesfactory.ux.pianoroll.Note;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * ノート列を開始Tick順に並べたプリミティブ配列の時間インデックス。
+ * 構築時にノートの値をコピーするため、EDTで編集中のノートリストとは独立して
+ * スケジューラスレッドから安全に参照できます。
+ */
+public final class NoteEventIndex {
+
+    public static final NoteEventIndex EMPTY = new NoteEventIndex(0);
+
+    private final long[] starts;
+    private final long[] ends;
+    private final byte[] pitches;
+    private final byte[] velocities;
+    private final byte[] channels;
+    private long maxDuration;
+    private long endTick;
+
+    private NoteEventIndex(int size) {
+        starts = new long[size];
+        ends = new long[size];
+        pitches = new byte[size];
+        velocities = new byte[size];
+        channels = new byte[size];
+    }
+
+    /**
+     * ノートリストのスナップショットからインデックスを作成します。EDT上で呼び出してください。
+     * @param notes 元になるノートリスト
+     */
+    public static NoteEventIndex build(List<Note> notes) {
+        if (notes == null || notes.isEmpty()) {
+            return EMPTY;
+        }
+        int n = notes.size();
+        if (n >= (1 << 21)) {
+            return buildBoxed(notes);
+        }
+        // 上位ビットに開始Tick、下位21ビットに元の位置を詰めてプリミティブのままソートする
+        long[] order = new long[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = (Math.max(0, notes.get(i).getStartTimeTicks()) << 21) | i;
+        }
+        Arrays.sort(order);
+
+        NoteEventIndex index = new NoteEventIndex(n);
+        for (int k = 0; k < n; k++) {
+            index.set(k, notes.get((int) (order[k] & ((1 << 21) - 1))));
+        }
+        return index;
+    }
+
+    // 200万ノートを超える場合のフォールバック (位置を21ビットに詰められない)
+    private static NoteEventIndex buildBoxed(List<Note> notes) {
+        Note[] sorted = notes.toArray(new Note[0]);
+        Arrays.sort(sorted, (a, b) -> Long.compare(a.getStartTimeTicks(), b.getStartTimeTicks()));
+        NoteEventIndex index = new NoteEventIndex(sorted.length);
+        for (int k = 0; k < sorted.length; k++) {
+            index.set(k, sorted[k]);
+        }
+        return index;
+    }
+
+    private void set(int k, Note note) {
+        long start = Math.max(0, note.getStartTimeTicks());
+        long end = start + Math.max(1, note.getDurationTicks());
+        starts[k] = start;
+        ends[k] = end;
+        pitches[k] = (byte) note.getPitch();
+        velocities[k] = (byte) note.getVelocity();
+        channels[k] = (byte) (note.getChannel() & 0x0F);
+        maxDuration = Math.max(maxDuration, end - start);
+        endTick = Math.max(endTick, end);
+    }
+
+    public int size() {
+        return starts.length;
+    }
+
+    public long getStart(int i) {
+        return starts[i];
+    }
+
+    public long getEnd(int i) {
+        return ends[i];
+    }
+
+    public int getPitch(int i) {
+        return pitches[i];
+    }
+
+    public int getVelocity(int i) {
+        return velocities[i];
+    }
+
+    public int getChannel(int i) {
+        return channels[i];
+    }
+
+    /** 最も長いノートの長さ (Tick)。ある時刻に鳴っているノートの探索範囲を絞るのに使います。 */
+    public long getMaxDuration() {
+        return maxDuration;
+    }
+
+    /** 最後のノートが終わるTick。 */
+    public long getEndTick() {
+        return endTick;
+    }
+
+    /**
+     * 開始Tickが指定Tick以上となる最初のノートの位置を二分探索で返します。
+     * @return 該当が無ければ size()
+     */
+    public int firstStartAtOrAfter(long tick) {
+        int lo = 0;
+        int hi = starts.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (starts[mid] < tick) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
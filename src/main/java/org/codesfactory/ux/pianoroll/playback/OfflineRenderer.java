@@ -0,0 +1,247 @@
+package org.codesfactory.ux.pianoroll.playback;
+
+import com.sun.media.sound.AudioSynthesizer;
+import com.sun.media.sound.SoftSynthesizer;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * プロジェクトをリアルタイムより高速に WAV へ書き出すオフラインレンダラー。
+ *
+ * オーディオデバイスを使わず、Gervill の {@link AudioSynthesizer#openStream} でトラックごとに
+ * 独立したシンセサイザーを開き、読み出した分だけ合成させます。全トラックを1秒ずつ並列に進めて
+ * その場でミックスするため、メモリ使用量は曲の長さに依存しません。
+ * (ビルド時・実行時に --add-exports java.desktop/com.sun.media.sound=ALL-UNNAMED が必要です)
+ */
+public class OfflineRenderer {
+
+    public static final float SAMPLE_RATE = 44100f;
+    private static final int CHANNELS = 2;
+    private static final int FRAME_BYTES = 2 * CHANNELS; // 16bit ステレオ
+    private static final int BLOCK_FRAMES = (int) SAMPLE_RATE; // 1ブロック = 1秒
+    private static final long TAIL_MICROS = 2_000_000L; // 最後のノートのリリース分
+
+    /** レンダリングの進捗を受け取るリスナー (レンダリングスレッドから呼ばれます)。 */
+    public interface ProgressListener {
+        void onProgress(long renderedFrames, long totalFrames);
+    }
+
+    /** 1トラック分のレンダリング入力。 */
+    public static final class TrackPart {
+        private final NoteEventIndex index;
+        private final int program;
+
+        /**
+         * @param index トラックのノートのスナップショット (EDT上で作成したもの)
+         * @param program GM プログラム番号
+         */
+        public TrackPart(NoteEventIndex index, int program) {
+            this.index = index;
+            this.program = program;
+        }
+    }
+
+    /** トラック1本分のシンセサイザーとストリーム。 */
+    private static final class TrackVoice implements Callable<Void> {
+        final TrackPart part;
+        final TempoMap tempoMap;
+        final AudioSynthesizer synth;
+        final AudioInputStream stream;
+        final Receiver receiver;
+        final byte[] buffer = new byte[BLOCK_FRAMES * FRAME_BYTES];
+        int nextNote = 0;
+        long blockEndMicros;
+        int bytesInBuffer;
+
+        TrackVoice(TrackPart part, TempoMap tempoMap, AudioFormat format) throws MidiUnavailableException {
+            this.part = part;
+            this.tempoMap = tempoMap;
+            this.synth = new SoftSynthesizer();
+            this.stream = synth.openStream(format, null);
+            this.receiver = synth.getReceiver();
+            for (int channel = 0; channel < 16; channel++) {
+                if (channel != 9) { // GM のドラムチャンネルはそのまま
+                    send(ShortMessage.PROGRAM_CHANGE, channel, part.program, 0, 0);
+                }
+            }
+        }
+
+        /** このブロックで鳴り始めるノートを送ってから、1ブロック分を合成して読み出します。 */
+        @Override
+        public Void call() throws IOException {
+            NoteEventIndex index = part.index;
+            while (nextNote < index.size() && tempoMap.tickToMicros(index.getStart(nextNote)) < blockEndMicros) {
+                long onMicros = Math.round(tempoMap.tickToMicros(index.getStart(nextNote)));
+                long offMicros = Math.round(tempoMap.tickToMicros(index.getEnd(nextNote)));
+                int channel = index.getChannel(nextNote);
+                int pitch = index.getPitch(nextNote);
+                send(ShortMessage.NOTE_ON, channel, pitch, index.getVelocity(nextNote), onMicros);
+                // ノートオフは未来のタイムスタンプで先に渡しておく (シンセ側で時刻順に処理される)
+                send(ShortMessage.NOTE_OFF, channel, pitch, 0, offMicros);
+                nextNote++;
+            }
+            int read = 0;
+            while (read < bytesInBuffer) {
+                int n = stream.read(buffer, read, bytesInBuffer - read);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+            }
+            return null;
+        }
+
+        private void send(int command, int channel, int data1, int data2, long micros) {
+            try {
+                receiver.send(new ShortMessage(command, channel, data1, data2), micros);
+            } catch (InvalidMidiDataException e) {
+                System.err.println("OfflineRenderer: Invalid MIDI data: " + e.getMessage());
+            }
+        }
+
+        void close() {
+            try {
+                stream.close();
+            } catch (IOException ignored) {
+            }
+            synth.close();
+        }
+    }
+
+    /**
+     * トラックを並列にレンダリングし、ミックスして WAV (44.1kHz/16bit/ステレオ) に書き出します。
+     * @param parts レンダリングするトラック (ミュート中のトラックは呼び出し側で除外しておく)
+     * @param tempoMap テンポマップ
+     * @param outputFile 出力先
+     * @param listener 進捗リスナー (null可)
+     */
+    public static void renderToWav(List<TrackPart> parts, TempoMap tempoMap, File outputFile, ProgressListener listener)
+            throws IOException, MidiUnavailableException, InterruptedException {
+        long startNanos = System.nanoTime();
+        long endTick = 0;
+        for (TrackPart part : parts) {
+            endTick = Math.max(endTick, part.index.getEndTick());
+        }
+        double totalMicros = tempoMap.tickToMicros(endTick) + TAIL_MICROS;
+        long totalFrames = (long) Math.ceil(totalMicros * SAMPLE_RATE / 1_000_000.0);
+
+        AudioFormat format = new AudioFormat(SAMPLE_RATE, 16, CHANNELS, true, false);
+        List<TrackVoice> voices = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(parts.size(), Runtime.getRuntime().availableProcessors())), r -> {
+                    Thread t = new Thread(r, "Offline Render");
+                    t.setDaemon(true);
+                    return t;
+                });
+        try {
+            for (TrackPart part : parts) {
+                voices.add(new TrackVoice(part, tempoMap, format));
+            }
+            // 同時に鳴る本数が増えてもクリップしにくいよう、トラック数の平方根で割る
+            float gain = voices.size() > 1 ? (float) (1.0 / Math.sqrt(voices.size())) : 1.0f;
+
+            byte[] mixBuffer = new byte[BLOCK_FRAMES * FRAME_BYTES];
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(outputFile), 1 << 16)) {
+                writeWavHeader(out, totalFrames * FRAME_BYTES);
+                long renderedFrames = 0;
+                while (renderedFrames < totalFrames) {
+                    int frames = (int) Math.min(BLOCK_FRAMES, totalFrames - renderedFrames);
+                    long blockEndMicros = Math.round((renderedFrames + frames) * 1_000_000.0 / SAMPLE_RATE);
+                    for (TrackVoice voice : voices) {
+                        voice.blockEndMicros = blockEndMicros;
+                        voice.bytesInBuffer = frames * FRAME_BYTES;
+                    }
+                    for (Future<Void> f : executor.invokeAll(voices)) {
+                        f.get();
+                    }
+                    mixBlock(voices, mixBuffer, frames * CHANNELS, gain);
+                    out.write(mixBuffer, 0, frames * FRAME_BYTES);
+                    renderedFrames += frames;
+                    if (listener != null) {
+                        listener.onProgress(renderedFrames, totalFrames);
+                    }
+                }
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new IOException("Rendering failed: " + cause, cause);
+            }
+        } finally {
+            executor.shutdownNow();
+            for (TrackVoice voice : voices) {
+                voice.close();
+            }
+        }
+        System.out.println("OfflineRenderer: Rendered " + parts.size() + " tracks (" + String.format("%.1f", totalMicros / 1_000_000.0)
+                + " s of audio) in " + (System.nanoTime() - startNanos) / 1_000_000 + " ms -> " + outputFile.getAbsolutePath());
+    }
+
+    private static void mixBlock(List<TrackVoice> voices, byte[] mixBuffer, int samples, float gain) {
+        for (int s = 0; s < samples; s++) {
+            int b = s * 2;
+            float sum = 0;
+            for (TrackVoice voice : voices) {
+                sum += (short) ((voice.buffer[b] & 0xFF) | (voice.buffer[b + 1] << 8));
+            }
+            int value = Math.round(sum * gain);
+            if (value > Short.MAX_VALUE) value = Short.MAX_VALUE;
+            if (value < Short.MIN_VALUE) value = Short.MIN_VALUE;
+            mixBuffer[b] = (byte) value;
+            mixBuffer[b + 1] = (byte) (value >> 8);
+        }
+    }
+
+    private static void writeWavHeader(OutputStream out, long dataBytes) throws IOException {
+        int byteRate = (int) SAMPLE_RATE * FRAME_BYTES;
+        writeAscii(out, "RIFF");
+        writeIntLE(out, (int) (36 + dataBytes));
+        writeAscii(out, "WAVE");
+        writeAscii(out, "fmt ");
+        writeIntLE(out, 16);            // fmt チャンクのサイズ
+        writeShortLE(out, 1);           // PCM
+        writeShortLE(out, CHANNELS);
+        writeIntLE(out, (int) SAMPLE_RATE);
+        writeIntLE(out, byteRate);
+        writeShortLE(out, FRAME_BYTES); // block align
+        writeShortLE(out, 16);          // bits per sample
+        writeAscii(out, "data");
+        writeIntLE(out, (int) dataBytes);
+    }
+
+    private static void writeAscii(OutputStream out, String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            out.write(s.charAt(i));
+        }
+    }
+
+    private static void writeIntLE(OutputStream out, int v) throws IOException {
+        out.write(v);
+        out.write(v >> 8);
+        out.write(v >> 16);
+        out.write(v >> 24);
+    }
+
+    private static void writeShortLE(OutputStream out, int v) throws IOException {
+        out.write(v);
+        out.write(v >> 8);
+    }
+}
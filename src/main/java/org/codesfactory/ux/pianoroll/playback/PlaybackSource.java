@@ -0,0 +1,52 @@
+package org.codesfactory.ux.pianoroll.playback;
+
+import org.codesfactory.ux.pianoroll.Note;
+
+import java.util.List;
+
+/**
+ * スケジューラが読み出すノートの供給元 (通常はトラック1本分)。
+ * ライブのノートリストを参照し、編集後に {@link #refresh()} で時間インデックスを差し替えます。
+ */
+public final class PlaybackSource {
+
+    private final String key;
+    private final List<Note> notes;
+    private volatile NoteEventIndex index = NoteEventIndex.EMPTY;
+    private volatile boolean audible = true;
+
+    /**
+     * @param key 供給元を識別するキー (トラックIDなど)
+     * @param notes 参照するノートリスト (EDT上でのみ編集されること)
+     */
+    public PlaybackSource(String key, List<Note> notes) {
+        this.key = key;
+        this.notes = notes;
+        refresh();
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public List<Note> getNotes() {
+        return notes;
+    }
+
+    /** ノートリストの現在の内容から時間インデックスを作り直します。EDT上で呼び出してください。 */
+    public void refresh() {
+        this.index = NoteEventIndex.build(notes);
+    }
+
+    public NoteEventIndex getIndex() {
+        return index;
+    }
+
+    public boolean isAudible() {
+        return audible;
+    }
+
+    void setAudible(boolean audible) {
+        this.audible = audible;
+    }
+}
@@ -0,0 +1,116 @@
+package org.codesfactory.ux.pianoroll.playback;
+
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 全ウィンドウ共通の再生ヘッド用クロック。
+ *
+ * 表示フレームごと (約60fps) に EDT 上の Swing Timer で各トランスポートの位置を1回だけ読み取り、
+ * 位置か再生状態が変わっていれば登録されたリスナーに通知します。常に最新の位置だけを通知し、
+ * 途中の位置をイベントキューに積まないため、ウィンドウがいくつ開いていても EDT の負荷は一定です。
+ * どのトランスポートも再生しておらず通知すべき変化もなければ、タイマーは止まります。
+ */
+public final class PlayheadClock {
+
+    /** 1表示フレームの間隔 (ミリ秒)。 */
+    public static final int FRAME_MILLIS = 16;
+
+    /** 再生ヘッドの通知を受け取るリスナー (EDT上で呼ばれます)。 */
+    public interface Listener {
+        void playheadMoved(long tick, boolean playing);
+    }
+
+    private static final PlayheadClock INSTANCE = new PlayheadClock();
+
+    private static final class Entry {
+        final List<Listener> listeners = new ArrayList<>();
+        long lastTick = -1;
+        boolean lastPlaying = false;
+    }
+
+    // 以下は EDT からのみアクセス
+    private final Map<Transport, Entry> entries = new IdentityHashMap<>();
+    private final Timer timer;
+
+    private PlayheadClock() {
+        timer = new Timer(FRAME_MILLIS, e -> onFrame());
+        timer.setCoalesce(true); // EDT が詰まっている間に溜まった発火は1回にまとめる
+    }
+
+    public static PlayheadClock getInstance() {
+        return INSTANCE;
+    }
+
+    /** トランスポートの再生ヘッドを購読します。EDT上で呼び出してください。 */
+    public void addListener(Transport transport, Listener listener) {
+        entries.computeIfAbsent(transport, t -> new Entry()).listeners.add(listener);
+        wake();
+    }
+
+    /** 購読を解除します。EDT上で呼び出してください。 */
+    public void removeListener(Transport transport, Listener listener) {
+        Entry entry = entries.get(transport);
+        if (entry != null) {
+            entry.listeners.remove(listener);
+            if (entry.listeners.isEmpty()) {
+                entries.remove(transport);
+            }
+        }
+    }
+
+    /** トランスポートの購読をすべて解除します。 */
+    public void removeAll(Transport transport) {
+        if (SwingUtilities.isEventDispatchThread()) {
+            entries.remove(transport);
+        } else {
+            SwingUtilities.invokeLater(() -> entries.remove(transport));
+        }
+    }
+
+    /**
+     * 再生開始・停止・シークの後に呼び出します。次のフレームで最新位置が通知されます。
+     * どのスレッドから呼んでも構いません。
+     */
+    public void wake() {
+        if (SwingUtilities.isEventDispatchThread()) {
+            if (!timer.isRunning()) {
+                timer.start();
+            }
+        } else {
+            SwingUtilities.invokeLater(this::wake);
+        }
+    }
+
+    private void onFrame() {
+        boolean anyPlaying = false;
+        // 通知中にリスナーの追加/削除があっても良いようにコピーして回す
+        for (Map.Entry<Transport, Entry> e : new ArrayList<>(entries.entrySet())) {
+            Transport transport = e.getKey();
+            Entry entry = e.getValue();
+            boolean playing = transport.isPlaying();
+            long tick = transport.getTickPosition();
+            anyPlaying |= playing;
+            if (tick == entry.lastTick && playing == entry.lastPlaying) {
+                continue;
+            }
+            entry.lastTick = tick;
+            entry.lastPlaying = playing;
+            for (Listener listener : new ArrayList<>(entry.listeners)) {
+                try {
+                    listener.playheadMoved(tick, playing);
+                } catch (Exception ex) {
+                    System.err.println("PlayheadClock: Listener failed: " + ex.getMessage());
+                    ex.printStackTrace();
+                }
+            }
+        }
+        if (!anyPlaying) {
+            timer.stop(); // 停止中は次の wake() まで眠る (最後の位置はこのフレームで通知済み)
+        }
+    }
+}
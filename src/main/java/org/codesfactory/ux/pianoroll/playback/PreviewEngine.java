@@ -0,0 +1,166 @@
+package org.codesfactory.ux.pianoroll.playback;
+
+import javax.sound.midi.MidiChannel;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ノートのオーディション (試聴) 用のプレビューエンジン。
+ *
+ * 固定数のボイスを使い回し、ノートオフは1本のタイマースレッドで予約します。
+ * ボイスが足りなければ最も古いものを奪う (ボイススティーリング) ので、素早いクリックや
+ * ドラッグでもスレッド数・同時発音数は一定に保たれます。
+ * 再生中のトラックと音が干渉しないよう、専用のチャンネルで鳴らします。
+ */
+public final class PreviewEngine {
+
+    /** プレビュー専用のMIDIチャンネル (0始まり)。 */
+    public static final int PREVIEW_CHANNEL = 15;
+    /** 同時に鳴らせるプレビューの最大数。 */
+    public static final int MAX_VOICES = 8;
+    /** 単音プレビューの既定の長さ (ミリ秒)。 */
+    public static final int DEFAULT_DURATION_MILLIS = 200;
+
+    private static final PreviewEngine INSTANCE = new PreviewEngine();
+
+    private static final class Voice {
+        int pitch = -1;          // -1 なら空き
+        long startedNanos;
+        long generation;         // 奪われた後に古いノートオフが効かないようにするための世代
+        ScheduledFuture<?> noteOff;
+    }
+
+    private final Voice[] voices = new Voice[MAX_VOICES];
+    private final ScheduledExecutorService noteOffTimer;
+    private long nextGeneration = 0;
+
+    private PreviewEngine() {
+        for (int i = 0; i < voices.length; i++) {
+            voices[i] = new Voice();
+        }
+        noteOffTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Preview Note-Off");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public static PreviewEngine getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * 1音を試聴します。
+     * @param pitch MIDIノート番号
+     * @param velocity ベロシティ
+     * @param durationMillis 鳴らす長さ (ミリ秒)
+     */
+    public void audition(int pitch, int velocity, int durationMillis) {
+        MidiChannel channel = previewChannel();
+        if (channel == null) {
+            return;
+        }
+        synchronized (this) {
+            startVoice(channel, pitch, velocity, durationMillis);
+        }
+    }
+
+    /**
+     * 和音を試聴します。鳴っているプレビューは止めてから鳴らすので、
+     * 複数ノートのドラッグ中に呼び続けても音が重なっていきません。
+     * @param pitches MIDIノート番号 (重複可、{@link #MAX_VOICES} を超える分は鳴らしません)
+     */
+    public void auditionChord(int[] pitches, int velocity, int durationMillis) {
+        MidiChannel channel = previewChannel();
+        if (channel == null) {
+            return;
+        }
+        synchronized (this) {
+            for (Voice voice : voices) {
+                release(channel, voice);
+            }
+            int started = 0;
+            for (int i = 0; i < pitches.length && started < MAX_VOICES; i++) {
+                boolean duplicate = false;
+                for (int j = 0; j < i; j++) {
+                    duplicate |= pitches[j] == pitches[i];
+                }
+                if (!duplicate) {
+                    startVoice(channel, pitches[i], velocity, durationMillis);
+                    started++;
+                }
+            }
+        }
+    }
+
+    /** 鳴っているプレビューをすべて止めます。 */
+    public void stopAll() {
+        MidiChannel channel = previewChannel();
+        if (channel == null) {
+            return;
+        }
+        synchronized (this) {
+            for (Voice voice : voices) {
+                release(channel, voice);
+            }
+        }
+    }
+
+    // --- 以下は this を保持した状態で呼ばれる ---
+
+    private void startVoice(MidiChannel channel, int pitch, int velocity, int durationMillis) {
+        if (pitch < 0 || pitch > 127) {
+            return;
+        }
+        Voice voice = allocate(pitch);
+        release(channel, voice);
+        long generation = ++nextGeneration;
+        voice.pitch = pitch;
+        voice.startedNanos = System.nanoTime();
+        voice.generation = generation;
+        channel.noteOn(pitch, velocity);
+        voice.noteOff = noteOffTimer.schedule(() -> {
+            synchronized (PreviewEngine.this) {
+                if (voice.generation == generation) {
+                    release(channel, voice);
+                }
+            }
+        }, durationMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /** 同じ音高 > 空き > 最も古いボイス の順に選びます。 */
+    private Voice allocate(int pitch) {
+        Voice free = null;
+        Voice oldest = voices[0];
+        for (Voice voice : voices) {
+            if (voice.pitch == pitch) {
+                return voice; // 同じ音高は鳴らし直す
+            }
+            if (voice.pitch < 0 && free == null) {
+                free = voice;
+            }
+            if (voice.startedNanos < oldest.startedNanos) {
+                oldest = voice;
+            }
+        }
+        return free != null ? free : oldest;
+    }
+
+    private void release(MidiChannel channel, Voice voice) {
+        if (voice.noteOff != null) {
+            voice.noteOff.cancel(false);
+            voice.noteOff = null;
+        }
+        if (voice.pitch >= 0) {
+            channel.noteOff(voice.pitch);
+            voice.pitch = -1;
+        }
+    }
+
+    private MidiChannel previewChannel() {
+        MidiChannel[] channels = AudioEngine.getInstance().getChannels(); // 未オープンなら開き始めて null
+        return channels != null && channels.length > PREVIEW_CHANNEL ? channels[PREVIEW_CHANNEL] : null;
+    }
+}
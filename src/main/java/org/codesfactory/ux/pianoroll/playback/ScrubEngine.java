@@ -0,0 +1,120 @@
+package org.codesfactory.ux.pianoroll.playback;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * ルーラーのドラッグ中に、再生ヘッド位置で鳴っているノートを試聴するスクラブ用エンジン。
+ *
+ * ドラッグ開始時に作った {@link NoteEventIndex} の二分探索で該当ノートを引くため、ノート数が多くても
+ * 全ノートを走査しません。発音は {@link #MIN_INTERVAL_NANOS} に1回まで、同時発音は {@link #VOICE_BUDGET}
+ * までに制限し、直前と同じ和音なら鳴らし直さないので、密集したパッセージを素早くスクラブしても
+ * シンセサイザーや EDT に負荷が溜まりません。EDT 上で使ってください。
+ */
+public class ScrubEngine {
+
+    /** 発音の最小間隔。これより速いドラッグは間引かれます。 */
+    public static final long MIN_INTERVAL_NANOS = 40_000_000L;
+    /** 1回のスクラブで鳴らす最大の音数。 */
+    public static final int VOICE_BUDGET = 6;
+    /** スクラブで鳴らす1音の長さ (ミリ秒)。 */
+    public static final int NOTE_MILLIS = 120;
+    private static final int VELOCITY = 90;
+
+    /** 集めた音の出力先。通常は {@link PreviewEngine} で、テストでは差し替えます。 */
+    interface Output {
+        void chord(int[] pitches, int velocity, int durationMillis);
+
+        void silence();
+    }
+
+    private static final Output PREVIEW = new Output() {
+        @Override
+        public void chord(int[] pitches, int velocity, int durationMillis) {
+            PreviewEngine.getInstance().auditionChord(pitches, velocity, durationMillis);
+        }
+
+        @Override
+        public void silence() {
+            PreviewEngine.getInstance().stopAll();
+        }
+    };
+
+    private final NoteEventIndex[] indexes;
+    private final Output output;
+    private final int[] pitchBuffer = new int[VOICE_BUDGET];
+    private int[] lastPitches = new int[0];
+    // 最初の scrubTo がすぐ鳴るよう、1間隔前に鳴らしたことにしておく (MIN_VALUE だと差が桁あふれする)
+    private long lastTriggerNanos = System.nanoTime() - MIN_INTERVAL_NANOS;
+
+    /**
+     * @param indexes 試聴対象のノートのスナップショット (ドラッグ開始時にEDT上で作成したもの)
+     */
+    public ScrubEngine(List<NoteEventIndex> indexes) {
+        this(indexes, PREVIEW);
+    }
+
+    ScrubEngine(List<NoteEventIndex> indexes, Output output) {
+        this.indexes = indexes.toArray(new NoteEventIndex[0]);
+        this.output = output;
+    }
+
+    /**
+     * 再生ヘッドが tick に移動したことを伝えます。間隔が短すぎる場合は何もしません。
+     */
+    public void scrubTo(long tick) {
+        long now = System.nanoTime();
+        if (now - lastTriggerNanos < MIN_INTERVAL_NANOS) {
+            return;
+        }
+        int count = collectSoundingPitches(tick);
+        int[] pitches = Arrays.copyOf(pitchBuffer, count);
+        Arrays.sort(pitches);
+        if (Arrays.equals(pitches, lastPitches)) {
+            return; // 同じノートの上を動いているだけなら鳴らし直さない
+        }
+        lastPitches = pitches;
+        lastTriggerNanos = now;
+        if (count == 0) {
+            output.silence();
+        } else {
+            output.chord(pitches, VELOCITY, NOTE_MILLIS);
+        }
+    }
+
+    /** スクラブの終了時に呼び出します。 */
+    public void stop() {
+        output.silence();
+        lastPitches = new int[0];
+    }
+
+    /**
+     * tick の位置で鳴っているノートの音高を、開始が新しいものから最大 VOICE_BUDGET 個集めます。
+     * 開始が tick - 最長ノート長 以降のノートだけを二分探索で絞り込みます。
+     */
+    private int collectSoundingPitches(long tick) {
+        int count = 0;
+        for (NoteEventIndex index : indexes) {
+            int from = index.firstStartAtOrAfter(tick - index.getMaxDuration());
+            int to = index.firstStartAtOrAfter(tick + 1);
+            for (int i = to - 1; i >= from && count < VOICE_BUDGET; i--) {
+                if (index.getEnd(i) > tick && !contains(count, index.getPitch(i))) {
+                    pitchBuffer[count++] = index.getPitch(i);
+                }
+            }
+            if (count >= VOICE_BUDGET) {
+                break;
+            }
+        }
+        return count;
+    }
+
+    private boolean contains(int count, int pitch) {
+        for (int i = 0; i < count; i++) {
+            if (pitchBuffer[i] == pitch) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
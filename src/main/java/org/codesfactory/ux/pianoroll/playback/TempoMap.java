@@ -0,0 +1,79 @@
+package org.codesfactory.ux.pianoroll.playback;
+
+import java.util.Arrays;
+
+/**
+ * Tick と実時間 (マイクロ秒) を相互変換するテンポマップ。
+ * 不変オブジェクトなので、スケジューラスレッドとEDTの間でそのまま共有できます。
+ */
+public final class TempoMap {
+
+    private final int ppqn;
+    private final long[] segmentTicks;          // 各テンポ区間の開始Tick (先頭は常に0)
+    private final double[] microsPerQuarter;    // 各区間の4分音符あたりのマイクロ秒
+    private final double[] segmentStartMicros;  // 各区間の開始時刻 (マイクロ秒)
+
+    private TempoMap(int ppqn, long[] segmentTicks, double[] microsPerQuarter) {
+        this.ppqn = ppqn;
+        this.segmentTicks = segmentTicks;
+        this.microsPerQuarter = microsPerQuarter;
+        this.segmentStartMicros = new double[segmentTicks.length];
+        for (int i = 1; i < segmentTicks.length; i++) {
+            long ticks = segmentTicks[i] - segmentTicks[i - 1];
+            segmentStartMicros[i] = segmentStartMicros[i - 1] + ticks * microsPerQuarter[i - 1] / ppqn;
+        }
+    }
+
+    /**
+     * 一定テンポのテンポマップを作成します。
+     * @param ppqn 解像度 (Pulse Per Quarter Note)
+     * @param bpm テンポ
+     */
+    public static TempoMap constant(int ppqn, double bpm) {
+        return new TempoMap(ppqn, new long[]{0}, new double[]{60000000.0 / bpm});
+    }
+
+    /**
+     * 指定Tick以降のテンポを変更した新しいテンポマップを返します。
+     * 同じTick以降に既にあるテンポ変更は置き換えられます。
+     */
+    public TempoMap withTempoChange(long tick, double bpm) {
+        if (tick <= 0) {
+            return constant(ppqn, bpm);
+        }
+        int keep = segmentIndexAt(tick - 1) + 1;
+        long[] ticks = Arrays.copyOf(segmentTicks, keep + 1);
+        double[] mpq = Arrays.copyOf(microsPerQuarter, keep + 1);
+        ticks[keep] = tick;
+        mpq[keep] = 60000000.0 / bpm;
+        return new TempoMap(ppqn, ticks, mpq);
+    }
+
+    public int getPpqn() {
+        return ppqn;
+    }
+
+    public double getBpmAt(long tick) {
+        return 60000000.0 / microsPerQuarter[segmentIndexAt(tick)];
+    }
+
+    /** Tick位置 (小数可) を曲頭からの経過マイクロ秒に変換します。 */
+    public double tickToMicros(double tick) {
+        int i = segmentIndexAt((long) Math.floor(tick));
+        return segmentStartMicros[i] + (tick - segmentTicks[i]) * microsPerQuarter[i] / ppqn;
+    }
+
+    /** 曲頭からの経過マイクロ秒をTick位置 (小数) に変換します。 */
+    public double microsToTick(double micros) {
+        int i = segmentStartMicros.length - 1;
+        while (i > 0 && segmentStartMicros[i] > micros) {
+            i--;
+        }
+        return segmentTicks[i] + (micros - segmentStartMicros[i]) * ppqn / microsPerQuarter[i];
+    }
+
+    private int segmentIndexAt(long tick) {
+        int i = Arrays.binarySearch(segmentTicks, tick);
+        return i >= 0 ? i : Math.max(0, -i - 2);
+    }
+}
@@ -0,0 +1,389 @@
+package org.codesfactory.ux.pianoroll.playback;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.ShortMessage;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * 再生位置・テンポ・ループ・ノートの供給元を持つトランスポート (ウィンドウ1つ分の再生状態)。
+ *
+ * 発音は共有の {@link MidiScheduler} スレッドが行います。スケジューラは約1msごとに、
+ * 再生中のトランスポートそれぞれについて現在時刻から {@link MidiScheduler#LOOKAHEAD_NANOS} 先までに
+ * 鳴るべきノートを {@link PlaybackSource} の時間インデックスから取り出し、タイムスタンプ付きで送ります。
+ * 時刻は「アンカー (実時間ナノ秒 ⇔ 曲内マイクロ秒)」からテンポマップで換算するため、
+ * シーク・テンポ変更・ノート編集はアンカーやインデックスを差し替えるだけで反映されます。
+ * 生成してもオーディオ資源には触れません ({@link AudioEngine#createTransport()} から取得してください)。
+ */
+public class Transport {
+
+    private final MidiScheduler scheduler;
+    private final Object lock = new Object();
+
+    // ---- 以下は lock で保護 ----
+    private List<PlaybackSource> sources = new ArrayList<>();
+    private TempoMap tempoMap = TempoMap.constant(480, 120.0);
+    private boolean playing = false;
+    private long positionTick = 0;         // 停止中の再生位置
+    private long anchorNanos;              // 再生中: この実時間 (スケジューラの時計のナノ秒) が…
+    private double anchorSongMicros;       // …曲頭からこのマイクロ秒に対応する
+    private long scheduledUpToTick;        // ここまで (この値は含まない) のノートオンは送信済み
+    private long deviceOffsetNanos;        // スケジューラの時計 -> Receiverの時計 (ナノ秒) への差分。µs への変換は送信時に1回だけ丸める
+    private long previousAnchorNanos = Long.MIN_VALUE; // ループで折り返す直前のアンカー (先読み中はまだ有効)
+    private double previousAnchorSongMicros;
+    private boolean loopEnabled = false;
+    private long loopStartTick;
+    private long loopEndTick;
+    private final PriorityQueue<PendingNoteOff> pendingNoteOffs =
+            new PriorityQueue<>(Comparator.comparingLong((PendingNoteOff off) -> off.offNanos));
+    private Runnable endOfSequenceListener;
+
+    private static final class PendingNoteOff {
+        final PlaybackSource source;
+        final int channel;
+        final int pitch;
+        final long onNanos;
+        final long offNanos;
+
+        PendingNoteOff(PlaybackSource source, int channel, int pitch, long onNanos, long offNanos) {
+            this.source = source;
+            this.channel = channel;
+            this.pitch = pitch;
+            this.onNanos = onNanos;
+            this.offNanos = offNanos;
+        }
+    }
+
+    Transport(MidiScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /** 再生するノートの供給元を差し替えます。再生中でも止めずに反映されます。 */
+    public void setSources(List<PlaybackSource> newSources) {
+        synchronized (lock) {
+            // 差し替え前のソースが鳴らしているノートは、ここで確実に止める
+            releasePendingNoteOffs(scheduler.nanoTime(), null);
+            this.sources = new ArrayList<>(newSources);
+        }
+    }
+
+    /**
+     * ソースの発音可否 (ミュート/ソロの結果) を切り替えます。次のスケジューリング周期から反映されます。
+     */
+    public void setSourceAudible(PlaybackSource source, boolean audible) {
+        synchronized (lock) {
+            if (source.isAudible() == audible) {
+                return;
+            }
+            source.setAudible(audible);
+            if (!audible) {
+                releasePendingNoteOffs(scheduler.nanoTime(), source);
+            }
+        }
+    }
+
+    public TempoMap getTempoMap() {
+        synchronized (lock) {
+            return tempoMap;
+        }
+    }
+
+    /** テンポマップを差し替えます。再生中は現在位置を保ったまま新しいテンポで進みます。 */
+    public void setTempoMap(TempoMap newTempoMap) {
+        synchronized (lock) {
+            if (playing) {
+                long now = scheduler.nanoTime();
+                double tick = tempoMap.microsToTick(songMicrosAt(now));
+                anchorNanos = now;
+                anchorSongMicros = newTempoMap.tickToMicros(tick);
+                previousAnchorNanos = Long.MIN_VALUE;
+            }
+            this.tempoMap = newTempoMap;
+        }
+    }
+
+    /** 曲の終端に達したときにスケジューラスレッドから呼ばれるリスナーを設定します。 */
+    public void setEndOfSequenceListener(Runnable listener) {
+        synchronized (lock) {
+            this.endOfSequenceListener = listener;
+        }
+    }
+
+    /**
+     * ループ範囲を設定します。再生位置が loopEndTick に達すると、隙間なく loopStartTick へ折り返します。
+     * 折り返し先のイベントは先読み窓の中で事前にスケジュールされます。
+     * @param startTick ループ開始Tick
+     * @param endTick ループ終了Tick (このTickは含まれない)
+     */
+    public void setLoop(long startTick, long endTick) {
+        synchronized (lock) {
+            if (endTick <= startTick) {
+                loopEnabled = false;
+                return;
+            }
+            loopStartTick = Math.max(0, startTick);
+            loopEndTick = endTick;
+            loopEnabled = true;
+        }
+    }
+
+    public void clearLoop() {
+        synchronized (lock) {
+            loopEnabled = false;
+        }
+    }
+
+    /**
+     * 再生を開始します。オーディオエンジンがまだ開いていない場合は何もせず false を返します
+     * ({@link AudioEngine#whenReady} で開くのを待ってから呼び直してください)。
+     */
+    public boolean start() {
+        if (!scheduler.isAttached()) {
+            System.err.println("Transport: Audio engine is not open yet. Start ignored.");
+            return false;
+        }
+        synchronized (lock) {
+            if (playing) {
+                return true;
+            }
+            long now = scheduler.nanoTime();
+            anchorNanos = now;
+            anchorSongMicros = tempoMap.tickToMicros(positionTick);
+            previousAnchorNanos = Long.MIN_VALUE;
+            scheduledUpToTick = positionTick;
+            deviceOffsetNanos = scheduler.deviceClockMicros() * 1000 - now;
+            playing = true;
+        }
+        scheduler.wake();
+        return true;
+    }
+
+    /** 現在位置を保持したまま停止します。 */
+    public void pause() {
+        synchronized (lock) {
+            if (!playing) {
+                return;
+            }
+            long now = scheduler.nanoTime();
+            positionTick = currentTick(now);
+            playing = false;
+            releasePendingNoteOffs(now, null);
+        }
+    }
+
+    /** 再生位置を移動します。再生中ならその位置から途切れずに再生を続けます。 */
+    public void seek(long tick) {
+        synchronized (lock) {
+            long target = Math.max(0, tick);
+            if (playing) {
+                long now = scheduler.nanoTime();
+                releasePendingNoteOffs(now, null);
+                anchorNanos = now;
+                anchorSongMicros = tempoMap.tickToMicros(target);
+                previousAnchorNanos = Long.MIN_VALUE;
+                scheduledUpToTick = target;
+            } else {
+                positionTick = target;
+            }
+        }
+    }
+
+    public boolean isPlaying() {
+        synchronized (lock) {
+            return playing;
+        }
+    }
+
+    public long getTickPosition() {
+        synchronized (lock) {
+            return playing ? currentTick(scheduler.nanoTime()) : positionTick;
+        }
+    }
+
+    /** 停止してスケジューラから外します。共有のオーディオエンジン自体は閉じません。 */
+    public void close() {
+        pause();
+        scheduler.release(this);
+    }
+
+    // --- スケジューラスレッドから呼ばれる ---
+
+    /**
+     * 再生中なら1周期分をスケジューリングします。
+     * @return 曲の終端に達して停止した場合は終端リスナー (ロックの外で呼び出すこと)、それ以外は null
+     */
+    Runnable serviceIfPlaying(long now) {
+        synchronized (lock) {
+            if (!playing) {
+                return null;
+            }
+            try {
+                if (service(now)) {
+                    return endOfSequenceListener;
+                }
+            } catch (Exception e) {
+                System.err.println("Transport: Error while scheduling events: " + e.getMessage());
+                e.printStackTrace();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * 1周期分のスケジューリング。lock を保持した状態で呼ばれます。
+     * @return 曲の終端に達して停止した場合 true
+     */
+    private boolean service(long now) {
+        long horizonNanos = now + MidiScheduler.LOOKAHEAD_NANOS;
+
+        // 先に期限の来たノートオフを送る (同じ音高の次のノートオンより前に届くように)
+        flushNoteOffsBefore(horizonNanos);
+
+        // ループ範囲より後ろにシークされた (またはその位置でループが設定された) 場合は、その場でループ先頭へ戻る。
+        // そのままだと終端での折り返しが起きず、ループ中は停止もしないので無音のまま進み続ける
+        if (loopEnabled && scheduledUpToTick > loopEndTick) {
+            jumpToLoopStart(now);
+        }
+
+        long horizonTick = tickCeilAt(horizonNanos);
+        // ループ終端が先読み窓に入ったら、終端までを送ってからループ先頭へアンカーを付け替える
+        while (loopEnabled && scheduledUpToTick <= loopEndTick && horizonTick >= loopEndTick) {
+            scheduleRange(scheduledUpToTick, loopEndTick);
+            wrapLoop();
+            horizonTick = tickCeilAt(horizonNanos);
+        }
+        scheduleRange(scheduledUpToTick, horizonTick);
+        scheduledUpToTick = Math.max(scheduledUpToTick, horizonTick);
+
+        if (loopEnabled) {
+            return false;
+        }
+        long endTick = 0;
+        for (PlaybackSource source : sources) {
+            endTick = Math.max(endTick, source.getIndex().getEndTick());
+        }
+        if (scheduledUpToTick >= endTick && pendingNoteOffs.isEmpty() && currentTick(now) >= endTick) {
+            positionTick = endTick;
+            playing = false;
+            return true;
+        }
+        return false;
+    }
+
+    /** 開始Tickが [fromTick, toTick) のノートを送信します。 */
+    private void scheduleRange(long fromTick, long toTick) {
+        if (toTick <= fromTick) {
+            return;
+        }
+        for (PlaybackSource source : sources) {
+            if (!source.isAudible()) {
+                continue;
+            }
+            NoteEventIndex index = source.getIndex();
+            int i = index.firstStartAtOrAfter(fromTick);
+            while (i < index.size() && index.getStart(i) < toTick) {
+                scheduleNote(source, index, i);
+                i++;
+            }
+        }
+    }
+
+    /**
+     * ループ終端での折り返し。終端を越えて鳴り続けるノートのノートオフだけを終端の時刻に送り、
+     * アンカーを「終端の実時刻 = ループ先頭の曲内時刻」に付け替えます。
+     * 折り返し時刻はアンカーから計算した正確な値なので、何千回ループしても誤差は累積しません。
+     */
+    private void wrapLoop() {
+        long wrapNanos = nanosAtTick(loopEndTick);
+        List<PendingNoteOff> crossing = new ArrayList<>();
+        pendingNoteOffs.removeIf(off -> {
+            if (off.offNanos > wrapNanos) {
+                crossing.add(off);
+                return true;
+            }
+            return false;
+        });
+        // 期限内のものは先に送り、次の周回の同じ音高のノートオンより前に届くようにする
+        flushNoteOffsBefore(wrapNanos + 1);
+        for (PendingNoteOff off : crossing) {
+            send(ShortMessage.NOTE_OFF, off.channel, off.pitch, 0, wrapNanos);
+        }
+
+        previousAnchorNanos = anchorNanos;
+        previousAnchorSongMicros = anchorSongMicros;
+        anchorNanos = wrapNanos;
+        anchorSongMicros = tempoMap.tickToMicros(loopStartTick);
+        scheduledUpToTick = loopStartTick;
+    }
+
+    /** 現在時刻をループ先頭の曲内時刻にしてアンカーを付け替えます。鳴っているノートは止めます。 */
+    private void jumpToLoopStart(long now) {
+        releasePendingNoteOffs(now, null);
+        anchorNanos = now;
+        anchorSongMicros = tempoMap.tickToMicros(loopStartTick);
+        previousAnchorNanos = Long.MIN_VALUE;
+        scheduledUpToTick = loopStartTick;
+    }
+
+    private void scheduleNote(PlaybackSource source, NoteEventIndex index, int i) {
+        long onNanos = nanosAtTick(index.getStart(i));
+        long offNanos = nanosAtTick(index.getEnd(i));
+        int channel = index.getChannel(i);
+        int pitch = index.getPitch(i);
+        send(ShortMessage.NOTE_ON, channel, pitch, index.getVelocity(i), onNanos);
+        pendingNoteOffs.add(new PendingNoteOff(source, channel, pitch, onNanos, offNanos));
+    }
+
+    private void flushNoteOffsBefore(long horizonNanos) {
+        while (!pendingNoteOffs.isEmpty() && pendingNoteOffs.peek().offNanos < horizonNanos) {
+            PendingNoteOff off = pendingNoteOffs.poll();
+            send(ShortMessage.NOTE_OFF, off.channel, off.pitch, 0, off.offNanos);
+        }
+    }
+
+    /**
+     * 保留中のノートオフを即座に送ります。先読みで既に送ってしまったノートオンには、
+     * そのノートオンと同じタイムスタンプでノートオフを送って打ち消します。
+     * @param onlySource null以外なら、そのソースのノートだけを対象にする
+     */
+    private void releasePendingNoteOffs(long now, PlaybackSource onlySource) {
+        pendingNoteOffs.removeIf(off -> {
+            if (onlySource != null && off.source != onlySource) {
+                return false;
+            }
+            send(ShortMessage.NOTE_OFF, off.channel, off.pitch, 0, Math.max(now, off.onNanos));
+            return true;
+        });
+    }
+
+    private void send(int command, int channel, int data1, int data2, long atNanos) {
+        try {
+            ShortMessage message = new ShortMessage(command, channel, data1, data2);
+            scheduler.send(message, Math.round((deviceOffsetNanos + atNanos) / 1000.0));
+        } catch (InvalidMidiDataException e) {
+            System.err.println("Transport: Invalid MIDI data: " + e.getMessage());
+        }
+    }
+
+    private double songMicrosAt(long nanos) {
+        // ループ折り返し直後は、新しいアンカーの時刻になるまで折り返し前のアンカーで位置を求める
+        if (nanos < anchorNanos && previousAnchorNanos != Long.MIN_VALUE) {
+            return previousAnchorSongMicros + (nanos - previousAnchorNanos) / 1000.0;
+        }
+        return anchorSongMicros + (nanos - anchorNanos) / 1000.0;
+    }
+
+    private long tickCeilAt(long nanos) {
+        return (long) Math.ceil(tempoMap.microsToTick(anchorSongMicros + (nanos - anchorNanos) / 1000.0));
+    }
+
+    private long currentTick(long now) {
+        return Math.max(0, (long) tempoMap.microsToTick(songMicrosAt(now)));
+    }
+
+    private long nanosAtTick(long tick) {
+        return anchorNanos + Math.round((tempoMap.tickToMicros(tick) - anchorSongMicros) * 1000.0);
+    }
+}
@@ -0,0 +1,199 @@
+package org.codesfactory.api;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Routes requests through a pool of local stub servers and checks failover on 503, recovery through
+ * {@link EndpointPool#checkHealth()}, latency-based routing, and hedging after the p95 latency, including
+ * that the request body is only given up once every exchange has finished.
+ */
+class EndpointPoolTest {
+
+    /** A local server whose {@code /generate} answers with its name after a delay, or 503 while unavailable. */
+    static final class StubServer {
+        final String name;
+        final HttpServer server;
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        final AtomicInteger hits = new AtomicInteger();
+        volatile boolean available = true;
+        volatile long delayMillis = 0;
+
+        StubServer(String name) throws IOException {
+            this.name = name;
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            server.createContext("/generate", exchange -> {
+                exchange.getRequestBody().readAllBytes();
+                hits.incrementAndGet();
+                try {
+                    Thread.sleep(delayMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                respond(exchange, available ? 200 : 503, available ? name : "initialization not complete");
+            });
+            server.createContext("/model_info", exchange -> respond(exchange, available ? 200 : 503, "{}"));
+            server.setExecutor(executor);
+            server.start();
+        }
+
+        private static void respond(com.sun.net.httpserver.HttpExchange exchange, int status, String body) {
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            try {
+                exchange.sendResponseHeaders(status, bytes.length);
+                exchange.getResponseBody().write(bytes);
+            } catch (IOException e) {
+                // the client aborted the exchange
+            } finally {
+                exchange.close();
+            }
+        }
+
+        String url() {
+            return "http://127.0.0.1:" + server.getAddress().getPort();
+        }
+
+        void stop() {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+    }
+
+    private final List<StubServer> servers = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() {
+        for (StubServer server : servers) {
+            server.stop();
+        }
+    }
+
+    private EndpointPool pool(boolean hedging, String... names) throws IOException {
+        for (String name : names) {
+            servers.add(new StubServer(name));
+        }
+        String urls = servers.stream().map(StubServer::url).collect(Collectors.joining(","));
+        return new EndpointPool(new ApiConfig(urls, Duration.ofSeconds(2), Duration.ofSeconds(2), Duration.ofSeconds(10),
+                false, Duration.ofSeconds(30), hedging, Duration.ofHours(1)));
+    }
+
+    private static CompletableFuture<HttpResponse<String>> generate(EndpointPool pool, Runnable onFinished) {
+        return pool.send(endpoint -> HttpRequest.newBuilder()
+                .uri(URI.create(endpoint.getBaseUrl() + "/generate"))
+                .POST(HttpRequest.BodyPublishers.ofString("request"))
+                .build(), HttpResponse.BodyHandlers.ofString(), true, onFinished);
+    }
+
+    private static String generate(EndpointPool pool) throws Exception {
+        return generate(pool, () -> { }).get(10, TimeUnit.SECONDS).body();
+    }
+
+    @Test
+    void failsOverOn503AndMarksTheServerDown() throws Exception {
+        EndpointPool pool = pool(false, "a", "b");
+        StubServer a = servers.get(0);
+        a.available = false;
+
+        AtomicInteger finished = new AtomicInteger();
+        HttpResponse<String> response = generate(pool, finished::incrementAndGet).get(10, TimeUnit.SECONDS);
+        assertEquals(200, response.statusCode());
+        assertEquals("b", response.body());
+        assertEquals(1, a.hits.get());
+        assertFalse(pool.getEndpoints().get(0).isHealthy());
+        assertEquals(1, finished.get());
+
+        // a down server is only tried when nothing else is left
+        assertEquals("b", generate(pool));
+        assertEquals(1, a.hits.get());
+    }
+
+    @Test
+    void healthCheckBringsAServerBackUp() throws Exception {
+        EndpointPool pool = pool(false, "a", "b");
+        StubServer a = servers.get(0);
+        a.available = false;
+        pool.checkHealth().get(10, TimeUnit.SECONDS);
+        assertFalse(pool.getEndpoints().get(0).isHealthy());
+        assertTrue(pool.getEndpoints().get(1).isHealthy());
+
+        a.available = true;
+        pool.checkHealth().get(10, TimeUnit.SECONDS);
+        assertTrue(pool.getEndpoints().get(0).isHealthy());
+        assertEquals("a", generate(pool)); // first in the list again on equal footing
+    }
+
+    @Test
+    void routesToTheServerWithTheLowerLatency() throws Exception {
+        EndpointPool pool = pool(false, "slow", "fast");
+        servers.get(0).delayMillis = 300;
+        servers.get(1).delayMillis = 10;
+        // Two at once, so each server answers one and both latencies become known
+        CompletableFuture<HttpResponse<String>> first = generate(pool, () -> { });
+        CompletableFuture<HttpResponse<String>> second = generate(pool, () -> { });
+        first.get(10, TimeUnit.SECONDS);
+        second.get(10, TimeUnit.SECONDS);
+        assertEquals(1, servers.get(0).hits.get());
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals("fast", generate(pool));
+        }
+        assertEquals(1, servers.get(0).hits.get());
+        assertTrue(pool.getLatencyMillis(pool.getEndpoints().get(0)) > pool.getLatencyMillis(pool.getEndpoints().get(1)));
+    }
+
+    @Test
+    void hedgesAfterP95AndKeepsTheBodyUntilEveryExchangeIsOver() throws Exception {
+        EndpointPool pool = pool(true, "a", "b");
+        StubServer a = servers.get(0);
+        StubServer b = servers.get(1);
+        a.delayMillis = 10;
+        for (int i = 0; i < EndpointPool.MIN_HEDGE_SAMPLES; i++) {
+            assertEquals("a", generate(pool)); // b is unknown and looks average, so a keeps winning ties
+        }
+        assertEquals(0, b.hits.get());
+        assertTrue(pool.hedgeDelayMillis() >= 0);
+
+        a.delayMillis = 5_000;
+        b.delayMillis = 10;
+        AtomicBoolean released = new AtomicBoolean();
+        CountDownLatch finished = new CountDownLatch(1);
+        CompletableFuture<HttpResponse<String>> hedged = generate(pool, () -> {
+            released.set(true);
+            finished.countDown();
+        });
+        AtomicBoolean releasedWhenAnswered = new AtomicBoolean(true);
+        hedged.whenComplete((response, error) -> releasedWhenAnswered.set(released.get()));
+        long start = System.nanoTime();
+        assertEquals("b", hedged.get(10, TimeUnit.SECONDS).body());
+        assertTrue((System.nanoTime() - start) / 1_000_000 < 4_000, "answered by the hedge, not the slow server");
+        assertEquals(1, b.hits.get());
+
+        // The slow exchange was still running when b answered; the body is given up only after it is aborted
+        assertFalse(releasedWhenAnswered.get());
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        assertEquals(0, pool.getInFlight(pool.getEndpoints().get(0)));
+    }
+}
@@ -0,0 +1,67 @@
+package org.codesfactory.api;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Checks the two cache tiers: disk writes happen off the caller's thread but are visible to get() right
+ * away, and a fresh cache over the same directory serves what an earlier one wrote.
+ */
+class GenerationCacheTest {
+
+    private Path directory;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        directory = Files.createTempDirectory("compass-cache");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+        Files.deleteIfExists(directory);
+    }
+
+    @Test
+    void queuedWriteIsVisibleAndLandsOnDisk() throws Exception {
+        GenerationCache cache = new GenerationCache(directory, 0, 1024 * 1024); // no memory tier
+        byte[] response = {1, 2, 3, 4};
+        cache.put("abc", response);
+        assertArrayEquals(response, cache.get("abc"));
+
+        cache.flush();
+        assertEquals(4L, cache.getDiskBytes());
+        GenerationCache reopened = new GenerationCache(directory, 1024, 1024 * 1024);
+        assertArrayEquals(response, reopened.get("abc"));
+        assertNull(reopened.get("missing"));
+    }
+
+    @Test
+    void clearRemovesQueuedAndWrittenEntries() throws Exception {
+        GenerationCache cache = new GenerationCache(directory, 1024, 1024 * 1024);
+        cache.put("a", new byte[10]);
+        cache.flush();
+        cache.put("b", new byte[20]);
+        cache.clear();
+        cache.flush();
+
+        assertNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals(0L, cache.getDiskBytes());
+        assertEquals(0L, cache.getMemoryBytes());
+    }
+}
@@ -0,0 +1,84 @@
+package org.codesfactory.api;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the scheduler against hand-completed exchanges: the concurrency cap and priority order,
+ * coalescing of identical requests, and that withdrawing the last caller never strands a new one.
+ */
+class GenerationSchedulerTest {
+
+    private final GenerationScheduler scheduler = new GenerationScheduler(1);
+    private final List<String> sent = new ArrayList<>();
+    private final List<CompletableFuture<byte[]>> exchanges = new ArrayList<>();
+
+    private CompletableFuture<byte[]> submit(String key, GenerationScheduler.Priority priority) {
+        return scheduler.submit("http://stub", 1, key, "model", priority, () -> {
+            CompletableFuture<byte[]> exchange = new CompletableFuture<>();
+            synchronized (sent) {
+                sent.add(key);
+                exchanges.add(exchange);
+            }
+            return exchange;
+        }, () -> { });
+    }
+
+    @Test
+    void interactiveRequestsOvertakeQueuedPrefetches() throws Exception {
+        CompletableFuture<byte[]> first = submit("p1", GenerationScheduler.Priority.PREFETCH);
+        submit("p2", GenerationScheduler.Priority.PREFETCH);
+        submit("i1", GenerationScheduler.Priority.INTERACTIVE);
+        assertEquals(List.of("p1"), sent); // one slot
+
+        exchanges.get(0).complete(new byte[] {1});
+        assertArrayEquals(new byte[] {1}, first.get(1, TimeUnit.SECONDS));
+        assertEquals(List.of("p1", "i1"), sent);
+        exchanges.get(1).complete(new byte[0]);
+        assertEquals(List.of("p1", "i1", "p2"), sent);
+    }
+
+    @Test
+    void identicalRequestsShareOneExchange() throws Exception {
+        CompletableFuture<byte[]> a = submit("k", GenerationScheduler.Priority.INTERACTIVE);
+        CompletableFuture<byte[]> b = submit("k", GenerationScheduler.Priority.INTERACTIVE);
+        a.cancel(true); // b still wants it
+        assertFalse(exchanges.get(0).isCancelled());
+
+        exchanges.get(0).complete(new byte[] {7});
+        assertArrayEquals(new byte[] {7}, b.get(1, TimeUnit.SECONDS));
+        assertEquals(1, sent.size());
+        assertEquals(1L, scheduler.getMetrics().getCoalesced());
+    }
+
+    @Test
+    void requestSubmittedWhileTheLastCallerWithdrawsIsSentAfresh() throws Exception {
+        List<CompletableFuture<byte[]>> late = new ArrayList<>();
+        CompletableFuture<byte[]> first = scheduler.submit("http://stub", 1, "k", "model",
+                GenerationScheduler.Priority.INTERACTIVE, () -> new CompletableFuture<>() {
+                    @Override
+                    public boolean cancel(boolean mayInterruptIfRunning) {
+                        // An identical request arrives between the withdrawal and the abort
+                        late.add(submit("k", GenerationScheduler.Priority.INTERACTIVE));
+                        return super.cancel(mayInterruptIfRunning);
+                    }
+                }, () -> { });
+        first.cancel(true);
+
+        assertEquals(1, late.size());
+        assertFalse(late.get(0).isDone(), "the late request must not inherit the cancellation");
+        assertEquals(List.of("k"), sent);
+        exchanges.get(0).complete(new byte[] {3});
+        assertArrayEquals(new byte[] {3}, late.get(0).get(1, TimeUnit.SECONDS));
+        assertTrue(first.isCancelled());
+    }
+}
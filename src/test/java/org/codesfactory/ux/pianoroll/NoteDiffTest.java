@@ -0,0 +1,68 @@
+package org.codesfactory.ux.pianoroll;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 差分エンジンの検査。追加・削除・変更を ID で見分け、変更セットを適用すると新しい版に、
+ * 逆向きを適用すると元の版に戻ることを確かめます。
+ */
+class NoteDiffTest {
+
+    @Test
+    void findsAddedRemovedAndModifiedNotes() {
+        Note kept = new Note(60, 0, 480, 100, 0);
+        Note moved = new Note(62, 480, 480, 100, 0);
+        Note deleted = new Note(64, 960, 480, 100, 0);
+        List<Note> before = List.of(kept, moved, deleted);
+        NoteDiff.Snapshot beforeSnapshot = NoteDiff.Snapshot.of(before);
+
+        moved.setStartTimeTicks(720);
+        Note added = new Note(67, 1440, 240, 90, 0);
+        List<Note> after = List.of(added, kept, moved); // 並び順は ID 順でなくてよい
+        NoteDiff.ChangeSet changes = NoteDiff.diff(beforeSnapshot, NoteDiff.Snapshot.of(after));
+
+        assertEquals(3, changes.size());
+        assertEquals(1, changes.getAdded().size());
+        assertEquals(added.getId(), changes.getAdded().getId(0));
+        assertEquals(1, changes.getRemoved().size());
+        assertEquals(deleted.getId(), changes.getRemoved().getId(0));
+        assertEquals(1, changes.getModifiedAfter().size());
+        assertEquals(moved.getId(), changes.getModifiedAfter().getId(0));
+        assertEquals(480L, changes.getModifiedBefore().toNote(0).getStartTimeTicks());
+        assertTrue(NoteDiff.diff(after, after).isEmpty());
+    }
+
+    @Test
+    void applyAndInverseRoundTrip() {
+        List<Note> notes = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            notes.add(new Note(40 + i % 40, i * 120L, 120, 100, 0));
+        }
+        NoteDiff.Snapshot original = NoteDiff.Snapshot.of(notes);
+        List<Note> edited = new ArrayList<>(notes);
+        edited.remove(10);
+        edited.remove(50);
+        edited.get(20).setPitch(100);
+        edited.get(30).setDurationTicks(960);
+        edited.add(new Note(90, 5000, 240, 80, 1));
+        NoteDiff.Snapshot editedSnapshot = NoteDiff.Snapshot.of(edited);
+        NoteDiff.ChangeSet changes = NoteDiff.diff(original, editedSnapshot);
+        assertEquals(5, changes.size());
+
+        // 元の版の値に戻したリストへ適用すると編集後の版になり、逆向きで元に戻る
+        List<Note> replay = new ArrayList<>();
+        for (int i = 0; i < original.size(); i++) {
+            replay.add(original.toNote(i));
+        }
+        changes.applyTo(replay);
+        assertTrue(NoteDiff.diff(NoteDiff.Snapshot.of(replay), editedSnapshot).isEmpty());
+        changes.inverse().applyTo(replay);
+        assertTrue(NoteDiff.diff(NoteDiff.Snapshot.of(replay), original).isEmpty());
+    }
+}
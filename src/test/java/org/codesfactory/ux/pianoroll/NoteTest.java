@@ -0,0 +1,22 @@
+package org.codesfactory.ux.pianoroll;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * ノートの ID の検査。別のプロセスで記録した ID を読み戻しても、以後に作るノートの ID と重ならないことを確かめます。
+ */
+class NoteTest {
+
+    @Test
+    void restoredIdsAreNotReused() {
+        long recorded = new Note(60, 0, 480, 100, 0).getId() + 1_000_000;
+        Note restored = Note.restore(recorded, 62, 480, 240, 90, 1);
+        assertEquals(recorded, restored.getId());
+        assertEquals(62, restored.getPitch());
+        assertEquals(240L, restored.getDurationTicks());
+        assertTrue(new Note(64, 0, 480, 100, 0).getId() > recorded);
+    }
+}
@@ -0,0 +1,158 @@
+package org.codesfactory.ux.pianoroll.commands;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 履歴の検査。保持量の合計を積む/降ろすたびに増減させても数え直した値と一致すること、
+ * 入れ子のトランザクションのロールバックが内側の段だけを戻し、元の例外を隠さないことを確かめます。
+ */
+class UndoManagerTest {
+
+    /** 実行/Undo で保持量が変わる (Undo 側の状態だけを持つ) コマンド。 */
+    static class SizedCommand implements Command {
+        final List<String> log;
+        final String name;
+        final long executedBytes;
+        final long undoneBytes;
+        boolean executed = false;
+
+        SizedCommand(List<String> log, String name, long executedBytes, long undoneBytes) {
+            this.log = log;
+            this.name = name;
+            this.executedBytes = executedBytes;
+            this.undoneBytes = undoneBytes;
+        }
+
+        @Override
+        public void execute() {
+            executed = true;
+            log.add("+" + name);
+        }
+
+        @Override
+        public void undo() {
+            executed = false;
+            log.add("-" + name);
+        }
+
+        @Override
+        public String getDescription() {
+            return name;
+        }
+
+        @Override
+        public long retainedSizeBytes() {
+            return executed ? executedBytes : undoneBytes;
+        }
+    }
+
+    @Test
+    void retainedBytesFollowsExecuteUndoAndRedo() {
+        List<String> log = new ArrayList<>();
+        UndoManager undoManager = new UndoManager();
+        undoManager.executeCommand(new SizedCommand(log, "a", 100, 10));
+        undoManager.executeCommand(new SizedCommand(log, "b", 200, 20));
+        assertEquals(300L, undoManager.getRetainedBytes());
+
+        undoManager.undo(); // b: 200 -> 20
+        assertEquals(120L, undoManager.getRetainedBytes());
+        undoManager.redo();
+        assertEquals(300L, undoManager.getRetainedBytes());
+
+        undoManager.undo();
+        undoManager.executeCommand(new SizedCommand(log, "c", 50, 5)); // Redo 側の b は捨てられる
+        assertEquals(150L, undoManager.getRetainedBytes());
+        assertFalse(undoManager.canRedo());
+    }
+
+    @Test
+    void dropsOldestEntriesOverBudget() {
+        List<String> log = new ArrayList<>();
+        UndoManager undoManager = new UndoManager();
+        undoManager.setMemoryBudgetBytes(250);
+        for (int i = 0; i < 5; i++) {
+            undoManager.executeCommand(new SizedCommand(log, "c" + i, 100, 100));
+        }
+        assertEquals(200L, undoManager.getRetainedBytes());
+
+        log.clear();
+        while (undoManager.canUndo()) {
+            undoManager.undo();
+        }
+        assertEquals(List.of("-c4", "-c3"), log); // 古い c0..c2 は捨てられている
+
+        // 直前の1手は予算を超えていても残す
+        undoManager.setMemoryBudgetBytes(10);
+        undoManager.executeCommand(new SizedCommand(log, "big", 1000, 1000));
+        assertTrue(undoManager.canUndo());
+        assertEquals(1000L, undoManager.getRetainedBytes());
+    }
+
+    @Test
+    void nestedRollbackUndoesOnlyTheInnerLevel() {
+        List<String> log = new ArrayList<>();
+        UndoManager undoManager = new UndoManager();
+        undoManager.beginTransaction("outer");
+        undoManager.executeCommand(new SizedCommand(log, "a", 1, 1));
+        undoManager.beginTransaction("inner");
+        undoManager.executeCommand(new SizedCommand(log, "b", 1, 1));
+        undoManager.rollbackTransaction();
+        assertTrue(undoManager.isInTransaction());
+        undoManager.executeCommand(new SizedCommand(log, "c", 1, 1));
+        undoManager.commitTransaction();
+        assertFalse(undoManager.isInTransaction());
+
+        log.clear();
+        undoManager.undo(); // a と c が1つの履歴になっている
+        assertEquals(List.of("-c", "-a"), log);
+        assertFalse(undoManager.canUndo());
+    }
+
+    @Test
+    void innerFailureRollsBackAllLevelsWithTheOriginalException() {
+        List<String> log = new ArrayList<>();
+        UndoManager undoManager = new UndoManager();
+        IllegalArgumentException thrown = assertThrows(IllegalArgumentException.class, () ->
+                undoManager.runInTransaction("outer", () -> {
+                    undoManager.executeCommand(new SizedCommand(log, "a", 1, 1));
+                    undoManager.runInTransaction("inner", () -> {
+                        undoManager.executeCommand(new SizedCommand(log, "b", 1, 1));
+                        throw new IllegalArgumentException("edit failed");
+                    });
+                }));
+        assertEquals("edit failed", thrown.getMessage());
+        assertEquals(0, thrown.getSuppressed().length);
+        assertEquals(List.of("+a", "+b", "-b", "-a"), log);
+        assertFalse(undoManager.isInTransaction());
+        assertFalse(undoManager.canUndo());
+    }
+
+    @Test
+    void rollbackFailureIsSuppressedIntoTheOriginalException() {
+        List<String> log = new ArrayList<>();
+        UndoManager undoManager = new UndoManager();
+        Command brokenUndo = new SizedCommand(log, "broken", 1, 1) {
+            @Override
+            public void undo() {
+                throw new IllegalStateException("undo failed");
+            }
+        };
+        IllegalArgumentException thrown = assertThrows(IllegalArgumentException.class, () ->
+                undoManager.runInTransaction("edit", () -> {
+                    undoManager.executeCommand(brokenUndo);
+                    throw new IllegalArgumentException("edit failed");
+                }));
+        assertEquals("edit failed", thrown.getMessage());
+        assertEquals(1, thrown.getSuppressed().length);
+        assertEquals("undo failed", thrown.getSuppressed()[0].getMessage());
+        assertFalse(undoManager.isInTransaction());
+    }
+}
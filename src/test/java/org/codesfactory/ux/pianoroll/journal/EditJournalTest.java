@@ -0,0 +1,121 @@
+package org.codesfactory.ux.pianoroll.journal;
+
+import org.codesfactory.ux.pianoroll.MidiRegion;
+import org.codesfactory.ux.pianoroll.Note;
+import org.codesfactory.ux.pianoroll.Track;
+import org.codesfactory.ux.pianoroll.commands.AddTrackCommand;
+import org.codesfactory.ux.pianoroll.commands.DeleteMultipleNotesCommand;
+import org.codesfactory.ux.pianoroll.commands.DeleteTracksCommand;
+import org.codesfactory.ux.pianoroll.commands.MoveRegionCommand;
+import org.codesfactory.ux.pianoroll.commands.ReplaceNotesCommand;
+import org.codesfactory.ux.pianoroll.commands.UndoManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 編集ジャーナルの検査。コマンドが報告した変更だけを記録して、異常終了後の復元と
+ * メモリ上の履歴より前への取り消し (rewind) が元の状態を再現することを確かめます。
+ */
+class EditJournalTest {
+
+    private Path directory;
+    private List<Track> tracks;
+    private Track piano;
+    private MidiRegion region;
+    private UndoManager undoManager;
+    private EditJournal journal;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        directory = Files.createTempDirectory("compass-journal");
+        tracks = new ArrayList<>();
+        piano = new Track("piano", "Piano");
+        region = new MidiRegion("r1", 0, 3840);
+        piano.addRegion(region);
+        tracks.add(piano);
+        journal = new EditJournal(directory);
+        journal.startSession(tracks);
+        undoManager = new UndoManager();
+        undoManager.setHistoryListener(journal.newHistory());
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (journal != null) {
+            journal.closeAndDiscard();
+        }
+        Files.deleteIfExists(directory);
+    }
+
+    @Test
+    void recoversCommandEditsAfterCrash() throws IOException {
+        Note second = new Note(62, 480, 480, 100, 0);
+        undoManager.executeCommand(new ReplaceNotesCommand(null, piano.getNotes(), List.of(),
+                List.of(new Note(60, 0, 480, 100, 0), second, new Note(64, 960, 480, 100, 0))));
+        undoManager.executeCommand(new MoveRegionCommand(piano, region, 240));
+        undoManager.executeCommand(new DeleteMultipleNotesCommand(null, piano.getNotes(), List.of(second)));
+        Track bass = new Track("bass", "Bass");
+        undoManager.executeCommand(new AddTrackCommand(tracks, bass));
+        undoManager.executeCommand(new ReplaceNotesCommand(null, bass.getNotes(), List.of(), List.of(new Note(36, 0, 960, 90, 0))));
+        undoManager.executeCommand(new ReplaceNotesCommand(null, bass.getNotes(), List.of(), List.of(new Note(38, 960, 960, 90, 0))));
+        undoManager.undo();
+        List<String> expected = describe(tracks);
+
+        journal.close(); // 異常終了 (ジャーナルを消さずに終わる)
+        journal = new EditJournal(directory);
+        assertTrue(journal.hasRecoverableEdits());
+        List<Track> restored = new ArrayList<>();
+        journal.recoverInto(restored);
+
+        assertEquals(expected, describe(restored));
+    }
+
+    @Test
+    void rewindsPastTheUndoHistory() {
+        List<List<String>> states = new ArrayList<>();
+        states.add(describe(tracks));
+        undoManager.executeCommand(new ReplaceNotesCommand(null, piano.getNotes(), List.of(),
+                List.of(new Note(60, 0, 480, 100, 0), new Note(67, 480, 240, 100, 0))));
+        states.add(describe(tracks));
+        undoManager.executeCommand(new MoveRegionCommand(piano, region, 480));
+        states.add(describe(tracks));
+        undoManager.executeCommand(new DeleteTracksCommand(tracks, List.of(piano)));
+        states.add(describe(tracks));
+        undoManager.clearStacks(); // メモリ上の履歴は捨てられた
+
+        for (int i = states.size() - 2; i >= 0; i--) {
+            assertTrue(journal.canRewind());
+            assertTrue(journal.rewind());
+            assertEquals(states.get(i), describe(tracks));
+        }
+        assertFalse(journal.canRewind());
+    }
+
+    /** トラックとノート (IDを含む) を、並び順どおりに文字列にします。 */
+    private static List<String> describe(List<Track> tracks) {
+        List<String> lines = new ArrayList<>();
+        for (Track track : tracks) {
+            StringBuilder line = new StringBuilder(track.getId() + " " + track.getName());
+            for (MidiRegion r : track.getRegions()) {
+                line.append(" [").append(r.getId()).append(' ').append(r.getStartTick()).append('-').append(r.getEndTick()).append(']');
+            }
+            lines.add(line.toString());
+            for (Note note : track.getNotes()) {
+                lines.add("  " + note.getId() + " p" + note.getPitch() + " @" + note.getStartTimeTicks()
+                        + " len" + note.getDurationTicks() + " v" + note.getVelocity());
+            }
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,130 @@
+package org.codesfactory.ux.pianoroll.playback;
+
+import org.codesfactory.ux.pianoroll.Note;
+import org.junit.jupiter.api.Test;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Transmitter;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 録音の取りこぼしとタイミングの検査。仮想の {@link Transmitter} から1秒あたり 10,000 イベントを
+ * デバイスのタイムスタンプ付きで数ミリ秒ごとにまとめて送り、録音されたノートの数と位置を確かめます。
+ */
+class MidiInputRecorderTest {
+
+    private static final int PPQN = 9600; // 120 BPM で 1 tick ≒ 52 µs
+    private static final int EVENTS = 10_000;
+    private static final long NOTE_INTERVAL_MICROS = 200; // ノート 5,000 個 (オン/オフで 10,000 イベント) を1秒で
+    private static final long NOTE_LENGTH_MICROS = 150;
+    private static final long BURST_MILLIS = 5;
+
+    /** 受け取ったイベントをデバイスのタイムスタンプどおりの時刻に、まとめて Receiver に渡す仮想入力。 */
+    static final class VirtualTransmitter implements Transmitter {
+        private final long baseNanos = System.nanoTime();
+        private Receiver receiver;
+
+        long deviceMicros() {
+            return (System.nanoTime() - baseNanos) / 1000;
+        }
+
+        /** events[i] を timestamps[i] (デバイスの µs) になった後の次のまとまりで送ります。 */
+        void replay(ShortMessage[] events, long[] timestamps) throws InterruptedException {
+            int next = 0;
+            while (next < events.length) {
+                Thread.sleep(BURST_MILLIS);
+                long now = deviceMicros();
+                while (next < events.length && timestamps[next] <= now) {
+                    receiver.send(events[next], timestamps[next]);
+                    next++;
+                }
+            }
+        }
+
+        @Override
+        public void setReceiver(Receiver receiver) {
+            this.receiver = receiver;
+        }
+
+        @Override
+        public Receiver getReceiver() {
+            return receiver;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Test
+    void recordsTenThousandEventsPerSecondWithoutLoss() throws Exception {
+        TempoMap tempoMap = TempoMap.constant(PPQN, 120);
+        VirtualTransmitter transmitter = new VirtualTransmitter();
+        MidiInputRecorder recorder = new MidiInputRecorder(tempoMap, 0, transmitter.baseNanos);
+        recorder.setMonitoring(false);
+
+        ShortMessage[] events = new ShortMessage[EVENTS];
+        long[] timestamps = new long[EVENTS];
+        for (int k = 0; k < EVENTS / 2; k++) {
+            int pitch = pitchOf(k);
+            long onMicros = k * NOTE_INTERVAL_MICROS;
+            events[2 * k] = message(ShortMessage.NOTE_ON, pitch, 100);
+            timestamps[2 * k] = onMicros;
+            events[2 * k + 1] = message(ShortMessage.NOTE_OFF, pitch, 0);
+            timestamps[2 * k + 1] = onMicros + NOTE_LENGTH_MICROS;
+        }
+
+        recorder.start(transmitter, transmitter::deviceMicros);
+        transmitter.replay(events, timestamps);
+        List<Note> take = recorder.stop();
+
+        assertEquals(0L, recorder.getDroppedEventCount(), "dropped events");
+        assertEquals(EVENTS / 2, take.size(), "recorded notes");
+        take.sort(Comparator.comparingLong(Note::getStartTimeTicks));
+        long worstErrorMicros = 0;
+        for (int k = 0; k < take.size(); k++) {
+            Note note = take.get(k);
+            assertEquals(pitchOf(k), note.getPitch(), "pitch of note " + k);
+            long startMicros = Math.round(tempoMap.tickToMicros(note.getStartTimeTicks()));
+            long endMicros = Math.round(tempoMap.tickToMicros(note.getStartTimeTicks() + note.getDurationTicks()));
+            worstErrorMicros = Math.max(worstErrorMicros, Math.abs(startMicros - k * NOTE_INTERVAL_MICROS));
+            worstErrorMicros = Math.max(worstErrorMicros, Math.abs(endMicros - (k * NOTE_INTERVAL_MICROS + NOTE_LENGTH_MICROS)));
+        }
+        // まとめて届いても、位置はデバイスのタイムスタンプどおり (誤差は tick への丸めと時計合わせ分だけ)
+        assertTrue(worstErrorMicros <= 100, "worst timing error " + worstErrorMicros + "us");
+    }
+
+    @Test
+    void eventsWithoutTimestampUseArrivalTime() throws Exception {
+        TempoMap tempoMap = TempoMap.constant(PPQN, 120);
+        VirtualTransmitter transmitter = new VirtualTransmitter();
+        MidiInputRecorder recorder = new MidiInputRecorder(tempoMap, 0, transmitter.baseNanos);
+        recorder.setMonitoring(false);
+
+        recorder.start(transmitter);
+        Thread.sleep(20);
+        long onMicros = transmitter.deviceMicros();
+        transmitter.getReceiver().send(message(ShortMessage.NOTE_ON, 60, 100), -1);
+        Thread.sleep(20);
+        transmitter.getReceiver().send(message(ShortMessage.NOTE_OFF, 60, 0), -1);
+        List<Note> take = recorder.stop();
+
+        assertEquals(1, take.size());
+        long startMicros = Math.round(tempoMap.tickToMicros(take.get(0).getStartTimeTicks()));
+        assertTrue(Math.abs(startMicros - onMicros) < 1000, "start " + startMicros + "us, sent at " + onMicros + "us");
+    }
+
+    private static int pitchOf(int k) {
+        return k % 100 + 10;
+    }
+
+    private static ShortMessage message(int command, int pitch, int velocity) throws InvalidMidiDataException {
+        return new ShortMessage(command, 0, pitch, velocity);
+    }
+}
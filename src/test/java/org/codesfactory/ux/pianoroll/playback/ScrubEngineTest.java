@@ -0,0 +1,45 @@
+package org.codesfactory.ux.pianoroll.playback;
+
+import org.codesfactory.ux.pianoroll.Note;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * スクラブの検査。ドラッグ開始直後の最初の移動から、再生ヘッド位置で鳴っているノートが発音されることを確かめます。
+ */
+class ScrubEngineTest {
+
+    /** 発音の代わりに、鳴らすはずだった和音を記録する出力。 */
+    static final class RecordingOutput implements ScrubEngine.Output {
+        final List<String> chords = new ArrayList<>();
+
+        @Override
+        public void chord(int[] pitches, int velocity, int durationMillis) {
+            chords.add(Arrays.toString(pitches));
+        }
+
+        @Override
+        public void silence() {
+            chords.add("silence");
+        }
+    }
+
+    @Test
+    void firstScrubSoundsTheNotesUnderThePlayhead() {
+        NoteEventIndex index = NoteEventIndex.build(List.of(
+                new Note(60, 0, 480, 100, 0), new Note(64, 0, 960, 100, 0), new Note(72, 960, 480, 100, 0)));
+        RecordingOutput output = new RecordingOutput();
+        ScrubEngine scrubEngine = new ScrubEngine(List.of(index), output);
+
+        scrubEngine.scrubTo(240);
+        assertEquals(List.of("[60, 64]"), output.chords);
+
+        scrubEngine.scrubTo(300); // 間隔が短いので間引かれる
+        assertEquals(1, output.chords.size());
+    }
+}
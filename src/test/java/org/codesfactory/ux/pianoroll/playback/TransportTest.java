@@ -0,0 +1,179 @@
+package org.codesfactory.ux.pianoroll.playback;
+
+import org.codesfactory.ux.pianoroll.Note;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 先読みスケジューラのタイミング検査。手で進める時計でスケジューラスレッドの代わりに
+ * {@link Transport#serviceIfPlaying} を不規則な間隔で呼び、送られた各イベントのタイムスタンプを
+ * {@link TempoMap} から求めた時刻と比べます。
+ */
+class TransportTest {
+
+    private static final long DEVICE_OFFSET_MICROS = 5_000_000L;
+
+    /** 送られたイベント1つ分。 */
+    static final class Sent {
+        final int command;
+        final int pitch;
+        final long timestampMicros;
+        final long sentAtDeviceMicros;
+
+        Sent(int command, int pitch, long timestampMicros, long sentAtDeviceMicros) {
+            this.command = command;
+            this.pitch = pitch;
+            this.timestampMicros = timestampMicros;
+            this.sentAtDeviceMicros = sentAtDeviceMicros;
+        }
+    }
+
+    private long clockNanos;
+    private final List<Sent> sent = new ArrayList<>();
+    private MidiScheduler scheduler;
+
+    @BeforeEach
+    void setUp() {
+        clockNanos = 1_000_000_000L;
+        sent.clear();
+        scheduler = new MidiScheduler(() -> clockNanos);
+        scheduler.connect(new Receiver() {
+            @Override
+            public void send(MidiMessage message, long timeStamp) {
+                ShortMessage sm = (ShortMessage) message;
+                sent.add(new Sent(sm.getCommand(), sm.getData1(), timeStamp, deviceMicros()));
+            }
+
+            @Override
+            public void close() {
+            }
+        }, this::deviceMicros);
+    }
+
+    private long deviceMicros() {
+        return clockNanos / 1000 + DEVICE_OFFSET_MICROS;
+    }
+
+    private static List<Note> quarterNotes(int count, int ppqn) {
+        List<Note> notes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            notes.add(new Note(60 + i % 12, (long) i * ppqn, ppqn / 2, 100, 0));
+        }
+        return notes;
+    }
+
+    /** 再生が終わるまで (または maxNanos まで) 0.2〜3ms の不規則な間隔でスケジューラを回します。 */
+    private long drive(Transport transport, long maxNanos, long seed) {
+        Random random = new Random(seed);
+        long maxStep = 0;
+        long until = clockNanos + maxNanos;
+        transport.serviceIfPlaying(clockNanos); // start() がスケジューラを起こした直後の1周期
+        while (transport.isPlaying() && clockNanos < until) {
+            long step = 200_000L + (long) (random.nextDouble() * 2_800_000L);
+            maxStep = Math.max(maxStep, step);
+            clockNanos += step;
+            transport.serviceIfPlaying(clockNanos);
+        }
+        return maxStep;
+    }
+
+    private void assertTimestamps(List<Note> notes, TempoMap tempoMap, long startDeviceMicros, long maxStepNanos) {
+        List<Sent> ons = new ArrayList<>();
+        List<Sent> offs = new ArrayList<>();
+        for (Sent s : sent) {
+            (s.command == ShortMessage.NOTE_ON ? ons : offs).add(s);
+        }
+        assertEquals(notes.size(), ons.size(), "note-on count");
+        assertEquals(notes.size(), offs.size(), "note-off count");
+        for (int i = 0; i < notes.size(); i++) {
+            Note note = notes.get(i);
+            long expectedOn = startDeviceMicros + Math.round(tempoMap.tickToMicros(note.getStartTimeTicks()));
+            long expectedOff = startDeviceMicros + Math.round(tempoMap.tickToMicros(note.getStartTimeTicks() + note.getDurationTicks()));
+            long actualOn = ons.get(i).timestampMicros;
+            long actualOff = offs.get(i).timestampMicros;
+            assertTrue(Math.abs(expectedOn - actualOn) <= 1, "note-on " + i + ": expected " + expectedOn + " but was " + actualOn);
+            assertTrue(Math.abs(expectedOff - actualOff) <= 1, "note-off " + i + ": expected " + expectedOff + " but was " + actualOff);
+        }
+        // 遅れて送られたイベントが無く、先読み幅 (+1周期) より早すぎるものも無い
+        for (Sent s : sent) {
+            long lead = s.timestampMicros - s.sentAtDeviceMicros;
+            assertTrue(lead >= 0, "event sent " + (-lead) + "us late");
+            assertTrue(lead <= (MidiScheduler.LOOKAHEAD_NANOS + maxStepNanos) / 1000, "event sent " + lead + "us early");
+        }
+    }
+
+    @Test
+    void eventsMatchTempoMapUnderJitter() {
+        Transport transport = scheduler.createTransport();
+        List<Note> notes = quarterNotes(32, 480);
+        transport.setSources(List.of(new PlaybackSource("t", notes)));
+        TempoMap tempoMap = TempoMap.constant(480, 120.0);
+        transport.setTempoMap(tempoMap);
+
+        long startDeviceMicros = deviceMicros();
+        assertTrue(transport.start());
+        long maxStep = drive(transport, 30_000_000_000L, 42);
+
+        assertFalse(transport.isPlaying(), "transport should stop at the end of the notes");
+        assertTimestamps(notes, tempoMap, startDeviceMicros, maxStep);
+    }
+
+    @Test
+    void eventsFollowTempoChanges() {
+        Transport transport = scheduler.createTransport();
+        List<Note> notes = quarterNotes(24, 480);
+        transport.setSources(List.of(new PlaybackSource("t", notes)));
+        TempoMap tempoMap = TempoMap.constant(480, 120.0).withTempoChange(1920, 60.0).withTempoChange(3840, 180.0);
+        transport.setTempoMap(tempoMap);
+
+        long startDeviceMicros = deviceMicros();
+        assertTrue(transport.start());
+        long maxStep = drive(transport, 30_000_000_000L, 7);
+
+        assertTimestamps(notes, tempoMap, startDeviceMicros, maxStep);
+    }
+
+    @Test
+    void seekPastLoopEndWrapsToLoopStart() {
+        Transport transport = scheduler.createTransport();
+        List<Note> notes = quarterNotes(16, 480);
+        transport.setSources(List.of(new PlaybackSource("t", notes)));
+        TempoMap tempoMap = TempoMap.constant(480, 120.0);
+        transport.setTempoMap(tempoMap);
+        transport.setLoop(0, 1920);
+
+        assertTrue(transport.start());
+        drive(transport, 300_000_000L, 1);
+        transport.seek(3840);
+        sent.clear();
+        long seekDeviceMicros = deviceMicros();
+        drive(transport, 3_000_000_000L, 2);
+
+        assertTrue(transport.isPlaying(), "looping transport keeps playing");
+        List<Sent> ons = new ArrayList<>();
+        for (Sent s : sent) {
+            if (s.command == ShortMessage.NOTE_ON) {
+                ons.add(s);
+            }
+        }
+        // 1小節 (2秒) のループを3秒回すので、ループ内の4音が少なくとも1周分鳴る
+        assertTrue(ons.size() >= 4, "notes in the loop are played after the seek, got " + ons.size());
+        for (Sent on : ons) {
+            assertTrue(on.pitch >= 60 && on.pitch <= 63, "only notes inside the loop are played, got pitch " + on.pitch);
+        }
+        // ループ先頭のノートはシーク直後 (1周期以内) に鳴る
+        assertEquals(60, ons.get(0).pitch);
+        assertTrue(ons.get(0).timestampMicros - seekDeviceMicros <= 3_000, "loop restarts right after the seek");
+    }
+}